@@ -0,0 +1,120 @@
+package com.acertainbookstore.business;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * {@link BookChanges} is used to represent the books which changed since a
+ * catalog version: the ISBNs of the books which were added or modified, the
+ * ISBNs of the books which were removed, and the version the changes bring
+ * the reader up to.
+ */
+public final class BookChanges {
+
+	/** The catalog version of the changes. */
+	private final long version;
+
+	/** Whether the changes are incomplete and the books must be read again. */
+	private final boolean fullResync;
+
+	/** The ISBNs of the books which were added or modified. */
+	private final Set<Integer> modifiedISBNs;
+
+	/** The ISBNs of the books which were removed. */
+	private final Set<Integer> removedISBNs;
+
+	/**
+	 * Instantiates a new {@link BookChanges}.
+	 *
+	 * @param version
+	 *            the catalog version of the changes
+	 * @param fullResync
+	 *            whether the changes are incomplete
+	 * @param modifiedISBNs
+	 *            the ISBNs of the books which were added or modified
+	 * @param removedISBNs
+	 *            the ISBNs of the books which were removed
+	 */
+	public BookChanges(long version, boolean fullResync, Set<Integer> modifiedISBNs, Set<Integer> removedISBNs) {
+		this.version = version;
+		this.fullResync = fullResync;
+		this.modifiedISBNs = modifiedISBNs;
+		this.removedISBNs = removedISBNs;
+	}
+
+	/**
+	 * Gets the catalog version of the changes, to pass to the next call.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Checks if the changes are incomplete, because the reader fell behind the
+	 * changes the store retains. The reader must then read all the books
+	 * again, and may ask for the changes since {@link #getVersion()} after
+	 * that.
+	 *
+	 * @return true, if all the books must be read again
+	 */
+	public boolean isFullResync() {
+		return fullResync;
+	}
+
+	/**
+	 * Gets the ISBNs of the books which were added or modified.
+	 *
+	 * @return the ISBNs
+	 */
+	public Set<Integer> getModifiedISBNs() {
+		return Collections.unmodifiableSet(modifiedISBNs);
+	}
+
+	/**
+	 * Gets the ISBNs of the books which were removed.
+	 *
+	 * @return the ISBNs
+	 */
+	public Set<Integer> getRemovedISBNs() {
+		return Collections.unmodifiableSet(removedISBNs);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == null || getClass() != obj.getClass()) {
+			return false;
+		}
+
+		BookChanges changes = (BookChanges) obj;
+		return version == changes.version && fullResync == changes.fullResync
+				&& modifiedISBNs.equals(changes.modifiedISBNs) && removedISBNs.equals(changes.removedISBNs);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Long.hashCode(version);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Version: " + version + ", Full resync: " + fullResync + ", Modified: " + modifiedISBNs
+				+ ", Removed: " + removedISBNs;
+	}
+}
@@ -1,11 +1,18 @@
 package com.acertainbookstore.business;
 
+import java.util.Set;
+
+import com.acertainbookstore.utils.BookStoreStringDictionary;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link BookStoreBook} implements all parts of the book. Only parts of it are
  * available in the bookstore client and stock manager, cf. the {@link Book} and
  * {@link StockBook} interfaces.
+ * <p>
+ * The title and the author are kept as IDs in a
+ * {@link BookStoreStringDictionary}, which the books of a store share so that
+ * every distinct string is stored once.
  * 
  * @see Book
  * @see StockBook
@@ -28,6 +35,18 @@ public class BookStoreBook extends ImmutableBook {
 	/** Whether the book is editor picked. */
 	private boolean editorPick;
 
+	/** The catalog version of the last change to this book. */
+	private long version;
+
+	/** The dictionary of the title and the author. */
+	private final BookStoreStringDictionary dictionary;
+
+	/** The ID of the title in the dictionary. */
+	private final int titleId;
+
+	/** The ID of the author in the dictionary. */
+	private final int authorId;
+
 	/**
 	 * Instantiates a new {@link BookStoreBook}.
 	 *
@@ -43,7 +62,33 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the number of copies
 	 */
 	public BookStoreBook(int isbn, String title, String author, float price, int numCopies) {
-		super(isbn, title, author, price);
+		this(isbn, title, author, price, numCopies, new BookStoreStringDictionary());
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreBook} whose title and author are
+	 * stored in a shared dictionary.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @param title
+	 *            the title
+	 * @param author
+	 *            the author
+	 * @param price
+	 *            the price
+	 * @param numCopies
+	 *            the number of copies
+	 * @param dictionary
+	 *            the dictionary of the titles and authors
+	 */
+	public BookStoreBook(int isbn, String title, String author, float price, int numCopies,
+			BookStoreStringDictionary dictionary) {
+		super(isbn, null, null, price);
+
+		this.dictionary = dictionary;
+		this.titleId = dictionary.intern(title);
+		this.authorId = dictionary.intern(author);
 
 		this.setNumSaleMisses(0);
 		this.setNumTimesRated(0);
@@ -60,7 +105,24 @@ public class BookStoreBook extends ImmutableBook {
 	 *            the book to copy
 	 */
 	public BookStoreBook(StockBook bookToCopy) {
-		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy.getAuthor(), bookToCopy.getPrice());
+		this(bookToCopy, new BookStoreStringDictionary());
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreBook} from a {@link StockBook}
+	 * instance, storing its title and author in a shared dictionary.
+	 *
+	 * @param bookToCopy
+	 *            the book to copy
+	 * @param dictionary
+	 *            the dictionary of the titles and authors
+	 */
+	public BookStoreBook(StockBook bookToCopy, BookStoreStringDictionary dictionary) {
+		super(bookToCopy.getISBN(), null, null, bookToCopy.getPrice());
+
+		this.dictionary = dictionary;
+		this.titleId = dictionary.intern(bookToCopy.getTitle());
+		this.authorId = dictionary.intern(bookToCopy.getAuthor());
 
 		this.setNumSaleMisses(bookToCopy.getNumSaleMisses());
 		this.setNumTimesRated(bookToCopy.getNumTimesRated());
@@ -69,6 +131,26 @@ public class BookStoreBook extends ImmutableBook {
 		this.setEditorPick(bookToCopy.isEditorPick());
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.business.ImmutableBook#getTitle()
+	 */
+	@Override
+	public String getTitle() {
+		return dictionary.get(titleId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.business.ImmutableBook#getAuthor()
+	 */
+	@Override
+	public String getAuthor() {
+		return dictionary.get(authorId);
+	}
+
 	/**
 	 * Gets the total rating.
 	 *
@@ -123,6 +205,25 @@ public class BookStoreBook extends ImmutableBook {
 		return editorPick;
 	}
 
+	/**
+	 * Gets the catalog version of the last change to the book.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Sets the catalog version of the last change to the book.
+	 *
+	 * @param version
+	 *            the new version
+	 */
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	/**
 	 * Sets the total rating of the book.
 	 *
@@ -265,8 +366,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the immutable book
 	 */
 	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice());
+		return new ImmutableBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice());
 	}
 
 	/**
@@ -275,18 +375,37 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return the stock book
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
+		return new ImmutableStockBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(),
+				this.numCopies, this.numSaleMisses, this.numTimesRated, this.totalRating,
 				this.editorPick);
 	}
 
+	/**
+	 * Returns a {@link StockBook} copy of some fields of the book. The other
+	 * fields are null, zero or false; the ISBN is always copied.
+	 *
+	 * @param fields
+	 *            the fields to copy
+	 * @return the stock book
+	 */
+	public StockBook immutableStockBook(Set<StockBookField> fields) {
+		return new ImmutableStockBook(this.getISBN(), fields.contains(StockBookField.TITLE) ? this.getTitle() : null,
+				fields.contains(StockBookField.AUTHOR) ? this.getAuthor() : null,
+				fields.contains(StockBookField.PRICE) ? this.getPrice() : 0,
+				fields.contains(StockBookField.NUM_COPIES) ? this.numCopies : 0,
+				fields.contains(StockBookField.NUM_SALE_MISSES) ? this.numSaleMisses : 0,
+				fields.contains(StockBookField.NUM_TIMES_RATED) ? this.numTimesRated : 0,
+				fields.contains(StockBookField.TOTAL_RATING) ? this.totalRating : 0,
+				fields.contains(StockBookField.EDITOR_PICK) && this.editorPick);
+	}
+
 	/**
 	 * Returns a {@link BookStoreBook} copy of the book.
 	 *
 	 * @return the book store book
 	 */
 	public BookStoreBook copy() {
-		return new BookStoreBook(this.getISBN(), new String(this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies);
+		return new BookStoreBook(this.getISBN(), this.getTitle(), this.getAuthor(), this.getPrice(), this.numCopies,
+				dictionary);
 	}
 }
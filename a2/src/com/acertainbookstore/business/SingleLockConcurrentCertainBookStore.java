@@ -10,13 +10,21 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreChangeLog;
+import com.acertainbookstore.utils.BookStoreChunkedStream;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreDeadline;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreStringDictionary;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /** {@link SingleLockConcurrentCertainBookStore} implements the {@link BookStore} and
@@ -24,8 +32,9 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * 
  * @see BookStore
  * @see StockManager
+ * @see VersionedCatalog
  */
-public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager {
+public class SingleLockConcurrentCertainBookStore implements BookStore, StockManager, VersionedCatalog {
 
 	/** The mapping of books from ISBN to {@link BookStoreBook}. */
 	private Map<Integer, BookStoreBook> bookMap = null;
@@ -33,6 +42,21 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
     /** The RW lock. */
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+	/** The catalog version, incremented on every change to the books. */
+	private final AtomicLong catalogVersion = new AtomicLong();
+
+	/** The ISBNs of the books in increasing order, for reads by page. */
+	private final TreeSet<Integer> isbnIndex = new TreeSet<>();
+
+	/** The latest changes to the books, for the readers of changes. */
+	private final BookStoreChangeLog changeLog = new BookStoreChangeLog(BookStoreConstants.CHANGE_LOG_SIZE);
+
+	/**
+	 * The titles and authors of the books. The strings of removed books stay
+	 * until all the books are removed.
+	 */
+	private final BookStoreStringDictionary dictionary = new BookStoreStringDictionary();
+
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
@@ -111,7 +135,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		}
 
 		// Check if all are there
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (StockBook book : bookSet) {
             try {
                 validate(book);
@@ -122,9 +146,15 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
             }
 		}
 
+		long version = catalogVersion.incrementAndGet();
+
 		for (StockBook book : bookSet) {
 			int isbn = book.getISBN();
-			bookMap.put(isbn, new BookStoreBook(book));
+			BookStoreBook newBook = new BookStoreBook(book, dictionary);
+			newBook.setVersion(version);
+			bookMap.put(isbn, newBook);
+			isbnIndex.add(isbn);
+			changeLog.recordModified(version, isbn);
 		}
         lock.writeLock().unlock();
 	}
@@ -143,7 +173,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (BookCopy bookCopy : bookCopiesSet) {
             try {
                 validate(bookCopy);
@@ -155,6 +185,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		}
 
 		BookStoreBook book;
+		long version = catalogVersion.incrementAndGet();
 
 		// Update the number of copies
 		for (BookCopy bookCopy : bookCopiesSet) {
@@ -162,17 +193,72 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			numCopies = bookCopy.getNumCopies();
 			book = bookMap.get(isbn);
 			book.addCopies(numCopies);
+			book.setVersion(version);
+			changeLog.recordModified(version, isbn);
 		}
         lock.writeLock().unlock();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopiesBatch(java.util.
+	 * List)
+	 */
+	public List<BookStoreException> addCopiesBatch(List<Set<BookCopy>> bookCopiesSets) throws BookStoreException {
+		if (bookCopiesSets == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<BookStoreException> outcomes = new ArrayList<>(bookCopiesSets.size());
+		long version = -1;
+
+        BookStoreDeadline.lock(lock.writeLock());
+		for (Set<BookCopy> bookCopiesSet : bookCopiesSets) {
+			BookStoreException outcome = null;
+
+			try {
+				if (bookCopiesSet == null) {
+					throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+				}
+
+				for (BookCopy bookCopy : bookCopiesSet) {
+					validate(bookCopy);
+				}
+			} catch (BookStoreException e) {
+				outcome = e;
+			}
+
+			outcomes.add(outcome);
+
+			if (outcome != null) {
+				continue;
+			}
+
+			// One version for the whole batch, if anything is applied.
+			if (version < 0) {
+				version = catalogVersion.incrementAndGet();
+			}
+
+			for (BookCopy bookCopy : bookCopiesSet) {
+				BookStoreBook book = bookMap.get(bookCopy.getISBN());
+				book.addCopies(bookCopy.getNumCopies());
+				book.setVersion(version);
+				changeLog.recordModified(version, bookCopy.getISBN());
+			}
+		}
+        lock.writeLock().unlock();
+		return outcomes;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
-	public List<StockBook> getBooks() {
-        lock.readLock().lock();
+	public List<StockBook> getBooks() throws BookStoreException {
+        BookStoreDeadline.lock(lock.readLock());
 		Collection<BookStoreBook> bookMapValues = bookMap.values();
 
 		var result = bookMapValues.stream()
@@ -182,6 +268,87 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
         return result;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int,
+	 * java.util.Set)
+	 */
+	public List<StockBook> getBooks(int cursor, int limit, Set<StockBookField> fields) throws BookStoreException {
+		if (fields == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (BookStoreUtility.isInvalidPageLimit(limit)) {
+			throw new BookStoreException(BookStoreConstants.PAGE_LIMIT + limit + BookStoreConstants.INVALID);
+		}
+
+		List<StockBook> page = new ArrayList<>();
+
+		BookStoreDeadline.lock(lock.readLock());
+		try {
+			for (Integer isbn : isbnIndex.tailSet(cursor, false)) {
+				if (page.size() == limit) {
+					break;
+				}
+
+				page.add(bookMap.get(isbn).immutableStockBook(fields));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return page;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#streamBooks()
+	 */
+	public Stream<StockBook> streamBooks() throws BookStoreException {
+		int[] isbns;
+
+		BookStoreDeadline.lock(lock.readLock());
+		try {
+			isbns = isbnIndex.stream().mapToInt(Integer::intValue).toArray();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return BookStoreChunkedStream.ofKeys(isbns, BookStoreConstants.STREAM_CHUNK_SIZE, this::getBooksChunk);
+	}
+
+	/**
+	 * Gets the books of a chunk of ISBNs which are still in the store.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @param from
+	 *            the index of the first ISBN of the chunk
+	 * @param to
+	 *            the index after the last ISBN of the chunk
+	 * @return the books
+	 */
+	private List<StockBook> getBooksChunk(int[] isbns, int from, int to) {
+		List<StockBook> chunk = new ArrayList<>(to - from);
+
+		lock.readLock().lock();
+		try {
+			for (int i = from; i < to; i++) {
+				BookStoreBook book = bookMap.get(isbns[i]);
+
+				if (book != null) {
+					chunk.add(book.immutableStockBook());
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return chunk;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -195,7 +362,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (BookEditorPick editorPickArg : editorPicks) {
             try {
                 validate(editorPickArg);
@@ -206,12 +373,70 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
             }
 		}
 
+		long version = catalogVersion.incrementAndGet();
+
 		for (BookEditorPick editorPickArg : editorPicks) {
-			bookMap.get(editorPickArg.getISBN()).setEditorPick(editorPickArg.isEditorPick());
+			BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+			book.setEditorPick(editorPickArg.isEditorPick());
+			book.setVersion(version);
+			changeLog.recordModified(version, editorPickArg.getISBN());
 		}
         lock.writeLock().unlock();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicksBatch(
+	 * java.util.List)
+	 */
+	public List<BookStoreException> updateEditorPicksBatch(List<Set<BookEditorPick>> editorPicksSets)
+			throws BookStoreException {
+		if (editorPicksSets == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<BookStoreException> outcomes = new ArrayList<>(editorPicksSets.size());
+		long version = -1;
+
+        BookStoreDeadline.lock(lock.writeLock());
+		for (Set<BookEditorPick> editorPicks : editorPicksSets) {
+			BookStoreException outcome = null;
+
+			try {
+				if (editorPicks == null) {
+					throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+				}
+
+				for (BookEditorPick editorPickArg : editorPicks) {
+					validate(editorPickArg);
+				}
+			} catch (BookStoreException e) {
+				outcome = e;
+			}
+
+			outcomes.add(outcome);
+
+			if (outcome != null) {
+				continue;
+			}
+
+			if (version < 0) {
+				version = catalogVersion.incrementAndGet();
+			}
+
+			for (BookEditorPick editorPickArg : editorPicks) {
+				BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				book.setVersion(version);
+				changeLog.recordModified(version, editorPickArg.getISBN());
+			}
+		}
+        lock.writeLock().unlock();
+		return outcomes;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -229,7 +454,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 
 		Map<Integer, Integer> salesMisses = new HashMap<>();
 
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
             try {
                 validate(bookCopyToBuy);
@@ -249,12 +474,17 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			}
 		}
 
+		// Both the sale misses and the purchase change the books.
+		long version = catalogVersion.incrementAndGet();
+
 		// We throw exception now since we want to see how many books in the
 		// order incurred misses which is used by books in demand
 		if (saleMiss) {
 			for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
 				book = bookMap.get(saleMissEntry.getKey());
 				book.addSaleMiss(saleMissEntry.getValue());
+				book.setVersion(version);
+				changeLog.recordModified(version, saleMissEntry.getKey());
 			}
             lock.writeLock().unlock();
 			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
@@ -264,6 +494,8 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 			book = bookMap.get(bookCopyToBuy.getISBN());
 			book.buyCopies(bookCopyToBuy.getNumCopies());
+			book.setVersion(version);
+			changeLog.recordModified(version, bookCopyToBuy.getISBN());
 		}
         lock.writeLock().unlock();
 	}
@@ -280,7 +512,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (Integer ISBN : isbnSet) {
             try {
                 validateISBNInStock(ISBN);
@@ -309,7 +541,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 		}
 
 		// Check that all ISBNs that we rate are there to start with.
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (Integer ISBN : isbnSet) {
             try {
                 validateISBNInStock(ISBN);
@@ -337,7 +569,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException("numBooks = " + numBooks + ", but it must be positive");
 		}
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		List<BookStoreBook> listAllEditorPicks = bookMap.entrySet().stream()
                 .map(pair -> pair.getValue())
 				.filter(book -> book.isEditorPick())
@@ -408,8 +640,11 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
-		lock.writeLock().lock();
+		BookStoreDeadline.lock(lock.writeLock());
         bookMap.clear();
+		isbnIndex.clear();
+		dictionary.clear();
+		changeLog.truncate(catalogVersion.incrementAndGet());
         lock.writeLock().unlock();
 	}
 
@@ -424,7 +659,7 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (Integer ISBN : isbnSet) {
 			if (BookStoreUtility.isInvalidISBN(ISBN)) {
                 lock.writeLock().unlock();
@@ -437,9 +672,74 @@ public class SingleLockConcurrentCertainBookStore implements BookStore, StockMan
 			}
 		}
 
+		long version = catalogVersion.incrementAndGet();
+
 		for (int isbn : isbnSet) {
 			bookMap.remove(isbn);
+			isbnIndex.remove(isbn);
+			changeLog.recordRemoved(version, isbn);
 		}
         lock.writeLock().unlock();
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		if (version < 0) {
+			throw new BookStoreException(BookStoreConstants.VERSION + version + BookStoreConstants.INVALID);
+		}
+
+		BookStoreDeadline.lock(lock.readLock());
+		try {
+			return changeLog.getChangesSince(version, catalogVersion.get());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		return catalogVersion.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getBooksVersion(java.
+	 * util.Set)
+	 */
+	@Override
+	public long getBooksVersion(Set<Integer> isbnSet) {
+		if (isbnSet == null) {
+			return UNVERSIONED;
+		}
+
+		long version = 0;
+
+        lock.readLock().lock();
+		for (Integer ISBN : isbnSet) {
+			BookStoreBook book = bookMap.get(ISBN);
+
+			if (book == null) {
+                lock.readLock().unlock();
+				return UNVERSIONED;
+			}
+
+			// Every change is stamped with a fresh catalog version, so the
+			// largest stamp changes whenever any of the books changes.
+			version = Math.max(version, book.getVersion());
+		}
+        lock.readLock().unlock();
+		return version;
+	}
 }
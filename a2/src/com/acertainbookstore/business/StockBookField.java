@@ -0,0 +1,99 @@
+package com.acertainbookstore.business;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link StockBookField} enumerates the fields of a {@link StockBook}, so that
+ * a read of the catalog can ask for some of them only.
+ *
+ * @see StockBook
+ */
+public enum StockBookField {
+
+	/** The ISBN, which is always filled in. */
+	ISBN,
+
+	/** The title. */
+	TITLE,
+
+	/** The author. */
+	AUTHOR,
+
+	/** The price. */
+	PRICE,
+
+	/** The number of copies. */
+	NUM_COPIES,
+
+	/** The number of sale misses. */
+	NUM_SALE_MISSES,
+
+	/** The number of times rated. */
+	NUM_TIMES_RATED,
+
+	/** The total rating. */
+	TOTAL_RATING,
+
+	/** Whether the book is an editor pick. */
+	EDITOR_PICK;
+
+	/** All the fields. */
+	public static final Set<StockBookField> ALL = Collections.unmodifiableSet(EnumSet.allOf(StockBookField.class));
+
+	/** The separator of the fields in a parameter. */
+	private static final String SEPARATOR = ",";
+
+	/**
+	 * Converts a set of fields to the value of a URL parameter.
+	 *
+	 * @param fields
+	 *            the fields
+	 * @return the parameter value, e.g. "ISBN,NUM_COPIES"
+	 */
+	public static String toParameter(Set<StockBookField> fields) {
+		StringJoiner parameter = new StringJoiner(SEPARATOR);
+
+		for (StockBookField field : fields) {
+			parameter.add(field.name());
+		}
+
+		return parameter.toString();
+	}
+
+	/**
+	 * Converts the value of a URL parameter to a set of fields.
+	 *
+	 * @param parameter
+	 *            the parameter value, or null for all the fields
+	 * @return the fields
+	 * @throws BookStoreException
+	 *             if a field is unknown
+	 */
+	public static Set<StockBookField> fromParameter(String parameter) throws BookStoreException {
+		if (parameter == null) {
+			return ALL;
+		}
+
+		Set<StockBookField> fields = EnumSet.of(ISBN);
+
+		for (String name : parameter.split(SEPARATOR)) {
+			if (name.isEmpty()) {
+				continue;
+			}
+
+			try {
+				fields.add(valueOf(name));
+			} catch (IllegalArgumentException ex) {
+				throw new BookStoreException(BookStoreConstants.FIELD + name + BookStoreConstants.INVALID, ex);
+			}
+		}
+
+		return fields;
+	}
+}
@@ -5,12 +5,19 @@ import java.util.Map.Entry;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreChangeLog;
+import com.acertainbookstore.utils.BookStoreChunkedStream;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreDeadline;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreStringDictionary;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -19,8 +26,8 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 class LockedBookStoreBook extends BookStoreBook implements ReadWriteLock {
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    public LockedBookStoreBook(StockBook book) {
-        super(book);
+    public LockedBookStoreBook(StockBook book, BookStoreStringDictionary dictionary) {
+        super(book, dictionary);
     }
     public ReentrantReadWriteLock.ReadLock readLock() { return lock.readLock(); }
     public ReentrantReadWriteLock.WriteLock writeLock() { return lock.writeLock(); }
@@ -31,8 +38,9 @@ class LockedBookStoreBook extends BookStoreBook implements ReadWriteLock {
  * 
  * @see BookStore
  * @see StockManager
+ * @see VersionedCatalog
  */
-public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager {
+public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, StockManager, VersionedCatalog {
 
 	/** The mapping of books from ISBN to {@link LockedBookStoreBook}. */
 	private Map<Integer, LockedBookStoreBook> bookMap = null;
@@ -40,6 +48,37 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
     /** The coarse grained lock for the bookstore. */
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+	/**
+	 * The catalog version, incremented on every change to the books. Changes
+	 * to different books may run concurrently, hence the atomic counter.
+	 */
+	private final AtomicLong catalogVersion = new AtomicLong();
+
+	/**
+	 * The versions taken by changes which are not committed yet, in
+	 * increasing order. Guards the taking of versions, so that a version is
+	 * pending from the moment it is taken.
+	 */
+	private final TreeSet<Long> pendingVersions = new TreeSet<>();
+
+	/**
+	 * The committed version, the largest version such that every change up to
+	 * it is recorded and applied, and its books are unlocked.
+	 */
+	private final AtomicLong committedVersion = new AtomicLong();
+
+	/** The ISBNs of the books in increasing order, for reads by page. */
+	private final TreeSet<Integer> isbnIndex = new TreeSet<>();
+
+	/** The latest changes to the books, for the readers of changes. */
+	private final BookStoreChangeLog changeLog = new BookStoreChangeLog(BookStoreConstants.CHANGE_LOG_SIZE);
+
+	/**
+	 * The titles and authors of the books. The strings of removed books stay
+	 * until all the books are removed.
+	 */
+	private final BookStoreStringDictionary dictionary = new BookStoreStringDictionary();
+
 	/**
 	 * Instantiates a new {@link CertainBookStore}.
 	 */
@@ -105,6 +144,31 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		}
 	}
 
+	/**
+	 * Locks the books of a request in order, each within the deadline of the
+	 * request. If the deadline expires, the books locked so far are unlocked
+	 * along with the catalog, so that the request can give up.
+	 *
+	 * @param locks
+	 *            the locks of the books, in the order of their ISBNs
+	 * @throws BookStoreException
+	 *             if the deadline expired
+	 */
+	private void lockBooks(List<Lock> locks) throws BookStoreException {
+		for (int i = 0; i < locks.size(); i++) {
+			try {
+				BookStoreDeadline.lock(locks.get(i));
+			} catch (BookStoreException e) {
+				for (int j = 0; j < i; j++) {
+					locks.get(j).unlock();
+				}
+
+				lock.readLock().unlock();
+				throw e;
+			}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -117,7 +181,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		}
 
 		// Check if all are there
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (StockBook book : bookSet) {
             try {
                 validate(book);
@@ -127,10 +191,17 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
             }
 		}
 
+		long version = beginChange();
+
 		for (StockBook book : bookSet) {
 			int isbn = book.getISBN();
-			bookMap.put(isbn, new LockedBookStoreBook(book));
+			LockedBookStoreBook newBook = new LockedBookStoreBook(book, dictionary);
+			newBook.setVersion(version);
+			bookMap.put(isbn, newBook);
+			isbnIndex.add(isbn);
+			changeLog.recordModified(version, isbn);
 		}
+		commitChange(version);
         lock.writeLock().unlock();
 	}
 
@@ -148,7 +219,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
         List<BookCopy> sortedBookCopies = new ArrayList<>(bookCopiesSet);
         sortedBookCopies.sort(Comparator.comparingInt(BookCopy::getISBN));
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (BookCopy bookCopy : sortedBookCopies) {
             try {
                 validate(bookCopy);
@@ -158,19 +229,93 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
             }
 		}
 
-		// Update the number of copies
+		// Lock all the books first, so that an expired deadline leaves none
+		// of them updated.
         List<Lock> locks = new ArrayList<>();
+		for (BookCopy bookCopy : sortedBookCopies) {
+            locks.add(bookMap.get(bookCopy.getISBN()).writeLock());
+		}
+        lockBooks(locks);
+
+		// Update the number of copies
+		long version = beginChange();
 		for (BookCopy bookCopy : sortedBookCopies) {
 			var book = bookMap.get(bookCopy.getISBN());
-            var lock = book.writeLock();
-            locks.add(lock);
-            lock.lock();
 			book.addCopies(bookCopy.getNumCopies());
+			book.setVersion(version);
+			changeLog.recordModified(version, bookCopy.getISBN());
+		}
+        for (var lock : locks) {
+            lock.unlock();
+        }
+		commitChange(version);
+        lock.readLock().unlock();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopiesBatch(java.util.
+	 * List)
+	 */
+	public List<BookStoreException> addCopiesBatch(List<Set<BookCopy>> bookCopiesSets) throws BookStoreException {
+		if (bookCopiesSets == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<BookStoreException> outcomes = new ArrayList<>(bookCopiesSets.size());
+		SortedSet<Integer> isbns = new TreeSet<>();
+
+        BookStoreDeadline.lock(lock.readLock());
+		for (Set<BookCopy> bookCopiesSet : bookCopiesSets) {
+			try {
+				if (bookCopiesSet == null) {
+					throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+				}
+
+				for (BookCopy bookCopy : bookCopiesSet) {
+					validate(bookCopy);
+				}
+
+				for (BookCopy bookCopy : bookCopiesSet) {
+					isbns.add(bookCopy.getISBN());
+				}
+
+				outcomes.add(null);
+			} catch (BookStoreException e) {
+				outcomes.add(e);
+			}
+		}
+
+		// Lock the books of all the valid sets at once, in ISBN order.
+        List<Lock> locks = new ArrayList<>();
+		for (Integer isbn : isbns) {
+            locks.add(bookMap.get(isbn).writeLock());
+		}
+        lockBooks(locks);
+
+		long version = isbns.isEmpty() ? -1 : beginChange();
+		for (int i = 0; i < outcomes.size(); i++) {
+			if (outcomes.get(i) != null) {
+				continue;
+			}
+
+			for (BookCopy bookCopy : bookCopiesSets.get(i)) {
+				var book = bookMap.get(bookCopy.getISBN());
+				book.addCopies(bookCopy.getNumCopies());
+				book.setVersion(version);
+				changeLog.recordModified(version, bookCopy.getISBN());
+			}
 		}
         for (var lock : locks) {
             lock.unlock();
         }
+		if (version != -1) {
+			commitChange(version);
+		}
         lock.readLock().unlock();
+		return outcomes;
 	}
 
 	/*
@@ -178,10 +323,10 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * 
 	 * @see com.acertainbookstore.interfaces.StockManager#getBooks()
 	 */
-	public List<StockBook> getBooks() {
+	public List<StockBook> getBooks() throws BookStoreException {
         List<Lock> locks = new ArrayList<>();
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
         List<Integer> sortedIsbns = new ArrayList<>(bookMap.keySet());
         sortedIsbns.sort(Comparator.naturalOrder());
 
@@ -199,6 +344,103 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
         return result;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int,
+	 * java.util.Set)
+	 */
+	public List<StockBook> getBooks(int cursor, int limit, Set<StockBookField> fields) throws BookStoreException {
+		if (fields == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		if (BookStoreUtility.isInvalidPageLimit(limit)) {
+			throw new BookStoreException(BookStoreConstants.PAGE_LIMIT + limit + BookStoreConstants.INVALID);
+		}
+
+		List<StockBook> page = new ArrayList<>();
+
+		BookStoreDeadline.lock(lock.readLock());
+		try {
+			for (Integer isbn : isbnIndex.tailSet(cursor, false)) {
+				if (page.size() == limit) {
+					break;
+				}
+
+				LockedBookStoreBook book = bookMap.get(isbn);
+
+				book.readLock().lock();
+				try {
+					page.add(book.immutableStockBook(fields));
+				} finally {
+					book.readLock().unlock();
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return page;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#streamBooks()
+	 */
+	public Stream<StockBook> streamBooks() throws BookStoreException {
+		int[] isbns;
+
+		BookStoreDeadline.lock(lock.readLock());
+		try {
+			isbns = isbnIndex.stream().mapToInt(Integer::intValue).toArray();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return BookStoreChunkedStream.ofKeys(isbns, BookStoreConstants.STREAM_CHUNK_SIZE, this::getBooksChunk);
+	}
+
+	/**
+	 * Gets the books of a chunk of ISBNs which are still in the store. Every
+	 * book is copied under its own read lock, so the chunk does not block
+	 * writers of the other books.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @param from
+	 *            the index of the first ISBN of the chunk
+	 * @param to
+	 *            the index after the last ISBN of the chunk
+	 * @return the books
+	 */
+	private List<StockBook> getBooksChunk(int[] isbns, int from, int to) {
+		List<StockBook> chunk = new ArrayList<>(to - from);
+
+		lock.readLock().lock();
+		try {
+			for (int i = from; i < to; i++) {
+				LockedBookStoreBook book = bookMap.get(isbns[i]);
+
+				if (book == null) {
+					continue;
+				}
+
+				book.readLock().lock();
+				try {
+					chunk.add(book.immutableStockBook());
+				} finally {
+					book.readLock().unlock();
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return chunk;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -215,7 +457,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
         List<BookEditorPick> sortedEditorPicks = new ArrayList<>(editorPicks);
         sortedEditorPicks.sort(Comparator.comparingInt(BookEditorPick::getISBN));
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (BookEditorPick editorPickArg : sortedEditorPicks) {
             try {
                 validate(editorPickArg);
@@ -226,17 +468,89 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		}
 
         List<Lock> locks = new ArrayList<>();
+		for (BookEditorPick editorPickArg : sortedEditorPicks) {
+            locks.add(bookMap.get(editorPickArg.getISBN()).writeLock());
+		}
+        lockBooks(locks);
+
+		long version = beginChange();
 		for (BookEditorPick editorPickArg : sortedEditorPicks) {
 			var book = bookMap.get(editorPickArg.getISBN());
-            var lock = book.writeLock();
-            locks.add(lock);
-            lock.lock();
             book.setEditorPick(editorPickArg.isEditorPick());
+            book.setVersion(version);
+			changeLog.recordModified(version, editorPickArg.getISBN());
+		}
+        for (var lock : locks) {
+            lock.unlock();
+        }
+		commitChange(version);
+        lock.readLock().unlock();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicksBatch(
+	 * java.util.List)
+	 */
+	public List<BookStoreException> updateEditorPicksBatch(List<Set<BookEditorPick>> editorPicksSets)
+			throws BookStoreException {
+		if (editorPicksSets == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<BookStoreException> outcomes = new ArrayList<>(editorPicksSets.size());
+		SortedSet<Integer> isbns = new TreeSet<>();
+
+        BookStoreDeadline.lock(lock.readLock());
+		for (Set<BookEditorPick> editorPicks : editorPicksSets) {
+			try {
+				if (editorPicks == null) {
+					throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+				}
+
+				for (BookEditorPick editorPickArg : editorPicks) {
+					validate(editorPickArg);
+				}
+
+				for (BookEditorPick editorPickArg : editorPicks) {
+					isbns.add(editorPickArg.getISBN());
+				}
+
+				outcomes.add(null);
+			} catch (BookStoreException e) {
+				outcomes.add(e);
+			}
+		}
+
+        List<Lock> locks = new ArrayList<>();
+		for (Integer isbn : isbns) {
+            locks.add(bookMap.get(isbn).writeLock());
+		}
+        lockBooks(locks);
+
+		long version = isbns.isEmpty() ? -1 : beginChange();
+		for (int i = 0; i < outcomes.size(); i++) {
+			if (outcomes.get(i) != null) {
+				continue;
+			}
+
+			for (BookEditorPick editorPickArg : editorPicksSets.get(i)) {
+				var book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				book.setVersion(version);
+				changeLog.recordModified(version, editorPickArg.getISBN());
+			}
 		}
         for (var lock : locks) {
             lock.unlock();
         }
+		if (version != -1) {
+			commitChange(version);
+		}
         lock.readLock().unlock();
+		return outcomes;
 	}
 
 	/*
@@ -261,23 +575,22 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
         List<Lock> locks = new ArrayList<>();
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (BookCopy bookCopyToBuy : sortedBookCopiesToBuy) {
             try {
                 validate(bookCopyToBuy);
             } catch (BookStoreException e) {
-                for (var lock : locks) {
-                    lock.unlock();
-                }
                 lock.readLock().unlock();
                 throw e;
             }
 
+            locks.add(bookMap.get(bookCopyToBuy.getISBN()).writeLock());
+		}
+        lockBooks(locks);
+
+		for (BookCopy bookCopyToBuy : sortedBookCopiesToBuy) {
             isbn = bookCopyToBuy.getISBN();
 			book = bookMap.get(isbn);
-            var lock = book.writeLock();
-            locks.add(lock);
-            lock.lock();
 			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
 				// If we cannot sell the copies of the book, it is a miss.
 				salesMisses.put(isbn, bookCopyToBuy.getNumCopies() - book.getNumCopies());
@@ -285,16 +598,22 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			}
 		}
 
+		// Both the sale misses and the purchase change the books.
+		long version = beginChange();
+
 		// We throw exception now since we want to see how many books in the
 		// order incurred misses which is used by books in demand
 		if (saleMiss) {
 			for (Map.Entry<Integer, Integer> saleMissEntry : salesMisses.entrySet()) {
 				book = bookMap.get(saleMissEntry.getKey());
 				book.addSaleMiss(saleMissEntry.getValue());
+				book.setVersion(version);
+				changeLog.recordModified(version, saleMissEntry.getKey());
 			}
             for (var lock : locks) {
                 lock.unlock();
             }
+			commitChange(version);
             lock.readLock().unlock();
 			throw new BookStoreException(BookStoreConstants.BOOK + BookStoreConstants.NOT_AVAILABLE);
 		}
@@ -303,10 +622,13 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 		for (BookCopy bookCopyToBuy : sortedBookCopiesToBuy) {
 			book = bookMap.get(bookCopyToBuy.getISBN());
 			book.buyCopies(bookCopyToBuy.getNumCopies());
+			book.setVersion(version);
+			changeLog.recordModified(version, bookCopyToBuy.getISBN());
 		}
         for (var lock : locks) {
             lock.unlock();
         }
+		commitChange(version);
         lock.readLock().unlock();
 	}
 
@@ -325,7 +647,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
         List<Integer> sortedIsbnSet = new ArrayList<>(isbnSet);
         sortedIsbnSet.sort(Comparator.naturalOrder());
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (Integer ISBN : sortedIsbnSet) {
             try {
                 validateISBNInStock(ISBN);
@@ -366,7 +688,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
         sortedIsbnSet.sort(Comparator.naturalOrder());
 
         // Check that all ISBNs that we rate are there to start with.
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
 		for (Integer ISBN : sortedIsbnSet) {
             try {
                 validateISBNInStock(ISBN);
@@ -405,7 +727,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 
         List<Lock> locks = new ArrayList<>();
 
-        lock.readLock().lock();
+        BookStoreDeadline.lock(lock.readLock());
         List<Integer> sortedIsbns = new ArrayList<>(bookMap.keySet());
         sortedIsbns.sort(Comparator.naturalOrder());
 
@@ -487,8 +809,13 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 	 * @see com.acertainbookstore.interfaces.StockManager#removeAllBooks()
 	 */
 	public void removeAllBooks() throws BookStoreException {
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		bookMap.clear();
+		isbnIndex.clear();
+		dictionary.clear();
+		long version = beginChange();
+		changeLog.truncate(version);
+		commitChange(version);
         lock.writeLock().unlock();
 	}
 
@@ -503,7 +830,7 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-        lock.writeLock().lock();
+        BookStoreDeadline.lock(lock.writeLock());
 		for (Integer ISBN : isbnSet) {
 			if (BookStoreUtility.isInvalidISBN(ISBN)) {
                 lock.writeLock().unlock();
@@ -516,9 +843,119 @@ public class TwoLevelLockingConcurrentCertainBookStore implements BookStore, Sto
 			}
 		}
 
+		long version = beginChange();
+
 		for (int isbn : isbnSet) {
 			bookMap.remove(isbn);
+			isbnIndex.remove(isbn);
+			changeLog.recordRemoved(version, isbn);
 		}
+		commitChange(version);
         lock.writeLock().unlock();
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		if (version < 0) {
+			throw new BookStoreException(BookStoreConstants.VERSION + version + BookStoreConstants.INVALID);
+		}
+
+		// Changes to different books commit out of version order, so only
+		// the versions up to the committed one are known to be in the log.
+		BookStoreDeadline.lock(lock.readLock());
+		try {
+			return changeLog.getChangesSince(version, committedVersion.get());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes the catalog version of a change, which stays pending until the
+	 * change is committed.
+	 *
+	 * @return the version of the change
+	 */
+	private long beginChange() {
+		synchronized (pendingVersions) {
+			long version = catalogVersion.incrementAndGet();
+			pendingVersions.add(version);
+			return version;
+		}
+	}
+
+	/**
+	 * Commits a change once it is applied and its books are unlocked, and
+	 * moves the committed version up to the version before the oldest change
+	 * still pending.
+	 *
+	 * @param version
+	 *            the version of the change
+	 */
+	private void commitChange(long version) {
+		synchronized (pendingVersions) {
+			pendingVersions.remove(version);
+			committedVersion.set(pendingVersions.isEmpty() ? catalogVersion.get() : pendingVersions.first() - 1);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.VersionedCatalog#getCatalogVersion()
+	 */
+	@Override
+	public long getCatalogVersion() {
+		// The committed version, so that whatever is read or cached under it
+		// stays valid until a later change commits.
+		return committedVersion.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.VersionedCatalog#getBooksVersion(java.
+	 * util.Set)
+	 */
+	@Override
+	public long getBooksVersion(Set<Integer> isbnSet) {
+		if (isbnSet == null || isbnSet.contains(null)) {
+			return UNVERSIONED;
+		}
+
+        List<Integer> sortedIsbnSet = new ArrayList<>(isbnSet);
+        sortedIsbnSet.sort(Comparator.naturalOrder());
+
+		long version = 0;
+        List<Lock> locks = new ArrayList<>();
+
+        lock.readLock().lock();
+		for (Integer ISBN : sortedIsbnSet) {
+			LockedBookStoreBook book = bookMap.get(ISBN);
+
+			if (book == null) {
+				version = UNVERSIONED;
+				break;
+			}
+
+            var lock = book.readLock();
+            locks.add(lock);
+            lock.lock();
+
+			// Every change is stamped with a fresh catalog version, so the
+			// largest stamp changes whenever any of the books changes.
+			version = Math.max(version, book.getVersion());
+		}
+        for (var lock : locks) {
+            lock.unlock();
+        }
+        lock.readLock().unlock();
+		return version;
+	}
 }
@@ -0,0 +1,250 @@
+package com.acertainbookstore.client;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponseCache;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link AsyncBookStoreHTTPProxy} implements the client level asynchronous
+ * {@link CertainBookStore} API declared in the {@link AsyncBookStore} class.
+ * The calls are sent with the non-blocking API of the HTTP client, so a
+ * caller may have many of them in flight without a thread for each.
+ * 
+ * @see AsyncBookStore
+ * @see BookStoreHTTPProxy
+ */
+public class AsyncBookStoreHTTPProxy implements AsyncBookStore {
+
+	/** The client. */
+	protected HttpClient client;
+
+	/** The server address. */
+	protected String serverAddress;
+
+	/**
+	 * Whether the client belongs to the caller, e.g. a runtime shared with
+	 * other proxies, and is left running when the proxy stops.
+	 */
+	private boolean sharedClient = false;
+
+	/** The format of the requests and the preferred format of the responses. */
+	private final BookStoreSerializationFormat format;
+
+	/** The executor which decodes the responses. */
+	private final Executor executor;
+
+	/** The last responses to catalog reads, revalidated with the server. */
+	private final BookStoreResponseCache responseCache = new BookStoreResponseCache(
+			BookStoreConstants.RESPONSE_CACHE_SIZE);
+
+	/** The latencies of the calls. */
+	private final BookStoreClientMetrics metrics = new BookStoreClientMetrics();
+
+	/**
+	 * Initializes a new {@link AsyncBookStoreHTTPProxy}.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, new HttpClient());
+
+		// The client is the proxy's own, so it stops with the proxy.
+		sharedClient = false;
+	}
+
+	/**
+	 * Initializes a new {@link AsyncBookStoreHTTPProxy} on top of a runtime shared with
+	 * other proxies. Stopping the proxy leaves the runtime running. The
+	 * responses are decoded by the threads of the runtime.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param runtime
+	 *            the client runtime
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress, BookStoreClientRuntime runtime) throws Exception {
+		this(serverAddress, runtime.getHttpClient(), BookStoreConstants.SERIALIZATION_FORMAT, runtime.getExecutor());
+	}
+
+	/**
+	 * Initializes a new {@link AsyncBookStoreHTTPProxy} on top of the given
+	 * HTTP client, which is started if it is not running yet, and left running
+	 * when the proxy stops since it belongs to the caller. The responses
+	 * are decoded by the common fork-join pool.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress, HttpClient client) throws Exception {
+		this(serverAddress, client, BookStoreConstants.SERIALIZATION_FORMAT, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Initializes a new {@link AsyncBookStoreHTTPProxy} which sends its
+	 * requests in the given format and decodes the responses on the given
+	 * executor, so that the client threads only move bytes. The futures are
+	 * completed on the executor, so their dependent actions run there too
+	 * unless they are asynchronous.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @param format
+	 *            the serialization format
+	 * @param executor
+	 *            the executor which decodes the responses
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress, HttpClient client, BookStoreSerializationFormat format,
+			Executor executor) throws Exception {
+		this.format = format;
+		this.executor = executor;
+
+		setServerAddress(serverAddress);
+		this.client = client;
+		sharedClient = true;
+
+		BookStoreUtility.startClient(client);
+	}
+
+	/**
+	 * Gets the server address.
+	 *
+	 * @return the server address
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	/**
+	 * Sets the server address.
+	 *
+	 * @param serverAddress
+	 *            the new server address
+	 */
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#buyBooks(java.util.Set)
+	 */
+	public CompletableFuture<Void> buyBooks(Set<BookCopy> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.BUYBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet).withObserver(method);
+		return method.recordAsync(() -> BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, format,
+				null, executor)).thenApply(bookStoreResponse -> null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getBooks(java.util.Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getBooks(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.GETBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newQueryRequest(urlString, isbnSet)
+				.withObserver(method);
+		return method.recordAsync(() -> BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, format,
+				responseCache, executor)).thenApply(bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getEditorPicks(int)
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<Book>> getEditorPicks(int numBooks) {
+		String urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks), StandardCharsets.UTF_8);
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETEDITORPICKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.GETEDITORPICKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString).withObserver(method);
+		return method.recordAsync(() -> BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, format,
+				null, executor)).thenApply(bookStoreResponse -> (List<Book>) bookStoreResponse.getList());
+	}
+
+	/**
+	 * Gets the latencies of the calls of the proxy, which may be registered
+	 * with JMX; they are unregistered when the proxy is stopped.
+	 *
+	 * @return the client metrics
+	 */
+	public BookStoreClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stops the proxy, and its client unless it is shared.
+	 */
+	public void stop() {
+		metrics.unregisterMBean();
+
+		if (sharedClient) {
+			return;
+		}
+
+		try {
+			client.stop();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncBookStore#rateBooks(java.util.Set)
+	 */
+	@Override
+	public CompletableFuture<Void> rateBooks(Set<BookRating> bookRating) {
+		return CompletableFuture.failedFuture(new BookStoreException());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncBookStore#getTopRatedBooks(int)
+	 */
+	@Override
+	public CompletableFuture<List<Book>> getTopRatedBooks(int numBooks) {
+		return CompletableFuture.failedFuture(new BookStoreException());
+	}
+}
@@ -0,0 +1,345 @@
+package com.acertainbookstore.client;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.business.BookChanges;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.StockBookField;
+import com.acertainbookstore.interfaces.AsyncStockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponseCache;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link AsyncStockManagerHTTPProxy} implements the client level asynchronous
+ * {@link CertainBookStore} API declared in the {@link AsyncStockManager}
+ * class. The calls are sent with the non-blocking API of the HTTP client, so
+ * a caller may have many of them in flight without a thread for each.
+ * 
+ * @see AsyncStockManager
+ * @see StockManagerHTTPProxy
+ */
+public class AsyncStockManagerHTTPProxy implements AsyncStockManager {
+
+	/** The client. */
+	protected HttpClient client;
+
+	/** The server address. */
+	protected String serverAddress;
+
+	/**
+	 * Whether the client belongs to the caller, e.g. a runtime shared with
+	 * other proxies, and is left running when the proxy stops.
+	 */
+	private boolean sharedClient = false;
+
+	/** The format of the requests and the preferred format of the responses. */
+	private final BookStoreSerializationFormat format;
+
+	/** The executor which decodes the responses. */
+	private final Executor executor;
+
+	/** The last responses to catalog reads, revalidated with the server. */
+	private final BookStoreResponseCache responseCache = new BookStoreResponseCache(
+			BookStoreConstants.RESPONSE_CACHE_SIZE);
+
+	/** The latencies of the calls. */
+	private final BookStoreClientMetrics metrics = new BookStoreClientMetrics();
+
+	/**
+	 * Initializes a new {@link AsyncStockManagerHTTPProxy}.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, new HttpClient());
+
+		// The client is the proxy's own, so it stops with the proxy.
+		sharedClient = false;
+	}
+
+	/**
+	 * Initializes a new {@link AsyncStockManagerHTTPProxy} on top of a runtime shared with
+	 * other proxies. Stopping the proxy leaves the runtime running. The
+	 * responses are decoded by the threads of the runtime.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param runtime
+	 *            the client runtime
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress, BookStoreClientRuntime runtime) throws Exception {
+		this(serverAddress, runtime.getHttpClient(), BookStoreConstants.SERIALIZATION_FORMAT, runtime.getExecutor());
+	}
+
+	/**
+	 * Initializes a new {@link AsyncStockManagerHTTPProxy} on top of the given
+	 * HTTP client, which is started if it is not running yet, and left running
+	 * when the proxy stops since it belongs to the caller. The responses
+	 * are decoded by the common fork-join pool.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress, HttpClient client) throws Exception {
+		this(serverAddress, client, BookStoreConstants.SERIALIZATION_FORMAT, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Initializes a new {@link AsyncStockManagerHTTPProxy} which sends its
+	 * requests in the given format and decodes the responses on the given
+	 * executor, so that the client threads only move bytes. The futures are
+	 * completed on the executor, so their dependent actions run there too
+	 * unless they are asynchronous.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @param format
+	 *            the serialization format
+	 * @param executor
+	 *            the executor which decodes the responses
+	 * @throws Exception
+	 *             the exception
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress, HttpClient client, BookStoreSerializationFormat format,
+			Executor executor) throws Exception {
+		this.format = format;
+		this.executor = executor;
+
+		setServerAddress(serverAddress);
+		this.client = client;
+		sharedClient = true;
+
+		BookStoreUtility.startClient(client);
+	}
+
+	/**
+	 * Gets the server address.
+	 *
+	 * @return the server address
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	/**
+	 * Sets the server address.
+	 *
+	 * @param serverAddress
+	 *            the new server address
+	 */
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#addBooks(java.util.Set)
+	 */
+	public CompletableFuture<Void> addBooks(Set<StockBook> bookSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+		return perform(BookStoreMessageTag.ADDBOOKS, BookStoreRequest.newPostRequest(urlString, bookSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#addCopies(java.util.Set)
+	 */
+	public CompletableFuture<Void> addCopies(Set<BookCopy> bookCopiesSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
+		return perform(BookStoreMessageTag.ADDCOPIES, BookStoreRequest.newPostRequest(urlString, bookCopiesSet));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooks()
+	 */
+	public CompletableFuture<List<StockBook>> getBooks() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
+		return performRead(BookStoreMessageTag.LISTBOOKS, BookStoreRequest.newGetRequest(urlString));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooks(int,
+	 * int, java.util.Set)
+	 */
+	public CompletableFuture<List<StockBook>> getBooks(int cursor, int limit, Set<StockBookField> fields) {
+		if (fields == null) {
+			return CompletableFuture.failedFuture(new BookStoreException(BookStoreConstants.NULL_INPUT));
+		}
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKSPAGE + "?"
+				+ BookStoreConstants.CURSOR_PARAM + "=" + cursor + "&" + BookStoreConstants.LIMIT_PARAM + "=" + limit
+				+ "&" + BookStoreConstants.FIELDS_PARAM + "="
+				+ URLEncoder.encode(StockBookField.toParameter(fields), StandardCharsets.UTF_8);
+		return performRead(BookStoreMessageTag.LISTBOOKSPAGE, BookStoreRequest.newGetRequest(urlString));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksChangedSince(
+	 * long)
+	 */
+	public CompletableFuture<BookChanges> getBooksChangedSince(long version) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSCHANGEDSINCE + "?"
+				+ BookStoreConstants.VERSION_PARAM + "=" + version;
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.GETBOOKSCHANGEDSINCE);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString).withObserver(method);
+		return method.recordAsync(() -> BookStoreUtility.performHttpExchangeAsync(client, bookStoreRequest, format,
+				responseCache, executor))
+				.thenApply(bookStoreResponse -> (BookChanges) bookStoreResponse.getList().get(0));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#getBooksByISBN(java.
+	 * util.Set)
+	 */
+	public CompletableFuture<List<StockBook>> getBooksByISBN(Set<Integer> isbns) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
+		return performRead(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, BookStoreRequest.newQueryRequest(urlString, isbns));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#getBooksInDemand()
+	 */
+	@Override
+	public CompletableFuture<List<StockBook>> getBooksInDemand() {
+		return CompletableFuture.failedFuture(new BookStoreException("Not implemented"));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#updateEditorPicks(java.
+	 * util.Set)
+	 */
+	public CompletableFuture<Void> updateEditorPicks(Set<BookEditorPick> editorPicksValues) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS + "?";
+		return perform(BookStoreMessageTag.UPDATEEDITORPICKS,
+				BookStoreRequest.newPostRequest(urlString, editorPicksValues));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.AsyncStockManager#removeAllBooks()
+	 */
+	public CompletableFuture<Void> removeAllBooks() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
+		return perform(BookStoreMessageTag.REMOVEALLBOOKS, BookStoreRequest.newPostRequest(urlString, ""));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.AsyncStockManager#removeBooks(java.util.
+	 * Set)
+	 */
+	public CompletableFuture<Void> removeBooks(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+		return perform(BookStoreMessageTag.REMOVEBOOKS, BookStoreRequest.newPostRequest(urlString, isbnSet));
+	}
+
+	/**
+	 * Gets the latencies of the calls of the proxy, which may be registered
+	 * with JMX; they are unregistered when the proxy is stopped.
+	 *
+	 * @return the client metrics
+	 */
+	public BookStoreClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stops the proxy, and its client unless it is shared.
+	 */
+	public void stop() {
+		metrics.unregisterMBean();
+
+		if (sharedClient) {
+			return;
+		}
+
+		try {
+			client.stop();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Performs an update.
+	 *
+	 * @param messageTag
+	 *            the message tag of the update, which its latency is recorded
+	 *            under
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @return the future completed when the update is done
+	 */
+	private CompletableFuture<Void> perform(BookStoreMessageTag messageTag, BookStoreRequest bookStoreRequest) {
+		BookStoreClientMetrics.Method method = metrics.get(messageTag);
+		return method.recordAsync(() -> BookStoreUtility.performHttpExchangeAsync(client,
+				bookStoreRequest.withObserver(method), format, null, executor)).thenApply(bookStoreResponse -> null);
+	}
+
+	/**
+	 * Performs a read of stock books, revalidating the cached response.
+	 *
+	 * @param messageTag
+	 *            the message tag of the read, which its latency is recorded
+	 *            under
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @return the future of the books
+	 */
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<List<StockBook>> performRead(BookStoreMessageTag messageTag,
+			BookStoreRequest bookStoreRequest) {
+		BookStoreClientMetrics.Method method = metrics.get(messageTag);
+		return method.recordAsync(() -> BookStoreUtility.performHttpExchangeAsync(client,
+				bookStoreRequest.withObserver(method), format, responseCache, executor))
+				.thenApply(bookStoreResponse -> (List<StockBook>) bookStoreResponse.getList());
+	}
+}
@@ -17,6 +17,63 @@ public final class BookStoreClientConstants {
 	/** The Constant CLIENT_MAX_TIMEOUT_MILLISECS. */
 	public static final int CLIENT_MAX_TIMEOUT_MILLISECS = 30000;
 
+	/** The Constant CLIENT_MAX_ATTEMPTS, the default attempts of a request. */
+	public static final int CLIENT_MAX_ATTEMPTS = 3;
+
+	/**
+	 * The Constant CLIENT_RETRY_BACKOFF_MILLISECS, the default bound of the
+	 * backoff before the first retry.
+	 */
+	public static final long CLIENT_RETRY_BACKOFF_MILLISECS = 50;
+
+	/**
+	 * The Constant CLIENT_MAX_RETRY_BACKOFF_MILLISECS, the default bound of
+	 * the backoff before any retry.
+	 */
+	public static final long CLIENT_MAX_RETRY_BACKOFF_MILLISECS = 2000;
+
+	/**
+	 * The Constant CLIENT_ATTEMPT_TIMEOUT_MILLISECS, the default timeout of an
+	 * attempt of a request which may be retried.
+	 */
+	public static final long CLIENT_ATTEMPT_TIMEOUT_MILLISECS = 5000;
+
+	/**
+	 * The Constant CLIENT_LONG_POLL_MILLISECS, the time in milliseconds a
+	 * proxy waits for the server to report a change before asking again.
+	 */
+	public static final long CLIENT_LONG_POLL_MILLISECS = 15000;
+
+	/**
+	 * The Constant CLIENT_LONG_POLL_BACKOFF_MILLISECS, the time in
+	 * milliseconds a proxy waits after a failed long poll.
+	 */
+	public static final long CLIENT_LONG_POLL_BACKOFF_MILLISECS = 1000;
+
+	/**
+	 * The Constant CLIENT_INGESTION_CHUNK_SIZE, the default number of books
+	 * sent together when a catalog is streamed to the server.
+	 */
+	public static final int CLIENT_INGESTION_CHUNK_SIZE = 1000;
+
+	/**
+	 * The Constant CLIENT_INGESTION_MAX_CHUNKS_IN_FLIGHT, the default number of
+	 * chunks of a streamed catalog sent but not yet acknowledged.
+	 */
+	public static final int CLIENT_INGESTION_MAX_CHUNKS_IN_FLIGHT = 4;
+
+	/**
+	 * The Constant CLIENT_MAX_WRITE_THREADS, the number of threads of a proxy
+	 * which send the chunks of ingestions and the batches of writes.
+	 */
+	public static final int CLIENT_MAX_WRITE_THREADS = 16;
+
+	/**
+	 * The Constant CLIENT_WRITE_THREAD_IDLE_SECONDS, the time after which an
+	 * idle thread sending writes stops.
+	 */
+	public static final long CLIENT_WRITE_THREAD_IDLE_SECONDS = 60;
+
 	/** The Constant strERR_CLIENT_REQUEST_SENDING. */
 	public static final String STR_ERR_CLIENT_REQUEST_SENDING = "ERR_CLIENT_REQUEST_SENDING";
 
@@ -26,9 +83,15 @@ public final class BookStoreClientConstants {
 	/** The Constant strERR_CLIENT_REQUEST_TIMEOUT. */
 	public static final String STR_ERR_CLIENT_REQUEST_TIMEOUT = "CLIENT_REQUEST_TIMEOUT";
 
+	/** The Constant STR_ERR_CLIENT_SERVER_OVERLOADED. */
+	public static final String STR_ERR_CLIENT_SERVER_OVERLOADED = "CLIENT_SERVER_OVERLOADED";
+
 	/** The Constant strERR_CLIENT_RESPONSE_DECODING. */
 	public static final String STR_ERR_CLIENT_RESPONSE_DECODING = "CLIENT_RESPONSE_DECODING";
 
+	/** The Constant STR_ERR_CLIENT_INGESTION_PUBLISHER. */
+	public static final String STR_ERR_CLIENT_INGESTION_PUBLISHER = "CLIENT_INGESTION_PUBLISHER";
+
 	/** The Constant strERR_CLIENT_UNKNOWN. */
 	public static final String STR_ERR_CLIENT_UNKNOWN = "CLIENT_UNKNOWN";
 
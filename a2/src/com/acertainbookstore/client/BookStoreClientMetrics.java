@@ -0,0 +1,348 @@
+package com.acertainbookstore.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreExchangeObserver;
+import com.acertainbookstore.utils.BookStoreLatencyHistogram;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreClientMetrics} records the latency of the calls of a proxy,
+ * per method and per outcome, together with the time their exchanges spent
+ * serializing the request, waiting for the network and the server, and
+ * deserializing the response. A slow method can thus be told apart from a
+ * slow network or a slow server.
+ * <p>
+ * The latencies are kept in lock-free histograms, read through
+ * {@link #getSnapshot()} or, once the metrics are registered, through JMX.
+ */
+public final class BookStoreClientMetrics implements BookStoreClientMetricsMXBean {
+
+	/** The domain of the names of the metrics in JMX. */
+	private static final String JMX_DOMAIN = "com.acertainbookstore";
+
+	/**
+	 * {@link Outcome} is how a call ended.
+	 */
+	public enum Outcome {
+
+		/** The call returned. */
+		SUCCESS,
+
+		/** The call threw a {@link BookStoreException}. */
+		FAILURE,
+
+		/** The call timed out waiting for the server. */
+		TIMEOUT;
+	}
+
+	/**
+	 * {@link Call} is the body of a call of a proxy.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	public interface Call<T> {
+
+		/**
+		 * Makes the call.
+		 *
+		 * @return the result
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		T call() throws BookStoreException;
+	}
+
+	/**
+	 * {@link Method} is the metrics of one method of a proxy. It observes the
+	 * exchanges of the requests of the method.
+	 */
+	public static final class Method implements BookStoreExchangeObserver {
+
+		/** The latencies of the calls per outcome. */
+		private final BookStoreLatencyHistogram[] calls = new BookStoreLatencyHistogram[Outcome.values().length];
+
+		/** The time spent serializing the requests. */
+		private final BookStoreLatencyHistogram serialize = new BookStoreLatencyHistogram();
+
+		/** The time spent waiting for the responses. */
+		private final BookStoreLatencyHistogram network = new BookStoreLatencyHistogram();
+
+		/** The time spent deserializing the responses. */
+		private final BookStoreLatencyHistogram deserialize = new BookStoreLatencyHistogram();
+
+		/**
+		 * Instantiates a new {@link Method}.
+		 */
+		Method() {
+			for (int i = 0; i < calls.length; i++) {
+				calls[i] = new BookStoreLatencyHistogram();
+			}
+		}
+
+		/**
+		 * Makes a call, recording its latency and outcome.
+		 *
+		 * @param <T>
+		 *            the type of the result
+		 * @param call
+		 *            the call
+		 * @return the result of the call
+		 * @throws BookStoreException
+		 *             the exception of the call
+		 */
+		public <T> T record(Call<T> call) throws BookStoreException {
+			long startTime = System.nanoTime();
+
+			try {
+				T result = call.call();
+				calls[Outcome.SUCCESS.ordinal()].record(System.nanoTime() - startTime);
+				return result;
+			} catch (BookStoreException | RuntimeException ex) {
+				calls[getOutcome(ex).ordinal()].record(System.nanoTime() - startTime);
+				throw ex;
+			}
+		}
+
+		/**
+		 * Makes an asynchronous call, recording its latency and outcome when
+		 * it completes.
+		 *
+		 * @param <T>
+		 *            the type of the result
+		 * @param call
+		 *            the call, which returns the future of its result
+		 * @return the future of the result
+		 */
+		public <T> CompletableFuture<T> recordAsync(Supplier<CompletableFuture<T>> call) {
+			long startTime = System.nanoTime();
+			CompletableFuture<T> future = call.get();
+			future.whenComplete((result, failure) -> calls[(failure == null) ? Outcome.SUCCESS.ordinal()
+					: getOutcome(failure).ordinal()].record(System.nanoTime() - startTime));
+			return future;
+		}
+
+		/**
+		 * Gets the latencies of the calls which ended with an outcome.
+		 *
+		 * @param outcome
+		 *            the outcome
+		 * @return the snapshot of the latencies
+		 */
+		public BookStoreLatencyHistogram.Snapshot getLatency(Outcome outcome) {
+			return calls[outcome.ordinal()].getSnapshot();
+		}
+
+		/**
+		 * Gets the time spent serializing the requests.
+		 *
+		 * @return the snapshot of the times
+		 */
+		public BookStoreLatencyHistogram.Snapshot getSerializeLatency() {
+			return serialize.getSnapshot();
+		}
+
+		/**
+		 * Gets the time spent waiting for the responses, on the network and in
+		 * the server.
+		 *
+		 * @return the snapshot of the times
+		 */
+		public BookStoreLatencyHistogram.Snapshot getNetworkLatency() {
+			return network.getSnapshot();
+		}
+
+		/**
+		 * Gets the time spent deserializing the responses.
+		 *
+		 * @return the snapshot of the times
+		 */
+		public BookStoreLatencyHistogram.Snapshot getDeserializeLatency() {
+			return deserialize.getSnapshot();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.utils.BookStoreExchangeObserver#onSerialized(
+		 * long)
+		 */
+		@Override
+		public void onSerialized(long nanos) {
+			serialize.record(nanos);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.utils.BookStoreExchangeObserver#onReceived(
+		 * long)
+		 */
+		@Override
+		public void onReceived(long nanos) {
+			network.record(nanos);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.acertainbookstore.utils.BookStoreExchangeObserver#onDeserialized(
+		 * long)
+		 */
+		@Override
+		public void onDeserialized(long nanos) {
+			deserialize.record(nanos);
+		}
+
+		/**
+		 * Adds the snapshots of the histograms which recorded any latency.
+		 *
+		 * @param prefix
+		 *            the prefix of the names of the snapshots
+		 * @param snapshots
+		 *            the snapshots by name
+		 */
+		private void addSnapshots(String prefix, Map<String, BookStoreLatencyHistogram.Snapshot> snapshots) {
+			for (Outcome outcome : Outcome.values()) {
+				addSnapshot(prefix + outcome.name().toLowerCase(Locale.ROOT), calls[outcome.ordinal()], snapshots);
+			}
+
+			addSnapshot(prefix + "serialize", serialize, snapshots);
+			addSnapshot(prefix + "network", network, snapshots);
+			addSnapshot(prefix + "deserialize", deserialize, snapshots);
+		}
+
+		/**
+		 * Adds the snapshot of a histogram, if it recorded any latency.
+		 *
+		 * @param name
+		 *            the name of the snapshot
+		 * @param histogram
+		 *            the histogram
+		 * @param snapshots
+		 *            the snapshots by name
+		 */
+		private static void addSnapshot(String name, BookStoreLatencyHistogram histogram,
+				Map<String, BookStoreLatencyHistogram.Snapshot> snapshots) {
+			if (histogram.getCount() > 0) {
+				snapshots.put(name, histogram.getSnapshot());
+			}
+		}
+
+		/**
+		 * Gets the outcome of a failed call.
+		 *
+		 * @param failure
+		 *            the failure of the call
+		 * @return the outcome
+		 */
+		private static Outcome getOutcome(Throwable failure) {
+			Throwable cause = (failure instanceof CompletionException && failure.getCause() != null)
+					? failure.getCause()
+					: failure;
+			return BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT.equals(cause.getMessage())
+					? Outcome.TIMEOUT
+					: Outcome.FAILURE;
+		}
+	}
+
+	/** The metrics per method. */
+	private final Map<BookStoreMessageTag, Method> methods = new EnumMap<>(BookStoreMessageTag.class);
+
+	/** The name of the metrics in JMX, or null if they are not registered. */
+	private ObjectName objectName = null;
+
+	/**
+	 * Instantiates a new {@link BookStoreClientMetrics}.
+	 */
+	public BookStoreClientMetrics() {
+		for (BookStoreMessageTag messageTag : BookStoreMessageTag.values()) {
+			methods.put(messageTag, new Method());
+		}
+	}
+
+	/**
+	 * Gets the metrics of a method.
+	 *
+	 * @param messageTag
+	 *            the message tag of the method
+	 * @return the metrics of the method
+	 */
+	public Method get(BookStoreMessageTag messageTag) {
+		return methods.get(messageTag);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.client.BookStoreClientMetricsMXBean#getSnapshot()
+	 */
+	@Override
+	public Map<String, BookStoreLatencyHistogram.Snapshot> getSnapshot() {
+		Map<String, BookStoreLatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+
+		for (Map.Entry<BookStoreMessageTag, Method> entry : methods.entrySet()) {
+			entry.getValue().addSnapshots(entry.getKey().name() + ".", snapshots);
+		}
+
+		return snapshots;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, under the domain
+	 * of the book store and the given name.
+	 *
+	 * @param name
+	 *            the name of the proxy
+	 * @throws BookStoreException
+	 *             if the metrics could not be registered
+	 */
+	public synchronized void registerMBean(String name) throws BookStoreException {
+		unregisterMBean();
+
+		try {
+			ObjectName newObjectName = new ObjectName(
+					JMX_DOMAIN + ":type=ClientMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+			objectName = newObjectName;
+		} catch (JMException ex) {
+			throw new BookStoreException("JMX registration error", ex);
+		}
+	}
+
+	/**
+	 * Unregisters the metrics from the platform MBean server, if they are
+	 * registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			server.unregisterMBean(objectName);
+		} catch (JMException ex) {
+			// Someone else unregistered them already.
+		}
+
+		objectName = null;
+	}
+}
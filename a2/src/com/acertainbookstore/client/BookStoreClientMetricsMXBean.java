@@ -0,0 +1,21 @@
+package com.acertainbookstore.client;
+
+import java.util.Map;
+
+import com.acertainbookstore.utils.BookStoreLatencyHistogram;
+
+/**
+ * {@link BookStoreClientMetricsMXBean} is the JMX view of the
+ * {@link BookStoreClientMetrics} of a proxy.
+ */
+public interface BookStoreClientMetricsMXBean {
+
+	/**
+	 * Gets the latencies of the calls made so far, by method and outcome, and
+	 * of the phases of their exchanges, by method and phase.
+	 *
+	 * @return the snapshots of the histograms which recorded any latency, by
+	 *         name
+	 */
+	Map<String, BookStoreLatencyHistogram.Snapshot> getSnapshot();
+}
@@ -0,0 +1,286 @@
+package com.acertainbookstore.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.client.AbstractConnectionPool;
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.DuplexConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * {@link BookStoreClientRuntime} is the HTTP client, with its threads,
+ * selector and connection pools, shared by the proxies built on it. An
+ * application with several proxies to the same servers thus runs one thread
+ * pool and one connection pool per server, instead of one per proxy. The
+ * serializers of every format are shared by the whole process already, with
+ * their own pools of instances.
+ * <p>
+ * The proxies built on a runtime leave it running when they are stopped; the
+ * runtime is stopped by its owner once all its proxies are done. The runtime
+ * can open and warm the connections to a server ahead of the first requests,
+ * and reports how busy its threads and connections are.
+ */
+public final class BookStoreClientRuntime {
+
+	/** The HTTP client. */
+	private final HttpClient client;
+
+	/**
+	 * Instantiates and starts a new {@link BookStoreClientRuntime} with the
+	 * default HTTP client.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreClientRuntime() throws Exception {
+		this(new HttpClient());
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreClientRuntime} on top of the given
+	 * HTTP client, which is started if it is not running yet. Passing a client
+	 * with an HTTP/2 transport multiplexes the calls of all the proxies over a
+	 * few connections.
+	 *
+	 * @param client
+	 *            the HTTP client
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreClientRuntime(HttpClient client) throws Exception {
+		this.client = client;
+
+		if (client.getExecutor() == null) {
+			QueuedThreadPool threadPool = new QueuedThreadPool(
+					BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS);
+			threadPool.setName("bookstore-client");
+			client.setExecutor(threadPool);
+		}
+
+		BookStoreUtility.startClient(client);
+	}
+
+	/**
+	 * Gets the HTTP client.
+	 *
+	 * @return the HTTP client
+	 */
+	public HttpClient getHttpClient() {
+		return client;
+	}
+
+	/**
+	 * Gets the executor of the HTTP client, which the asynchronous proxies
+	 * built on the runtime also decode their responses on.
+	 *
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		return client.getExecutor();
+	}
+
+	/**
+	 * Opens connections to a server before the first requests, and warms up
+	 * the serializer of a format, so that the first calls of the proxies do
+	 * not pay for the connection setup and the class loading. The connections
+	 * are opened by as many concurrent requests, answered by the server
+	 * without touching the book store; they stay in the pool until the server
+	 * closes them for being idle.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param connections
+	 *            the number of connections to open
+	 * @param format
+	 *            the serialization format to warm up
+	 * @return the number of connections open to the server
+	 * @throws BookStoreException
+	 *             if the server could not be reached
+	 */
+	public int warmUp(String serverAddress, int connections, BookStoreSerializationFormat format)
+			throws BookStoreException {
+		warmUpSerializer(format);
+
+		List<CompletableFuture<Result>> requests = new ArrayList<>();
+
+		for (int i = 0; i < connections; i++) {
+			CompletableFuture<Result> request = new CompletableFuture<>();
+			client.newRequest(serverAddress + "/").timeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS,
+					TimeUnit.MILLISECONDS).send(request::complete);
+			requests.add(request);
+		}
+
+		for (CompletableFuture<Result> request : requests) {
+			Result result = request.join();
+
+			if (result.isFailed()) {
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION,
+						result.getFailure());
+			}
+		}
+
+		URI uri = URI.create(serverAddress);
+		AbstractConnectionPool pool = getConnectionPool(
+				client.getDestination(uri.getScheme(), uri.getHost(), uri.getPort()));
+		return (pool != null) ? pool.getConnectionCount() : 0;
+	}
+
+	/**
+	 * Gets the number of connections open to all the servers.
+	 *
+	 * @return the number of connections
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+
+		for (Destination destination : client.getDestinations()) {
+			AbstractConnectionPool pool = getConnectionPool(destination);
+			count += (pool != null) ? pool.getConnectionCount() : 0;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the number of connections carrying a request.
+	 *
+	 * @return the number of active connections
+	 */
+	public int getActiveConnectionCount() {
+		int count = 0;
+
+		for (Destination destination : client.getDestinations()) {
+			AbstractConnectionPool pool = getConnectionPool(destination);
+
+			if (pool instanceof DuplexConnectionPool) {
+				count += ((DuplexConnectionPool) pool).getActiveConnectionCount();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the number of connections open and ready for a request.
+	 *
+	 * @return the number of idle connections
+	 */
+	public int getIdleConnectionCount() {
+		int count = 0;
+
+		for (Destination destination : client.getDestinations()) {
+			AbstractConnectionPool pool = getConnectionPool(destination);
+
+			if (pool instanceof DuplexConnectionPool) {
+				count += ((DuplexConnectionPool) pool).getIdleConnectionCount();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the number of requests waiting for a connection.
+	 *
+	 * @return the number of queued requests
+	 */
+	public int getQueuedRequestCount() {
+		int count = 0;
+
+		for (Destination destination : client.getDestinations()) {
+			if (destination instanceof HttpDestination) {
+				count += ((HttpDestination) destination).getQueuedRequestCount();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets the number of threads of the client running a task.
+	 *
+	 * @return the number of busy threads, or -1 if the executor does not tell
+	 */
+	public int getBusyThreads() {
+		Executor executor = client.getExecutor();
+		return (executor instanceof QueuedThreadPool) ? ((QueuedThreadPool) executor).getBusyThreads() : -1;
+	}
+
+	/**
+	 * Gets the maximum number of threads of the client.
+	 *
+	 * @return the maximum number of threads, or -1 if the executor does not
+	 *         tell
+	 */
+	public int getMaxThreads() {
+		Executor executor = client.getExecutor();
+		return (executor instanceof QueuedThreadPool) ? ((QueuedThreadPool) executor).getMaxThreads() : -1;
+	}
+
+	/**
+	 * Stops the runtime, which the proxies built on it may no longer use.
+	 */
+	public void stop() {
+		try {
+			client.stop();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the connection pool of a destination.
+	 *
+	 * @param destination
+	 *            the destination, or null
+	 * @return the connection pool, or null if it does not count its
+	 *         connections
+	 */
+	private static AbstractConnectionPool getConnectionPool(Destination destination) {
+		if (!(destination instanceof HttpDestination)) {
+			return null;
+		}
+
+		ConnectionPool pool = ((HttpDestination) destination).getConnectionPool();
+		return (pool instanceof AbstractConnectionPool) ? (AbstractConnectionPool) pool : null;
+	}
+
+	/**
+	 * Serializes and deserializes a response with books, so that the classes
+	 * of the format are loaded and an instance of its serializer is pooled.
+	 *
+	 * @param format
+	 *            the serialization format
+	 * @throws BookStoreException
+	 *             if the format fails
+	 */
+	private static void warmUpSerializer(BookStoreSerializationFormat format) throws BookStoreException {
+		List<Book> books = new ArrayList<>();
+		books.add(new ImmutableBook(1, "", "", 0));
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		bookStoreResponse.setList(books);
+
+		try {
+			format.getSerializer().deserialize(format.getSerializer().serialize(bookStoreResponse));
+		} catch (IOException ex) {
+			throw new BookStoreException("Serialization error", ex);
+		}
+	}
+}
@@ -3,23 +3,28 @@ package com.acertainbookstore.client;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.interfaces.BookStore;
-import com.acertainbookstore.utils.BookStoreKryoSerializer;
-import com.acertainbookstore.interfaces.BookStoreSerializer;
-import com.acertainbookstore.utils.BookStoreXStreamSerializer;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreLoadBalancer;
 import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreNearCache;
 import com.acertainbookstore.utils.BookStoreRequest;
-import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResponseCache;
+import com.acertainbookstore.utils.BookStoreRetryPolicy;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
+import com.acertainbookstore.utils.BookStoreSingleFlight;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -37,8 +42,107 @@ public class BookStoreHTTPProxy implements BookStore {
 	/** The server address. */
 	protected String serverAddress;
 
-	/** The serializer. */
-	private static ThreadLocal<BookStoreSerializer> serializer;
+	/**
+	 * Whether the client belongs to the caller, e.g. a runtime shared with
+	 * other proxies, and is left running when the proxy stops.
+	 */
+	private boolean sharedClient = false;
+
+	/** The format of the requests and the preferred format of the responses. */
+	private final BookStoreSerializationFormat format;
+
+	/** The last responses to catalog reads, revalidated with the server. */
+	private final BookStoreResponseCache responseCache = new BookStoreResponseCache(
+			BookStoreConstants.RESPONSE_CACHE_SIZE);
+
+	/** The identical reads in flight, or null if reads are not coalesced. */
+	private volatile BookStoreSingleFlight singleFlight = null;
+
+	/** The balancer over the replicas of the server, or null if there is one. */
+	private volatile BookStoreLoadBalancer loadBalancer = null;
+
+	/** The retry policy, or null if requests are sent once. */
+	private volatile BookStoreRetryPolicy retryPolicy = null;
+
+	/** The books read recently, or null if books are not cached. */
+	private volatile BookStoreNearCache nearCache = null;
+
+	/** The listener which invalidates the changed books in the near cache. */
+	private ChangeListener changeListener = null;
+
+	/** The latencies of the calls. */
+	private final BookStoreClientMetrics metrics = new BookStoreClientMetrics();
+
+	/**
+	 * {@link ChangeListener} waits for the server to report the books which
+	 * changed, and removes them from a near cache.
+	 */
+	private final class ChangeListener implements Runnable {
+
+		/** The near cache. */
+		private final BookStoreNearCache cache;
+
+		/** The thread of the listener. */
+		private final Thread thread;
+
+		/** Whether the listener was stopped. */
+		private volatile boolean stopped = false;
+
+		/**
+		 * Instantiates a new {@link ChangeListener}.
+		 *
+		 * @param cache
+		 *            the near cache
+		 */
+		ChangeListener(BookStoreNearCache cache) {
+			this.cache = cache;
+			thread = new Thread(this, "bookstore-change-listener");
+			thread.setDaemon(true);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			long version = 0;
+
+			while (!stopped) {
+				try {
+					BookChanges changes = awaitBooksChanged(version);
+
+					if (changes.isFullResync()) {
+						cache.clear();
+					} else {
+						List<Integer> isbns = new ArrayList<>(changes.getModifiedISBNs());
+						isbns.addAll(changes.getRemovedISBNs());
+						cache.invalidate(isbns);
+					}
+
+					version = changes.getVersion();
+				} catch (BookStoreException ex) {
+					// Changes may be missed until the server answers again.
+					cache.clear();
+
+					try {
+						Thread.sleep(BookStoreClientConstants.CLIENT_LONG_POLL_BACKOFF_MILLISECS);
+					} catch (InterruptedException interruptedEx) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Stops the listener.
+		 */
+		void stop() {
+			stopped = true;
+			thread.interrupt();
+		}
+	}
 
 	/**
 	 * Initializes a new {@link BookStoreHTTPProxy}.
@@ -49,27 +153,68 @@ public class BookStoreHTTPProxy implements BookStore {
 	 *             the exception
 	 */
 	public BookStoreHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, new HttpClient());
 
-		// Setup the type of serializer.
-		if (BookStoreConstants.BINARY_SERIALIZATION) {
-			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
-		} else {
-			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
-		}
+		// The client is the proxy's own, so it stops with the proxy.
+		sharedClient = false;
+	}
 
-		setServerAddress(serverAddress);
-		client = new HttpClient();
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} on top of a runtime shared with
+	 * other proxies. Stopping the proxy leaves the runtime running.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param runtime
+	 *            the client runtime
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(String serverAddress, BookStoreClientRuntime runtime) throws Exception {
+		this(serverAddress, runtime.getHttpClient(), BookStoreConstants.SERIALIZATION_FORMAT);
+	}
 
-		// Max concurrent connections to every address.
-		client.setMaxConnectionsPerDestination(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS);
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} on top of the given HTTP client, which
+	 * is started if it is not running yet. The client belongs to the caller,
+	 * and is left running when the proxy stops. Passing a client with an HTTP/2
+	 * transport multiplexes concurrent calls over a few connections to the
+	 * server, which accepts cleartext HTTP/2.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(String serverAddress, HttpClient client) throws Exception {
+		this(serverAddress, client, BookStoreConstants.SERIALIZATION_FORMAT);
+	}
 
-		// Max number of threads.
-		client.setExecutor(new QueuedThreadPool(BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS));
+	/**
+	 * Initializes a new {@link BookStoreHTTPProxy} which sends its requests in the given
+	 * format. It asks for responses in the same format, but decodes any
+	 * format the server chooses to answer in.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @param format
+	 *            the serialization format
+	 * @throws Exception
+	 *             the exception
+	 */
+	public BookStoreHTTPProxy(String serverAddress, HttpClient client, BookStoreSerializationFormat format)
+			throws Exception {
+		this.format = format;
 
-		// Seconds timeout; if no server reply, the request expires.
-		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		setServerAddress(serverAddress);
+		this.client = client;
+		sharedClient = true;
 
-		client.start();
+		BookStoreUtility.startClient(client);
 	}
 
 	/**
@@ -91,6 +236,122 @@ public class BookStoreHTTPProxy implements BookStore {
 		this.serverAddress = serverAddress;
 	}
 
+	/**
+	 * Sets the server addresses of identical replicas of the server, over
+	 * which the requests are balanced. The requests which are not balanced,
+	 * such as the streamed ones, go to the first replica.
+	 *
+	 * @param serverAddresses
+	 *            the server addresses
+	 */
+	public void setServerAddresses(List<String> serverAddresses) {
+		setServerAddress(serverAddresses.get(0));
+		loadBalancer = (serverAddresses.size() > 1) ? new BookStoreLoadBalancer(serverAddresses) : null;
+	}
+
+	/**
+	 * Gets the balancer over the replicas of the server, which tells their
+	 * latency and whether they are ejected.
+	 *
+	 * @return the load balancer, or null if there is one replica
+	 */
+	public BookStoreLoadBalancer getLoadBalancer() {
+		return loadBalancer;
+	}
+
+	/**
+	 * Sets whether identical reads in flight at the same time share one
+	 * exchange with the server. Only calls which overlap are coalesced, so no
+	 * result is older than the calls which share it; reads made after a
+	 * purchase through this proxy never join an exchange started before it.
+	 * Concurrent calls to {@link #getEditorPicks(int)} then share the same
+	 * random picks.
+	 *
+	 * @param coalescing
+	 *            whether to coalesce the reads
+	 */
+	public void setCoalescingReads(boolean coalescing) {
+		singleFlight = coalescing ? new BookStoreSingleFlight() : null;
+	}
+
+	/**
+	 * Gets the number of reads which shared the exchange of another read.
+	 *
+	 * @return the number of coalesced reads, or 0 if reads are not coalesced
+	 */
+	public long getCoalescedReads() {
+		BookStoreSingleFlight currentSingleFlight = singleFlight;
+		return (currentSingleFlight != null) ? currentSingleFlight.getSharedCalls() : 0;
+	}
+
+	/**
+	 * Sets how the failed and slow requests are retried and hedged. Purchases
+	 * carry an idempotency key, so a retried purchase is executed once.
+	 *
+	 * @param retryPolicy
+	 *            the retry policy, or null to send requests once
+	 */
+	public void setRetryPolicy(BookStoreRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Gets the retry policy, which counts the retries and hedges.
+	 *
+	 * @return the retry policy, or null if requests are sent once
+	 */
+	public BookStoreRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets whether the books read by {@link #getBooks(Set)} are cached, and
+	 * how many. The cached books are removed as soon as the server reports
+	 * that they changed, over a request the server answers at the next
+	 * change, and after their time to live in any case. Until the server
+	 * answers again after a failure, nothing is cached for long.
+	 *
+	 * @param capacity
+	 *            the maximum number of books cached, or 0 not to cache books
+	 * @param timeToLiveMillis
+	 *            the time to live of the cached books in milliseconds
+	 */
+	public synchronized void setNearCache(int capacity, long timeToLiveMillis) {
+		if (changeListener != null) {
+			changeListener.stop();
+			changeListener = null;
+		}
+
+		if (capacity <= 0) {
+			nearCache = null;
+			return;
+		}
+
+		BookStoreNearCache cache = new BookStoreNearCache(capacity, timeToLiveMillis);
+		changeListener = new ChangeListener(cache);
+		changeListener.thread.start();
+		nearCache = cache;
+	}
+
+	/**
+	 * Gets the near cache, which keeps the hit rate metrics.
+	 *
+	 * @return the near cache, or null if books are not cached
+	 */
+	public BookStoreNearCache getNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Gets the latencies of the calls of the proxy, which may be registered
+	 * with JMX; they are unregistered when the proxy is stopped.
+	 *
+	 * @return the client metrics
+	 */
+	public BookStoreClientMetrics getMetrics() {
+		return metrics;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -98,8 +359,21 @@ public class BookStoreHTTPProxy implements BookStore {
 	 */
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.BUYBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newIdempotentPostRequest(urlString, isbnSet)
+				.withObserver(method);
+
+		try {
+			method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null,
+					retryPolicy, loadBalancer));
+		} finally {
+			// Even a failed purchase records its sale misses.
+			BookStoreSingleFlight currentSingleFlight = singleFlight;
+
+			if (currentSingleFlight != null) {
+				currentSingleFlight.invalidate();
+			}
+		}
 	}
 
 	/*
@@ -107,13 +381,80 @@ public class BookStoreHTTPProxy implements BookStore {
 	 * 
 	 * @see com.acertainbookstore.interfaces.BookStore#getBooks(java.util.Set)
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return metrics.get(BookStoreMessageTag.GETBOOKS).record(() -> getBooksCached(isbnSet));
+	}
+
+	/**
+	 * Gets books, from the near cache if there is one.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private List<Book> getBooksCached(Set<Integer> isbnSet) throws BookStoreException {
+		BookStoreNearCache currentNearCache = nearCache;
+
+		if (currentNearCache == null || isbnSet == null || isbnSet.contains(null)) {
+			return readBooks(isbnSet);
+		}
+
+		List<Book> books = new ArrayList<>();
+		Set<Integer> missingISBNs = new HashSet<>();
+
+		for (Integer isbn : isbnSet) {
+			Book book = currentNearCache.get(isbn);
+
+			if (book != null) {
+				books.add(book);
+			} else {
+				missingISBNs.add(isbn);
+			}
+		}
+
+		if (!missingISBNs.isEmpty()) {
+			long epoch = currentNearCache.getEpoch();
+			List<Book> missingBooks = readBooks(missingISBNs);
+
+			for (Book book : missingBooks) {
+				currentNearCache.put(book, epoch);
+			}
+
+			books.addAll(missingBooks);
+		}
+
+		return books;
+	}
+
+	/**
+	 * Reads books from the server.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Book> readBooks(Set<Integer> isbnSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
-		return (List<Book>) bookStoreResponse.getList();
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newQueryRequest(urlString, isbnSet)
+				.withObserver(metrics.get(BookStoreMessageTag.GETBOOKS));
+		BookStoreRetryPolicy currentRetryPolicy = retryPolicy;
+		BookStoreSingleFlight currentSingleFlight = singleFlight;
+
+		if (currentSingleFlight == null || isbnSet == null) {
+			return (List<Book>) BookStoreUtility.performHttpExchange(client, bookStoreRequest, format,
+					responseCache, currentRetryPolicy, loadBalancer).getList();
+		}
+
+		// The key is a copy, so the caller may change its set meanwhile.
+		return currentSingleFlight.execute(Arrays.asList(BookStoreMessageTag.GETBOOKS, new HashSet<>(isbnSet)),
+				() -> (List<Book>) BookStoreUtility.performHttpExchange(client, bookStoreRequest, format,
+						responseCache, currentRetryPolicy, loadBalancer).getList(),
+				ArrayList::new);
 	}
 
 	/*
@@ -130,16 +471,51 @@ public class BookStoreHTTPProxy implements BookStore {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETEDITORPICKS + "?"
 				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
 
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.GETEDITORPICKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString).withObserver(method);
+		BookStoreRetryPolicy currentRetryPolicy = retryPolicy;
+		BookStoreSingleFlight currentSingleFlight = singleFlight;
+
+		if (currentSingleFlight == null) {
+			return method.record(() -> (List<Book>) BookStoreUtility.performHttpExchange(client, bookStoreRequest,
+					format, null, currentRetryPolicy, loadBalancer).getList());
+		}
+
+		return method.record(() -> currentSingleFlight.execute(
+				Arrays.asList(BookStoreMessageTag.GETEDITORPICKS, numBooks),
+				() -> (List<Book>) BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null,
+						currentRetryPolicy, loadBalancer).getList(),
+				ArrayList::new));
+	}
+
+	/**
+	 * Waits for the server to report the books changed since a version.
+	 *
+	 * @param version
+	 *            the version the proxy last synchronized at
+	 * @return the changes, which are empty if nothing changed meanwhile
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private BookChanges awaitBooksChanged(long version) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.AWAITBOOKSCHANGED + "?"
+				+ BookStoreConstants.VERSION_PARAM + "=" + version + "&" + BookStoreConstants.TIMEOUT_PARAM + "="
+				+ BookStoreClientConstants.CLIENT_LONG_POLL_MILLISECS;
 		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
-		return (List<Book>) bookStoreResponse.getList();
+		return (BookChanges) BookStoreUtility.performHttpExchange(client, bookStoreRequest, format).getList().get(0);
 	}
 
 	/**
-	 * Stops the proxy.
+	 * Stops the proxy, and its client unless it is shared.
 	 */
 	public void stop() {
+		setNearCache(0, 0);
+		metrics.unregisterMBean();
+
+		if (sharedClient) {
+			return;
+		}
+
 		try {
 			client.stop();
 		} catch (Exception ex) {
@@ -0,0 +1,199 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link BookStoreWriteBatcher} merges the calls of a write method which
+ * arrive close together into one batch, sent to the server as one request.
+ * A batch is sent when it holds the maximum number of calls, or when its
+ * first call has waited for the linger time, whichever comes first. The
+ * server answers the outcome of every call of the batch, which completes the
+ * future of that call alone.
+ *
+ * @param <T>
+ *            the type of the elements of the sets written
+ */
+final class BookStoreWriteBatcher<T> {
+
+	/**
+	 * {@link Sender} sends a batch of calls to the server.
+	 *
+	 * @param <T>
+	 *            the type of the elements of the sets written
+	 */
+	@FunctionalInterface
+	interface Sender<T> {
+
+		/**
+		 * Sends a batch.
+		 *
+		 * @param batch
+		 *            the sets of the calls, in order
+		 * @return the outcome of every call in order: null if it succeeded, or
+		 *         the exception which failed it
+		 * @throws BookStoreException
+		 *             if the batch failed as a whole
+		 */
+		List<BookStoreException> send(List<Set<T>> batch) throws BookStoreException;
+	}
+
+	/** The sender of the batches. */
+	private final Sender<T> sender;
+
+	/** The time in milliseconds the first call of a batch waits for others. */
+	private final long lingerMillis;
+
+	/** The number of calls which sends a batch at once. */
+	private final int maxBatchSize;
+
+	/** The scheduler of the linger timeouts. */
+	private final Scheduler scheduler;
+
+	/** The executor which sends the batches. */
+	private final Executor executor;
+
+	/** The sets of the calls of the open batch. */
+	private List<Set<T>> sets = new ArrayList<>();
+
+	/** The futures of the calls of the open batch. */
+	private List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+	/**
+	 * The number of batches sent so far, which tells a linger timeout whether
+	 * its batch is still open.
+	 */
+	private long batches = 0;
+
+	/**
+	 * Instantiates a new {@link BookStoreWriteBatcher}.
+	 *
+	 * @param sender
+	 *            the sender of the batches
+	 * @param lingerMillis
+	 *            the time in milliseconds the first call of a batch waits for
+	 *            others
+	 * @param maxBatchSize
+	 *            the number of calls which sends a batch at once
+	 * @param scheduler
+	 *            the scheduler of the linger timeouts
+	 * @param executor
+	 *            the executor which sends the batches
+	 */
+	BookStoreWriteBatcher(Sender<T> sender, long lingerMillis, int maxBatchSize, Scheduler scheduler,
+			Executor executor) {
+		this.sender = sender;
+		this.lingerMillis = lingerMillis;
+		this.maxBatchSize = maxBatchSize;
+		this.scheduler = scheduler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Adds a call to the open batch. The set is copied, so the caller may
+	 * change it afterwards.
+	 *
+	 * @param set
+	 *            the set written by the call
+	 * @return the future of the outcome of the call
+	 */
+	synchronized CompletableFuture<Void> submit(Set<T> set) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		sets.add(new HashSet<>(set));
+		futures.add(future);
+
+		if (sets.size() >= maxBatchSize) {
+			flush();
+		} else if (sets.size() == 1) {
+			long batch = batches;
+			scheduler.schedule(() -> linger(batch), lingerMillis, TimeUnit.MILLISECONDS);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Sends the open batch if it is the one whose linger time is over.
+	 *
+	 * @param batch
+	 *            the number of the batch
+	 */
+	private synchronized void linger(long batch) {
+		if (batch == batches && !sets.isEmpty()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the open batch and opens a new one.
+	 */
+	private void flush() {
+		List<Set<T>> batchSets = sets;
+		List<CompletableFuture<Void>> batchFutures = futures;
+		sets = new ArrayList<>();
+		futures = new ArrayList<>();
+		batches++;
+
+		try {
+			executor.execute(() -> send(batchSets, batchFutures));
+		} catch (RejectedExecutionException ex) {
+			fail(batchFutures, new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex));
+		}
+	}
+
+	/**
+	 * Sends a batch and completes the futures of its calls.
+	 *
+	 * @param batchSets
+	 *            the sets of the calls
+	 * @param batchFutures
+	 *            the futures of the calls
+	 */
+	private void send(List<Set<T>> batchSets, List<CompletableFuture<Void>> batchFutures) {
+		List<BookStoreException> outcomes;
+
+		try {
+			outcomes = sender.send(batchSets);
+		} catch (BookStoreException | RuntimeException ex) {
+			fail(batchFutures, ex);
+			return;
+		}
+
+		if (outcomes == null || outcomes.size() != batchFutures.size()) {
+			fail(batchFutures, new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_RESPONSE_DECODING));
+			return;
+		}
+
+		for (int i = 0; i < batchFutures.size(); i++) {
+			if (outcomes.get(i) == null) {
+				batchFutures.get(i).complete(null);
+			} else {
+				batchFutures.get(i).completeExceptionally(outcomes.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Fails the futures of all the calls of a batch.
+	 *
+	 * @param batchFutures
+	 *            the futures of the calls
+	 * @param ex
+	 *            the exception of the batch
+	 */
+	private static void fail(List<CompletableFuture<Void>> batchFutures, Exception ex) {
+		for (CompletableFuture<Void> future : batchFutures) {
+			future.completeExceptionally(ex);
+		}
+	}
+}
@@ -1,23 +1,38 @@
 package com.acertainbookstore.client;
 
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.StockBook;
-import com.acertainbookstore.utils.BookStoreKryoSerializer;
-import com.acertainbookstore.interfaces.BookStoreSerializer;
-import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+import com.acertainbookstore.business.StockBookField;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreLoadBalancer;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreRequest;
 import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResponseCache;
+import com.acertainbookstore.utils.BookStoreRetryPolicy;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -36,8 +51,40 @@ public class StockManagerHTTPProxy implements StockManager {
 	/** The server address. */
 	protected String serverAddress;
 
-	/** The serializer. */
-	private static ThreadLocal<BookStoreSerializer> serializer;
+	/**
+	 * Whether the client belongs to the caller, e.g. a runtime shared with
+	 * other proxies, and is left running when the proxy stops.
+	 */
+	private boolean sharedClient = false;
+
+	/** The format of the requests and the preferred format of the responses. */
+	private final BookStoreSerializationFormat format;
+
+	/** The last responses to catalog reads, revalidated with the server. */
+	private final BookStoreResponseCache responseCache = new BookStoreResponseCache(
+			BookStoreConstants.RESPONSE_CACHE_SIZE);
+
+	/** The balancer over the replicas of the server, or null if there is one. */
+	private volatile BookStoreLoadBalancer loadBalancer = null;
+
+	/** The retry policy, or null if requests are sent once. */
+	private volatile BookStoreRetryPolicy retryPolicy = null;
+
+	/** The latencies of the calls. */
+	private final BookStoreClientMetrics metrics = new BookStoreClientMetrics();
+
+	/** The batcher of the additions of copies, or null if they are sent alone. */
+	private volatile BookStoreWriteBatcher<BookCopy> copiesBatcher = null;
+
+	/** The batcher of the updates of editor picks, or null if they are sent alone. */
+	private volatile BookStoreWriteBatcher<BookEditorPick> editorPicksBatcher = null;
+
+	/**
+	 * The threads which send the chunks of the ingestions and the batches.
+	 * They block for whole exchanges, retries included, so they are kept off
+	 * the threads of the client, which have to complete those exchanges.
+	 */
+	private final ThreadPoolExecutor writeExecutor = newWriteExecutor();
 
 	/**
 	 * Initializes a new {@link StockManagerHTTPProxy}.
@@ -48,27 +95,68 @@ public class StockManagerHTTPProxy implements StockManager {
 	 *             the exception
 	 */
 	public StockManagerHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, new HttpClient());
 
-		// Setup the type of serializer.
-		if (BookStoreConstants.BINARY_SERIALIZATION) {
-			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
-		} else {
-			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
-		}
+		// The client is the proxy's own, so it stops with the proxy.
+		sharedClient = false;
+	}
 
-		setServerAddress(serverAddress);
-		client = new HttpClient();
+	/**
+	 * Initializes a new {@link StockManagerHTTPProxy} on top of a runtime shared with
+	 * other proxies. Stopping the proxy leaves the runtime running.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param runtime
+	 *            the client runtime
+	 * @throws Exception
+	 *             the exception
+	 */
+	public StockManagerHTTPProxy(String serverAddress, BookStoreClientRuntime runtime) throws Exception {
+		this(serverAddress, runtime.getHttpClient(), BookStoreConstants.SERIALIZATION_FORMAT);
+	}
 
-		// Max concurrent connections to every address.
-		client.setMaxConnectionsPerDestination(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS);
+	/**
+	 * Initializes a new {@link StockManagerHTTPProxy} on top of the given HTTP client, which
+	 * is started if it is not running yet. The client belongs to the caller,
+	 * and is left running when the proxy stops. Passing a client with an HTTP/2
+	 * transport multiplexes concurrent calls over a few connections to the
+	 * server, which accepts cleartext HTTP/2.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @throws Exception
+	 *             the exception
+	 */
+	public StockManagerHTTPProxy(String serverAddress, HttpClient client) throws Exception {
+		this(serverAddress, client, BookStoreConstants.SERIALIZATION_FORMAT);
+	}
 
-		// Max number of threads.
-		client.setExecutor(new QueuedThreadPool(BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS));
+	/**
+	 * Initializes a new {@link StockManagerHTTPProxy} which sends its requests in the given
+	 * format. It asks for responses in the same format, but decodes any
+	 * format the server chooses to answer in.
+	 *
+	 * @param serverAddress
+	 *            the server address
+	 * @param client
+	 *            the HTTP client
+	 * @param format
+	 *            the serialization format
+	 * @throws Exception
+	 *             the exception
+	 */
+	public StockManagerHTTPProxy(String serverAddress, HttpClient client, BookStoreSerializationFormat format)
+			throws Exception {
+		this.format = format;
 
-		// Seconds timeout; if no server reply, the request expires.
-		client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		setServerAddress(serverAddress);
+		this.client = client;
+		sharedClient = true;
 
-		client.start();
+		BookStoreUtility.startClient(client);
 	}
 
 	/**
@@ -90,6 +178,78 @@ public class StockManagerHTTPProxy implements StockManager {
 		this.serverAddress = serverAddress;
 	}
 
+	/**
+	 * Sets the server addresses of identical replicas of the server, over
+	 * which the requests are balanced. The requests which are not balanced,
+	 * such as the streamed ones, go to the first replica.
+	 *
+	 * @param serverAddresses
+	 *            the server addresses
+	 */
+	public void setServerAddresses(List<String> serverAddresses) {
+		setServerAddress(serverAddresses.get(0));
+		loadBalancer = (serverAddresses.size() > 1) ? new BookStoreLoadBalancer(serverAddresses) : null;
+	}
+
+	/**
+	 * Gets the balancer over the replicas of the server, which tells their
+	 * latency and whether they are ejected.
+	 *
+	 * @return the load balancer, or null if there is one replica
+	 */
+	public BookStoreLoadBalancer getLoadBalancer() {
+		return loadBalancer;
+	}
+
+	/**
+	 * Sets how the failed and slow requests are retried and hedged. Additions
+	 * of copies and the chunks of streamed books carry an idempotency key, so
+	 * a retried addition is executed once; the other writes are only retried when the server shed them.
+	 *
+	 * @param retryPolicy
+	 *            the retry policy, or null to send requests once
+	 */
+	public void setRetryPolicy(BookStoreRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Merges the additions of copies and the updates of editor picks which
+	 * threads of the caller make close together into batches, each sent as
+	 * one request and applied by the server under one acquisition of its
+	 * locks. A call waits at most the linger time for others to join its
+	 * batch, and a full batch is sent at once. Every call still succeeds or
+	 * fails on its own, as if it had been sent alone.
+	 *
+	 * @param lingerMillis
+	 *            the time in milliseconds the first call of a batch waits for
+	 *            others
+	 * @param maxBatchSize
+	 *            the number of calls which sends a batch at once, or less than
+	 *            2 to send every call alone
+	 */
+	public void setBatching(long lingerMillis, int maxBatchSize) {
+		if (maxBatchSize < 2) {
+			copiesBatcher = null;
+			editorPicksBatcher = null;
+			return;
+		}
+
+		copiesBatcher = new BookStoreWriteBatcher<>(this::addCopiesBatch, lingerMillis, maxBatchSize,
+				client.getScheduler(), writeExecutor);
+		editorPicksBatcher = new BookStoreWriteBatcher<>(this::updateEditorPicksBatch, lingerMillis, maxBatchSize,
+				client.getScheduler(), writeExecutor);
+	}
+
+	/**
+	 * Gets the retry policy, which counts the retries and hedges.
+	 *
+	 * @return the retry policy, or null if requests are sent once
+	 */
+	public BookStoreRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -98,8 +258,70 @@ public class StockManagerHTTPProxy implements StockManager {
 	 */
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.ADDBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookSet).withObserver(method);
+		method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null, retryPolicy,
+				loadBalancer));
+	}
+
+	/**
+	 * Adds the books of a publisher to the store, such as a whole catalog,
+	 * without holding them all in memory. The books are sent in chunks of
+	 * {@link BookStoreClientConstants#CLIENT_INGESTION_CHUNK_SIZE}, each added
+	 * atomically like a call of {@link #addBooks(Set)}, with at most
+	 * {@link BookStoreClientConstants#CLIENT_INGESTION_MAX_CHUNKS_IN_FLIGHT}
+	 * chunks sent but not yet acknowledged.
+	 *
+	 * @param books
+	 *            the publisher of the books
+	 * @return the future of the number of books added
+	 * @see #addBooks(Flow.Publisher, int, int)
+	 */
+	public CompletableFuture<Long> addBooks(Flow.Publisher<StockBook> books) {
+		return addBooks(books, BookStoreClientConstants.CLIENT_INGESTION_CHUNK_SIZE,
+				BookStoreClientConstants.CLIENT_INGESTION_MAX_CHUNKS_IN_FLIGHT);
+	}
+
+	/**
+	 * Adds the books of a publisher to the store in chunks, each added
+	 * atomically like a call of {@link #addBooks(Set)}. The publisher is
+	 * asked for as many books as fit in the chunks which may be in flight,
+	 * and for a chunk more whenever the server acknowledges one, so the
+	 * client holds at most {@code chunkSize * maxChunksInFlight} books
+	 * however many the publisher has, and the server validates one chunk at
+	 * a time under its lock.
+	 * <p>
+	 * The chunks carry an idempotency key, so they are retried as the retry
+	 * policy allows. The first chunk which fails cancels the subscription and
+	 * fails the future; the chunks acknowledged before it stay in the store,
+	 * and the failed one is not applied.
+	 *
+	 * @param books
+	 *            the publisher of the books
+	 * @param chunkSize
+	 *            the number of books per chunk
+	 * @param maxChunksInFlight
+	 *            the number of chunks sent but not yet acknowledged
+	 * @return the future of the number of books added
+	 */
+	public CompletableFuture<Long> addBooks(Flow.Publisher<StockBook> books, int chunkSize, int maxChunksInFlight) {
+		if (books == null) {
+			return CompletableFuture.failedFuture(new BookStoreException(BookStoreConstants.NULL_INPUT));
+		}
+
+		if (chunkSize < 1) {
+			return CompletableFuture.failedFuture(
+					new BookStoreException("Chunk size " + chunkSize + BookStoreConstants.INVALID));
+		}
+
+		if (maxChunksInFlight < 1) {
+			return CompletableFuture.failedFuture(
+					new BookStoreException("Chunks in flight " + maxChunksInFlight + BookStoreConstants.INVALID));
+		}
+
+		BookIngestion ingestion = new BookIngestion(chunkSize, maxChunksInFlight);
+		books.subscribe(ingestion);
+		return ingestion.result;
 	}
 
 	/*
@@ -110,8 +332,18 @@ public class StockManagerHTTPProxy implements StockManager {
 	 */
 	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, bookCopiesSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.ADDCOPIES);
+		BookStoreWriteBatcher<BookCopy> batcher = copiesBatcher;
+
+		if (batcher != null && bookCopiesSet != null) {
+			method.record(() -> await(batcher.submit(bookCopiesSet)));
+			return;
+		}
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newIdempotentPostRequest(urlString, bookCopiesSet)
+				.withObserver(method);
+		method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null, retryPolicy,
+				loadBalancer));
 	}
 
 	/*
@@ -122,12 +354,68 @@ public class StockManagerHTTPProxy implements StockManager {
 	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooks() throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.LISTBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString).withObserver(method);
+		BookStoreResponse bookStoreResponse = method.record(() -> BookStoreUtility.performHttpExchange(client,
+				bookStoreRequest, format, responseCache, retryPolicy, loadBalancer));
+		return (List<StockBook>) bookStoreResponse.getList();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#getBooks(int, int,
+	 * java.util.Set)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StockBook> getBooks(int cursor, int limit, Set<StockBookField> fields) throws BookStoreException {
+		if (fields == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKSPAGE + "?"
+				+ BookStoreConstants.CURSOR_PARAM + "=" + cursor + "&" + BookStoreConstants.LIMIT_PARAM + "=" + limit
+				+ "&" + BookStoreConstants.FIELDS_PARAM + "="
+				+ URLEncoder.encode(StockBookField.toParameter(fields), StandardCharsets.UTF_8);
+
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.LISTBOOKSPAGE);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString).withObserver(method);
+		BookStoreResponse bookStoreResponse = method.record(() -> BookStoreUtility.performHttpExchange(client,
+				bookStoreRequest, format, responseCache, retryPolicy, loadBalancer));
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#getBooksChangedSince(long)
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKSCHANGEDSINCE + "?"
+				+ BookStoreConstants.VERSION_PARAM + "=" + version;
+
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.GETBOOKSCHANGEDSINCE);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString).withObserver(method);
+		BookStoreResponse bookStoreResponse = method.record(() -> BookStoreUtility.performHttpExchange(client,
+				bookStoreRequest, format, responseCache, retryPolicy, loadBalancer));
+		return (BookChanges) bookStoreResponse.getList().get(0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.interfaces.StockManager#streamBooks()
+	 */
+	public Stream<StockBook> streamBooks() throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.STREAMBOOKS;
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newGetRequest(urlString);
+
+		// The time to the first frame, as the stream is read by the caller.
+		return metrics.get(BookStoreMessageTag.STREAMBOOKS)
+				.record(() -> BookStoreUtility.performStreamingHttpExchange(client, bookStoreRequest, format));
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -137,8 +425,45 @@ public class StockManagerHTTPProxy implements StockManager {
 	 */
 	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKS + "?";
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.UPDATEEDITORPICKS);
+		BookStoreWriteBatcher<BookEditorPick> batcher = editorPicksBatcher;
+
+		if (batcher != null && editorPicksValues != null) {
+			method.record(() -> await(batcher.submit(editorPicksValues)));
+			return;
+		}
+
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, editorPicksValues)
+				.withObserver(method);
+		method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null, retryPolicy,
+				loadBalancer));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#addCopiesBatch(java.util.
+	 * List)
+	 */
+	public List<BookStoreException> addCopiesBatch(List<Set<BookCopy>> bookCopiesSets) throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIESBATCH;
+		return performBatch(BookStoreMessageTag.ADDCOPIESBATCH, bookCopiesSets,
+				batch -> BookStoreRequest.newIdempotentPostRequest(urlString, batch));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.StockManager#updateEditorPicksBatch(
+	 * java.util.List)
+	 */
+	public List<BookStoreException> updateEditorPicksBatch(List<Set<BookEditorPick>> editorPicksSets)
+			throws BookStoreException {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.UPDATEEDITORPICKSBATCH;
+		return performBatch(BookStoreMessageTag.UPDATEEDITORPICKSBATCH, editorPicksSets,
+				batch -> BookStoreRequest.newPostRequest(urlString, batch));
 	}
 
 	/*
@@ -162,8 +487,10 @@ public class StockManagerHTTPProxy implements StockManager {
 		// Creating zero-length buffer for POST request body, because we don't
 		// need to send any data; this request is just a signal to remove all
 		// books.
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "");
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.REMOVEALLBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, "").withObserver(method);
+		method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null, retryPolicy,
+				loadBalancer));
 	}
 
 	/*
@@ -174,8 +501,10 @@ public class StockManagerHTTPProxy implements StockManager {
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet);
-		BookStoreUtility.performHttpExchange(client, bookStoreRequest, serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.REMOVEBOOKS);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbnSet).withObserver(method);
+		method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format, null, retryPolicy,
+				loadBalancer));
 	}
 
 	/*
@@ -188,16 +517,334 @@ public class StockManagerHTTPProxy implements StockManager {
 	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException {
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
-		BookStoreRequest bookStoreRequest = BookStoreRequest.newPostRequest(urlString, isbns);
-		BookStoreResponse bookStoreResponse = BookStoreUtility.performHttpExchange(client, bookStoreRequest,
-				serializer.get());
+		BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.GETSTOCKBOOKSBYISBN);
+		BookStoreRequest bookStoreRequest = BookStoreRequest.newQueryRequest(urlString, isbns).withObserver(method);
+		BookStoreResponse bookStoreResponse = method.record(() -> BookStoreUtility.performHttpExchange(client,
+				bookStoreRequest, format, responseCache, retryPolicy, loadBalancer));
 		return (List<StockBook>) bookStoreResponse.getList();
 	}
 
 	/**
-	 * Stops the proxy.
+	 * Sends a batch of writes. The null sets are not sent, and are answered
+	 * as the server would answer them alone.
+	 *
+	 * @param <T>
+	 *            the type of the elements of the sets
+	 * @param messageTag
+	 *            the message tag of the batch
+	 * @param sets
+	 *            the sets of the batch
+	 * @param requestFactory
+	 *            the factory of the request of the sets sent
+	 * @return the outcome of every set in order
+	 * @throws BookStoreException
+	 *             if the batch is null or failed as a whole
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> List<BookStoreException> performBatch(BookStoreMessageTag messageTag, List<Set<T>> sets,
+			Function<List<Set<T>>, BookStoreRequest> requestFactory) throws BookStoreException {
+		if (sets == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<Set<T>> batch = new ArrayList<>(sets.size());
+
+		for (Set<T> set : sets) {
+			if (set != null) {
+				batch.add((set instanceof HashSet) ? set : new HashSet<>(set));
+			}
+		}
+
+		List<BookStoreException> outcomes = new ArrayList<>(sets.size());
+
+		if (!batch.isEmpty()) {
+			BookStoreClientMetrics.Method method = metrics.get(messageTag);
+			BookStoreRequest bookStoreRequest = requestFactory.apply(batch).withObserver(method);
+			BookStoreResponse bookStoreResponse = method.record(() -> BookStoreUtility.performHttpExchange(client,
+					bookStoreRequest, format, null, retryPolicy, loadBalancer));
+			List<BookStoreException> sentOutcomes = (List<BookStoreException>) bookStoreResponse.getList();
+
+			if (sentOutcomes == null || sentOutcomes.size() != batch.size()) {
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_RESPONSE_DECODING);
+			}
+
+			outcomes.addAll(sentOutcomes);
+		}
+
+		for (int i = 0; i < sets.size(); i++) {
+			if (sets.get(i) == null) {
+				outcomes.add(i, new BookStoreException(BookStoreConstants.NULL_INPUT));
+			}
+		}
+
+		return outcomes;
+	}
+
+	/**
+	 * Waits for the outcome of a batched call.
+	 *
+	 * @param future
+	 *            the future of the outcome
+	 * @return null
+	 * @throws BookStoreException
+	 *             the exception of the call
+	 */
+	private static Void await(CompletableFuture<Void> future) throws BookStoreException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_UNKNOWN, ex.getCause());
+		}
+	}
+
+	/**
+	 * {@link BookIngestion} subscribes to the books of a publisher and adds
+	 * them to the store chunk by chunk, asking the publisher for more books as
+	 * the chunks are acknowledged. The chunks are sent on the threads of the
+	 * client, so that a slow server never blocks the publisher.
+	 */
+	private final class BookIngestion implements Flow.Subscriber<StockBook> {
+
+		/** The number of books per chunk. */
+		private final int chunkSize;
+
+		/** The number of chunks which may be sent but not acknowledged. */
+		private final int maxChunksInFlight;
+
+		/** The future of the number of books added. */
+		private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+		/** The subscription to the publisher, once subscribed. */
+		private Flow.Subscription subscription = null;
+
+		/** The books received but not sent yet. */
+		private Set<StockBook> chunk = new HashSet<>();
+
+		/**
+		 * The number of books received for the chunk, counting duplicates,
+		 * which the set of books does not keep but which took credit.
+		 */
+		private int received = 0;
+
+		/** The number of chunks sent but not acknowledged. */
+		private int chunksInFlight = 0;
+
+		/** The number of books acknowledged. */
+		private long added = 0;
+
+		/** Whether the publisher has no more books. */
+		private boolean completed = false;
+
+		/**
+		 * Instantiates a new {@link BookIngestion}.
+		 *
+		 * @param chunkSize
+		 *            the number of books per chunk
+		 * @param maxChunksInFlight
+		 *            the number of chunks sent but not acknowledged
+		 */
+		BookIngestion(int chunkSize, int maxChunksInFlight) {
+			this.chunkSize = chunkSize;
+			this.maxChunksInFlight = maxChunksInFlight;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.Flow.Subscriber#onSubscribe(java.util.
+		 * concurrent.Flow.Subscription)
+		 */
+		@Override
+		public synchronized void onSubscribe(Flow.Subscription newSubscription) {
+			if (subscription != null) {
+				newSubscription.cancel();
+				return;
+			}
+
+			subscription = newSubscription;
+			subscription.request((long) chunkSize * maxChunksInFlight);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.Flow.Subscriber#onNext(java.lang.Object)
+		 */
+		@Override
+		public synchronized void onNext(StockBook book) {
+			if (result.isDone()) {
+				return;
+			}
+
+			chunk.add(book);
+			received++;
+
+			if (received >= chunkSize) {
+				send();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * java.util.concurrent.Flow.Subscriber#onError(java.lang.Throwable)
+		 */
+		@Override
+		public synchronized void onError(Throwable throwable) {
+			chunk = new HashSet<>();
+			received = 0;
+			result.completeExceptionally(
+					new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_INGESTION_PUBLISHER, throwable));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.concurrent.Flow.Subscriber#onComplete()
+		 */
+		@Override
+		public synchronized void onComplete() {
+			completed = true;
+
+			if (!chunk.isEmpty() && !result.isDone()) {
+				send();
+			}
+
+			if (chunksInFlight == 0) {
+				result.complete(added);
+			}
+		}
+
+		/**
+		 * Sends the books received so far as a chunk.
+		 */
+		private void send() {
+			Set<StockBook> books = chunk;
+			chunk = new HashSet<>();
+			received = 0;
+			chunksInFlight++;
+
+			String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+			BookStoreClientMetrics.Method method = metrics.get(BookStoreMessageTag.ADDBOOKS);
+			BookStoreRequest bookStoreRequest = BookStoreRequest.newIdempotentPostRequest(urlString, books)
+					.withObserver(method);
+
+			try {
+				writeExecutor.execute(() -> {
+					try {
+						method.record(() -> BookStoreUtility.performHttpExchange(client, bookStoreRequest, format,
+								null, retryPolicy, loadBalancer));
+						acknowledged(books.size());
+					} catch (BookStoreException | RuntimeException ex) {
+						failed(ex);
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				chunksInFlight--;
+				fail(new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex));
+			}
+		}
+
+		/**
+		 * Counts the books of an acknowledged chunk, and asks the publisher for
+		 * the books of the next chunk.
+		 *
+		 * @param size
+		 *            the number of books of the chunk
+		 */
+		private synchronized void acknowledged(int size) {
+			chunksInFlight--;
+			added += size;
+
+			if (result.isDone()) {
+				return;
+			}
+
+			if (completed) {
+				if (chunksInFlight == 0) {
+					result.complete(added);
+				}
+			} else {
+				subscription.request(chunkSize);
+			}
+		}
+
+		/**
+		 * Fails the ingestion after a chunk failed.
+		 *
+		 * @param ex
+		 *            the exception of the chunk
+		 */
+		private synchronized void failed(Exception ex) {
+			chunksInFlight--;
+			fail(ex);
+		}
+
+		/**
+		 * Fails the ingestion and cancels the subscription, unless the
+		 * ingestion is done already.
+		 *
+		 * @param ex
+		 *            the exception
+		 */
+		private void fail(Exception ex) {
+			chunk = new HashSet<>();
+			received = 0;
+
+			if (result.completeExceptionally(ex) && !completed) {
+				subscription.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Creates the executor of the writes sent in the background, whose
+	 * threads are created on demand and die when idle.
+	 *
+	 * @return the executor
+	 */
+	private static ThreadPoolExecutor newWriteExecutor() {
+		int threads = BookStoreClientConstants.CLIENT_MAX_WRITE_THREADS;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				BookStoreClientConstants.CLIENT_WRITE_THREAD_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "bookstore-write-sender");
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Gets the latencies of the calls of the proxy, which may be registered
+	 * with JMX; they are unregistered when the proxy is stopped.
+	 *
+	 * @return the client metrics
+	 */
+	public BookStoreClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stops the proxy, and its client unless it is shared.
 	 */
 	public void stop() {
+		metrics.unregisterMBean();
+		writeExecutor.shutdown();
+
+		if (sharedClient) {
+			return;
+		}
+
 		try {
 			client.stop();
 		} catch (Exception ex) {
@@ -0,0 +1,494 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookChanges;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
+
+/**
+ * {@link BookStoreSerializerTest} tests that every request and response type
+ * survives a round trip through every {@link BookStoreSerializationFormat}.
+ *
+ * @see BookStoreSerializer
+ */
+@RunWith(Parameterized.class)
+public class BookStoreSerializerTest {
+
+	/** The Constant TEST_ISBN. */
+	private static final int TEST_ISBN = 30345650;
+
+	/** The format under test. */
+	private final BookStoreSerializationFormat format;
+
+	/** The serializer under test. */
+	private final BookStoreSerializer serializer;
+
+	/**
+	 * Instantiates a new {@link BookStoreSerializerTest}.
+	 *
+	 * @param format
+	 *            the format under test
+	 */
+	public BookStoreSerializerTest(BookStoreSerializationFormat format) {
+		this.format = format;
+		this.serializer = format.newSerializer();
+	}
+
+	/**
+	 * Gets the formats under test.
+	 *
+	 * @return the formats
+	 */
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> formats() {
+		List<Object[]> formats = new ArrayList<>();
+
+		for (BookStoreSerializationFormat format : BookStoreSerializationFormat.values()) {
+			formats.add(new Object[] { format });
+		}
+
+		return formats;
+	}
+
+	/**
+	 * Serializes and deserializes an object.
+	 *
+	 * @param object
+	 *            the object
+	 * @return the deserialized object
+	 * @throws Exception
+	 *             the exception
+	 */
+	private Object roundTrip(Object object) throws Exception {
+		return serializer.deserialize(serializer.serialize(object));
+	}
+
+	/**
+	 * Checks that two stock books have the same fields.
+	 *
+	 * @param expected
+	 *            the expected stock book
+	 * @param actual
+	 *            the actual stock book
+	 */
+	private static void assertStockBookEquals(StockBook expected, StockBook actual) {
+		assertEquals(expected, actual);
+		assertEquals(expected.getNumCopies(), actual.getNumCopies());
+		assertEquals(expected.getNumSaleMisses(), actual.getNumSaleMisses());
+		assertEquals(expected.getNumTimesRated(), actual.getNumTimesRated());
+		assertEquals(expected.getTotalRating(), actual.getTotalRating());
+		assertEquals(expected.isEditorPick(), actual.isEditorPick());
+	}
+
+	/**
+	 * Gets a stock book with distinct values in all its fields.
+	 *
+	 * @param isbn
+	 *            the ISBN
+	 * @return the stock book
+	 */
+	private static StockBook getStockBook(int isbn) {
+		return new ImmutableStockBook(isbn, "Harry Potter and JUnit " + isbn, "JK Unit", 10.5f, 5, 3, 2, 7,
+				isbn % 2 == 0);
+	}
+
+	/**
+	 * Tests sets of ISBNs, including the extreme and invalid ones.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testIsbnSet() throws Exception {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		isbnSet.add(TEST_ISBN + 1);
+		isbnSet.add(TEST_ISBN + 1000);
+		isbnSet.add(-1);
+		isbnSet.add(Integer.MIN_VALUE);
+		isbnSet.add(Integer.MAX_VALUE);
+
+		assertEquals(isbnSet, roundTrip(isbnSet));
+		assertEquals(new HashSet<Integer>(), roundTrip(new HashSet<Integer>()));
+	}
+
+	/**
+	 * Tests sets of book copies, editor picks and ratings.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRequestSets() throws Exception {
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(TEST_ISBN, 5));
+		bookCopies.add(new BookCopy(TEST_ISBN + 1, -1));
+		bookCopies.add(new BookCopy(-1, 0));
+		assertEquals(bookCopies, roundTrip(bookCopies));
+
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+		editorPicks.add(new BookEditorPick(TEST_ISBN + 1, false));
+		assertEquals(editorPicks, roundTrip(editorPicks));
+
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN, 5));
+		ratings.add(new BookRating(TEST_ISBN + 1, -3));
+		assertEquals(ratings, roundTrip(ratings));
+	}
+
+	/**
+	 * Tests sets of stock books, including strings which are null or not
+	 * ASCII.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testStockBookSet() throws Exception {
+		StockBook book = getStockBook(TEST_ISBN);
+		StockBook unicodeBook = new ImmutableStockBook(TEST_ISBN + 1, "Sm\u00f8rrebr\u00f8d \u2603",
+				"\u00c6r\u00f8", 0f, 0, 0, 0, 0, true);
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(book);
+		books.add(unicodeBook);
+
+		Set<StockBook> result = (Set<StockBook>) roundTrip(books);
+		assertEquals(books, result);
+
+		for (StockBook resultBook : result) {
+			assertStockBookEquals(resultBook.getISBN() == TEST_ISBN ? book : unicodeBook, resultBook);
+		}
+
+		Set<StockBook> nullTitle = new HashSet<StockBook>();
+		nullTitle.add(new ImmutableStockBook(TEST_ISBN, null, null, 1f, 1, 0, 0, 0, false));
+		StockBook nullTitleResult = ((Set<StockBook>) roundTrip(nullTitle)).iterator().next();
+		assertNull(nullTitleResult.getTitle());
+		assertNull(nullTitleResult.getAuthor());
+	}
+
+	/**
+	 * Tests responses carrying lists of books and stock books, which must keep
+	 * their order.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testResponseLists() throws Exception {
+		List<Book> books = new ArrayList<Book>();
+		books.add(new ImmutableBook(TEST_ISBN + 2, "The C Programming Language", "Dennis Ritchie", 50f));
+		books.add(new ImmutableBook(TEST_ISBN, "The Art of Computer Programming", "Donald Knuth", 300f));
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(books);
+
+		BookStoreResponse result = (BookStoreResponse) roundTrip(response);
+		assertNull(result.getException());
+		assertEquals(books, result.getList());
+
+		List<StockBook> stockBooks = new ArrayList<StockBook>();
+
+		for (int i = 10; i > 0; i--) {
+			stockBooks.add(getStockBook(TEST_ISBN + i));
+		}
+
+		response.setList(stockBooks);
+		List<StockBook> stockResult = (List<StockBook>) ((BookStoreResponse) roundTrip(response)).getList();
+		assertEquals(stockBooks.size(), stockResult.size());
+
+		for (int i = 0; i < stockBooks.size(); i++) {
+			assertStockBookEquals(stockBooks.get(i), stockResult.get(i));
+		}
+
+		response.setList(new ArrayList<Book>());
+		assertTrue(((BookStoreResponse) roundTrip(response)).getList().isEmpty());
+	}
+
+	/**
+	 * Tests responses carrying an exception or nothing at all.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testResponseWithoutList() throws Exception {
+		BookStoreResponse response = new BookStoreResponse();
+		BookStoreResponse result = (BookStoreResponse) roundTrip(response);
+		assertNull(result.getException());
+		assertNull(result.getList());
+
+		response.setException(new BookStoreException("ISBN: -1 is invalid"));
+		result = (BookStoreResponse) roundTrip(response);
+		assertEquals("ISBN: -1 is invalid", result.getException().getMessage());
+		assertNull(result.getList());
+	}
+
+	/**
+	 * Tests a response with the changes of the books.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBookChanges() throws Exception {
+		List<BookChanges> changes = new ArrayList<>();
+		changes.add(new BookChanges(42, false, new HashSet<>(Arrays.asList(3044560, 3044561)),
+				new HashSet<>(Arrays.asList(3044562))));
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(changes);
+		assertEquals(changes, ((BookStoreResponse) roundTrip(response)).getList());
+
+		changes.set(0, new BookChanges(43, true, new HashSet<>(), new HashSet<>()));
+		assertEquals(changes, ((BookStoreResponse) roundTrip(response)).getList());
+	}
+
+	/**
+	 * Tests the requests of batches, as lists of sets, and the outcomes of
+	 * their calls in responses.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBatches() throws Exception {
+		List<Set<BookCopy>> copiesSets = new ArrayList<>();
+		copiesSets.add(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 3), new BookCopy(TEST_ISBN + 1, 1))));
+		copiesSets.add(new HashSet<>());
+		copiesSets.add(new HashSet<>(Arrays.asList(new BookCopy(TEST_ISBN, 2))));
+		assertEquals(copiesSets, roundTrip(copiesSets));
+
+		List<Set<BookEditorPick>> editorPicksSets = new ArrayList<>();
+		editorPicksSets.add(new HashSet<>(Arrays.asList(new BookEditorPick(TEST_ISBN, true))));
+		assertEquals(editorPicksSets, roundTrip(editorPicksSets));
+
+		List<BookStoreException> outcomes = new ArrayList<>();
+		outcomes.add(null);
+		outcomes.add(new BookStoreException("ISBN 1 is invalid"));
+		outcomes.add(null);
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(outcomes);
+		List<BookStoreException> result = (List<BookStoreException>) ((BookStoreResponse) roundTrip(response))
+				.getList();
+
+		assertEquals(3, result.size());
+		assertNull(result.get(0));
+		assertEquals("ISBN 1 is invalid", result.get(1).getMessage());
+		assertNull(result.get(2));
+	}
+
+	/**
+	 * Tests the empty content of requests without arguments.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testEmptyContent() throws Exception {
+		assertEquals("", roundTrip(""));
+	}
+
+	/**
+	 * Tests that the stream methods read what the stream methods write, and
+	 * what the array methods write.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testStreams() throws Exception {
+		List<StockBook> stockBooks = new ArrayList<StockBook>();
+
+		for (int i = 0; i < 1000; i++) {
+			stockBooks.add(getStockBook(TEST_ISBN + i));
+		}
+
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(stockBooks);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(response, out);
+		Object result = serializer.deserialize(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(stockBooks, ((BookStoreResponse) result).getList());
+
+		result = serializer.deserialize(new ByteArrayInputStream(serializer.serialize(response)));
+		List<StockBook> resultList = (List<StockBook>) ((BookStoreResponse) result).getList();
+		assertStockBookEquals(stockBooks.get(999), resultList.get(999));
+	}
+
+	/**
+	 * Tests lists and sets of books which share their titles and authors.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRepeatedStrings() throws Exception {
+		List<StockBook> stockBooks = new ArrayList<StockBook>();
+		Set<StockBook> stockBookSet = new HashSet<StockBook>();
+
+		for (int i = 0; i < 100; i++) {
+			String title = (i % 3 == 0) ? null : "Title " + (i % 7);
+			StockBook book = new ImmutableStockBook(TEST_ISBN + i, title, "Author " + (i % 4), 1f, i, 0, 0, 0,
+					false);
+			stockBooks.add(book);
+			stockBookSet.add(book);
+		}
+
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(stockBooks);
+		List<StockBook> result = (List<StockBook>) ((BookStoreResponse) roundTrip(response)).getList();
+
+		for (int i = 0; i < stockBooks.size(); i++) {
+			assertEquals(stockBooks.get(i).getTitle(), result.get(i).getTitle());
+			assertEquals(stockBooks.get(i).getAuthor(), result.get(i).getAuthor());
+		}
+
+		for (StockBook book : (Set<StockBook>) roundTrip(stockBookSet)) {
+			assertEquals(stockBooks.get(book.getISBN() - TEST_ISBN).getTitle(), book.getTitle());
+			assertEquals(stockBooks.get(book.getISBN() - TEST_ISBN).getAuthor(), book.getAuthor());
+		}
+
+		if (format == BookStoreSerializationFormat.COMPACT) {
+			// Every author is written once, instead of once per book.
+			List<StockBook> distinctAuthors = new ArrayList<StockBook>();
+
+			for (StockBook book : stockBooks) {
+				distinctAuthors.add(new ImmutableStockBook(book.getISBN(), book.getTitle(),
+						"Author " + (book.getISBN() - TEST_ISBN + 100), 1f, book.getNumCopies(), 0, 0, 0, false));
+			}
+
+			BookStoreResponse distinctResponse = new BookStoreResponse();
+			distinctResponse.setList(distinctAuthors);
+			assertTrue(serializer.serialize(response).length + 90 * "Author 0".length() < serializer
+					.serialize(distinctResponse).length);
+		}
+	}
+
+	/**
+	 * Tests that the format is found from its media type and chosen by the
+	 * Accept header which prefers it.
+	 */
+	@Test
+	public void testNegotiation() {
+		assertEquals(format, BookStoreSerializationFormat.fromMediaType(format.getMediaType()));
+		assertEquals(format, BookStoreSerializationFormat.fromMediaType(format.getMediaType() + "; charset=UTF-8"));
+		assertNull(BookStoreSerializationFormat.fromMediaType("application/octet-stream"));
+
+		for (BookStoreSerializationFormat other : BookStoreSerializationFormat.values()) {
+			assertEquals(format, BookStoreSerializationFormat.negotiate(format.getAcceptHeader(), other));
+			assertEquals(format, BookStoreSerializationFormat.negotiate(
+					other.getMediaType() + ";q=0, " + format.getMediaType() + ";q=0.1", other));
+		}
+
+		assertEquals(format, BookStoreSerializationFormat.negotiate(null, format));
+		assertEquals(format, BookStoreSerializationFormat.negotiate("*/*", format));
+		assertEquals(format, BookStoreSerializationFormat.negotiate("text/html", format));
+	}
+
+	/**
+	 * Tests that the stock books of a list decoded lazily can be read in any
+	 * order, and that a truncated list is rejected when it is deserialized
+	 * rather than when a book is read, as is a set whose size exceeds its
+	 * content.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testLazyStockBooks() throws Exception {
+		if (format != BookStoreSerializationFormat.COMPACT) {
+			return;
+		}
+
+		List<StockBook> stockBooks = new ArrayList<StockBook>();
+		stockBooks.add(getStockBook(TEST_ISBN));
+		stockBooks.add(new ImmutableStockBook(TEST_ISBN + 1, null, "\u00c6r\u00f8", -1f, -5, 0, 0, 0, false));
+		stockBooks.add(getStockBook(Integer.MAX_VALUE));
+
+		BookStoreResponse response = new BookStoreResponse();
+		response.setList(stockBooks);
+		byte[] bytes = serializer.serialize(response);
+		List<StockBook> result = (List<StockBook>) ((BookStoreResponse) serializer.deserialize(bytes)).getList();
+
+		for (int i = stockBooks.size() - 1; i >= 0; i--) {
+			StockBook expected = stockBooks.get(i);
+			StockBook actual = result.get(i);
+			assertEquals(expected.isEditorPick(), actual.isEditorPick());
+			assertEquals(expected.getNumCopies(), actual.getNumCopies());
+			assertEquals(expected.getAuthor(), actual.getAuthor());
+			assertEquals(expected.getAverageRating(), actual.getAverageRating(), 0f);
+			assertEquals(expected.getTitle(), actual.getTitle());
+			assertEquals(expected.getISBN(), actual.getISBN());
+			assertEquals(expected.hashCode(), actual.hashCode());
+		}
+
+		try {
+			serializer.deserialize(Arrays.copyOf(bytes, bytes.length - 1));
+			fail("A truncated list was deserialized");
+		} catch (IOException ex) {
+			// Expected.
+		}
+
+		try {
+			// A set of ISBNs claiming 0x3FFFFFFF elements, followed by one.
+			serializer.deserialize(new byte[] { 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 3, 2 });
+			fail("A set longer than its content was deserialized");
+		} catch (IOException ex) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Tests that the compact format is smaller than Kryo for the sets of ISBNs
+	 * and book copies which dominate the traffic.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCompactIsSmallest() throws Exception {
+		if (format != BookStoreSerializationFormat.COMPACT) {
+			return;
+		}
+
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+
+		for (int i = 0; i < 100; i++) {
+			bookCopies.add(new BookCopy(TEST_ISBN + 3 * i, 1));
+		}
+
+		BookStoreSerializer kryo = BookStoreSerializationFormat.KRYO.newSerializer();
+		assertTrue(serializer.serialize(bookCopies).length < kryo.serialize(bookCopies).length);
+	}
+}
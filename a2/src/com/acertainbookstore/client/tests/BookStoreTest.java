@@ -1,11 +1,49 @@
 package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
-
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -18,12 +56,32 @@ import com.acertainbookstore.business.SingleLockConcurrentCertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.business.TwoLevelLockingConcurrentCertainBookStore;
+import com.acertainbookstore.client.AsyncBookStoreHTTPProxy;
+import com.acertainbookstore.client.AsyncStockManagerHTTPProxy;
+import com.acertainbookstore.client.BookStoreClientConstants;
+import com.acertainbookstore.client.BookStoreClientMetrics;
+import com.acertainbookstore.client.BookStoreClientRuntime;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.server.BookStoreAdmissionController;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreIdempotencyCache;
+import com.acertainbookstore.server.BookStoreRouteMiddleware;
+import com.acertainbookstore.server.BookStoreRouteRegistry;
+import com.acertainbookstore.utils.BookStoreCompressor;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreDeadline;
+import com.acertainbookstore.utils.BookStoreDeadlineExpiredException;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreLoadBalancer;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreObjectPool;
+import com.acertainbookstore.utils.BookStoreRequest;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreRetryPolicy;
+import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * {@link BookStoreTest} tests the {@link BookStore} interface.
@@ -628,6 +686,1085 @@ public class BookStoreTest {
 
 
 
+	/**
+	 * Tests that the asynchronous proxies keep many calls in flight and fail
+	 * their futures with the exceptions of the server.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncProxies() throws Exception {
+		assumeFalse(localTest);
+
+		AsyncBookStoreHTTPProxy asyncClient = new AsyncBookStoreHTTPProxy("http://localhost:8081");
+		AsyncStockManagerHTTPProxy asyncStoreManager = new AsyncStockManagerHTTPProxy("http://localhost:8081/stock");
+
+		try {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+			List<CompletableFuture<List<Book>>> futures = new ArrayList<CompletableFuture<List<Book>>>();
+
+			for (int i = 0; i < 50; i++) {
+				futures.add(asyncClient.getBooks(isbns));
+			}
+
+			for (CompletableFuture<List<Book>> future : futures) {
+				List<Book> books = future.get();
+				assertEquals(1, books.size());
+				assertEquals(getDefaultBook().getTitle(), books.get(0).getTitle());
+			}
+
+			Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+			booksToBuy.add(new BookCopy(-1, 1));
+
+			try {
+				asyncClient.buyBooks(booksToBuy).get();
+				fail();
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof BookStoreException);
+			}
+
+			booksToBuy.clear();
+			booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+			asyncClient.buyBooks(booksToBuy).get();
+			assertEquals(NUM_COPIES - 1, asyncStoreManager.getBooksByISBN(isbns).get().get(0).getNumCopies());
+		} finally {
+			asyncClient.stop();
+			asyncStoreManager.stop();
+		}
+	}
+
+	/**
+	 * Tests that concurrent identical reads through a proxy which coalesces
+	 * them all get the right books, each in a list of their own.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCoalescedReads() throws Exception {
+		assumeFalse(localTest);
+
+		BookStoreHTTPProxy coalescingClient = new BookStoreHTTPProxy("http://localhost:8081");
+		coalescingClient.setCoalescingReads(true);
+
+		try {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+			List<CompletableFuture<List<Book>>> futures = new ArrayList<CompletableFuture<List<Book>>>();
+
+			for (int i = 0; i < 32; i++) {
+				futures.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return coalescingClient.getBooks(isbns);
+					} catch (BookStoreException ex) {
+						throw new RuntimeException(ex);
+					}
+				}));
+			}
+
+			for (CompletableFuture<List<Book>> future : futures) {
+				List<Book> books = future.get();
+				assertEquals(1, books.size());
+				assertEquals(TEST_ISBN, books.get(0).getISBN());
+
+				// Callers which shared a read do not share its list.
+				books.clear();
+			}
+
+			assertEquals(1, coalescingClient.getBooks(isbns).size());
+		} finally {
+			coalescingClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that the near cache of the proxy answers repeated reads, and drops
+	 * a book as soon as the server reports its change.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testNearCache() throws Exception {
+		assumeFalse(localTest);
+
+		BookStoreHTTPProxy cachingClient = new BookStoreHTTPProxy("http://localhost:8081");
+		cachingClient.setNearCache(100, 60000);
+
+		try {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+
+			for (int i = 0; i < 10; i++) {
+				assertEquals(getDefaultBook().getTitle(), cachingClient.getBooks(isbns).get(0).getTitle());
+			}
+
+			assertTrue(cachingClient.getNearCache().getHits() >= 9);
+
+			// Replace the book with a different title behind the cache.
+			storeManager.removeBooks(isbns);
+			Set<StockBook> booksToAdd = new HashSet<StockBook>();
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN, "Harry Potter and the Stale Cache", "JK Unit", (float) 10,
+					NUM_COPIES, 0, 0, 0, false));
+			storeManager.addBooks(booksToAdd);
+
+			long deadline = System.currentTimeMillis() + 5000;
+			String title = cachingClient.getBooks(isbns).get(0).getTitle();
+
+			while (!title.equals("Harry Potter and the Stale Cache") && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+				title = cachingClient.getBooks(isbns).get(0).getTitle();
+			}
+
+			assertEquals("Harry Potter and the Stale Cache", title);
+			assertTrue(cachingClient.getNearCache().getInvalidations() >= 1);
+		} finally {
+			cachingClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that the copies of a purchase sent with the same idempotency key
+	 * sell the books once, and that a proxy with a hedging retry policy
+	 * still answers every call.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testIdempotentRetries() throws Exception {
+		assumeFalse(localTest);
+
+		HttpClient httpClient = new HttpClient();
+		BookStoreUtility.startClient(httpClient);
+
+		try {
+			Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+			booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+			BookStoreRequest purchase = BookStoreRequest
+					.newIdempotentPostRequest("http://localhost:8081/" + BookStoreMessageTag.BUYBOOKS, booksToBuy);
+
+			for (int i = 0; i < 3; i++) {
+				BookStoreUtility.performHttpExchange(httpClient, purchase, BookStoreConstants.SERIALIZATION_FORMAT);
+			}
+
+			assertEquals(NUM_COPIES - 1, getNumCopies(TEST_ISBN));
+		} finally {
+			httpClient.stop();
+		}
+
+		BookStoreHTTPProxy retryingClient = new BookStoreHTTPProxy("http://localhost:8081");
+		retryingClient.setRetryPolicy(new BookStoreRetryPolicy(true));
+
+		try {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+
+			for (int i = 0; i < 50; i++) {
+				assertEquals(TEST_ISBN, retryingClient.getBooks(isbns).get(0).getISBN());
+			}
+
+			Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+			booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+			retryingClient.buyBooks(booksToBuy);
+			assertEquals(NUM_COPIES - 2, getNumCopies(TEST_ISBN));
+			assertTrue(retryingClient.getRetryPolicy().getHedges() <= 5);
+		} finally {
+			retryingClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that proxies built on a shared runtime use its connections, and
+	 * leave it running when they are stopped.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSharedClientRuntime() throws Exception {
+		assumeFalse(localTest);
+
+		BookStoreClientRuntime runtime = new BookStoreClientRuntime();
+
+		try {
+			assertTrue(runtime.warmUp("http://localhost:8081", 4, BookStoreConstants.SERIALIZATION_FORMAT) >= 1);
+			int warmConnections = runtime.getConnectionCount();
+
+			BookStoreHTTPProxy sharedClient = new BookStoreHTTPProxy("http://localhost:8081", runtime);
+			StockManagerHTTPProxy sharedStoreManager = new StockManagerHTTPProxy("http://localhost:8081/stock",
+					runtime);
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+
+			assertEquals(TEST_ISBN, sharedClient.getBooks(isbns).get(0).getISBN());
+			sharedClient.stop();
+			assertEquals(NUM_COPIES, sharedStoreManager.getBooksByISBN(isbns).get(0).getNumCopies());
+			sharedStoreManager.stop();
+
+			// The proxies reused the warm connections.
+			assertEquals(warmConnections, runtime.getConnectionCount());
+			assertEquals(BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS, runtime.getMaxThreads());
+		} finally {
+			runtime.stop();
+		}
+	}
+
+	/**
+	 * Tests that proxies built on an HTTP client of the caller leave it
+	 * running when they are stopped, so that the others keep working.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSharedHttpClient() throws Exception {
+		assumeFalse(localTest);
+
+		HttpClient httpClient = new HttpClient();
+		BookStoreUtility.startClient(httpClient);
+
+		try {
+			BookStoreHTTPProxy sharedClient = new BookStoreHTTPProxy("http://localhost:8081", httpClient);
+			AsyncStockManagerHTTPProxy sharedStoreManager = new AsyncStockManagerHTTPProxy(
+					"http://localhost:8081/stock", httpClient);
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+
+			assertEquals(TEST_ISBN, sharedClient.getBooks(isbns).get(0).getISBN());
+			sharedClient.stop();
+			assertTrue(httpClient.isRunning());
+			assertEquals(NUM_COPIES, sharedStoreManager.getBooksByISBN(isbns).get().get(0).getNumCopies());
+			sharedStoreManager.stop();
+			assertTrue(httpClient.isRunning());
+		} finally {
+			httpClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that a proxy on a running HTTP client of the caller leaves the
+	 * content decoders of the client in place, and reads the responses the
+	 * client decoded with them.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCallerHttpClientDecoders() throws Exception {
+		assumeFalse(localTest);
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int i = 1; i <= 100; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Catalog title " + i, "Catalog author",
+					(float) 10, NUM_COPIES, 0, 0, 0, false));
+		}
+
+		storeManager.addBooks(booksToAdd);
+
+		HttpClient httpClient = new HttpClient();
+		httpClient.start();
+
+		// Ask for gzip only, which the client decodes on its own.
+		httpClient.getRequestListeners().add(new Request.Listener.Adapter() {
+
+			@Override
+			public void onBegin(Request request) {
+				request.getHeaders().put(HttpHeader.ACCEPT_ENCODING, BookStoreCompressor.GZIP);
+			}
+		});
+
+		try {
+			int decoders = httpClient.getContentDecoderFactories().size();
+			assertTrue(decoders > 0);
+
+			StockManagerHTTPProxy callerStoreManager = new StockManagerHTTPProxy("http://localhost:8081/stock",
+					httpClient);
+			assertEquals(101, callerStoreManager.getBooks().size());
+			callerStoreManager.stop();
+
+			assertEquals(decoders, httpClient.getContentDecoderFactories().size());
+		} finally {
+			httpClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that a proxy balances its requests over the replicas of the
+	 * server, and stays away from a replica which does not answer.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLoadBalancing() throws Exception {
+		assumeFalse(localTest);
+
+		BookStoreHTTPProxy balancedClient = new BookStoreHTTPProxy("http://localhost:8081");
+		balancedClient.setServerAddresses(
+				Arrays.asList("http://localhost:8081", "http://127.0.0.1:8081", "http://localhost:1"));
+		balancedClient.setRetryPolicy(new BookStoreRetryPolicy(false));
+
+		try {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+
+			for (int i = 0; i < 50; i++) {
+				assertEquals(TEST_ISBN, balancedClient.getBooks(isbns).get(0).getISBN());
+			}
+
+			List<BookStoreLoadBalancer.Endpoint> endpoints = balancedClient.getLoadBalancer().getEndpoints();
+			assertTrue(endpoints.get(0).getLatency() > 0);
+			assertTrue(endpoints.get(1).getLatency() > 0);
+
+			// The unreachable replica is ejected or costs more than the others.
+			BookStoreLoadBalancer.Endpoint unreachable = endpoints.get(2);
+			assertTrue(unreachable.isEjected() || unreachable.getLatency() > endpoints.get(0).getLatency());
+
+			for (BookStoreLoadBalancer.Endpoint endpoint : endpoints) {
+				assertEquals(0, endpoint.getInFlight());
+			}
+		} finally {
+			balancedClient.stop();
+		}
+	}
+
+	/**
+	 * Tests that a purchase whose deadline expired is not served, neither by
+	 * the book store nor by the server it was sent to.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testExpiredDeadline() throws Exception {
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+
+		if (localTest) {
+			BookStoreDeadline.set(System.nanoTime() - 1);
+
+			try {
+				client.buyBooks(booksToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				assertEquals(BookStoreConstants.DEADLINE_EXPIRED, ex.getMessage());
+			} finally {
+				BookStoreDeadline.clear();
+			}
+		} else {
+			HttpClient httpClient = new HttpClient();
+			BookStoreUtility.startClient(httpClient);
+
+			try {
+				ContentResponse response = httpClient
+						.POST("http://localhost:8081/" + BookStoreMessageTag.BUYBOOKS)
+						.header(BookStoreConstants.DEADLINE_HEADER, "0").send();
+				assertEquals(HttpStatus.GATEWAY_TIMEOUT_504, response.getStatus());
+			} finally {
+				httpClient.stop();
+			}
+		}
+
+		assertEquals(NUM_COPIES, getNumCopies(TEST_ISBN));
+	}
+
+	/**
+	 * Tests that a keyed write whose deadline expired before the engine
+	 * applied it is not answered from the idempotency cache, so that its
+	 * retry is executed.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testExpiredKeyedWriteRetried() throws BookStoreException {
+		assumeTrue(localTest);
+
+		BookStoreIdempotencyCache idempotencyCache = new BookStoreIdempotencyCache(
+				BookStoreConstants.IDEMPOTENCY_CACHE_SIZE);
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		byte[] content = { 1 };
+
+		BookStoreDeadline.set(System.nanoTime() - 1);
+
+		try {
+			BookStoreResponse response = idempotencyCache.execute("expired", content, () -> buyBooks(booksToBuy));
+			assertTrue(response.getException() instanceof BookStoreDeadlineExpiredException);
+		} finally {
+			BookStoreDeadline.clear();
+		}
+
+		assertEquals(NUM_COPIES, getNumCopies(TEST_ISBN));
+
+		BookStoreResponse response = idempotencyCache.execute("expired", content, () -> buyBooks(booksToBuy));
+		assertNull(response.getException());
+		assertEquals(NUM_COPIES - 1, getNumCopies(TEST_ISBN));
+		assertEquals(0, idempotencyCache.getReplays());
+
+		response = idempotencyCache.execute("expired", content, () -> buyBooks(booksToBuy));
+		assertNull(response.getException());
+		assertEquals(NUM_COPIES - 1, getNumCopies(TEST_ISBN));
+		assertEquals(1, idempotencyCache.getReplays());
+	}
+
+	/**
+	 * Tests that the idempotency cache rejects a key reused with a different
+	 * content, never forgets a request still executing, and bounds the wait of
+	 * a copy by its deadline.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testIdempotencyCache() throws Exception {
+		BookStoreIdempotencyCache idempotencyCache = new BookStoreIdempotencyCache(1);
+		Supplier<BookStoreResponse> unexpected = () -> {
+			fail("A copy was executed");
+			return null;
+		};
+		CompletableFuture<Void> started = new CompletableFuture<>();
+		CompletableFuture<Void> release = new CompletableFuture<>();
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		try {
+			Future<BookStoreResponse> first = executor.submit(() -> idempotencyCache.execute("first",
+					new byte[] { 1 }, () -> {
+						started.complete(null);
+						release.join();
+						return new BookStoreResponse();
+					}));
+
+			started.get(5, TimeUnit.SECONDS);
+
+			// A copy of the executing request gives up at its deadline.
+			Future<BookStoreResponse> copy = executor.submit(() -> {
+				BookStoreDeadline.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+
+				try {
+					return idempotencyCache.execute("first", new byte[] { 1 }, unexpected);
+				} finally {
+					BookStoreDeadline.clear();
+				}
+			});
+			assertTrue(copy.get(5, TimeUnit.SECONDS).getException() instanceof BookStoreDeadlineExpiredException);
+
+			// The executing request stays while completed ones are forgotten.
+			idempotencyCache.execute("second", new byte[] { 2 }, BookStoreResponse::new);
+			idempotencyCache.execute("third", new byte[] { 3 }, BookStoreResponse::new);
+			release.complete(null);
+			assertNull(first.get(5, TimeUnit.SECONDS).getException());
+
+			long replays = idempotencyCache.getReplays();
+			assertNull(idempotencyCache.execute("first", new byte[] { 1 }, unexpected).getException());
+			assertEquals(replays + 1, idempotencyCache.getReplays());
+
+			assertEquals(BookStoreConstants.IDEMPOTENCY_KEY_REUSED,
+					idempotencyCache.execute("first", new byte[] { 2 }, unexpected).getException().getMessage());
+		} finally {
+			release.complete(null);
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Buys books the way the server does for a request with an idempotency
+	 * key.
+	 *
+	 * @param booksToBuy
+	 *            the books to buy
+	 * @return the response to the request
+	 */
+	private BookStoreResponse buyBooks(Set<BookCopy> booksToBuy) {
+		BookStoreResponse purchaseResponse = new BookStoreResponse();
+
+		try {
+			client.buyBooks(booksToBuy);
+		} catch (BookStoreException ex) {
+			purchaseResponse.setException(ex);
+		}
+
+		return purchaseResponse;
+	}
+
+	/**
+	 * Tests that a proxy records the latency and outcome of its calls and the
+	 * phases of their exchanges, and exposes them through JMX.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testClientMetrics() throws Exception {
+		assumeFalse(localTest);
+
+		BookStoreHTTPProxy measuredClient = new BookStoreHTTPProxy("http://localhost:8081");
+		BookStoreClientMetrics metrics = measuredClient.getMetrics();
+
+		try {
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+
+			for (int i = 0; i < 10; i++) {
+				measuredClient.getBooks(isbns);
+			}
+
+			Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+			booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+
+			try {
+				measuredClient.buyBooks(booksToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+
+			BookStoreClientMetrics.Method getBooks = metrics.get(BookStoreMessageTag.GETBOOKS);
+			assertEquals(10, getBooks.getLatency(BookStoreClientMetrics.Outcome.SUCCESS).getCount());
+			assertEquals(10, getBooks.getSerializeLatency().getCount());
+			assertEquals(10, getBooks.getNetworkLatency().getCount());
+			assertEquals(10, getBooks.getDeserializeLatency().getCount());
+			assertTrue(getBooks.getLatency(BookStoreClientMetrics.Outcome.SUCCESS).getP50Nanos() > 0);
+			assertEquals(1, metrics.get(BookStoreMessageTag.BUYBOOKS).getLatency(BookStoreClientMetrics.Outcome.FAILURE)
+					.getCount());
+
+			metrics.registerMBean("testClientMetrics");
+			ObjectName objectName = new ObjectName(
+					"com.acertainbookstore:type=ClientMetrics,name=\"testClientMetrics\"");
+			TabularData snapshot = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName,
+					"Snapshot");
+			assertNotNull(snapshot.get(new Object[] { "GETBOOKS.success" }));
+			assertNotNull(snapshot.get(new Object[] { "BUYBOOKS.failure" }));
+			assertNull(snapshot.get(new Object[] { "BUYBOOKS.timeout" }));
+		} finally {
+			measuredClient.stop();
+		}
+
+		assertTrue(ManagementFactory.getPlatformMBeanServer()
+				.queryNames(new ObjectName("com.acertainbookstore:type=ClientMetrics,*"), null).isEmpty());
+	}
+
+	/**
+	 * Tests that a saturated admission controller sheds the requests of low
+	 * priority while those of high priority wait for a free slot.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAdmissionPriorities() throws Exception {
+		BookStoreAdmissionController controller = new BookStoreAdmissionController(1, 1, 1);
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		try {
+			assertTrue(controller.acquire(BookStoreMessageTag.GETBOOKS));
+
+			Future<Boolean> purchase = executor.submit(() -> controller.acquire(BookStoreMessageTag.BUYBOOKS));
+			Future<Boolean> listing = executor.submit(() -> controller.acquire(BookStoreMessageTag.LISTBOOKS));
+
+			// A scan waits far less than a purchase before it is shed.
+			assertFalse(listing.get(5, TimeUnit.SECONDS));
+			assertFalse(purchase.isDone());
+
+			controller.release(0);
+			assertTrue(purchase.get(5, TimeUnit.SECONDS));
+			assertEquals(1, controller.getInFlight());
+
+			controller.release(0);
+			assertEquals(0, controller.getInFlight());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that the queue of a priority is bounded, so that the requests
+	 * beyond it are shed, and that the requests waiting in it are admitted as
+	 * slots free up.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAdmissionQueueBound() throws Exception {
+		BookStoreAdmissionController controller = new BookStoreAdmissionController(1, 1, 1);
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		try {
+			assertTrue(controller.acquire(BookStoreMessageTag.BUYBOOKS));
+
+			// The queue of the purchases holds 32 requests, so 8 are shed.
+			List<Future<Boolean>> purchases = new ArrayList<>();
+
+			for (int i = 0; i < 40; i++) {
+				purchases.add(executor.submit(() -> {
+					if (!controller.acquire(BookStoreMessageTag.BUYBOOKS)) {
+						return false;
+					}
+
+					controller.release(0);
+					return true;
+				}));
+			}
+
+			Thread.sleep(200);
+			controller.release(0);
+
+			int admitted = 0;
+
+			for (Future<Boolean> purchase : purchases) {
+				admitted += purchase.get(5, TimeUnit.SECONDS) ? 1 : 0;
+			}
+
+			assertEquals(32, admitted);
+			assertEquals(0, controller.getInFlight());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a shed request is answered 503 with a Retry-After of at least
+	 * a second, without reaching the handler.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAdmissionShedResponse() throws Exception {
+		BookStoreAdmissionController controller = new BookStoreAdmissionController(1, 1, 1);
+		Map<String, Object> calls = new HashMap<>();
+
+		assertTrue(controller.acquire(BookStoreMessageTag.GETBOOKS));
+		controller.handle(BookStoreMessageTag.LISTBOOKS, null, recordingResponse(calls),
+				(request, response) -> fail());
+
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE_503, calls.get("setStatus"));
+		assertTrue(Integer.parseInt((String) calls.get(HttpHeader.RETRY_AFTER.asString())) >= 1);
+		controller.release(0);
+	}
+
+	/**
+	 * Tests that the concurrency limit holds while the latency stays at its
+	 * lowest, and shrinks down to the minimum when the latency rises.
+	 */
+	@Test
+	public void testAdmissionLimitGradient() {
+		BookStoreAdmissionController controller = new BookStoreAdmissionController(20, 4, 40);
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(controller.acquire(BookStoreMessageTag.GETBOOKS));
+			controller.release(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+
+		assertEquals(20, controller.getLimit());
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(controller.acquire(BookStoreMessageTag.GETBOOKS));
+			controller.release(TimeUnit.MILLISECONDS.toNanos(100));
+		}
+
+		int limit = controller.getLimit();
+		assertTrue(limit < 20);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(controller.acquire(BookStoreMessageTag.GETBOOKS));
+			controller.release(TimeUnit.MILLISECONDS.toNanos(100));
+		}
+
+		assertTrue(controller.getLimit() < limit);
+		assertEquals(4, controller.getLimit());
+	}
+
+	/**
+	 * Tests that content below the threshold is sent as is, that deflate is
+	 * preferred to gzip, and that a coding with a zero quality value is not
+	 * chosen.
+	 */
+	@Test
+	public void testCompressionNegotiation() {
+		BookStoreCompressor compressor = new BookStoreCompressor(100);
+
+		assertNull(compressor.negotiate(null, 1000));
+		assertNull(compressor.negotiate(BookStoreCompressor.ACCEPTED_ENCODINGS, 99));
+		assertEquals(BookStoreCompressor.DEFLATE, compressor.negotiate(BookStoreCompressor.ACCEPTED_ENCODINGS, 100));
+		assertEquals(BookStoreCompressor.DEFLATE, compressor.negotiate("gzip, deflate", 100));
+		assertEquals(BookStoreCompressor.GZIP, compressor.negotiate("GZIP;q=0.5", 100));
+		assertEquals(BookStoreCompressor.GZIP, compressor.negotiate("deflate;q=0, gzip", 100));
+		assertEquals(BookStoreCompressor.GZIP, compressor.negotiate("deflate; q=0.0, gzip;q=0.1", 100));
+		assertNull(compressor.negotiate("deflate;q=0, gzip;q=0", 100));
+		assertNull(compressor.negotiate("identity, br", 100));
+		assertNull(compressor.negotiate("", 100));
+	}
+
+	/**
+	 * Tests that content compressed with either coding decompresses to the
+	 * original, that the codings are those of the JDK streams, and that the
+	 * saved bytes are counted.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCompressionRoundTrip() throws Exception {
+		BookStoreCompressor compressor = new BookStoreCompressor(0);
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < 1000; i++) {
+			text.append("Book ").append(i).append(" by Author ").append(i % 7).append('\n');
+		}
+
+		byte[] content = text.toString().getBytes(StandardCharsets.UTF_8);
+
+		for (String encoding : Arrays.asList(BookStoreCompressor.DEFLATE, BookStoreCompressor.GZIP)) {
+			byte[] compressed = compressor.compress(encoding, content);
+			assertNotNull(compressed);
+			assertTrue(compressed.length < content.length);
+			assertArrayEquals(content, compressor.decompress(encoding, compressed));
+			assertArrayEquals(content, compressor.decompress(" " + encoding.toUpperCase() + " ", compressed));
+		}
+
+		byte[] gzip = compressor.compress(BookStoreCompressor.GZIP, content);
+
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+
+		try (InputStream in = new InflaterInputStream(
+				new ByteArrayInputStream(compressor.compress(BookStoreCompressor.DEFLATE, content)))) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try (OutputStream gzipOut = new GZIPOutputStream(out)) {
+			gzipOut.write(content);
+		}
+
+		assertArrayEquals(content, compressor.decompress(BookStoreCompressor.GZIP, out.toByteArray()));
+
+		out.reset();
+
+		try (OutputStream deflateOut = new DeflaterOutputStream(out)) {
+			deflateOut.write(content);
+		}
+
+		assertArrayEquals(content, compressor.decompress(BookStoreCompressor.DEFLATE, out.toByteArray()));
+
+		// A gzip header may carry the name of the file.
+		byte[] name = "books.txt\0".getBytes(StandardCharsets.US_ASCII);
+		byte[] named = new byte[gzip.length + name.length];
+		System.arraycopy(gzip, 0, named, 0, 10);
+		System.arraycopy(name, 0, named, 10, name.length);
+		System.arraycopy(gzip, 10, named, 10 + name.length, gzip.length - 10);
+		named[3] = 8;
+		assertArrayEquals(content, compressor.decompress(BookStoreCompressor.GZIP, named));
+
+		assertEquals(11, compressor.getCompressedMessages());
+		assertTrue(compressor.getSavedBytes() > 0);
+		assertEquals(compressor.getUncompressedBytes() - compressor.getCompressedBytes(), compressor.getSavedBytes());
+	}
+
+	/**
+	 * Tests that content which compression does not make any smaller is left
+	 * as is and not counted.
+	 */
+	@Test
+	public void testCompressionNotSmaller() {
+		BookStoreCompressor compressor = new BookStoreCompressor(0);
+		byte[] content = new byte[1000];
+		new Random(42).nextBytes(content);
+
+		assertNull(compressor.compress(BookStoreCompressor.DEFLATE, content));
+		assertNull(compressor.compress(BookStoreCompressor.GZIP, content));
+		assertNull(compressor.compress(BookStoreCompressor.DEFLATE, new byte[0]));
+		assertEquals(0, compressor.getCompressedMessages());
+		assertEquals(0, compressor.getSavedBytes());
+	}
+
+	/**
+	 * Tests that content in an unsupported coding, truncated or corrupt
+	 * content, and content without a gzip header are rejected.
+	 */
+	@Test
+	public void testDecompressionErrors() {
+		BookStoreCompressor compressor = new BookStoreCompressor(0);
+		byte[] content = new byte[1000];
+		byte[] deflate = compressor.compress(BookStoreCompressor.DEFLATE, content);
+		byte[] gzip = compressor.compress(BookStoreCompressor.GZIP, content);
+		byte[] corrupt = deflate.clone();
+		corrupt[0] = 0;
+
+		List<Callable<byte[]>> decompressions = Arrays.asList(
+				() -> compressor.decompress("br", deflate),
+				() -> compressor.decompress(BookStoreCompressor.DEFLATE, Arrays.copyOf(deflate, deflate.length / 2)),
+				() -> compressor.decompress(BookStoreCompressor.DEFLATE, corrupt),
+				() -> compressor.decompress(BookStoreCompressor.GZIP, deflate),
+				() -> compressor.decompress(BookStoreCompressor.GZIP, Arrays.copyOf(gzip, 5)));
+
+		for (Callable<byte[]> decompression : decompressions) {
+			try {
+				decompression.call();
+				fail("Decompressed invalid content");
+			} catch (Exception ex) {
+				assertTrue(ex instanceof IOException);
+			}
+		}
+
+		// The contexts are still usable after the failures.
+		try {
+			assertArrayEquals(content, compressor.decompress(BookStoreCompressor.GZIP, gzip));
+		} catch (IOException ex) {
+			fail(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Tests that the pool reuses returned objects, keeps at most its bound of
+	 * idle objects, disposes of the others and counts every step.
+	 */
+	@Test
+	public void testObjectPoolBound() {
+		List<Object> disposed = new ArrayList<>();
+		BookStoreObjectPool<Object> pool = new BookStoreObjectPool<>(2, Object::new, disposed::add);
+
+		Object first = pool.borrow();
+		Object second = pool.borrow();
+		Object third = pool.borrow();
+		assertEquals(3, pool.getBorrowCount());
+		assertEquals(3, pool.getCreateCount());
+		assertEquals(0, pool.getIdleCount());
+
+		pool.release(first);
+		pool.release(second);
+		pool.release(third);
+		assertEquals(3, pool.getReturnCount());
+		assertEquals(1, pool.getDiscardCount());
+		assertEquals(2, pool.getIdleCount());
+		assertEquals(Arrays.asList(third), disposed);
+
+		Set<Object> reused = new HashSet<>(Arrays.asList(pool.borrow(), pool.borrow()));
+		assertEquals(new HashSet<>(Arrays.asList(first, second)), reused);
+		assertEquals(5, pool.getBorrowCount());
+		assertEquals(3, pool.getCreateCount());
+		assertEquals(0, pool.getIdleCount());
+
+		assertNotSame(third, pool.borrow());
+		assertEquals(4, pool.getCreateCount());
+	}
+
+	/**
+	 * Tests that the pool never hands out a disposed object, stays within its
+	 * bound and keeps its counters consistent when threads borrow and return
+	 * objects concurrently.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testObjectPoolConcurrent() throws Exception {
+		int maxIdle = 4;
+		int threads = 8;
+		int borrowsPerThread = 10000;
+		Set<Object> disposed = ConcurrentHashMap.newKeySet();
+		BookStoreObjectPool<Object> pool = new BookStoreObjectPool<>(maxIdle, Object::new, disposed::add);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<Boolean>> borrowers = new ArrayList<>();
+
+			for (int i = 0; i < threads; i++) {
+				borrowers.add(executor.submit(() -> {
+					for (int j = 0; j < borrowsPerThread; j++) {
+						Object object = pool.borrow();
+
+						if (disposed.contains(object)) {
+							return false;
+						}
+
+						pool.release(object);
+					}
+
+					return true;
+				}));
+			}
+
+			for (Future<Boolean> borrower : borrowers) {
+				assertTrue(borrower.get(30, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(threads * borrowsPerThread, pool.getBorrowCount());
+		assertEquals(pool.getBorrowCount(), pool.getReturnCount());
+		assertEquals(disposed.size(), pool.getDiscardCount());
+		assertTrue(pool.getIdleCount() <= maxIdle);
+		assertEquals(pool.getCreateCount() - pool.getDiscardCount(), pool.getIdleCount());
+	}
+
+	/**
+	 * Tests that every message is routed at its path and under the stock
+	 * prefix, ignoring case, and that other paths match no route.
+	 */
+	@Test
+	public void testRouteMatching() {
+		BookStoreRouteRegistry routes = new BookStoreRouteRegistry();
+		routes.register(BookStoreMessageTag.GETBOOKS, (request, response) -> {
+		});
+		routes.register(BookStoreMessageTag.BUYBOOKS, (request, response) -> {
+		});
+
+		assertEquals(BookStoreMessageTag.GETBOOKS, routes.match("/GETBOOKS").getMessageTag());
+		assertEquals(BookStoreMessageTag.GETBOOKS, routes.match("/getbooks").getMessageTag());
+		assertEquals(BookStoreMessageTag.GETBOOKS, routes.match("/stock/GetBooks").getMessageTag());
+		assertEquals(BookStoreMessageTag.BUYBOOKS, routes.match("/BUYBOOKS").getMessageTag());
+		assertSame(routes.match("/GETBOOKS"), routes.match("/stock/GETBOOKS"));
+
+		assertNull(routes.match(null));
+		assertNull(routes.match(""));
+		assertNull(routes.match("/"));
+		assertNull(routes.match("/stock"));
+		assertNull(routes.match("/GETBOOK"));
+		assertNull(routes.match("/GETBOOKSX"));
+		assertNull(routes.match("/LISTBOOKS"));
+		assertNull(routes.match("/stock/stock/GETBOOKS"));
+	}
+
+	/**
+	 * Tests that the middleware of the registry runs outermost first, then the
+	 * middleware of the route, and that a middleware may stop a request before
+	 * the handler.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRouteMiddlewareOrder() throws Exception {
+		List<String> calls = new ArrayList<>();
+		BookStoreRouteRegistry routes = new BookStoreRouteRegistry(recordingMiddleware("outer", calls),
+				recordingMiddleware("inner", calls));
+		routes.register(BookStoreMessageTag.GETBOOKS, (request, response) -> calls.add("handler"),
+				recordingMiddleware("route", calls));
+		routes.register(BookStoreMessageTag.BUYBOOKS, (request, response) -> calls.add("handler"),
+				(messageTag, request, response, next) -> calls.add("stop"));
+
+		routes.match("/GETBOOKS").handle(null, null);
+		assertEquals(Arrays.asList("outer GETBOOKS", "inner GETBOOKS", "route GETBOOKS", "handler"), calls);
+
+		calls.clear();
+		routes.match("/BUYBOOKS").handle(null, null);
+		assertEquals(Arrays.asList("outer BUYBOOKS", "inner BUYBOOKS", "stop"), calls);
+	}
+
+	/**
+	 * Tests that the server wraps its routes in the metrics, then the deadline
+	 * enforcer, then the admission controller: an expired request is rejected
+	 * before it queues for admission, and both the rejected and the shed
+	 * requests are counted.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testServerMiddlewareOrder() throws Exception {
+		BookStoreAdmissionController controller = new BookStoreAdmissionController(1, 1, 1);
+		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(null, null, controller);
+		Map<String, Object> calls = new HashMap<>();
+
+		// Keep the server at its concurrency limit, so that admitted requests would be shed.
+		assertTrue(controller.acquire(BookStoreMessageTag.GETBOOKS));
+
+		try {
+			Map<String, String> headers = new HashMap<>();
+			headers.put(BookStoreConstants.DEADLINE_HEADER, "0");
+			handler.handle(null, new org.eclipse.jetty.server.Request(null, null),
+					stubRequest("/GETBOOKS", headers), recordingResponse(calls));
+
+			assertEquals(HttpStatus.GATEWAY_TIMEOUT_504, calls.get("setStatus"));
+			assertEquals(1, handler.getDeadlineEnforcer().getExpired());
+			assertEquals(1, handler.getRouteMetrics().getRequestCount(BookStoreMessageTag.GETBOOKS));
+
+			calls.clear();
+			handler.handle(null, new org.eclipse.jetty.server.Request(null, null),
+					stubRequest("/GETBOOKS", new HashMap<>()), recordingResponse(calls));
+
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE_503, calls.get("setStatus"));
+			assertEquals(1, handler.getDeadlineEnforcer().getExpired());
+			assertEquals(2, handler.getRouteMetrics().getRequestCount(BookStoreMessageTag.GETBOOKS));
+			assertEquals(2, handler.getRouteMetrics().getFailureCount(BookStoreMessageTag.GETBOOKS));
+		} finally {
+			controller.release(0);
+		}
+	}
+
+	/**
+	 * Creates a middleware which records its name and the message tag of the
+	 * requests passing through it.
+	 *
+	 * @param name
+	 *            the name of the middleware
+	 * @param calls
+	 *            the recorded calls
+	 * @return the middleware
+	 */
+	private static BookStoreRouteMiddleware recordingMiddleware(String name, List<String> calls) {
+		return (messageTag, request, response, next) -> {
+			calls.add(name + " " + messageTag);
+			next.handle(request, response);
+		};
+	}
+
+	/**
+	 * Creates a request to a path with the given headers.
+	 *
+	 * @param requestURI
+	 *            the path of the request
+	 * @param headers
+	 *            the headers of the request
+	 * @return the request
+	 */
+	private static HttpServletRequest stubRequest(String requestURI, Map<String, String> headers) {
+		return (HttpServletRequest) Proxy.newProxyInstance(BookStoreTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getRequestURI")) {
+						return requestURI;
+					} else if (method.getName().equals("getHeader")) {
+						return headers.get(args[0]);
+					}
+
+					return (method.getReturnType() == boolean.class) ? false : null;
+				});
+	}
+
+	/**
+	 * Creates a response which records the status and the headers set on it,
+	 * by the name of the header or of the method setting the status, and
+	 * returns the recorded status.
+	 *
+	 * @param calls
+	 *            the recorded values
+	 * @return the response
+	 */
+	private static HttpServletResponse recordingResponse(Map<String, Object> calls) {
+		return (HttpServletResponse) Proxy.newProxyInstance(BookStoreTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+					if (method.getName().equals("setHeader") || method.getName().equals("addHeader")) {
+						calls.put((String) args[0], args[1]);
+					} else if (method.getName().equals("setStatus")) {
+						calls.put(method.getName(), args[0]);
+					} else if (method.getName().equals("getStatus")) {
+						return calls.getOrDefault("setStatus", HttpStatus.OK_200);
+					}
+
+					return (method.getReturnType() == boolean.class) ? false : null;
+				});
+	}
+
     /**
 	 * Tear down after class.
 	 *
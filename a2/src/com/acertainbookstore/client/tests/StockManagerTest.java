@@ -1,25 +1,51 @@
 package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.acertainbookstore.business.*;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.server.ServerSessionListener;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.Promise;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainbookstore.client.BookStoreClientMetrics;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
 
 /**
  * {@StockManagerTest} tests the {@link StockManager} interface.
@@ -458,6 +484,210 @@ public class StockManagerTest {
 		assertTrue(booksToAdd.containsAll(listBooks) && booksToAdd.size() == listBooks.size());
 	}
 
+	/**
+	 * Tests that repeated reads of an unchanged catalog return the same books
+	 * and that a read following a change returns the changed books.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testRepeatedReadsReflectChanges() throws BookStoreException {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+
+		List<StockBook> booksInStoreList = storeManager.getBooks();
+		assertEquals(booksInStoreList, storeManager.getBooks());
+		assertEquals(NUM_COPIES, (Integer) storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+		assertEquals(NUM_COPIES, (Integer) storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+
+		Set<BookCopy> bookCopiesSet = new HashSet<BookCopy>();
+		bookCopiesSet.add(new BookCopy(TEST_ISBN, 1));
+		storeManager.addCopies(bookCopiesSet);
+
+		assertEquals(NUM_COPIES + 1, storeManager.getBooks().get(0).getNumCopies());
+		assertEquals(NUM_COPIES + 1, storeManager.getBooksByISBN(isbnSet).get(0).getNumCopies());
+
+		Set<Integer> removeIsbnSet = new HashSet<Integer>();
+		removeIsbnSet.add(TEST_ISBN);
+		storeManager.removeBooks(removeIsbnSet);
+
+		assertTrue(storeManager.getBooks().isEmpty());
+	}
+
+	/**
+	 * Tests that books sharing their author, or with titles which are not
+	 * Latin-1, are returned with the strings they were added with.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testSharedAndUnicodeStrings() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int i = 1; i <= 20; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Discworld " + (i % 5), "Terry Pratchett",
+					(float) 10, NUM_COPIES, 0, 0, 0, false));
+		}
+
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 21, "Sm\u00f8rrebr\u00f8d \u2603", "\u00c6r\u00f8",
+				(float) 10, NUM_COPIES, 0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		List<StockBook> booksInStoreList = storeManager.getBooks();
+		assertEquals(booksToAdd.size() + 1, booksInStoreList.size());
+		assertTrue(booksInStoreList.containsAll(booksToAdd));
+
+		storeManager.removeAllBooks();
+		storeManager.addBooks(booksToAdd);
+		assertTrue(storeManager.getBooks().containsAll(booksToAdd));
+	}
+
+	/**
+	 * Tests that streaming the books returns the same books as listing them,
+	 * over several chunks, and that a stream can be closed early.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testStreamBooks() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int i = 1; i <= 2 * BookStoreConstants.STREAM_CHUNK_SIZE + 10; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Book " + i, "Author " + (i % 10), (float) 10,
+					NUM_COPIES, 0, 0, 0, false));
+		}
+
+		storeManager.addBooks(booksToAdd);
+		List<StockBook> streamedBooks;
+
+		try (Stream<StockBook> books = storeManager.streamBooks()) {
+			streamedBooks = books.collect(Collectors.toList());
+		}
+
+		List<StockBook> listedBooks = storeManager.getBooks();
+		assertEquals(listedBooks.size(), streamedBooks.size());
+		assertTrue(streamedBooks.containsAll(listedBooks));
+
+		try (Stream<StockBook> books = storeManager.streamBooks()) {
+			assertEquals(10, books.limit(10).count());
+		}
+
+		// The store is still usable after a stream was abandoned.
+		assertEquals(listedBooks.size(), storeManager.getBooks().size());
+	}
+
+	/**
+	 * Tests that pages of the books cover the catalog in ascending ISBN order
+	 * with only the requested fields.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksPaged() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+
+		for (int i = 1; i <= 25; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i, "Book " + i, "Author " + i, (float) 10,
+					NUM_COPIES + i, 0, 0, 0, false));
+		}
+
+		storeManager.addBooks(booksToAdd);
+		Set<StockBookField> fields = EnumSet.of(StockBookField.NUM_COPIES);
+		List<StockBook> pagedBooks = new ArrayList<StockBook>();
+		int cursor = 0;
+		List<StockBook> page;
+
+		do {
+			page = storeManager.getBooks(cursor, 10, fields);
+			assertTrue(page.size() <= 10);
+
+			for (StockBook book : page) {
+				assertTrue(book.getISBN() > cursor);
+				assertNull(book.getTitle());
+				assertNull(book.getAuthor());
+				cursor = book.getISBN();
+			}
+
+			pagedBooks.addAll(page);
+		} while (page.size() == 10);
+
+		List<StockBook> listedBooks = storeManager.getBooks();
+		assertEquals(listedBooks.size(), pagedBooks.size());
+
+		for (StockBook listedBook : listedBooks) {
+			boolean found = false;
+
+			for (StockBook pagedBook : pagedBooks) {
+				if (pagedBook.getISBN() == listedBook.getISBN()) {
+					assertEquals(listedBook.getNumCopies(), pagedBook.getNumCopies());
+					found = true;
+				}
+			}
+
+			assertTrue(found);
+		}
+
+		try {
+			storeManager.getBooks(0, 0, fields);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the changes since a version name the books modified and
+	 * removed since, and that readers outside the retained changes are asked
+	 * to read all the books again.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testGetBooksChangedSince() throws BookStoreException {
+		long version = storeManager.getBooksChangedSince(0).getVersion();
+
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(TEST_ISBN, 1));
+		storeManager.addCopies(bookCopies);
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "Book", "Author", (float) 10, NUM_COPIES, 0, 0, 0,
+				false));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "Book", "Author", (float) 10, NUM_COPIES, 0, 0, 0,
+				false));
+		storeManager.addBooks(booksToAdd);
+
+		Set<Integer> isbnsToRemove = new HashSet<Integer>();
+		isbnsToRemove.add(TEST_ISBN + 2);
+		storeManager.removeBooks(isbnsToRemove);
+
+		BookChanges changes = storeManager.getBooksChangedSince(version);
+		assertFalse(changes.isFullResync());
+		assertTrue(changes.getVersion() > version);
+		assertEquals(new HashSet<Integer>(Arrays.asList(TEST_ISBN, TEST_ISBN + 1)), changes.getModifiedISBNs());
+		assertEquals(isbnsToRemove, changes.getRemovedISBNs());
+
+		changes = storeManager.getBooksChangedSince(changes.getVersion());
+		assertFalse(changes.isFullResync());
+		assertTrue(changes.getModifiedISBNs().isEmpty());
+		assertTrue(changes.getRemovedISBNs().isEmpty());
+
+		// A version from the future, e.g. from before a restart.
+		assertTrue(storeManager.getBooksChangedSince(changes.getVersion() + 1).isFullResync());
+
+		try {
+			storeManager.getBooksChangedSince(-1);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
 	/**
 	 * Tests basic removeAllBooks functionality.
 	 *
@@ -482,6 +712,220 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that the books of a publisher are added in chunks, and that a
+	 * failed chunk stops the ingestion with the earlier chunks added.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAddBooksFromPublisher() throws Exception {
+		assumeFalse(localTest);
+
+		StockManagerHTTPProxy proxy = (StockManagerHTTPProxy) storeManager;
+		CompletableFuture<Long> ingestion;
+
+		try (SubmissionPublisher<StockBook> publisher = new SubmissionPublisher<StockBook>()) {
+			ingestion = proxy.addBooks(publisher, 100, 2);
+
+			for (int i = 1; i <= 1050; i++) {
+				publisher.submit(new ImmutableStockBook(TEST_ISBN + i, "Catalog title " + i, "Catalog author",
+						(float) 10, NUM_COPIES, 0, 0, 0, false));
+			}
+		}
+
+		assertEquals(Long.valueOf(1050), ingestion.get(30, TimeUnit.SECONDS));
+		assertEquals(1051, storeManager.getBooks().size());
+
+		// The second chunk holds a book of the store, so only the first one is added.
+		try (SubmissionPublisher<StockBook> publisher = new SubmissionPublisher<StockBook>()) {
+			ingestion = proxy.addBooks(publisher, 100, 1);
+
+			for (int i = 2000; i < 2100; i++) {
+				publisher.submit(new ImmutableStockBook(TEST_ISBN + i, "Catalog title " + i, "Catalog author",
+						(float) 10, NUM_COPIES, 0, 0, 0, false));
+			}
+
+			publisher.submit(getDefaultBook());
+		}
+
+		try {
+			ingestion.get(30, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof BookStoreException);
+		}
+
+		assertEquals(1151, storeManager.getBooks().size());
+	}
+
+	/**
+	 * Tests that the books a publisher emits twice still count toward the
+	 * chunk, so that the ingestion asks for more books and completes.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAddDuplicateBooksFromPublisher() throws Exception {
+		assumeFalse(localTest);
+
+		StockManagerHTTPProxy proxy = (StockManagerHTTPProxy) storeManager;
+		CompletableFuture<Long> ingestion;
+
+		try (SubmissionPublisher<StockBook> publisher = new SubmissionPublisher<StockBook>()) {
+			ingestion = proxy.addBooks(publisher, 10, 1);
+
+			for (int i = 1; i <= 15; i++) {
+				StockBook book = new ImmutableStockBook(TEST_ISBN + i, "Catalog title " + i, "Catalog author",
+						(float) 10, NUM_COPIES, 0, 0, 0, false);
+				publisher.submit(book);
+
+				if (i <= 5) {
+					publisher.submit(book);
+				}
+			}
+		}
+
+		assertEquals(Long.valueOf(15), ingestion.get(30, TimeUnit.SECONDS));
+		assertEquals(16, storeManager.getBooks().size());
+	}
+
+	/**
+	 * Tests that the calls of a batch succeed or fail on their own.
+	 *
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	@Test
+	public void testWriteBatches() throws BookStoreException {
+		List<Set<BookCopy>> bookCopiesSets = new ArrayList<Set<BookCopy>>();
+		bookCopiesSets.add(new HashSet<BookCopy>(Arrays.asList(new BookCopy(TEST_ISBN, 2))));
+		bookCopiesSets.add(new HashSet<BookCopy>(Arrays.asList(new BookCopy(TEST_ISBN, 3),
+				new BookCopy(TEST_ISBN + 1, 1))));
+		bookCopiesSets.add(null);
+		bookCopiesSets.add(new HashSet<BookCopy>(Arrays.asList(new BookCopy(TEST_ISBN, 1))));
+
+		List<BookStoreException> outcomes = storeManager.addCopiesBatch(bookCopiesSets);
+		assertEquals(4, outcomes.size());
+		assertNull(outcomes.get(0));
+		assertNotNull(outcomes.get(1));
+		assertNotNull(outcomes.get(2));
+		assertNull(outcomes.get(3));
+
+		// Only the valid sets are added.
+		Set<Integer> isbns = new HashSet<Integer>(Arrays.asList(TEST_ISBN));
+		assertEquals(NUM_COPIES + 3, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+
+		List<Set<BookEditorPick>> editorPicksSets = new ArrayList<Set<BookEditorPick>>();
+		editorPicksSets.add(new HashSet<BookEditorPick>(Arrays.asList(new BookEditorPick(TEST_ISBN + 1, true))));
+		editorPicksSets.add(new HashSet<BookEditorPick>(Arrays.asList(new BookEditorPick(TEST_ISBN, true))));
+
+		outcomes = storeManager.updateEditorPicksBatch(editorPicksSets);
+		assertNotNull(outcomes.get(0));
+		assertNull(outcomes.get(1));
+		assertTrue(storeManager.getBooksByISBN(isbns).get(0).isEditorPick());
+
+		try {
+			storeManager.addCopiesBatch(null);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+	}
+
+	/**
+	 * Tests that the additions of copies of concurrent callers are merged into
+	 * one request, and that each caller gets its own outcome.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBatchedAddCopies() throws Exception {
+		assumeFalse(localTest);
+
+		StockManagerHTTPProxy proxy = (StockManagerHTTPProxy) storeManager;
+		int callers = 8;
+		BookStoreClientMetrics.Method batches = proxy.getMetrics().get(BookStoreMessageTag.ADDCOPIESBATCH);
+		long batchesBefore = batches.getLatency(BookStoreClientMetrics.Outcome.SUCCESS).getCount();
+		ExecutorService executor = Executors.newFixedThreadPool(callers);
+		proxy.setBatching(10000, callers);
+
+		try {
+			List<Future<?>> calls = new ArrayList<Future<?>>();
+
+			for (int i = 0; i < callers; i++) {
+				// The last caller adds copies of a book which is not in the store.
+				int isbn = (i == callers - 1) ? TEST_ISBN + 1 : TEST_ISBN;
+				calls.add(executor.submit(() -> {
+					storeManager.addCopies(new HashSet<BookCopy>(Arrays.asList(new BookCopy(isbn, 1))));
+					return null;
+				}));
+			}
+
+			for (int i = 0; i < callers; i++) {
+				try {
+					calls.get(i).get(30, TimeUnit.SECONDS);
+					assertTrue(i < callers - 1);
+				} catch (ExecutionException ex) {
+					assertEquals(callers - 1, i);
+					assertTrue(ex.getCause() instanceof BookStoreException);
+				}
+			}
+		} finally {
+			proxy.setBatching(0, 0);
+			executor.shutdown();
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>(Arrays.asList(TEST_ISBN));
+		assertEquals(NUM_COPIES + callers - 1, storeManager.getBooksByISBN(isbns).get(0).getNumCopies());
+		assertEquals(batchesBefore + 1, batches.getLatency(BookStoreClientMetrics.Outcome.SUCCESS).getCount());
+	}
+
+	/**
+	 * Tests that the server speaks cleartext HTTP/2 on the port of HTTP/1.1
+	 * to a client which opens the connection with the HTTP/2 preface.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCleartextHTTP2() throws Exception {
+		assumeFalse(localTest);
+
+		HTTP2Client http2Client = new HTTP2Client();
+		http2Client.start();
+
+		try {
+			FuturePromise<Session> sessionPromise = new FuturePromise<>();
+			http2Client.connect(new InetSocketAddress("localhost", 8081), new ServerSessionListener.Adapter(),
+					sessionPromise);
+			Session session = sessionPromise.get(5, TimeUnit.SECONDS);
+
+			String uri = "http://localhost:8081/stock/" + BookStoreMessageTag.GETBOOKSCHANGEDSINCE + "?"
+					+ BookStoreConstants.VERSION_PARAM + "=0";
+			MetaData.Request request = new MetaData.Request("GET", new HttpURI(uri), HttpVersion.HTTP_2,
+					new HttpFields());
+			CompletableFuture<MetaData.Response> response = new CompletableFuture<>();
+
+			session.newStream(new HeadersFrame(request, null, true), new Promise.Adapter<>(),
+					new org.eclipse.jetty.http2.api.Stream.Listener.Adapter() {
+
+						@Override
+						public void onHeaders(org.eclipse.jetty.http2.api.Stream stream, HeadersFrame frame) {
+							response.complete((MetaData.Response) frame.getMetaData());
+						}
+					});
+
+			assertEquals(HttpVersion.HTTP_2, response.get(5, TimeUnit.SECONDS).getHttpVersion());
+			assertEquals(HttpStatus.OK_200, response.get().getStatus());
+		} finally {
+			http2Client.stop();
+		}
+	}
+
 	/**
 	 * Tear down after class.
 	 *
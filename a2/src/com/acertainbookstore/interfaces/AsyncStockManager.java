@@ -0,0 +1,113 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.BookChanges;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.StockBookField;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * {@link AsyncStockManager} declares the methods of {@link StockManager} for
+ * clients which do not block while a call is in flight. Every method returns
+ * at once with a future, which is completed exceptionally with a
+ * {@link BookStoreException} where the method of {@link StockManager} would
+ * throw it. The books are streamed with {@link StockManager#streamBooks()},
+ * which already reads them as they arrive.
+ */
+public interface AsyncStockManager {
+
+	/**
+	 * Adds the books in bookSet to the stock.
+	 *
+	 * @param bookSet
+	 *            the book set
+	 * @return the future completed when the books are added
+	 */
+	public CompletableFuture<Void> addBooks(Set<StockBook> bookSet);
+
+	/**
+	 * Adds copies of the existing books to the bookstore.
+	 *
+	 * @param bookCopiesSet
+	 *            the book copies set
+	 * @return the future completed when the copies are added
+	 */
+	public CompletableFuture<Void> addCopies(Set<BookCopy> bookCopiesSet);
+
+	/**
+	 * Returns the list of books in the bookstore.
+	 *
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<StockBook>> getBooks();
+
+	/**
+	 * Returns a page of the books in the bookstore, like
+	 * {@link StockManager#getBooks(int, int, Set)}.
+	 *
+	 * @param cursor
+	 *            the ISBN after which the page starts
+	 * @param limit
+	 *            the largest number of books in the page
+	 * @param fields
+	 *            the fields of the books to read
+	 * @return the future of the page
+	 */
+	public CompletableFuture<List<StockBook>> getBooks(int cursor, int limit, Set<StockBookField> fields);
+
+	/**
+	 * Gets the books changed after a catalog version, like
+	 * {@link StockManager#getBooksChangedSince(long)}.
+	 *
+	 * @param version
+	 *            the version the caller last synchronized at
+	 * @return the future of the changes
+	 */
+	public CompletableFuture<BookChanges> getBooksChangedSince(long version);
+
+	/**
+	 * Gets the books matching the set of ISBNs given.
+	 *
+	 * @param isbns
+	 *            the ISBNs
+	 * @return the future of the books
+	 */
+	public CompletableFuture<List<StockBook>> getBooksByISBN(Set<Integer> isbns);
+
+	/**
+	 * Gets the list of books which has sale miss.
+	 *
+	 * @return the future of the books in demand
+	 */
+	public CompletableFuture<List<StockBook>> getBooksInDemand();
+
+	/**
+	 * Updates the books by mark/unmark them as editor pick.
+	 *
+	 * @param editorPicks
+	 *            the editor picks
+	 * @return the future completed when the books are updated
+	 */
+	public CompletableFuture<Void> updateEditorPicks(Set<BookEditorPick> editorPicks);
+
+	/**
+	 * Cleans up the bookstore - remove all the books and the associated data.
+	 *
+	 * @return the future completed when the books are removed
+	 */
+	public CompletableFuture<Void> removeAllBooks();
+
+	/**
+	 * Cleans up the bookstore selectively for the list of provided ISBNs.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the future completed when the books are removed
+	 */
+	public CompletableFuture<Void> removeBooks(Set<Integer> isbnSet);
+}
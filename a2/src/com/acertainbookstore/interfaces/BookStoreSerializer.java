@@ -1,6 +1,8 @@
 package com.acertainbookstore.interfaces;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * {@link BookStoreSerializer} specifies the serialization and de-serialization
@@ -29,4 +31,34 @@ public interface BookStoreSerializer {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	Object deserialize(byte[] bytes) throws IOException;
+
+	/**
+	 * Serializes an object into an output stream. Serializers of large
+	 * messages should override this method to write the object incrementally.
+	 *
+	 * @param object
+	 *            the object
+	 * @param out
+	 *            the output stream, which is not closed
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	default void serialize(Object object, OutputStream out) throws IOException {
+		out.write(serialize(object));
+	}
+
+	/**
+	 * De-serializes an object from an input stream, which must contain only
+	 * that object. Serializers of large messages should override this method
+	 * to read the object incrementally.
+	 *
+	 * @param in
+	 *            the input stream, which is not closed
+	 * @return the object
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	default Object deserialize(InputStream in) throws IOException {
+		return deserialize(in.readAllBytes());
+	}
 }
@@ -2,10 +2,13 @@ package com.acertainbookstore.interfaces;
 
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.business.StockBookField;
 import com.acertainbookstore.utils.BookStoreException;
 
 /**
@@ -34,6 +37,21 @@ public interface StockManager {
 	 */
 	public void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException;
 
+	/**
+	 * Adds copies of the existing books for several independent callers at
+	 * once, under a single acquisition of the locks. Every set is validated
+	 * and applied atomically on its own, as by {@link #addCopies(Set)}, so an
+	 * invalid set leaves the others applied.
+	 *
+	 * @param bookCopiesSets
+	 *            the book copies sets
+	 * @return the outcome of every set in order: null if it was applied, or
+	 *         the exception which rejected it
+	 * @throws BookStoreException
+	 *             if the batch is null or could not be applied at all
+	 */
+	public List<BookStoreException> addCopiesBatch(List<Set<BookCopy>> bookCopiesSets) throws BookStoreException;
+
 	/**
 	 * Gets the list of books in the bookstore.
 	 *
@@ -43,6 +61,42 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooks() throws BookStoreException;
 
+	/**
+	 * Gets a page of the books in the bookstore, in increasing order of ISBN.
+	 * The first page starts after the cursor 0, and every next page after the
+	 * ISBN of the last book of the previous page. A page with fewer books than
+	 * the limit is the last one.
+	 *
+	 * @param cursor
+	 *            the ISBN after which the page starts
+	 * @param limit
+	 *            the maximum number of books in the page, at most
+	 *            {@link com.acertainbookstore.utils.BookStoreConstants#MAX_PAGE_SIZE}
+	 * @param fields
+	 *            the fields of the books to fill in; the others are null, zero
+	 *            or false, except the ISBN which is always filled in
+	 * @return the books
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public List<StockBook> getBooks(int cursor, int limit, Set<StockBookField> fields) throws BookStoreException;
+
+	/**
+	 * Streams the books in the bookstore, a chunk of books at a time, so that
+	 * the whole catalog is never in memory at once. Every book is read as it
+	 * is when its chunk is read, so the stream is not a snapshot of the whole
+	 * catalog: books added after the stream starts are left out, and books
+	 * removed before their chunk is read are skipped. The stream must be
+	 * closed if it is not read to the end.
+	 *
+	 * @return the books, as a stream which throws a
+	 *         {@link com.acertainbookstore.utils.BookStoreChunkedStream.ChunkException}
+	 *         if a chunk cannot be read
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public Stream<StockBook> streamBooks() throws BookStoreException;
+
 	/**
 	 * Gets the books matching the set of ISBNs given, is different to getBooks
 	 * in the BookStore interface because of the return type of the books.
@@ -55,6 +109,22 @@ public interface StockManager {
 	 */
 	public List<StockBook> getBooksByISBN(Set<Integer> isbns) throws BookStoreException;
 
+	/**
+	 * Gets the books changed after a catalog version, so that a copy of the
+	 * books can be kept up to date without reading all of them again. A first
+	 * call may pass 0, or the version of the last full read; each later call
+	 * passes the version returned by the previous one.
+	 *
+	 * @param version
+	 *            the version the caller last synchronized at
+	 * @return the ISBNs of the books modified and removed since, or a request
+	 *         to read all the books again if the store no longer retains all
+	 *         the changes since
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public BookChanges getBooksChangedSince(long version) throws BookStoreException;
+
 	/**
 	 * Gets the list of books which has sale miss.
 	 *
@@ -74,6 +144,21 @@ public interface StockManager {
 	 */
 	public void updateEditorPicks(Set<BookEditorPick> editorPicks) throws BookStoreException;
 
+	/**
+	 * Updates the editor picks for several independent callers at once, under
+	 * a single acquisition of the locks. Every set is validated and applied
+	 * atomically on its own, as by {@link #updateEditorPicks(Set)}.
+	 *
+	 * @param editorPicksSets
+	 *            the editor picks sets
+	 * @return the outcome of every set in order: null if it was applied, or
+	 *         the exception which rejected it
+	 * @throws BookStoreException
+	 *             if the batch is null or could not be applied at all
+	 */
+	public List<BookStoreException> updateEditorPicksBatch(List<Set<BookEditorPick>> editorPicksSets)
+			throws BookStoreException;
+
 	/**
 	 * Cleans up the bookstore - remove all the books and the associated data.
 	 *
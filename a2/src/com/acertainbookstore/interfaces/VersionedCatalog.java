@@ -0,0 +1,34 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.Set;
+
+/**
+ * {@link VersionedCatalog} declares the methods exposed by bookstore
+ * implementations that stamp every change to their catalog with a
+ * monotonically increasing version. The versions let the server answer
+ * repeated reads from a cache as long as nothing they depend on has changed.
+ */
+public interface VersionedCatalog {
+
+	/** The version returned when a result cannot be versioned. */
+	public static final long UNVERSIONED = -1;
+
+	/**
+	 * Gets the version of the whole catalog, which increases on every change
+	 * to any book.
+	 *
+	 * @return the catalog version
+	 */
+	public long getCatalogVersion();
+
+	/**
+	 * Gets the version of the books with the given ISBNs, which increases on
+	 * every change to any of those books.
+	 *
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the version, or {@link #UNVERSIONED} if any of the books is not
+	 *         in stock
+	 */
+	public long getBooksVersion(Set<Integer> isbnSet);
+}
@@ -0,0 +1,385 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeader;
+
+import com.acertainbookstore.utils.BookStoreDeadline;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreAdmissionController} is a {@link BookStoreRouteMiddleware}
+ * deciding which requests the {@link BookStoreHTTPMessageHandler} serves when
+ * the server is overloaded.
+ * Requests are admitted while fewer than a concurrency limit are in flight,
+ * otherwise they wait in a bounded queue per priority and are shed when the
+ * queue is full or the wait times out. Waiting requests are admitted in order
+ * of priority, so that e.g. purchases are not delayed by full catalog scans.
+ * <p>
+ * The concurrency limit adapts to the observed latency with a gradient
+ * algorithm: the limit shrinks in proportion to how much the latency exceeds
+ * the lowest latency seen, and grows while the latency stays close to it.
+ */
+public class BookStoreAdmissionController implements BookStoreRouteMiddleware {
+
+	/**
+	 * {@link Priority} is the priority of a message in the admission queue.
+	 */
+	public enum Priority {
+
+		/** Revenue bearing messages. */
+		HIGH,
+
+		/** Regular reads and writes. */
+		NORMAL,
+
+		/** Expensive scans of the whole catalog. */
+		LOW;
+	}
+
+	/** The Constant DEFAULT_INITIAL_LIMIT. */
+	public static final int DEFAULT_INITIAL_LIMIT = 20;
+
+	/** The Constant DEFAULT_MIN_LIMIT. */
+	public static final int DEFAULT_MIN_LIMIT = 4;
+
+	/**
+	 * The Constant DEFAULT_MAX_LIMIT; together with the queue sizes it should
+	 * stay below the size of the server thread pool, since waiting requests
+	 * hold on to their thread.
+	 */
+	public static final int DEFAULT_MAX_LIMIT = 40;
+
+	/** The tolerated ratio between the latency and the lowest latency. */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/** The weight of a new limit in the smoothed limit. */
+	private static final double SMOOTHING = 0.2;
+
+	/**
+	 * The number of samples over which the lowest latency drifts towards the
+	 * observed latency, so that it recovers from outliers.
+	 */
+	private static final int MIN_LATENCY_DRIFT_SAMPLES = 1000;
+
+	/** The priorities of the messages. */
+	private static final Map<BookStoreMessageTag, Priority> PRIORITIES = new EnumMap<>(BookStoreMessageTag.class);
+
+	static {
+		for (BookStoreMessageTag messageTag : BookStoreMessageTag.values()) {
+			PRIORITIES.put(messageTag, Priority.NORMAL);
+		}
+
+		PRIORITIES.put(BookStoreMessageTag.BUYBOOKS, Priority.HIGH);
+		PRIORITIES.put(BookStoreMessageTag.LISTBOOKS, Priority.LOW);
+		PRIORITIES.put(BookStoreMessageTag.STREAMBOOKS, Priority.LOW);
+	}
+
+	/**
+	 * The messages whose duration says nothing about the load: the streamed
+	 * responses, which last as long as the response is large, and the long
+	 * polls, which are answered later and off the request thread.
+	 */
+	private static final Set<BookStoreMessageTag> UNTIMED = EnumSet.of(BookStoreMessageTag.STREAMBOOKS,
+			BookStoreMessageTag.AWAITBOOKSCHANGED);
+
+	/** The maximum number of waiting requests per priority. */
+	private static final int[] MAX_QUEUED = { 32, 16, 4 };
+
+	/** The maximum waiting time in milliseconds per priority. */
+	private static final long[] MAX_QUEUE_MILLISECS = { 1000, 500, 100 };
+
+	/** The lock guarding the state of the controller. */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** The conditions signaled when a waiting request may be admitted. */
+	private final Condition[] admittable = new Condition[Priority.values().length];
+
+	/** The number of waiting requests per priority. */
+	private final int[] queued = new int[Priority.values().length];
+
+	/** The minimum concurrency limit. */
+	private final int minLimit;
+
+	/** The maximum concurrency limit. */
+	private final int maxLimit;
+
+	/** The concurrency limit. */
+	private double limit;
+
+	/** The number of requests in flight. */
+	private int inFlight = 0;
+
+	/** The lowest latency observed, in nanoseconds. */
+	private double minLatency = 0;
+
+	/** The smoothed latency, in nanoseconds. */
+	private double smoothedLatency = 0;
+
+	/**
+	 * Instantiates a new {@link BookStoreAdmissionController} with the default
+	 * limits.
+	 */
+	public BookStoreAdmissionController() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreAdmissionController}.
+	 *
+	 * @param initialLimit
+	 *            the initial concurrency limit
+	 * @param minLimit
+	 *            the minimum concurrency limit
+	 * @param maxLimit
+	 *            the maximum concurrency limit
+	 */
+	public BookStoreAdmissionController(int initialLimit, int minLimit, int maxLimit) {
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+
+		for (int i = 0; i < admittable.length; i++) {
+			admittable[i] = lock.newCondition();
+		}
+	}
+
+	/**
+	 * Gets the priority of a message.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @return the priority
+	 */
+	public static Priority getPriority(BookStoreMessageTag messageTag) {
+		return PRIORITIES.get(messageTag);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.server.BookStoreRouteMiddleware#handle(com.
+	 * acertainbookstore.utils.BookStoreMessageTag,
+	 * javax.servlet.http.HttpServletRequest,
+	 * javax.servlet.http.HttpServletResponse,
+	 * com.acertainbookstore.server.BookStoreRouteHandler)
+	 */
+	@Override
+	public void handle(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response,
+			BookStoreRouteHandler next) throws IOException {
+		if (!acquire(messageTag)) {
+			// Shed the request rather than letting it queue up in the server.
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader(HttpHeader.RETRY_AFTER.asString(), Integer.toString(getRetryAfterSeconds()));
+			return;
+		}
+
+		long startTime = System.nanoTime();
+
+		try {
+			next.handle(request, response);
+		} finally {
+			release(UNTIMED.contains(messageTag) ? 0 : System.nanoTime() - startTime);
+		}
+	}
+
+	/**
+	 * Admits a request, waiting for a bounded time if the server is at its
+	 * concurrency limit. Every admitted request must be followed by a call to
+	 * {@link #release(long)}.
+	 *
+	 * @param messageTag
+	 *            the message tag of the request
+	 * @return true, if the request is admitted; false, if it must be shed
+	 */
+	public boolean acquire(BookStoreMessageTag messageTag) {
+		int priority = getPriority(messageTag).ordinal();
+
+		lock.lock();
+		try {
+			if (canAdmit(priority)) {
+				inFlight++;
+				return true;
+			}
+
+			if (queued[priority] >= MAX_QUEUED[priority]) {
+				return false;
+			}
+
+			queued[priority]++;
+			// A request does not wait past the deadline of its client.
+			long remainingNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_QUEUE_MILLISECS[priority]),
+					BookStoreDeadline.getRemainingNanos());
+
+			try {
+				while (!canAdmit(priority)) {
+					if (remainingNanos <= 0) {
+						return false;
+					}
+
+					remainingNanos = admittable[priority].awaitNanos(remainingNanos);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				queued[priority]--;
+			}
+
+			inFlight++;
+
+			// There may be room for more than this request.
+			signalNext();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases an admitted request and adapts the concurrency limit to its
+	 * latency.
+	 *
+	 * @param latencyNanos
+	 *            the time it took to serve the request, in nanoseconds, or
+	 *            zero to leave the limit unchanged
+	 */
+	public void release(long latencyNanos) {
+		lock.lock();
+		try {
+			inFlight--;
+
+			if (latencyNanos > 0) {
+				updateLimit(latencyNanos);
+			}
+
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of seconds after which a shed request may be retried,
+	 * estimated from the time it takes to drain the queues.
+	 *
+	 * @return the number of seconds, at least one
+	 */
+	public int getRetryAfterSeconds() {
+		lock.lock();
+		try {
+			int totalQueued = 0;
+
+			for (int count : queued) {
+				totalQueued += count;
+			}
+
+			double drainNanos = smoothedLatency * (totalQueued + inFlight) / limit;
+			return (int) Math.max(1, Math.ceil(drainNanos / TimeUnit.SECONDS.toNanos(1)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the current concurrency limit.
+	 *
+	 * @return the concurrency limit
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of requests in flight.
+	 *
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if a request of the given priority can be admitted now, i.e. the
+	 * limit is not reached and no request of a higher priority is waiting.
+	 *
+	 * @param priority
+	 *            the priority
+	 * @return true, if the request can be admitted
+	 */
+	private boolean canAdmit(int priority) {
+		if (inFlight >= (int) limit) {
+			return false;
+		}
+
+		for (int i = 0; i < priority; i++) {
+			if (queued[i] > 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Wakes up a waiting request of the highest waiting priority.
+	 */
+	private void signalNext() {
+		if (inFlight >= (int) limit) {
+			return;
+		}
+
+		for (int i = 0; i < queued.length; i++) {
+			if (queued[i] > 0) {
+				admittable[i].signal();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Updates the concurrency limit with a latency sample.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds
+	 */
+	private void updateLimit(long latencyNanos) {
+		if (minLatency == 0 || latencyNanos < minLatency) {
+			minLatency = latencyNanos;
+		} else {
+			minLatency += (latencyNanos - minLatency) / MIN_LATENCY_DRIFT_SAMPLES;
+		}
+
+		smoothedLatency = (smoothedLatency == 0) ? latencyNanos
+				: smoothedLatency * (1 - SMOOTHING) + latencyNanos * SMOOTHING;
+
+		double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * minLatency / smoothedLatency));
+
+		// Only grow the limit if it is actually being used.
+		double headroom = (inFlight + 1 >= limit / 2) ? Math.sqrt(limit) : 0;
+		double newLimit = limit * gradient + headroom;
+
+		limit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, limit));
+	}
+}
@@ -0,0 +1,111 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreDeadline;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreDeadlineEnforcer} is a {@link BookStoreRouteMiddleware}
+ * which stops the server from working on requests their clients gave up on.
+ * The proxies send with every request the time they wait for the response;
+ * counted from when the request was received, it gives the deadline of the
+ * request. A request which waited past its deadline for a server thread is
+ * rejected on arrival, and the others are served with their deadline set on
+ * the thread, which bounds the wait in the admission queue and for the locks
+ * of the book store.
+ */
+public class BookStoreDeadlineEnforcer implements BookStoreRouteMiddleware {
+
+	/** The number of requests rejected because their deadline expired. */
+	private final AtomicLong expired = new AtomicLong();
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.server.BookStoreRouteMiddleware#handle(com.
+	 * acertainbookstore.utils.BookStoreMessageTag,
+	 * javax.servlet.http.HttpServletRequest,
+	 * javax.servlet.http.HttpServletResponse,
+	 * com.acertainbookstore.server.BookStoreRouteHandler)
+	 */
+	@Override
+	public void handle(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response,
+			BookStoreRouteHandler next) throws IOException {
+		long timeoutMillis = getTimeoutMillis(request);
+
+		if (timeoutMillis < 0) {
+			next.handle(request, response);
+			return;
+		}
+
+		long remainingMillis = timeoutMillis - getWaitedMillis(request);
+
+		if (remainingMillis <= 0) {
+			// Nobody reads the response any more.
+			expired.incrementAndGet();
+			response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+			return;
+		}
+
+		BookStoreDeadline.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+
+		try {
+			next.handle(request, response);
+		} finally {
+			BookStoreDeadline.clear();
+		}
+	}
+
+	/**
+	 * Gets the number of requests rejected because their deadline expired
+	 * before they were served.
+	 *
+	 * @return the number of expired requests
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * Gets the time the client of a request waits for the response.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the timeout in milliseconds, or -1 if the request has none
+	 */
+	private static long getTimeoutMillis(HttpServletRequest request) {
+		String header = request.getHeader(BookStoreConstants.DEADLINE_HEADER);
+
+		if (header == null) {
+			return -1;
+		}
+
+		try {
+			return Math.max(Long.parseLong(header.trim()), 0);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the time since a request was received.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the time in milliseconds
+	 */
+	private static long getWaitedMillis(HttpServletRequest request) {
+		Request baseRequest = Request.getBaseRequest(request);
+		long receivedAt = (baseRequest != null) ? baseRequest.getTimeStamp() : 0;
+		return (receivedAt > 0) ? Math.max(System.currentTimeMillis() - receivedAt, 0) : 0;
+	}
+}
@@ -1,29 +1,45 @@
 package com.acertainbookstore.server;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import com.acertainbookstore.business.BookChanges;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.StockBook;
-import com.acertainbookstore.utils.BookStoreKryoSerializer;
+import com.acertainbookstore.business.StockBookField;
 import com.acertainbookstore.interfaces.BookStore;
-import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.acertainbookstore.interfaces.StockManager;
-import com.acertainbookstore.utils.BookStoreXStreamSerializer;
+import com.acertainbookstore.interfaces.VersionedCatalog;
+import com.acertainbookstore.utils.BookStoreChunkedStream;
+import com.acertainbookstore.utils.BookStoreCompressor;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreResponseCache;
+import com.acertainbookstore.utils.BookStoreSerializationFormat;
 import com.acertainbookstore.utils.BookStoreUtility;
 import com.esotericsoftware.kryo.io.Input;
 
@@ -44,25 +60,201 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	/** The stock manager. */
 	private StockManager stockManager = null;
 
-	/** The serializer. */
-	private static ThreadLocal<BookStoreSerializer> serializer;
+	/** The content of requests without a body. */
+	private static final byte[] EMPTY_CONTENT = new byte[0];
+
+	/** The request headers which select the representation of a response. */
+	private static final String VARY_HEADER = HttpHeader.ACCEPT.asString() + ", "
+			+ HttpHeader.ACCEPT_ENCODING.asString();
+
+	/** The versions of the book store, or null if it does not keep any. */
+	private VersionedCatalog bookStoreCatalog = null;
+
+	/** The versions of the stock manager, or null if it does not keep any. */
+	private VersionedCatalog stockManagerCatalog = null;
+
+	/** The metrics of the routes. */
+	private final BookStoreRouteMetrics routeMetrics = new BookStoreRouteMetrics();
+
+	/** The enforcer of the deadlines of the requests. */
+	private final BookStoreDeadlineEnforcer deadlineEnforcer = new BookStoreDeadlineEnforcer();
+
+	/** The routes of the supported messages. */
+	private final BookStoreRouteRegistry routes;
+
+	/** The serialized responses to versioned reads. */
+	private final BookStoreResponseCache responseCache = new BookStoreResponseCache(
+			BookStoreConstants.RESPONSE_CACHE_SIZE);
+
+	/** The compressor of large responses. */
+	private final BookStoreCompressor compressor = new BookStoreCompressor();
+
+	/** The responses to the writes sent with an idempotency key. */
+	private final BookStoreIdempotencyCache idempotencyCache = new BookStoreIdempotencyCache(
+			BookStoreConstants.IDEMPOTENCY_CACHE_SIZE);
+
+	/** The interval in milliseconds at which the long polls are checked. */
+	private static final long LONG_POLL_CHECK_MILLISECS = 20;
+
+	/** The long polls waiting for a change. */
+	private final Queue<LongPoll> longPolls = new ConcurrentLinkedQueue<>();
+
+	/** The thread which answers the long polls, started by the first one. */
+	private ScheduledExecutorService changeNotifier = null;
 
 	/**
-	 * Instantiates a new {@link BookStoreHTTPMessageHandler}.
+	 * {@link LongPoll} is a request for the changes since a version which
+	 * waits for the next change.
+	 */
+	private static final class LongPoll {
+
+		/** The context of the request. */
+		private final AsyncContext context;
+
+		/** The version the reader last synchronized at. */
+		private final long since;
+
+		/** The catalog version when the request started waiting. */
+		private final long version;
+
+		/** The time in nanoseconds at which the request stops waiting. */
+		private final long deadline;
+
+		/**
+		 * Instantiates a new {@link LongPoll}.
+		 *
+		 * @param context
+		 *            the context of the request
+		 * @param since
+		 *            the version the reader last synchronized at
+		 * @param version
+		 *            the catalog version when the request started waiting
+		 * @param deadline
+		 *            the time in nanoseconds at which the request stops
+		 *            waiting
+		 */
+		LongPoll(AsyncContext context, long since, long version, long deadline) {
+			this.context = context;
+			this.since = since;
+			this.version = version;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler} with the default
+	 * admission limits.
 	 *
 	 * @param bookStore
 	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
 	 */
 	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager) {
+		this(bookStore, stockManager, new BookStoreAdmissionController());
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreHTTPMessageHandler}.
+	 *
+	 * @param bookStore
+	 *            the book store
+	 * @param stockManager
+	 *            the stock manager
+	 * @param admissionController
+	 *            the admission controller
+	 */
+	public BookStoreHTTPMessageHandler(BookStore bookStore, StockManager stockManager,
+			BookStoreAdmissionController admissionController) {
 		this.bookStore = bookStore;
 		this.stockManager = stockManager;
 
-		// Setup the type of serializer.
-		if (BookStoreConstants.BINARY_SERIALIZATION) {
-			serializer = ThreadLocal.withInitial(BookStoreKryoSerializer::new);
-		} else {
-			serializer = ThreadLocal.withInitial(BookStoreXStreamSerializer::new);
+		routes = new BookStoreRouteRegistry(routeMetrics, deadlineEnforcer, admissionController);
+		routes.register(BookStoreMessageTag.REMOVEBOOKS, this::removeBooks);
+		routes.register(BookStoreMessageTag.REMOVEALLBOOKS, this::removeAllBooks);
+		routes.register(BookStoreMessageTag.ADDBOOKS, this::addBooks);
+		routes.register(BookStoreMessageTag.ADDCOPIES, this::addCopies);
+		routes.register(BookStoreMessageTag.ADDCOPIESBATCH, this::addCopiesBatch);
+		routes.register(BookStoreMessageTag.LISTBOOKS, this::listBooks);
+		routes.register(BookStoreMessageTag.STREAMBOOKS, this::streamBooks);
+		routes.register(BookStoreMessageTag.LISTBOOKSPAGE, this::listBooksPage);
+		routes.register(BookStoreMessageTag.GETBOOKSCHANGEDSINCE, this::getBooksChangedSince);
+		routes.register(BookStoreMessageTag.AWAITBOOKSCHANGED, this::awaitBooksChanged);
+		routes.register(BookStoreMessageTag.UPDATEEDITORPICKS, this::updateEditorPicks);
+		routes.register(BookStoreMessageTag.UPDATEEDITORPICKSBATCH, this::updateEditorPicksBatch);
+		routes.register(BookStoreMessageTag.BUYBOOKS, this::buyBooks);
+		routes.register(BookStoreMessageTag.GETBOOKS, this::getBooks);
+		routes.register(BookStoreMessageTag.GETEDITORPICKS, this::getEditorPicks);
+		routes.register(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, this::getStockBooksByISBN);
+
+		if (bookStore instanceof VersionedCatalog) {
+			bookStoreCatalog = (VersionedCatalog) bookStore;
+		}
+
+		if (stockManager instanceof VersionedCatalog) {
+			stockManagerCatalog = (VersionedCatalog) stockManager;
+		}
+	}
+
+	/**
+	 * Gets the metrics of the routes.
+	 *
+	 * @return the route metrics
+	 */
+	public BookStoreRouteMetrics getRouteMetrics() {
+		return routeMetrics;
+	}
+
+	/**
+	 * Gets the enforcer of the deadlines of the requests, which counts the
+	 * requests rejected for having expired.
+	 *
+	 * @return the deadline enforcer
+	 */
+	public BookStoreDeadlineEnforcer getDeadlineEnforcer() {
+		return deadlineEnforcer;
+	}
+
+	/**
+	 * Gets the compressor of the responses, which keeps the compression
+	 * metrics.
+	 *
+	 * @return the compressor
+	 */
+	public BookStoreCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Gets the cache of the responses to the writes sent with an idempotency
+	 * key, which counts the copies answered from it.
+	 *
+	 * @return the idempotency cache
+	 */
+	public BookStoreIdempotencyCache getIdempotencyCache() {
+		return idempotencyCache;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.eclipse.jetty.server.handler.AbstractHandler#doStop()
+	 */
+	@Override
+	protected void doStop() throws Exception {
+		synchronized (this) {
+			if (changeNotifier != null) {
+				changeNotifier.shutdownNow();
+				changeNotifier = null;
+			}
 		}
+
+		// The waiting readers are told there is no change yet.
+		for (LongPoll poll = longPolls.poll(); poll != null; poll = longPolls.poll()) {
+			answerLongPoll(poll);
+		}
+
+		super.doStop();
 	}
 
 	/*
@@ -74,70 +266,13 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 */
 	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
 			throws IOException, ServletException {
-		BookStoreMessageTag messageTag;
-		String requestURI;
+		BookStoreRouteRegistry.Route route = routes.match(request.getRequestURI());
 
-		response.setStatus(HttpServletResponse.SC_OK);
-		requestURI = request.getRequestURI();
-
-		// Need to do request multiplexing
-		if (!BookStoreUtility.isEmpty(requestURI) && requestURI.toLowerCase().startsWith("/stock")) {
-			// The request is from the store manager; more sophisticated.
-			// security features could be added here.
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI.substring(6));
+		if (route == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 		} else {
-			messageTag = BookStoreUtility.convertURItoMessageTag(requestURI);
-		}
-
-		// The RequestURI before the switch.
-		if (messageTag == null) {
-			System.err.println("No message tag.");
-		} else {
-			switch (messageTag) {
-			case REMOVEBOOKS:
-				removeBooks(request, response);
-				break;
-
-			case REMOVEALLBOOKS:
-				removeAllBooks(response);
-				break;
-
-			case ADDBOOKS:
-				addBooks(request, response);
-				break;
-
-			case ADDCOPIES:
-				addCopies(request, response);
-				break;
-
-			case LISTBOOKS:
-				listBooks(response);
-				break;
-
-			case UPDATEEDITORPICKS:
-				updateEditorPicks(request, response);
-				break;
-
-			case BUYBOOKS:
-				buyBooks(request, response);
-				break;
-
-			case GETBOOKS:
-				getBooks(request, response);
-				break;
-
-			case GETEDITORPICKS:
-				getEditorPicks(request, response);
-				break;
-
-			case GETSTOCKBOOKSBYISBN:
-				getStockBooksByISBN(request, response);
-				break;
-
-			default:
-				System.err.println("Unsupported message tag.");
-				break;
-			}
+			response.setStatus(HttpServletResponse.SC_OK);
+			route.handle(request, response);
 		}
 
 		// Mark the request as handled so that the HTTP response can be sent
@@ -158,7 +293,14 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	private void getStockBooksByISBN(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<Integer> isbnSet = (Set<Integer>) deserialize(request, serializedRequestContent);
+		long version = getBooksVersion(stockManagerCatalog, isbnSet);
+
+		if (writeCachedResponse(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, serializedRequestContent, version, request,
+				response)) {
+			return;
+		}
+
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -167,8 +309,8 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeVersionedResponse(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, serializedRequestContent, version,
+				bookStoreResponse, request, response);
 	}
 
 	/**
@@ -192,8 +334,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeResponse(bookStoreResponse, request, response);
 	}
 
 	/**
@@ -210,7 +351,13 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	private void getBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
-		Set<Integer> isbnSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<Integer> isbnSet = (Set<Integer>) deserialize(request, serializedRequestContent);
+		long version = getBooksVersion(bookStoreCatalog, isbnSet);
+
+		if (writeCachedResponse(BookStoreMessageTag.GETBOOKS, serializedRequestContent, version, request, response)) {
+			return;
+		}
+
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -219,8 +366,8 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeVersionedResponse(BookStoreMessageTag.GETBOOKS, serializedRequestContent, version, bookStoreResponse,
+				request, response);
 	}
 
 	/**
@@ -237,21 +384,53 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	private void buyBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
-		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
+		Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) deserialize(request, serializedRequestContent);
+		BookStoreResponse bookStoreResponse = idempotencyCache.execute(getIdempotencyKey(request,
+				BookStoreMessageTag.BUYBOOKS), serializedRequestContent, () -> {
+					BookStoreResponse purchaseResponse = new BookStoreResponse();
+
+					try {
+						bookStore.buyBooks(bookCopiesToBuy);
+					} catch (BookStoreException ex) {
+						purchaseResponse.setException(ex);
+					}
+
+					return purchaseResponse;
+				});
+
+		writeResponse(bookStoreResponse, request, response);
+	}
+
+	/**
+	 * Updates editor picks.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void updateEditorPicks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) deserialize(request,
+				serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			bookStore.buyBooks(bookCopiesToBuy);
+			stockManager.updateEditorPicks(mapEditorPicksValues);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeResponse(bookStoreResponse, request, response);
 	}
 
 	/**
-	 * Updates editor picks.
+	 * Updates the editor picks of a batch of calls, answering the outcome of
+	 * every call in the list of the response.
 	 *
 	 * @param request
 	 *            the request
@@ -261,32 +440,41 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 *             Signals that an I/O exception has occurred.
 	 */
 	@SuppressWarnings("unchecked")
-	private void updateEditorPicks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+	private void updateEditorPicksBatch(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
-		Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) serializer.get()
-				.deserialize(serializedRequestContent);
+		List<Set<BookEditorPick>> editorPicksSets = (List<Set<BookEditorPick>>) deserialize(request,
+				serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			stockManager.updateEditorPicks(mapEditorPicksValues);
+			bookStoreResponse.setList(stockManager.updateEditorPicksBatch(editorPicksSets));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeResponse(bookStoreResponse, request, response);
 	}
 
 	/**
 	 * Lists the books.
 	 *
+	 * @param request
+	 *            the request
 	 * @param response
 	 *            the response
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	private void listBooks(HttpServletResponse response) throws IOException {
+	private void listBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		long version = (stockManagerCatalog != null) ? stockManagerCatalog.getCatalogVersion()
+				: VersionedCatalog.UNVERSIONED;
+
+		if (writeCachedResponse(BookStoreMessageTag.LISTBOOKS, EMPTY_CONTENT, version, request, response)) {
+			return;
+		}
+
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 		try {
 			bookStoreResponse.setList(stockManager.getBooks());
@@ -294,12 +482,13 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeVersionedResponse(BookStoreMessageTag.LISTBOOKS, EMPTY_CONTENT, version, bookStoreResponse, request,
+				response);
 	}
 
 	/**
-	 * Adds the copies.
+	 * Lists a page of the books, with some of their fields. Pages are cached
+	 * like the whole list, keyed by their parameters.
 	 *
 	 * @param request
 	 *            the request
@@ -308,25 +497,36 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	@SuppressWarnings("unchecked")
-	private void addCopies(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
+	private void listBooksPage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String queryString = request.getQueryString();
+		byte[] parameters = (queryString != null) ? queryString.getBytes(StandardCharsets.UTF_8) : EMPTY_CONTENT;
+		long version = (stockManagerCatalog != null) ? stockManagerCatalog.getCatalogVersion()
+				: VersionedCatalog.UNVERSIONED;
+
+		if (writeCachedResponse(BookStoreMessageTag.LISTBOOKSPAGE, parameters, version, request, response)) {
+			return;
+		}
 
-		Set<BookCopy> listBookCopies = (Set<BookCopy>) serializer.get().deserialize(serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			stockManager.addCopies(listBookCopies);
+			int cursor = BookStoreUtility.convertStringToInt(request.getParameter(BookStoreConstants.CURSOR_PARAM));
+			int limit = BookStoreUtility.convertStringToInt(request.getParameter(BookStoreConstants.LIMIT_PARAM));
+			Set<StockBookField> fields = StockBookField
+					.fromParameter(request.getParameter(BookStoreConstants.FIELDS_PARAM));
+			bookStoreResponse.setList(stockManager.getBooks(cursor, limit, fields));
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeVersionedResponse(BookStoreMessageTag.LISTBOOKSPAGE, parameters, version, bookStoreResponse, request,
+				response);
 	}
 
 	/**
-	 * Adds the books.
+	 * Gets the books changed since a version. The changes are cached like the
+	 * other reads, so a reader polling an unchanged catalog gets a not modified
+	 * response.
 	 *
 	 * @param request
 	 *            the request
@@ -335,32 +535,331 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	@SuppressWarnings("unchecked")
-	private void addBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		byte[] serializedRequestContent = getSerializedRequestContent(request);
+	private void getBooksChangedSince(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String queryString = request.getQueryString();
+		byte[] parameters = (queryString != null) ? queryString.getBytes(StandardCharsets.UTF_8) : EMPTY_CONTENT;
+		long version = (stockManagerCatalog != null) ? stockManagerCatalog.getCatalogVersion()
+				: VersionedCatalog.UNVERSIONED;
+
+		if (writeCachedResponse(BookStoreMessageTag.GETBOOKSCHANGEDSINCE, parameters, version, request, response)) {
+			return;
+		}
 
-		Set<StockBook> newBooks = (Set<StockBook>) serializer.get().deserialize(serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
-			stockManager.addBooks(newBooks);
+			long since = BookStoreUtility
+					.convertStringToLong(request.getParameter(BookStoreConstants.VERSION_PARAM));
+			List<BookChanges> changes = new ArrayList<>();
+			changes.add(stockManager.getBooksChangedSince(since));
+			bookStoreResponse.setList(changes);
 		} catch (BookStoreException ex) {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeVersionedResponse(BookStoreMessageTag.GETBOOKSCHANGEDSINCE, parameters, version, bookStoreResponse,
+				request, response);
+	}
+
+	/**
+	 * Gets the books changed since a version, waiting for a change if there
+	 * is none yet. The request is not cached: it is answered as soon as the
+	 * catalog changes, or with no change once its timeout expires, so that
+	 * the readers learn about the changes without polling for them.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void awaitBooksChanged(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			long since = BookStoreUtility
+					.convertStringToLong(request.getParameter(BookStoreConstants.VERSION_PARAM));
+			long timeout = BookStoreUtility
+					.convertStringToLong(request.getParameter(BookStoreConstants.TIMEOUT_PARAM));
+
+			if (timeout < 0 || timeout > BookStoreConstants.MAX_LONG_POLL_MILLISECS) {
+				throw new BookStoreException(BookStoreConstants.TIMEOUT + timeout + BookStoreConstants.INVALID);
+			}
+
+			BookChanges changes = stockManager.getBooksChangedSince(since);
+
+			if (isUnchanged(changes) && timeout > 0 && stockManagerCatalog != null) {
+				AsyncContext context = request.startAsync();
+				context.setTimeout(0);
+				longPolls.add(new LongPoll(context, since, changes.getVersion(),
+						System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)));
+				startChangeNotifier();
+				return;
+			}
+
+			List<BookChanges> changesList = new ArrayList<>();
+			changesList.add(changes);
+			bookStoreResponse.setList(changesList);
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		writeResponse(bookStoreResponse, request, response);
+	}
+
+	/**
+	 * Checks if changes are empty.
+	 *
+	 * @param changes
+	 *            the changes
+	 * @return true, if no book changed
+	 */
+	private static boolean isUnchanged(BookChanges changes) {
+		return !changes.isFullResync() && changes.getModifiedISBNs().isEmpty()
+				&& changes.getRemovedISBNs().isEmpty();
+	}
+
+	/**
+	 * Starts the thread which answers the long polls, if it is not started.
+	 */
+	private synchronized void startChangeNotifier() {
+		if (changeNotifier != null) {
+			return;
+		}
+
+		changeNotifier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bookstore-change-notifier");
+			thread.setDaemon(true);
+			return thread;
+		});
+		changeNotifier.scheduleWithFixedDelay(this::answerLongPolls, LONG_POLL_CHECK_MILLISECS,
+				LONG_POLL_CHECK_MILLISECS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Answers the long polls which saw the catalog change or whose timeout
+	 * expired. Each is answered on a thread of the server, so that a slow
+	 * reader does not hold the others back.
+	 */
+	private void answerLongPolls() {
+		long version = stockManagerCatalog.getCatalogVersion();
+		long now = System.nanoTime();
+
+		for (Iterator<LongPoll> iterator = longPolls.iterator(); iterator.hasNext();) {
+			LongPoll poll = iterator.next();
+
+			if (version != poll.version || now - poll.deadline >= 0) {
+				iterator.remove();
+
+				try {
+					poll.context.start(() -> answerLongPoll(poll));
+				} catch (RuntimeException ex) {
+					// The server is stopping, so the reader is answered here.
+					answerLongPoll(poll);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers a long poll with the changes since its version, and completes
+	 * its request.
+	 *
+	 * @param poll
+	 *            the long poll
+	 */
+	private void answerLongPoll(LongPoll poll) {
+		HttpServletRequest request = (HttpServletRequest) poll.context.getRequest();
+		HttpServletResponse response = (HttpServletResponse) poll.context.getResponse();
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+
+		try {
+			List<BookChanges> changesList = new ArrayList<>();
+			changesList.add(stockManager.getBooksChangedSince(poll.since));
+			bookStoreResponse.setList(changesList);
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+
+		try {
+			writeResponse(bookStoreResponse, request, response);
+		} catch (IOException | RuntimeException ex) {
+			// The reader is gone, and will ask again when it comes back.
+		} finally {
+			poll.context.complete();
+		}
+	}
+
+	/**
+	 * Streams the books. The response is a sequence of frames sent as they are
+	 * ready, over chunked transfer encoding: every frame is a serialized
+	 * response with a chunk of books, or with the exception which ended the
+	 * stream, preceded by its length as a four-byte integer. A zero length
+	 * ends the stream. The frames are not compressed.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void streamBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		BookStoreSerializationFormat format = getResponseFormat(request);
+		response.setContentType(format.getMediaType());
+		response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT.asString());
+		DataOutputStream out = new DataOutputStream(response.getOutputStream());
+
+		try (Stream<StockBook> books = stockManager.streamBooks()) {
+			Iterator<StockBook> iterator = books.iterator();
+			List<StockBook> chunk = new ArrayList<>(BookStoreConstants.STREAM_CHUNK_SIZE);
+
+			while (iterator.hasNext()) {
+				chunk.add(iterator.next());
+
+				if (chunk.size() == BookStoreConstants.STREAM_CHUNK_SIZE || !iterator.hasNext()) {
+					BookStoreResponse bookStoreResponse = new BookStoreResponse();
+					bookStoreResponse.setList(chunk);
+					writeFrame(out, format, bookStoreResponse);
+					chunk = new ArrayList<>(BookStoreConstants.STREAM_CHUNK_SIZE);
+				}
+			}
+		} catch (BookStoreException ex) {
+			writeFrame(out, format, new BookStoreResponse(ex, null));
+		} catch (BookStoreChunkedStream.ChunkException ex) {
+			writeFrame(out, format, new BookStoreResponse(ex.getCause(), null));
+		}
+
+		out.writeInt(0);
+		out.flush();
+	}
+
+	/**
+	 * Writes a frame of a streamed response, and sends it to the client.
+	 *
+	 * @param out
+	 *            the output stream of the response
+	 * @param format
+	 *            the format of the response
+	 * @param bookStoreResponse
+	 *            the book store response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeFrame(DataOutputStream out, BookStoreSerializationFormat format,
+			BookStoreResponse bookStoreResponse) throws IOException {
+		byte[] frame = format.getSerializer().serialize(bookStoreResponse);
+		out.writeInt(frame.length);
+		out.write(frame);
+		out.flush();
+	}
+
+	/**
+	 * Adds the copies.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addCopies(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<BookCopy> listBookCopies = (Set<BookCopy>) deserialize(request, serializedRequestContent);
+		BookStoreResponse bookStoreResponse = idempotencyCache.execute(getIdempotencyKey(request,
+				BookStoreMessageTag.ADDCOPIES), serializedRequestContent, () -> {
+					BookStoreResponse additionResponse = new BookStoreResponse();
+
+					try {
+						stockManager.addCopies(listBookCopies);
+					} catch (BookStoreException ex) {
+						additionResponse.setException(ex);
+					}
+
+					return additionResponse;
+				});
+
+		writeResponse(bookStoreResponse, request, response);
+	}
+
+	/**
+	 * Adds the copies of a batch of calls, answering the outcome of every call
+	 * in the list of the response.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addCopiesBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		List<Set<BookCopy>> bookCopiesSets = (List<Set<BookCopy>>) deserialize(request, serializedRequestContent);
+		BookStoreResponse bookStoreResponse = idempotencyCache.execute(getIdempotencyKey(request,
+				BookStoreMessageTag.ADDCOPIESBATCH), serializedRequestContent, () -> {
+					BookStoreResponse additionResponse = new BookStoreResponse();
+
+					try {
+						additionResponse.setList(stockManager.addCopiesBatch(bookCopiesSets));
+					} catch (BookStoreException ex) {
+						additionResponse.setException(ex);
+					}
+
+					return additionResponse;
+				});
+
+		writeResponse(bookStoreResponse, request, response);
+	}
+
+	/**
+	 * Adds the books.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		byte[] serializedRequestContent = getSerializedRequestContent(request);
+
+		Set<StockBook> newBooks = (Set<StockBook>) deserialize(request, serializedRequestContent);
+		BookStoreResponse bookStoreResponse = idempotencyCache.execute(getIdempotencyKey(request,
+				BookStoreMessageTag.ADDBOOKS), serializedRequestContent, () -> {
+					BookStoreResponse additionResponse = new BookStoreResponse();
+
+					try {
+						stockManager.addBooks(newBooks);
+					} catch (BookStoreException ex) {
+						additionResponse.setException(ex);
+					}
+
+					return additionResponse;
+				});
+
+		writeResponse(bookStoreResponse, request, response);
 	}
 
 	/**
 	 * Removes all books.
 	 *
+	 * @param request
+	 *            the request
 	 * @param response
 	 *            the response
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	private void removeAllBooks(HttpServletResponse response) throws IOException {
+	private void removeAllBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -369,8 +868,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeResponse(bookStoreResponse, request, response);
 	}
 
 	/**
@@ -387,7 +885,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	private void removeBooks(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		byte[] serializedRequestContent = getSerializedRequestContent(request);
 
-		Set<Integer> bookSet = (Set<Integer>) serializer.get().deserialize(serializedRequestContent);
+		Set<Integer> bookSet = (Set<Integer>) deserialize(request, serializedRequestContent);
 		BookStoreResponse bookStoreResponse = new BookStoreResponse();
 
 		try {
@@ -396,8 +894,228 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			bookStoreResponse.setException(ex);
 		}
 
-		byte[] serializedResponseContent = serializer.get().serialize(bookStoreResponse);
-		response.getOutputStream().write(serializedResponseContent);
+		writeResponse(bookStoreResponse, request, response);
+	}
+
+	/**
+	 * Gets the version of a set of books.
+	 *
+	 * @param catalog
+	 *            the versioned catalog, or null
+	 * @param isbnSet
+	 *            the ISBN set
+	 * @return the version
+	 */
+	private static long getBooksVersion(VersionedCatalog catalog, Set<Integer> isbnSet) {
+		return (catalog != null) ? catalog.getBooksVersion(isbnSet) : VersionedCatalog.UNVERSIONED;
+	}
+
+	/**
+	 * Answers a versioned read without computing the response, if possible.
+	 * The version must be read before the response is computed, so that a
+	 * cached response is never older than its version.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param serializedRequestContent
+	 *            the serialized request content
+	 * @param version
+	 *            the current version of the data read
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @return true, if the response was written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean writeCachedResponse(BookStoreMessageTag messageTag, byte[] serializedRequestContent, long version,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (version == VersionedCatalog.UNVERSIONED) {
+			return false;
+		}
+
+		BookStoreSerializationFormat format = getResponseFormat(request);
+		String etag = BookStoreUtility.toETag(version, format, serializedRequestContent);
+
+		// The client already has the response.
+		if (etag.equals(request.getHeader(HttpHeader.IF_NONE_MATCH.asString()))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			response.setHeader(HttpHeader.ETAG.asString(), etag);
+			return true;
+		}
+
+		BookStoreResponseCache.Entry entry = responseCache.get(getCacheName(messageTag, format),
+				serializedRequestContent);
+
+		if (entry == null || !etag.equals(entry.getETag())) {
+			return false;
+		}
+
+		response.setHeader(HttpHeader.ETAG.asString(), etag);
+		writeResponseContent(entry.getContent(), format, request, response);
+		return true;
+	}
+
+	/**
+	 * Writes the response to a versioned read and caches it, unless it is an
+	 * error.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param serializedRequestContent
+	 *            the serialized request content
+	 * @param version
+	 *            the version read before computing the response
+	 * @param bookStoreResponse
+	 *            the book store response
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeVersionedResponse(BookStoreMessageTag messageTag, byte[] serializedRequestContent, long version,
+			BookStoreResponse bookStoreResponse, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		BookStoreSerializationFormat format = getResponseFormat(request);
+		byte[] serializedResponseContent = format.getSerializer().serialize(bookStoreResponse);
+
+		if (version != VersionedCatalog.UNVERSIONED && bookStoreResponse.getException() == null) {
+			String etag = BookStoreUtility.toETag(version, format, serializedRequestContent);
+			responseCache.put(getCacheName(messageTag, format), serializedRequestContent, etag,
+					format.getMediaType(), serializedResponseContent);
+			response.setHeader(HttpHeader.ETAG.asString(), etag);
+		}
+
+		writeResponseContent(serializedResponseContent, format, request, response);
+	}
+
+	/**
+	 * Serializes and writes a response.
+	 *
+	 * @param bookStoreResponse
+	 *            the book store response
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeResponse(BookStoreResponse bookStoreResponse, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		BookStoreSerializationFormat format = getResponseFormat(request);
+		writeResponseContent(format.getSerializer().serialize(bookStoreResponse), format, request, response);
+	}
+
+	/**
+	 * Writes serialized response content, compressed with the coding
+	 * negotiated with the client if it is large enough to be worth it.
+	 *
+	 * @param serializedResponseContent
+	 *            the serialized response content
+	 * @param format
+	 *            the format of the response content
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeResponseContent(byte[] serializedResponseContent, BookStoreSerializationFormat format,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String encoding = compressor.negotiate(request.getHeader(HttpHeader.ACCEPT_ENCODING.asString()),
+				serializedResponseContent.length);
+		byte[] content = serializedResponseContent;
+
+		if (encoding != null) {
+			byte[] compressedContent = compressor.compress(encoding, serializedResponseContent);
+
+			if (compressedContent != null) {
+				response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), encoding);
+				content = compressedContent;
+			}
+		}
+
+		response.setContentType(format.getMediaType());
+		response.setHeader(HttpHeader.VARY.asString(), VARY_HEADER);
+		response.setContentLength(content.length);
+		response.getOutputStream().write(content);
+	}
+
+	/**
+	 * Gets the format of the request content from its Content-Type. Requests
+	 * without a supported Content-Type are in the default format, as sent by
+	 * the clients which do not negotiate.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the format
+	 */
+	private static BookStoreSerializationFormat getRequestFormat(HttpServletRequest request) {
+		BookStoreSerializationFormat format = BookStoreSerializationFormat.fromMediaType(request.getContentType());
+		return (format != null) ? format : BookStoreConstants.SERIALIZATION_FORMAT;
+	}
+
+	/**
+	 * Gets the format of the response from the Accept header of the request,
+	 * answering in the format of the request if the client does not ask for
+	 * any.
+	 *
+	 * @param request
+	 *            the request
+	 * @return the format
+	 */
+	private static BookStoreSerializationFormat getResponseFormat(HttpServletRequest request) {
+		return BookStoreSerializationFormat.negotiate(request.getHeader(HttpHeader.ACCEPT.asString()),
+				getRequestFormat(request));
+	}
+
+	/**
+	 * Gets the idempotency key of a request, scoped to its message so that
+	 * the keys of different messages never collide.
+	 *
+	 * @param request
+	 *            the request
+	 * @param messageTag
+	 *            the message tag
+	 * @return the idempotency key, or null if the request has none
+	 */
+	private static String getIdempotencyKey(HttpServletRequest request, BookStoreMessageTag messageTag) {
+		String key = request.getHeader(BookStoreConstants.IDEMPOTENCY_KEY_HEADER);
+		return (key != null) ? messageTag.name() + "/" + key : null;
+	}
+
+	/**
+	 * Gets the name of the cached responses to a message in a format.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param format
+	 *            the format of the responses
+	 * @return the cache name
+	 */
+	private static String getCacheName(BookStoreMessageTag messageTag, BookStoreSerializationFormat format) {
+		return messageTag.name() + "/" + format.name();
+	}
+
+	/**
+	 * Deserializes the request content in the format of the request.
+	 *
+	 * @param request
+	 *            the request
+	 * @param serializedRequestContent
+	 *            the serialized request content
+	 * @return the request content
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static Object deserialize(HttpServletRequest request, byte[] serializedRequestContent)
+			throws IOException {
+		return getRequestFormat(request).getSerializer().deserialize(serializedRequestContent);
 	}
 
 	/**
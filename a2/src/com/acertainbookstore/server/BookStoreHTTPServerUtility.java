@@ -4,16 +4,28 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 /**
- * {@link BookStoreHTTPServerUtility} creates Jetty server instances.
+ * {@link BookStoreHTTPServerUtility} creates Jetty server instances. The
+ * servers accept both HTTP/1.1 and cleartext HTTP/2 (h2c) on the same port, so
+ * that HTTP/2 clients can multiplex many concurrent requests over a few
+ * connections.
  */
 public class BookStoreHTTPServerUtility {
 
+	/**
+	 * The Constant MAX_CONCURRENT_STREAMS, the number of concurrent requests
+	 * allowed on one HTTP/2 connection.
+	 */
+	private static final int MAX_CONCURRENT_STREAMS = 256;
+
 	/**
 	 * Prevents the instantiation of a new {@link BookStoreHTTPServerUtility}.
 	 */
@@ -34,13 +46,14 @@ public class BookStoreHTTPServerUtility {
 		Server server = null;
 		if (threadpool != null) {
 			server = new Server(threadpool);
-			ServerConnector myConnector = new ServerConnector(server);
-			myConnector.setPort(port);
-			server.addConnector(myConnector);
 		} else {
-			server = new Server(port);
+			server = new Server();
 		}
 
+		ServerConnector myConnector = createConnector(server);
+		myConnector.setPort(port);
+		server.addConnector(myConnector);
+
 		if (handler != null) {
 			server.setHandler(handler);
 		}
@@ -69,6 +82,7 @@ public class BookStoreHTTPServerUtility {
 		InetAddress inetIpAddress;
 		InetSocketAddress address;
 		Server server;
+		ServerConnector connector;
 
 		if (ipAddress == null) {
 			return false;
@@ -82,7 +96,11 @@ public class BookStoreHTTPServerUtility {
 			return false;
 		}
 
-		server = new Server(address);
+		server = new Server();
+		connector = createConnector(server);
+		connector.setHost(address.getAddress().getHostAddress());
+		connector.setPort(address.getPort());
+		server.addConnector(connector);
 
 		if (handler != null) {
 			server.setHandler(handler);
@@ -97,4 +115,20 @@ public class BookStoreHTTPServerUtility {
 
 		return true;
 	}
+
+	/**
+	 * Creates a connector serving HTTP/1.1 and h2c. HTTP/1.1 is the default
+	 * protocol; clients switch to h2c either by sending the HTTP/2 connection
+	 * preface directly or through an HTTP/1.1 upgrade.
+	 *
+	 * @param server
+	 *            the server
+	 * @return the connector
+	 */
+	private static ServerConnector createConnector(Server server) {
+		HttpConfiguration httpConfiguration = new HttpConfiguration();
+		HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+		h2c.setMaxConcurrentStreams(MAX_CONCURRENT_STREAMS);
+		return new ServerConnector(server, new HttpConnectionFactory(httpConfiguration), h2c);
+	}
 }
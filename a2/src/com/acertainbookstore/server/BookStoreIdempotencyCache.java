@@ -0,0 +1,222 @@
+package com.acertainbookstore.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreDeadline;
+import com.acertainbookstore.utils.BookStoreDeadlineExpiredException;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * {@link BookStoreIdempotencyCache} keeps the responses to the requests which
+ * carry an idempotency key, so that the copies of a request sent by a retry
+ * or a hedge are answered with the response of the first one instead of being
+ * executed again. A copy which arrives while the first one is executing waits
+ * for its response, no longer than its deadline. A request which reuses a key
+ * with a different content is rejected rather than answered with the response
+ * of another request.
+ * <p>
+ * The cache is bounded and forgets the oldest completed requests first, so a
+ * copy which arrives after many other keyed requests is executed again, but a
+ * request still executing is never forgotten. A request whose deadline
+ * expired before the engine applied anything is forgotten as well, so that
+ * its retry is executed.
+ */
+public final class BookStoreIdempotencyCache {
+
+	/** The digest algorithm of the request contents. */
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/** The requests, in insertion order. */
+	private final LinkedHashMap<String, Entry> responses;
+
+	/** The number of copies answered from the cache. */
+	private final AtomicLong replays = new AtomicLong();
+
+	/**
+	 * {@link Entry} is a request of the cache: the digest of its content and
+	 * the future of its response.
+	 */
+	private static final class Entry {
+
+		/** The digest of the content of the request. */
+		private final byte[] digest;
+
+		/** The response, once the request is executed. */
+		private final CompletableFuture<BookStoreResponse> response = new CompletableFuture<>();
+
+		/**
+		 * Instantiates a new {@link Entry}.
+		 *
+		 * @param digest
+		 *            the digest of the content of the request
+		 */
+		Entry(byte[] digest) {
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * Instantiates a new, empty {@link BookStoreIdempotencyCache}.
+	 *
+	 * @param capacity
+	 *            the number of responses kept
+	 */
+	public BookStoreIdempotencyCache(int capacity) {
+		responses = new LinkedHashMap<String, Entry>() {
+
+			/** The Constant serialVersionUID. */
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() <= capacity) {
+					return false;
+				}
+
+				// Forget the oldest completed request; the cache grows past
+				// its capacity while all the requests are executing.
+				for (Iterator<Entry> iterator = values().iterator(); iterator.hasNext();) {
+					if (iterator.next().response.isDone()) {
+						iterator.remove();
+						break;
+					}
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Executes a request, unless a request with the same key was executed
+	 * already.
+	 *
+	 * @param key
+	 *            the idempotency key of the request, or null
+	 * @param content
+	 *            the content of the request
+	 * @param execution
+	 *            the execution of the request
+	 * @return the response of the first request with the key, or an error if
+	 *         it had a different content
+	 */
+	public BookStoreResponse execute(String key, byte[] content, Supplier<BookStoreResponse> execution) {
+		if (key == null) {
+			return execution.get();
+		}
+
+		Entry entry = new Entry(digest(content));
+		Entry existing;
+
+		synchronized (responses) {
+			existing = responses.putIfAbsent(key, entry);
+		}
+
+		if (existing != null) {
+			if (!MessageDigest.isEqual(existing.digest, entry.digest)) {
+				return new BookStoreResponse(new BookStoreException(BookStoreConstants.IDEMPOTENCY_KEY_REUSED), null);
+			}
+
+			replays.incrementAndGet();
+			return await(existing.response);
+		}
+
+		try {
+			BookStoreResponse bookStoreResponse = execution.get();
+
+			if (isRejected(bookStoreResponse)) {
+				synchronized (responses) {
+					responses.remove(key, entry);
+				}
+			}
+
+			entry.response.complete(bookStoreResponse);
+			return bookStoreResponse;
+		} catch (RuntimeException | Error ex) {
+			// The request did not complete, so its copies may execute it.
+			synchronized (responses) {
+				responses.remove(key, entry);
+			}
+
+			entry.response.completeExceptionally(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Gets the number of copies of requests answered from the cache.
+	 *
+	 * @return the number of replays
+	 */
+	public long getReplays() {
+		return replays.get();
+	}
+
+	/**
+	 * Checks whether a request was rejected before the engine applied any of
+	 * it.
+	 *
+	 * @param response
+	 *            the response to the request
+	 * @return true if the request was rejected
+	 */
+	private static boolean isRejected(BookStoreResponse response) {
+		return response.getException() instanceof BookStoreDeadlineExpiredException;
+	}
+
+	/**
+	 * Gets the digest of the content of a request.
+	 *
+	 * @param content
+	 *            the content
+	 * @return the digest
+	 */
+	private static byte[] digest(byte[] content) {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(content);
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform implements SHA-256.
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Waits for the response of a request executing or executed, no longer
+	 * than the deadline of the current thread.
+	 *
+	 * @param response
+	 *            the future of the response
+	 * @return the response, or an expired deadline if the request is still
+	 *         executing when the deadline expires
+	 */
+	private static BookStoreResponse await(CompletableFuture<BookStoreResponse> response) {
+		try {
+			return response.get(Math.max(0, BookStoreDeadline.getRemainingNanos()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException ex) {
+			return new BookStoreResponse(new BookStoreDeadlineExpiredException(), null);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw (RuntimeException) cause;
+		}
+	}
+}
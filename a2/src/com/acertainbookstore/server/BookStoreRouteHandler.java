@@ -0,0 +1,28 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * {@link BookStoreRouteHandler} handles the requests to a route of the
+ * {@link BookStoreRouteRegistry}.
+ * 
+ * @see BookStoreRouteRegistry
+ */
+@FunctionalInterface
+public interface BookStoreRouteHandler {
+
+	/**
+	 * Handles a request.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void handle(HttpServletRequest request, HttpServletResponse response) throws IOException;
+}
@@ -0,0 +1,109 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreRouteMetrics} is a {@link BookStoreRouteMiddleware} counting
+ * the requests, the failed requests and the time spent per route. A request
+ * fails if its handler throws or answers with a server error status, e.g.
+ * when it is shed by the admission control.
+ */
+public final class BookStoreRouteMetrics implements BookStoreRouteMiddleware {
+
+	/** The counters per message. */
+	private final Map<BookStoreMessageTag, Counters> counters = new EnumMap<>(BookStoreMessageTag.class);
+
+	/**
+	 * Instantiates a new {@link BookStoreRouteMetrics}.
+	 */
+	public BookStoreRouteMetrics() {
+		for (BookStoreMessageTag messageTag : BookStoreMessageTag.values()) {
+			counters.put(messageTag, new Counters());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.acertainbookstore.server.BookStoreRouteMiddleware#handle(com.
+	 * acertainbookstore.utils.BookStoreMessageTag,
+	 * javax.servlet.http.HttpServletRequest,
+	 * javax.servlet.http.HttpServletResponse,
+	 * com.acertainbookstore.server.BookStoreRouteHandler)
+	 */
+	@Override
+	public void handle(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response,
+			BookStoreRouteHandler next) throws IOException {
+		Counters routeCounters = counters.get(messageTag);
+		long startTime = System.nanoTime();
+		boolean failed = true;
+
+		try {
+			next.handle(request, response);
+			failed = response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		} finally {
+			routeCounters.requests.increment();
+			routeCounters.nanos.add(System.nanoTime() - startTime);
+
+			if (failed) {
+				routeCounters.failures.increment();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of requests to a route.
+	 *
+	 * @param messageTag
+	 *            the message tag of the route
+	 * @return the number of requests
+	 */
+	public long getRequestCount(BookStoreMessageTag messageTag) {
+		return counters.get(messageTag).requests.sum();
+	}
+
+	/**
+	 * Gets the number of failed requests to a route.
+	 *
+	 * @param messageTag
+	 *            the message tag of the route
+	 * @return the number of failed requests
+	 */
+	public long getFailureCount(BookStoreMessageTag messageTag) {
+		return counters.get(messageTag).failures.sum();
+	}
+
+	/**
+	 * Gets the total time spent serving the requests to a route.
+	 *
+	 * @param messageTag
+	 *            the message tag of the route
+	 * @return the time in nanoseconds
+	 */
+	public long getTotalNanos(BookStoreMessageTag messageTag) {
+		return counters.get(messageTag).nanos.sum();
+	}
+
+	/**
+	 * {@link Counters} are the counters of one route.
+	 */
+	private static final class Counters {
+
+		/** The number of requests. */
+		private final LongAdder requests = new LongAdder();
+
+		/** The number of failed requests. */
+		private final LongAdder failures = new LongAdder();
+
+		/** The time spent, in nanoseconds. */
+		private final LongAdder nanos = new LongAdder();
+	}
+}
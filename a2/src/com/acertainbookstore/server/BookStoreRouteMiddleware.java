@@ -0,0 +1,37 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreRouteMiddleware} wraps the handlers of the routes of a
+ * {@link BookStoreRouteRegistry}, e.g. to collect metrics, authenticate or
+ * admit requests. A middleware decides whether and when to pass a request on
+ * to the next handler of the route.
+ * 
+ * @see BookStoreRouteRegistry
+ */
+@FunctionalInterface
+public interface BookStoreRouteMiddleware {
+
+	/**
+	 * Handles a request to a route.
+	 *
+	 * @param messageTag
+	 *            the message tag of the route
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @param next
+	 *            the next handler of the route
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void handle(BookStoreMessageTag messageTag, HttpServletRequest request, HttpServletResponse response,
+			BookStoreRouteHandler next) throws IOException;
+}
@@ -0,0 +1,143 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.TreeTrie;
+import org.eclipse.jetty.util.Trie;
+
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * {@link BookStoreRouteRegistry} maps request paths to the handlers of the
+ * messages supported in the bookstore. Every message is served both at
+ * <code>/MESSAGE</code> and at <code>/stock/MESSAGE</code>, ignoring case.
+ * <p>
+ * The handler of a route is composed with its middleware once, when the route
+ * is registered, and the paths are kept in a trie that is matched in place
+ * against the request path, so that dispatching a request neither allocates
+ * nor goes through exceptions for unknown paths.
+ */
+public final class BookStoreRouteRegistry {
+
+	/** The Constant STOCK_PREFIX of the paths used by the stock manager. */
+	public static final String STOCK_PREFIX = "/stock";
+
+	/** The routes by path. */
+	private final Trie<Route> routes = new TreeTrie<>();
+
+	/** The middleware applied to all the routes, outermost first. */
+	private final List<BookStoreRouteMiddleware> middleware;
+
+	/**
+	 * Instantiates a new {@link BookStoreRouteRegistry}.
+	 *
+	 * @param middleware
+	 *            the middleware applied to all the routes, outermost first
+	 */
+	public BookStoreRouteRegistry(BookStoreRouteMiddleware... middleware) {
+		this.middleware = Collections.unmodifiableList(Arrays.asList(middleware));
+	}
+
+	/**
+	 * Registers the route of a message. Routes must be registered before the
+	 * registry is used to match requests.
+	 *
+	 * @param messageTag
+	 *            the message tag
+	 * @param handler
+	 *            the handler
+	 * @param routeMiddleware
+	 *            the middleware applied to this route only, outermost first;
+	 *            it runs inside the middleware of the registry
+	 */
+	public void register(BookStoreMessageTag messageTag, BookStoreRouteHandler handler,
+			BookStoreRouteMiddleware... routeMiddleware) {
+		List<BookStoreRouteMiddleware> chain = new ArrayList<>(middleware);
+		chain.addAll(Arrays.asList(routeMiddleware));
+
+		BookStoreRouteHandler composed = handler;
+
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			BookStoreRouteMiddleware outer = chain.get(i);
+			BookStoreRouteHandler next = composed;
+			composed = (request, response) -> outer.handle(messageTag, request, response, next);
+		}
+
+		Route route = new Route(messageTag, composed);
+		String path = "/" + messageTag.name();
+
+		if (!routes.put(path, route) || !routes.put(STOCK_PREFIX + path, route)) {
+			throw new IllegalStateException("Route table full: " + path);
+		}
+	}
+
+	/**
+	 * Finds the route of a request path.
+	 *
+	 * @param requestURI
+	 *            the request path
+	 * @return the route, or null if no route matches the path
+	 */
+	public Route match(String requestURI) {
+		if (requestURI == null) {
+			return null;
+		}
+
+		return routes.get(requestURI, 0, requestURI.length());
+	}
+
+	/**
+	 * {@link Route} is a registered route with its composed handler.
+	 */
+	public static final class Route {
+
+		/** The message tag. */
+		private final BookStoreMessageTag messageTag;
+
+		/** The handler composed with the middleware. */
+		private final BookStoreRouteHandler handler;
+
+		/**
+		 * Instantiates a new {@link Route}.
+		 *
+		 * @param messageTag
+		 *            the message tag
+		 * @param handler
+		 *            the handler composed with the middleware
+		 */
+		private Route(BookStoreMessageTag messageTag, BookStoreRouteHandler handler) {
+			this.messageTag = messageTag;
+			this.handler = handler;
+		}
+
+		/**
+		 * Gets the message tag.
+		 *
+		 * @return the message tag
+		 */
+		public BookStoreMessageTag getMessageTag() {
+			return messageTag;
+		}
+
+		/**
+		 * Handles a request to the route.
+		 *
+		 * @param request
+		 *            the request
+		 * @param response
+		 *            the response
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			handler.handle(request, response);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.acertainbookstore.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookChanges;
+
+/**
+ * {@link BookStoreChangeLog} retains the latest changes to the books of a
+ * catalog, each as the catalog version of the change and the ISBN of the
+ * book, in a ring of fixed capacity. Once the ring is full the oldest change
+ * is dropped for each new one, and readers which last synchronized before it
+ * are told to read all the books again.
+ * <p>
+ * Changes to different books may be recorded slightly out of version order
+ * when they run concurrently, so the ring is always scanned whole rather than
+ * only back to the version of the reader.
+ */
+public final class BookStoreChangeLog {
+
+	/** The catalog versions of the changes. */
+	private final long[] versions;
+
+	/** The ISBNs of the changed books. */
+	private final int[] isbns;
+
+	/** Whether the changes removed the books. */
+	private final boolean[] removals;
+
+	/** The index of the oldest change. */
+	private int head = 0;
+
+	/** The number of changes retained. */
+	private int size = 0;
+
+	/**
+	 * The horizon, the largest version such that all the changes after it
+	 * are retained.
+	 */
+	private long horizon = 0;
+
+	/**
+	 * Instantiates a new, empty {@link BookStoreChangeLog}.
+	 *
+	 * @param capacity
+	 *            the number of changes retained
+	 */
+	public BookStoreChangeLog(int capacity) {
+		versions = new long[capacity];
+		isbns = new int[capacity];
+		removals = new boolean[capacity];
+	}
+
+	/**
+	 * Records that a book was added or modified.
+	 *
+	 * @param version
+	 *            the catalog version of the change
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	public void recordModified(long version, int isbn) {
+		record(version, isbn, false);
+	}
+
+	/**
+	 * Records that a book was removed.
+	 *
+	 * @param version
+	 *            the catalog version of the change
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	public void recordRemoved(long version, int isbn) {
+		record(version, isbn, true);
+	}
+
+	/**
+	 * Drops all the changes up to a version, for changes too large to record
+	 * book by book, such as the removal of all the books.
+	 *
+	 * @param version
+	 *            the catalog version of the change
+	 */
+	public synchronized void truncate(long version) {
+		head = 0;
+		size = 0;
+		horizon = Math.max(horizon, version);
+	}
+
+	/**
+	 * Gets the changes after a version.
+	 *
+	 * @param since
+	 *            the version the reader last synchronized at
+	 * @param currentVersion
+	 *            the current catalog version
+	 * @return the changes, asking for a full resynchronization if some of the
+	 *         changes after the version were dropped or the version is in the
+	 *         future
+	 */
+	public synchronized BookChanges getChangesSince(long since, long currentVersion) {
+		Set<Integer> modified = new HashSet<>();
+		Set<Integer> removed = new HashSet<>();
+
+		if (since < horizon || since > currentVersion) {
+			return new BookChanges(currentVersion, true, modified, removed);
+		}
+
+		// Walk from the newest change, so only the last change of a book
+		// counts.
+		for (int i = size - 1; i >= 0; i--) {
+			int index = (head + i) % versions.length;
+
+			// Changes after the current version are not committed yet, and
+			// are read once they are.
+			if (versions[index] <= since || versions[index] > currentVersion) {
+				continue;
+			}
+
+			Integer isbn = isbns[index];
+
+			if (!modified.contains(isbn) && !removed.contains(isbn)) {
+				(removals[index] ? removed : modified).add(isbn);
+			}
+		}
+
+		return new BookChanges(currentVersion, false, modified, removed);
+	}
+
+	/**
+	 * Records a change, dropping the oldest change if the ring is full.
+	 *
+	 * @param version
+	 *            the catalog version of the change
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param removal
+	 *            whether the change removed the book
+	 */
+	private synchronized void record(long version, int isbn, boolean removal) {
+		if (size == versions.length) {
+			horizon = Math.max(horizon, versions[head]);
+			head = (head + 1) % versions.length;
+			size--;
+		}
+
+		int index = (head + size) % versions.length;
+		versions[index] = version;
+		isbns[index] = isbn;
+		removals[index] = removal;
+		size++;
+	}
+}
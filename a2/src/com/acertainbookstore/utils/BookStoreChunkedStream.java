@@ -0,0 +1,228 @@
+package com.acertainbookstore.utils;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link BookStoreChunkedStream} builds streams which fetch their elements
+ * one chunk at a time, so that only one chunk is in memory at once. The
+ * engines use it to read the catalog a few books per lock acquisition, and
+ * the clients to read the chunks of a streamed response as they arrive.
+ */
+public final class BookStoreChunkedStream {
+
+	/**
+	 * Prevents the instantiation of a new {@link BookStoreChunkedStream}.
+	 */
+	private BookStoreChunkedStream() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * {@link ChunkSource} gives the chunks of a stream.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 */
+	@FunctionalInterface
+	public interface ChunkSource<T> {
+
+		/**
+		 * Gets the next chunk.
+		 *
+		 * @return the chunk, which may be empty, or null if there are no more
+		 *         chunks
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		public List<T> nextChunk() throws BookStoreException;
+	}
+
+	/**
+	 * {@link KeyRangeReader} reads the elements of a range of keys, leaving out
+	 * the keys which no longer have an element.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 */
+	@FunctionalInterface
+	public interface KeyRangeReader<T> {
+
+		/**
+		 * Reads the elements of a range of keys.
+		 *
+		 * @param keys
+		 *            the keys
+		 * @param from
+		 *            the index of the first key of the range
+		 * @param to
+		 *            the index after the last key of the range
+		 * @return the elements
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		public List<T> read(int[] keys, int from, int to) throws BookStoreException;
+	}
+
+	/**
+	 * {@link ChunkException} carries the exception thrown while fetching a
+	 * chunk out of the methods of {@link Stream}, which cannot throw checked
+	 * exceptions.
+	 */
+	public static final class ChunkException extends RuntimeException {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Instantiates a new {@link ChunkException}.
+		 *
+		 * @param cause
+		 *            the exception thrown while fetching a chunk
+		 */
+		public ChunkException(BookStoreException cause) {
+			super(cause.getMessage(), cause);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Throwable#getCause()
+		 */
+		@Override
+		public synchronized BookStoreException getCause() {
+			return (BookStoreException) super.getCause();
+		}
+	}
+
+	/**
+	 * Builds a stream from the chunks of a source.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param source
+	 *            the source of the chunks
+	 * @param closeHandler
+	 *            the action run when the stream is closed, or null
+	 * @return the stream, which throws a {@link ChunkException} if a chunk
+	 *         cannot be fetched
+	 */
+	public static <T> Stream<T> of(ChunkSource<T> source, Runnable closeHandler) {
+		Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(new ChunkIterator<>(source),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+		return (closeHandler != null) ? stream.onClose(closeHandler) : stream;
+	}
+
+	/**
+	 * Builds a stream of the elements of a snapshot of keys, reading the
+	 * elements of a chunk of keys at a time.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param keys
+	 *            the keys
+	 * @param chunkSize
+	 *            the number of keys per chunk
+	 * @param reader
+	 *            the reader of the elements of a chunk of keys
+	 * @return the stream
+	 */
+	public static <T> Stream<T> ofKeys(int[] keys, int chunkSize, KeyRangeReader<T> reader) {
+		return of(new ChunkSource<T>() {
+
+			/** The index of the first key of the next chunk. */
+			private int next = 0;
+
+			@Override
+			public List<T> nextChunk() throws BookStoreException {
+				if (next >= keys.length) {
+					return null;
+				}
+
+				int from = next;
+				next = Math.min(from + chunkSize, keys.length);
+				return reader.read(keys, from, next);
+			}
+		}, null);
+	}
+
+	/**
+	 * {@link ChunkIterator} iterates over the elements of the chunks of a
+	 * source, fetching a chunk when the previous one is exhausted.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 */
+	private static final class ChunkIterator<T> implements Iterator<T> {
+
+		/** The source of the chunks. */
+		private final ChunkSource<T> source;
+
+		/** The iterator of the current chunk. */
+		private Iterator<T> chunk = Collections.emptyIterator();
+
+		/** Whether the source has no more chunks. */
+		private boolean exhausted = false;
+
+		/**
+		 * Instantiates a new {@link ChunkIterator}.
+		 *
+		 * @param source
+		 *            the source of the chunks
+		 */
+		ChunkIterator(ChunkSource<T> source) {
+			this.source = source;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while (!chunk.hasNext()) {
+				if (exhausted) {
+					return false;
+				}
+
+				List<T> nextChunk;
+
+				try {
+					nextChunk = source.nextChunk();
+				} catch (BookStoreException ex) {
+					exhausted = true;
+					throw new ChunkException(ex);
+				}
+
+				if (nextChunk == null) {
+					exhausted = true;
+				} else {
+					chunk = nextChunk.iterator();
+				}
+			}
+
+			return true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return chunk.next();
+		}
+	}
+}
@@ -0,0 +1,1452 @@
+package com.acertainbookstore.utils;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookChanges;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+
+/**
+ * {@link BookStoreCompactSerializer} serializes the bookstore messages with a
+ * purpose-built binary format instead of a general-purpose library. Every
+ * message starts with a one-byte type tag followed by the fields of the type,
+ * without any class metadata. Integers are written as variable-length
+ * integers, and sets are sorted by ISBN so that the ISBNs can be written as
+ * the (small) differences between consecutive ISBNs.
+ * <p>
+ * Only the types exchanged by the bookstore interfaces are supported: sets of
+ * ISBNs, {@link BookCopy}, {@link BookEditorPick}, {@link BookRating} and
+ * {@link StockBook}, lists of such sets, {@link BookStoreResponse} with a
+ * list of {@link Book}, {@link StockBook}, {@link BookChanges} or outcomes of
+ * a batch, and strings. The serializer has no state and is
+ * thread-safe.
+ * <p>
+ * Titles and authors are written once per message: a string which occurs
+ * again, e.g. the author of several books, is written as a reference to its
+ * first occurrence.
+ * <p>
+ * Lists of {@link StockBook} are decoded lazily: the list only records where
+ * every book starts in the message, and its elements are views which decode
+ * a field when it is read. Callers which only look at the ISBNs and the
+ * numbers of copies of a large catalog never decode its titles and authors.
+ * The views keep the whole message alive and are read-only, like the list.
+ *
+ * @see BookStoreSerializer
+ */
+public final class BookStoreCompactSerializer implements BookStoreSerializer {
+
+	/** The type tag of null. */
+	private static final byte TAG_NULL = 0;
+
+	/** The type tag of {@link BookStoreResponse}. */
+	private static final byte TAG_RESPONSE = 1;
+
+	/** The type tag of sets of ISBNs. */
+	private static final byte TAG_ISBN_SET = 2;
+
+	/** The type tag of sets of {@link BookCopy}. */
+	private static final byte TAG_BOOK_COPY_SET = 3;
+
+	/** The type tag of sets of {@link BookEditorPick}. */
+	private static final byte TAG_EDITOR_PICK_SET = 4;
+
+	/** The type tag of sets of {@link BookRating}. */
+	private static final byte TAG_RATING_SET = 5;
+
+	/** The type tag of sets of {@link StockBook}. */
+	private static final byte TAG_STOCK_BOOK_SET = 6;
+
+	/** The type tag of lists of {@link Book}. */
+	private static final byte TAG_BOOK_LIST = 7;
+
+	/** The type tag of lists of {@link StockBook}. */
+	private static final byte TAG_STOCK_BOOK_LIST = 8;
+
+	/** The type tag of strings, e.g. the empty content of some requests. */
+	private static final byte TAG_STRING = 9;
+
+	/** The type tag of a list of {@link BookChanges}. */
+	private static final byte TAG_BOOK_CHANGES_LIST = 10;
+
+	/** The type tag of a list of sets, e.g. the calls of a batch. */
+	private static final byte TAG_SET_LIST = 11;
+
+	/**
+	 * The type tag of a list of outcomes of a batch, each null or a
+	 * {@link BookStoreException}.
+	 */
+	private static final byte TAG_EXCEPTION_LIST = 12;
+
+	/** The flag of responses carrying an exception. */
+	private static final int FLAG_EXCEPTION = 1;
+
+	/** The flag of responses carrying a list. */
+	private static final int FLAG_LIST = 2;
+
+	/** The marker of a null title or author. */
+	private static final int BOOK_STRING_NULL = 0;
+
+	/** The marker of a title or author written for the first time. */
+	private static final int BOOK_STRING_NEW = 1;
+
+	/**
+	 * The marker of the first reference to a title or author written before;
+	 * the next references have the next values.
+	 */
+	private static final int BOOK_STRING_REFERENCE = 2;
+
+	/**
+	 * The largest initial capacity of a set read, so that a large set grows
+	 * as its elements are read instead of being allocated from its size.
+	 */
+	private static final int MAX_INITIAL_SET_CAPACITY = 1 << 16;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object)
+	 */
+	@Override
+	public byte[] serialize(Object object) throws IOException {
+		Encoder out = new Encoder();
+		writeValue(out, object);
+		return out.toByteArray();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(byte[])
+	 */
+	@Override
+	public Object deserialize(byte[] bytes) throws IOException {
+		Decoder in = new Decoder(bytes);
+
+		try {
+			Object value = readValue(in);
+
+			if (in.remaining() != 0) {
+				throw new IOException("Unexpected trailing bytes: " + in.remaining());
+			}
+
+			return value;
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			throw new IOException("Truncated message", ex);
+		}
+	}
+
+	/**
+	 * Writes a tagged value.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *             Signals that the value is not a supported type.
+	 */
+	private static void writeValue(Encoder out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof BookStoreResponse) {
+			writeResponse(out, (BookStoreResponse) value);
+		} else if (value instanceof Set) {
+			writeSet(out, (Set<?>) value);
+		} else if (value instanceof List) {
+			writeList(out, (List<?>) value);
+		} else if (value instanceof String) {
+			out.writeByte(TAG_STRING);
+			out.writeString((String) value);
+		} else {
+			throw new IOException("Unsupported type: " + value.getClass().getName());
+		}
+	}
+
+	/**
+	 * Reads a tagged value.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @return the value
+	 * @throws IOException
+	 *             Signals that the tag is unknown.
+	 */
+	private static Object readValue(Decoder in) throws IOException {
+		byte tag = in.readByte();
+
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+
+		case TAG_RESPONSE:
+			return readResponse(in);
+
+		case TAG_ISBN_SET:
+		case TAG_BOOK_COPY_SET:
+		case TAG_EDITOR_PICK_SET:
+		case TAG_RATING_SET:
+		case TAG_STOCK_BOOK_SET:
+			return readSet(in, tag);
+
+		case TAG_BOOK_LIST:
+		case TAG_STOCK_BOOK_LIST:
+			return readList(in, tag);
+
+		case TAG_STRING:
+			return in.readString();
+
+		case TAG_BOOK_CHANGES_LIST:
+			return readBookChangesList(in);
+
+		case TAG_SET_LIST:
+			return readSetList(in);
+
+		case TAG_EXCEPTION_LIST:
+			return readExceptionList(in);
+
+		default:
+			throw new IOException("Unknown type tag: " + tag);
+		}
+	}
+
+	/**
+	 * Writes a response.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param response
+	 *            the response
+	 * @throws IOException
+	 *             Signals that the list is not a supported type.
+	 */
+	private static void writeResponse(Encoder out, BookStoreResponse response) throws IOException {
+		BookStoreException exception = response.getException();
+		List<?> list = response.getList();
+
+		out.writeByte(TAG_RESPONSE);
+		out.writeByte((exception != null ? FLAG_EXCEPTION : 0) | (list != null ? FLAG_LIST : 0));
+
+		if (exception != null) {
+			// The stack trace stays on the server, like with the other formats.
+			out.writeString(exception.getMessage());
+		}
+
+		if (list != null) {
+			writeList(out, list);
+		}
+	}
+
+	/**
+	 * Reads a response.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that the list is corrupt.
+	 */
+	private static BookStoreResponse readResponse(Decoder in) throws IOException {
+		int flags = in.readByte();
+		BookStoreResponse response = new BookStoreResponse();
+
+		if ((flags & FLAG_EXCEPTION) != 0) {
+			response.setException(new BookStoreException(in.readString()));
+		}
+
+		if ((flags & FLAG_LIST) != 0) {
+			Object list = readValue(in);
+
+			if (!(list instanceof List)) {
+				throw new IOException("Response without a list");
+			}
+
+			response.setList((List<?>) list);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Writes a set, sorted by ISBN. The type of the set is the type of its
+	 * elements; an empty set is written as a set of ISBNs.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param set
+	 *            the set
+	 * @throws IOException
+	 *             Signals that the elements are not a supported type.
+	 */
+	private static void writeSet(Encoder out, Set<?> set) throws IOException {
+		Object first = set.isEmpty() ? Integer.valueOf(0) : set.iterator().next();
+
+		if (first instanceof Integer) {
+			Integer[] isbns = sorted(set, Integer.class, Integer::intValue);
+			out.writeByte(TAG_ISBN_SET);
+			out.writeVarInt(isbns.length);
+			int previousIsbn = 0;
+
+			for (int i = 0; i < isbns.length; i++) {
+				out.writeIsbn(isbns[i], previousIsbn, i == 0);
+				previousIsbn = isbns[i];
+			}
+		} else if (first instanceof BookCopy) {
+			BookCopy[] bookCopies = sorted(set, BookCopy.class, BookCopy::getISBN);
+			out.writeByte(TAG_BOOK_COPY_SET);
+			out.writeVarInt(bookCopies.length);
+
+			for (int i = 0; i < bookCopies.length; i++) {
+				out.writeIsbn(bookCopies[i].getISBN(), i == 0 ? 0 : bookCopies[i - 1].getISBN(), i == 0);
+				out.writeSignedVarLong(bookCopies[i].getNumCopies());
+			}
+		} else if (first instanceof BookEditorPick) {
+			BookEditorPick[] editorPicks = sorted(set, BookEditorPick.class, BookEditorPick::getISBN);
+			out.writeByte(TAG_EDITOR_PICK_SET);
+			out.writeVarInt(editorPicks.length);
+
+			for (int i = 0; i < editorPicks.length; i++) {
+				out.writeIsbn(editorPicks[i].getISBN(), i == 0 ? 0 : editorPicks[i - 1].getISBN(), i == 0);
+				out.writeByte(editorPicks[i].isEditorPick() ? 1 : 0);
+			}
+		} else if (first instanceof BookRating) {
+			BookRating[] ratings = sorted(set, BookRating.class, BookRating::getISBN);
+			out.writeByte(TAG_RATING_SET);
+			out.writeVarInt(ratings.length);
+
+			for (int i = 0; i < ratings.length; i++) {
+				out.writeIsbn(ratings[i].getISBN(), i == 0 ? 0 : ratings[i - 1].getISBN(), i == 0);
+				out.writeSignedVarLong(ratings[i].getRating());
+			}
+		} else if (first instanceof StockBook) {
+			StockBook[] books = sorted(set, StockBook.class, StockBook::getISBN);
+			out.writeByte(TAG_STOCK_BOOK_SET);
+			out.writeVarInt(books.length);
+
+			for (int i = 0; i < books.length; i++) {
+				out.writeIsbn(books[i].getISBN(), i == 0 ? 0 : books[i - 1].getISBN(), i == 0);
+				writeStockBookFields(out, books[i]);
+			}
+		} else {
+			throw new IOException("Unsupported set element: " + first);
+		}
+	}
+
+	/**
+	 * Reads a set.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @param tag
+	 *            the type tag of the set
+	 * @return the set
+	 */
+	private static Set<?> readSet(Decoder in, byte tag) {
+		int size = in.readVarInt();
+
+		// Every element takes at least a byte, so a larger size is malformed.
+		if (size > in.remaining()) {
+			throw new ArrayIndexOutOfBoundsException("Invalid set size " + size);
+		}
+
+		Set<Object> set = new HashSet<>((int) Math.max(16, Math.min(2L * size, MAX_INITIAL_SET_CAPACITY)));
+		int isbn = 0;
+
+		for (int i = 0; i < size; i++) {
+			isbn = in.readIsbn(isbn, i == 0);
+
+			switch (tag) {
+			case TAG_ISBN_SET:
+				set.add(isbn);
+				break;
+
+			case TAG_BOOK_COPY_SET:
+				set.add(new BookCopy(isbn, (int) in.readSignedVarLong()));
+				break;
+
+			case TAG_EDITOR_PICK_SET:
+				set.add(new BookEditorPick(isbn, in.readByte() != 0));
+				break;
+
+			case TAG_RATING_SET:
+				set.add(new BookRating(isbn, (int) in.readSignedVarLong()));
+				break;
+
+			default:
+				set.add(readStockBookFields(in, isbn));
+				break;
+			}
+		}
+
+		return set;
+	}
+
+	/**
+	 * Writes a list in its order. The list is a list of {@link StockBook} if
+	 * all its elements are, and a list of {@link Book} otherwise, unless its
+	 * first element tells it is a list of another type; an empty list is
+	 * written as a list of {@link Book}.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not a supported type.
+	 */
+	private static void writeList(Encoder out, List<?> list) throws IOException {
+		if (!list.isEmpty() && list.get(0) instanceof BookChanges) {
+			writeBookChangesList(out, list);
+			return;
+		}
+
+		if (!list.isEmpty() && list.get(0) instanceof Set) {
+			writeSetList(out, list);
+			return;
+		}
+
+		if (!list.isEmpty() && (list.get(0) == null || list.get(0) instanceof BookStoreException)) {
+			writeExceptionList(out, list);
+			return;
+		}
+
+		boolean stockBooks = !list.isEmpty();
+
+		for (Object element : list) {
+			if (!(element instanceof Book)) {
+				throw new IOException("Unsupported list element: " + element);
+			}
+
+			stockBooks &= element instanceof StockBook;
+		}
+
+		out.writeByte(stockBooks ? TAG_STOCK_BOOK_LIST : TAG_BOOK_LIST);
+		out.writeVarInt(list.size());
+
+		for (Object element : list) {
+			Book book = (Book) element;
+			out.writeSignedVarLong(book.getISBN());
+
+			if (stockBooks) {
+				writeStockBookFields(out, (StockBook) book);
+			} else {
+				writeBookFields(out, book);
+			}
+		}
+	}
+
+	/**
+	 * Writes a list of {@link BookChanges}, with their ISBNs as sets of ISBNs.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not all {@link BookChanges}.
+	 */
+	private static void writeBookChangesList(Encoder out, List<?> list) throws IOException {
+		out.writeByte(TAG_BOOK_CHANGES_LIST);
+		out.writeVarInt(list.size());
+
+		for (Object element : list) {
+			if (!(element instanceof BookChanges)) {
+				throw new IOException("Unsupported list element: " + element);
+			}
+
+			BookChanges changes = (BookChanges) element;
+			out.writeSignedVarLong(changes.getVersion());
+			out.writeByte(changes.isFullResync() ? 1 : 0);
+			writeSet(out, changes.getModifiedISBNs());
+			writeSet(out, changes.getRemovedISBNs());
+		}
+	}
+
+	/**
+	 * Reads a list of {@link BookChanges}.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @return the list
+	 * @throws IOException
+	 *             Signals that the ISBNs are not sets of ISBNs.
+	 */
+	private static List<BookChanges> readBookChangesList(Decoder in) throws IOException {
+		int size = in.readVarInt();
+		List<BookChanges> list = new ArrayList<>(Math.min(size, in.remaining()));
+
+		for (int i = 0; i < size; i++) {
+			long version = in.readSignedVarLong();
+			boolean fullResync = in.readByte() != 0;
+			list.add(new BookChanges(version, fullResync, readIsbnSet(in), readIsbnSet(in)));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Writes a list of sets, each with its own type tag.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not all supported sets.
+	 */
+	private static void writeSetList(Encoder out, List<?> list) throws IOException {
+		out.writeByte(TAG_SET_LIST);
+		out.writeVarInt(list.size());
+
+		for (Object element : list) {
+			if (!(element instanceof Set)) {
+				throw new IOException("Unsupported list element: " + element);
+			}
+
+			writeSet(out, (Set<?>) element);
+		}
+	}
+
+	/**
+	 * Reads a list of sets.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @return the list
+	 * @throws IOException
+	 *             Signals that an element is not a set.
+	 */
+	private static List<Set<?>> readSetList(Decoder in) throws IOException {
+		int size = in.readVarInt();
+		List<Set<?>> list = new ArrayList<>(Math.min(size, in.remaining()));
+
+		for (int i = 0; i < size; i++) {
+			Object element = readValue(in);
+
+			if (!(element instanceof Set)) {
+				throw new IOException("List element is not a set: " + element);
+			}
+
+			list.add((Set<?>) element);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Writes a list of outcomes of a batch, as the messages of the exceptions
+	 * and null for the calls which succeeded.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not all outcomes.
+	 */
+	private static void writeExceptionList(Encoder out, List<?> list) throws IOException {
+		out.writeByte(TAG_EXCEPTION_LIST);
+		out.writeVarInt(list.size());
+
+		for (Object element : list) {
+			if (element != null && !(element instanceof BookStoreException)) {
+				throw new IOException("Unsupported list element: " + element);
+			}
+
+			String message = (element != null) ? ((BookStoreException) element).getMessage() : null;
+			out.writeString((element != null && message == null) ? "" : message);
+		}
+	}
+
+	/**
+	 * Reads a list of outcomes of a batch.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @return the list
+	 */
+	private static List<BookStoreException> readExceptionList(Decoder in) {
+		int size = in.readVarInt();
+		List<BookStoreException> list = new ArrayList<>(Math.min(size, in.remaining()));
+
+		for (int i = 0; i < size; i++) {
+			String message = in.readString();
+			list.add((message != null) ? new BookStoreException(message) : null);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Reads a set of ISBNs.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @return the ISBNs
+	 * @throws IOException
+	 *             Signals that the value is not a set of ISBNs.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<Integer> readIsbnSet(Decoder in) throws IOException {
+		if (in.readByte() != TAG_ISBN_SET) {
+			throw new IOException("Expected a set of ISBNs");
+		}
+
+		return (Set<Integer>) readSet(in, TAG_ISBN_SET);
+	}
+
+	/**
+	 * Reads a list.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @param tag
+	 *            the type tag of the list
+	 * @return the list
+	 */
+	private static List<?> readList(Decoder in, byte tag) {
+		int size = in.readVarInt();
+
+		if (tag == TAG_STOCK_BOOK_LIST) {
+			return new LazyStockBookList(in, size);
+		}
+
+		List<Book> list = new ArrayList<>(Math.min(size, in.remaining()));
+
+		for (int i = 0; i < size; i++) {
+			int isbn = (int) in.readSignedVarLong();
+			list.add(readBookFields(in, isbn));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Writes the fields of a book, except its ISBN.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param book
+	 *            the book
+	 */
+	private static void writeBookFields(Encoder out, Book book) {
+		out.writeBookString(book.getTitle());
+		out.writeBookString(book.getAuthor());
+		out.writeFloat(book.getPrice());
+	}
+
+	/**
+	 * Reads the fields of a book.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @param isbn
+	 *            the ISBN
+	 * @return the book
+	 */
+	private static ImmutableBook readBookFields(Decoder in, int isbn) {
+		return new ImmutableBook(isbn, in.readBookString(), in.readBookString(), in.readFloat());
+	}
+
+	/**
+	 * Writes the fields of a stock book, except its ISBN.
+	 *
+	 * @param out
+	 *            the encoder
+	 * @param book
+	 *            the stock book
+	 */
+	private static void writeStockBookFields(Encoder out, StockBook book) {
+		writeBookFields(out, book);
+		out.writeSignedVarLong(book.getNumCopies());
+		out.writeSignedVarLong(book.getNumSaleMisses());
+		out.writeSignedVarLong(book.getNumTimesRated());
+		out.writeSignedVarLong(book.getTotalRating());
+		out.writeByte(book.isEditorPick() ? 1 : 0);
+	}
+
+	/**
+	 * Reads the fields of a stock book.
+	 *
+	 * @param in
+	 *            the decoder
+	 * @param isbn
+	 *            the ISBN
+	 * @return the stock book
+	 */
+	private static ImmutableStockBook readStockBookFields(Decoder in, int isbn) {
+		return new ImmutableStockBook(isbn, in.readBookString(), in.readBookString(), in.readFloat(),
+				(int) in.readSignedVarLong(), in.readSignedVarLong(), in.readSignedVarLong(), in.readSignedVarLong(),
+				in.readByte() != 0);
+	}
+
+	/**
+	 * Copies the elements of a set into an array sorted by ISBN.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param set
+	 *            the set
+	 * @param type
+	 *            the type of the elements
+	 * @param isbn
+	 *            the function giving the ISBN of an element
+	 * @return the sorted elements
+	 * @throws IOException
+	 *             Signals that an element is not of the given type.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T[] sorted(Set<?> set, Class<T> type, ToIntFunction<T> isbn) throws IOException {
+		T[] elements = (T[]) Array.newInstance(type, set.size());
+		int i = 0;
+
+		for (Object element : set) {
+			if (!type.isInstance(element)) {
+				throw new IOException("Mixed set elements: " + element);
+			}
+
+			elements[i++] = (T) element;
+		}
+
+		Arrays.sort(elements, Comparator.comparingInt(isbn));
+		return elements;
+	}
+
+	/**
+	 * {@link Encoder} writes the primitive values of the format into a growing
+	 * byte array.
+	 */
+	private static final class Encoder {
+
+		/** The buffer. */
+		private byte[] buffer = new byte[64];
+
+		/** The number of bytes written. */
+		private int size = 0;
+
+		/** The indexes of the titles and authors written, created lazily. */
+		private Map<String, Integer> bookStrings;
+
+		/**
+		 * Writes a byte.
+		 *
+		 * @param value
+		 *            the byte
+		 */
+		void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[size++] = (byte) value;
+		}
+
+		/**
+		 * Writes a non-negative integer as a variable-length integer.
+		 *
+		 * @param value
+		 *            the integer
+		 */
+		void writeVarInt(int value) {
+			writeVarLong(value & 0xffffffffL);
+		}
+
+		/**
+		 * Writes an integer as a zig-zag encoded variable-length integer, so
+		 * that small negative values stay short.
+		 *
+		 * @param value
+		 *            the integer
+		 */
+		void writeSignedVarLong(long value) {
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * Writes an ISBN of a sorted set: the first ISBN as is, and the others
+		 * as the difference with the previous one.
+		 *
+		 * @param isbn
+		 *            the ISBN
+		 * @param previousIsbn
+		 *            the previous ISBN
+		 * @param first
+		 *            whether the ISBN is the first of the set
+		 */
+		void writeIsbn(int isbn, int previousIsbn, boolean first) {
+			if (first) {
+				writeSignedVarLong(isbn);
+			} else {
+				writeVarLong((long) isbn - previousIsbn);
+			}
+		}
+
+		/**
+		 * Writes a float.
+		 *
+		 * @param value
+		 *            the float
+		 */
+		void writeFloat(float value) {
+			int bits = Float.floatToIntBits(value);
+			ensureCapacity(4);
+			buffer[size++] = (byte) (bits >>> 24);
+			buffer[size++] = (byte) (bits >>> 16);
+			buffer[size++] = (byte) (bits >>> 8);
+			buffer[size++] = (byte) bits;
+		}
+
+		/**
+		 * Writes a string as its UTF-8 length plus one, or zero for null,
+		 * followed by its UTF-8 bytes.
+		 *
+		 * @param value
+		 *            the string, or null
+		 */
+		void writeString(String value) {
+			if (value == null) {
+				writeByte(0);
+				return;
+			}
+
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length + 1);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		/**
+		 * Writes a title or an author, as a reference if the same string was
+		 * written before in the message.
+		 *
+		 * @param value
+		 *            the string, or null
+		 */
+		void writeBookString(String value) {
+			if (value == null) {
+				writeByte(BOOK_STRING_NULL);
+				return;
+			}
+
+			if (bookStrings == null) {
+				bookStrings = new HashMap<>();
+			}
+
+			Integer index = bookStrings.putIfAbsent(value, bookStrings.size());
+
+			if (index != null) {
+				writeVarInt(BOOK_STRING_REFERENCE + index);
+			} else {
+				writeByte(BOOK_STRING_NEW);
+				writeString(value);
+			}
+		}
+
+		/**
+		 * Gets the bytes written.
+		 *
+		 * @return the bytes
+		 */
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+
+		/**
+		 * Writes an unsigned variable-length integer, seven bits per byte.
+		 *
+		 * @param value
+		 *            the unsigned integer
+		 */
+		private void writeVarLong(long value) {
+			ensureCapacity(10);
+
+			while ((value & ~0x7fL) != 0) {
+				buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+
+			buffer[size++] = (byte) value;
+		}
+
+		/**
+		 * Ensures that the buffer can take more bytes.
+		 *
+		 * @param length
+		 *            the number of bytes
+		 */
+		private void ensureCapacity(int length) {
+			if (size + length > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+			}
+		}
+	}
+
+	/**
+	 * {@link Decoder} reads the primitive values of the format from a byte
+	 * array. Reading past the end throws an
+	 * {@link ArrayIndexOutOfBoundsException}.
+	 */
+	private static final class Decoder {
+
+		/** The bytes. */
+		private final byte[] bytes;
+
+		/** The position of the next byte. */
+		private int position = 0;
+
+		/** The titles and authors read, created lazily. */
+		private List<String> bookStrings;
+
+		/**
+		 * Instantiates a new {@link Decoder}.
+		 *
+		 * @param bytes
+		 *            the bytes
+		 */
+		Decoder(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Instantiates a new {@link Decoder} which starts reading at a
+		 * position.
+		 *
+		 * @param bytes
+		 *            the bytes
+		 * @param position
+		 *            the position of the first byte to read
+		 */
+		Decoder(byte[] bytes, int position) {
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		/**
+		 * Gets the position of the next byte.
+		 *
+		 * @return the position
+		 */
+		int position() {
+			return position;
+		}
+
+		/**
+		 * Skips bytes.
+		 *
+		 * @param length
+		 *            the number of bytes
+		 */
+		void skip(int length) {
+			if (length > remaining()) {
+				throw new ArrayIndexOutOfBoundsException("Cannot skip " + length + " bytes");
+			}
+
+			position += length;
+		}
+
+		/**
+		 * Gets the number of bytes left.
+		 *
+		 * @return the number of bytes
+		 */
+		int remaining() {
+			return bytes.length - position;
+		}
+
+		/**
+		 * Reads a byte.
+		 *
+		 * @return the byte
+		 */
+		byte readByte() {
+			return bytes[position++];
+		}
+
+		/**
+		 * Reads a non-negative variable-length integer.
+		 *
+		 * @return the integer
+		 */
+		int readVarInt() {
+			long value = readVarLong();
+
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw new ArrayIndexOutOfBoundsException("Invalid length " + value);
+			}
+
+			return (int) value;
+		}
+
+		/**
+		 * Reads a zig-zag encoded variable-length integer.
+		 *
+		 * @return the integer
+		 */
+		long readSignedVarLong() {
+			long value = readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Reads an ISBN of a sorted set.
+		 *
+		 * @param previousIsbn
+		 *            the previous ISBN
+		 * @param first
+		 *            whether the ISBN is the first of the set
+		 * @return the ISBN
+		 */
+		int readIsbn(int previousIsbn, boolean first) {
+			return first ? (int) readSignedVarLong() : (int) (previousIsbn + readVarLong());
+		}
+
+		/**
+		 * Reads a float.
+		 *
+		 * @return the float
+		 */
+		float readFloat() {
+			int bits = (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16
+					| (bytes[position + 2] & 0xff) << 8 | (bytes[position + 3] & 0xff);
+			position += 4;
+			return Float.intBitsToFloat(bits);
+		}
+
+		/**
+		 * Reads a string.
+		 *
+		 * @return the string, or null
+		 */
+		String readString() {
+			int length = readVarInt() - 1;
+
+			if (length < 0) {
+				return null;
+			}
+
+			if (length > remaining()) {
+				throw new ArrayIndexOutOfBoundsException("Invalid string length " + length);
+			}
+
+			String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+
+		/**
+		 * Reads a title or an author.
+		 *
+		 * @return the string, or null
+		 */
+		String readBookString() {
+			int marker = readVarInt();
+
+			if (marker == BOOK_STRING_NULL) {
+				return null;
+			}
+
+			if (bookStrings == null) {
+				bookStrings = new ArrayList<>();
+			}
+
+			if (marker == BOOK_STRING_NEW) {
+				String value = readString();
+				bookStrings.add(value);
+				return value;
+			}
+
+			int index = marker - BOOK_STRING_REFERENCE;
+
+			if (index >= bookStrings.size()) {
+				throw new ArrayIndexOutOfBoundsException("Invalid string reference " + index);
+			}
+
+			return bookStrings.get(index);
+		}
+
+		/**
+		 * Skips a string without decoding it.
+		 */
+		void skipString() {
+			int length = readVarInt() - 1;
+
+			if (length > 0) {
+				skip(length);
+			}
+		}
+
+		/**
+		 * Reads an unsigned variable-length integer.
+		 *
+		 * @return the unsigned integer
+		 */
+		private long readVarLong() {
+			long value = 0;
+
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = bytes[position++];
+				value |= (long) (b & 0x7f) << shift;
+
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+
+			throw new ArrayIndexOutOfBoundsException("Malformed variable-length integer");
+		}
+	}
+
+	/**
+	 * {@link LazyStockBookList} is a read-only list of the stock books of a
+	 * message, which keeps where every book starts in the message instead of
+	 * the decoded books.
+	 */
+	private static final class LazyStockBookList extends AbstractList<StockBook> implements RandomAccess {
+
+		/** The bytes of the message. */
+		private final byte[] bytes;
+
+		/** The number of positions per book. */
+		private static final int POSITIONS_PER_BOOK = 4;
+
+		/**
+		 * The positions of the books, four per book: where the book starts,
+		 * where its title and its author start (-1 for null), and where its
+		 * price starts.
+		 */
+		private final int[] positions;
+
+		/** The positions of the distinct titles and authors, while scanning. */
+		private int[] stringPositions = new int[16];
+
+		/** The number of distinct titles and authors, while scanning. */
+		private int stringCount = 0;
+
+		/**
+		 * Instantiates a new {@link LazyStockBookList}, reading past the books
+		 * in the message. All the books are checked to be complete, so that
+		 * reading a field later cannot fail.
+		 *
+		 * @param in
+		 *            the decoder, positioned at the first book
+		 * @param size
+		 *            the number of books
+		 */
+		LazyStockBookList(Decoder in, int size) {
+			if (size > in.remaining()) {
+				throw new ArrayIndexOutOfBoundsException("Invalid list size " + size);
+			}
+
+			this.bytes = in.bytes;
+			this.positions = new int[POSITIONS_PER_BOOK * size];
+
+			for (int i = 0; i < size; i++) {
+				int book = POSITIONS_PER_BOOK * i;
+				positions[book] = in.position();
+				in.readSignedVarLong();
+				positions[book + 1] = scanBookString(in);
+				positions[book + 2] = scanBookString(in);
+				positions[book + 3] = in.position();
+				in.skip(4);
+
+				for (int j = 0; j < LazyStockBook.NUMBER_FIELDS; j++) {
+					in.readSignedVarLong();
+				}
+
+				in.readByte();
+			}
+
+			stringPositions = null;
+		}
+
+		/**
+		 * Reads past a title or an author.
+		 *
+		 * @param in
+		 *            the decoder
+		 * @return the position of the string, or -1 if it is null
+		 */
+		private int scanBookString(Decoder in) {
+			int marker = in.readVarInt();
+
+			if (marker == BOOK_STRING_NULL) {
+				return -1;
+			}
+
+			if (marker == BOOK_STRING_NEW) {
+				if (stringCount == stringPositions.length) {
+					stringPositions = Arrays.copyOf(stringPositions, 2 * stringCount);
+				}
+
+				int position = in.position();
+				in.skipString();
+				stringPositions[stringCount++] = position;
+				return position;
+			}
+
+			int index = marker - BOOK_STRING_REFERENCE;
+
+			if (index >= stringCount) {
+				throw new ArrayIndexOutOfBoundsException("Invalid string reference " + index);
+			}
+
+			return stringPositions[index];
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public StockBook get(int index) {
+			Objects.checkIndex(index, size());
+			int book = POSITIONS_PER_BOOK * index;
+			return new LazyStockBook(bytes, positions[book], positions[book + 1], positions[book + 2],
+					positions[book + 3]);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return positions.length / POSITIONS_PER_BOOK;
+		}
+	}
+
+	/**
+	 * {@link LazyStockBook} is a view of a stock book in a message, which
+	 * decodes a field every time it is read.
+	 */
+	private static final class LazyStockBook implements StockBook {
+
+		/** The number of variable-length integer fields after the price. */
+		private static final int NUMBER_FIELDS = 4;
+
+		/** The bytes of the message. */
+		private final byte[] bytes;
+
+		/** The position of the book. */
+		private final int position;
+
+		/** The position of the title of the book, or -1 if it is null. */
+		private final int titlePosition;
+
+		/** The position of the author of the book, or -1 if it is null. */
+		private final int authorPosition;
+
+		/** The position of the price of the book. */
+		private final int pricePosition;
+
+		/**
+		 * Instantiates a new {@link LazyStockBook}.
+		 *
+		 * @param bytes
+		 *            the bytes of the message
+		 * @param position
+		 *            the position of the book
+		 * @param titlePosition
+		 *            the position of the title, or -1 if it is null
+		 * @param authorPosition
+		 *            the position of the author, or -1 if it is null
+		 * @param pricePosition
+		 *            the position of the price of the book
+		 */
+		LazyStockBook(byte[] bytes, int position, int titlePosition, int authorPosition, int pricePosition) {
+			this.bytes = bytes;
+			this.position = position;
+			this.titlePosition = titlePosition;
+			this.authorPosition = authorPosition;
+			this.pricePosition = pricePosition;
+		}
+
+		/**
+		 * Reads a string.
+		 *
+		 * @param stringPosition
+		 *            the position of the string, or -1 if it is null
+		 * @return the string
+		 */
+		private String stringAt(int stringPosition) {
+			return (stringPosition < 0) ? null : new Decoder(bytes, stringPosition).readString();
+		}
+
+		/**
+		 * Gets a decoder positioned at a variable-length integer field.
+		 *
+		 * @param field
+		 *            the index of the field after the price
+		 * @return the decoder
+		 */
+		private Decoder numberField(int field) {
+			Decoder in = new Decoder(bytes, pricePosition + 4);
+
+			for (int i = 0; i < field; i++) {
+				in.readSignedVarLong();
+			}
+
+			return in;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.Book#getISBN()
+		 */
+		@Override
+		public int getISBN() {
+			return (int) new Decoder(bytes, position).readSignedVarLong();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.Book#getTitle()
+		 */
+		@Override
+		public String getTitle() {
+			return stringAt(titlePosition);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.Book#getAuthor()
+		 */
+		@Override
+		public String getAuthor() {
+			return stringAt(authorPosition);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.Book#getPrice()
+		 */
+		@Override
+		public float getPrice() {
+			return new Decoder(bytes, pricePosition).readFloat();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.StockBook#getNumCopies()
+		 */
+		@Override
+		public int getNumCopies() {
+			return (int) numberField(0).readSignedVarLong();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.StockBook#getNumSaleMisses()
+		 */
+		@Override
+		public long getNumSaleMisses() {
+			return numberField(1).readSignedVarLong();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.StockBook#getNumTimesRated()
+		 */
+		@Override
+		public long getNumTimesRated() {
+			return numberField(2).readSignedVarLong();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.StockBook#getTotalRating()
+		 */
+		@Override
+		public long getTotalRating() {
+			return numberField(3).readSignedVarLong();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.StockBook#getAverageRating()
+		 */
+		@Override
+		public float getAverageRating() {
+			long numTimesRated = getNumTimesRated();
+			return (numTimesRated == 0 ? -1.0f : (float) getTotalRating() / numTimesRated);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.acertainbookstore.business.StockBook#isEditorPick()
+		 */
+		@Override
+		public boolean isEditorPick() {
+			return numberField(NUMBER_FIELDS).readByte() != 0;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Book)) {
+				return false;
+			}
+
+			Book book = (Book) obj;
+			return getISBN() == book.getISBN() && Objects.equals(getTitle(), book.getTitle())
+					&& Objects.equals(getAuthor(), book.getAuthor())
+					&& Math.abs(getPrice() - book.getPrice()) < BookStoreConstants.EPSILON;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return getISBN();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "ISBN = " + getISBN() + " Title = " + getTitle() + " Author = " + getAuthor() + " Price = "
+					+ getPrice();
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package com.acertainbookstore.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link BookStoreCompressor} compresses and decompresses message content with
+ * the HTTP content codings negotiated through the Accept-Encoding header. The
+ * server prefers the fast <code>deflate</code> coding and falls back to
+ * <code>gzip</code>; content smaller than a threshold is sent as is.
+ * <p>
+ * The compression contexts are pooled, since creating them allocates native
+ * memory, and the compressor keeps counters of the bytes it saved.
+ */
+public final class BookStoreCompressor {
+
+	/** The Constant DEFLATE coding. */
+	public static final String DEFLATE = "deflate";
+
+	/** The Constant GZIP coding. */
+	public static final String GZIP = "gzip";
+
+	/** The Constant ACCEPTED_ENCODINGS, in order of preference. */
+	public static final String ACCEPTED_ENCODINGS = DEFLATE + ", " + GZIP;
+
+	/** The maximum number of idle contexts of every kind. */
+	private static final int MAX_IDLE_CONTEXTS = 64;
+
+	/** The size of the buffers used to stream through the contexts. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** The gzip header: magic, deflate method, no flags, time or extra data. */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/** The gzip header flags. */
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	/** The minimum size of the content to compress. */
+	private final int threshold;
+
+	/** The contexts for the deflate coding, tuned for speed. */
+	private final BookStoreObjectPool<Deflater> deflaters = new BookStoreObjectPool<>(MAX_IDLE_CONTEXTS,
+			() -> new Deflater(Deflater.BEST_SPEED), Deflater::end);
+
+	/** The contexts for the gzip coding, which wraps raw deflate data. */
+	private final BookStoreObjectPool<Deflater> gzipDeflaters = new BookStoreObjectPool<>(MAX_IDLE_CONTEXTS,
+			() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true), Deflater::end);
+
+	/** The contexts to decompress the deflate coding. */
+	private final BookStoreObjectPool<Inflater> inflaters = new BookStoreObjectPool<>(MAX_IDLE_CONTEXTS,
+			() -> new Inflater(), Inflater::end);
+
+	/** The contexts to decompress the gzip coding. */
+	private final BookStoreObjectPool<Inflater> gzipInflaters = new BookStoreObjectPool<>(MAX_IDLE_CONTEXTS,
+			() -> new Inflater(true), Inflater::end);
+
+	/** The number of bytes before compression. */
+	private final LongAdder uncompressedBytes = new LongAdder();
+
+	/** The number of bytes after compression. */
+	private final LongAdder compressedBytes = new LongAdder();
+
+	/** The number of compressed messages. */
+	private final LongAdder compressedMessages = new LongAdder();
+
+	/**
+	 * Instantiates a new {@link BookStoreCompressor} with the default
+	 * threshold.
+	 */
+	public BookStoreCompressor() {
+		this(BookStoreConstants.COMPRESSION_THRESHOLD);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreCompressor}.
+	 *
+	 * @param threshold
+	 *            the minimum size of the content to compress, in bytes
+	 */
+	public BookStoreCompressor(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Chooses the coding of a message from the codings accepted by its
+	 * recipient.
+	 *
+	 * @param acceptEncoding
+	 *            the value of the Accept-Encoding header, or null
+	 * @param contentLength
+	 *            the length of the content
+	 * @return the coding, or null if the content should not be compressed
+	 */
+	public String negotiate(String acceptEncoding, int contentLength) {
+		if (acceptEncoding == null || contentLength < threshold) {
+			return null;
+		}
+
+		if (accepts(acceptEncoding, DEFLATE)) {
+			return DEFLATE;
+		}
+
+		if (accepts(acceptEncoding, GZIP)) {
+			return GZIP;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Compresses content.
+	 *
+	 * @param encoding
+	 *            the coding
+	 * @param content
+	 *            the content
+	 * @return the compressed content, or null if compression does not make the
+	 *         content any smaller
+	 */
+	public byte[] compress(String encoding, byte[] content) {
+		boolean gzip = GZIP.equals(encoding);
+		BookStoreObjectPool<Deflater> pool = gzip ? gzipDeflaters : deflaters;
+		Deflater deflater = pool.borrow();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+		CRC32 crc = null;
+
+		try {
+			if (gzip) {
+				out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+				crc = new CRC32();
+				crc.update(content);
+			}
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			deflater.setInput(content);
+			deflater.finish();
+
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+		} finally {
+			deflater.reset();
+			pool.release(deflater);
+		}
+
+		if (gzip) {
+			writeIntLE(out, (int) crc.getValue());
+			writeIntLE(out, content.length);
+		}
+
+		if (out.size() >= content.length) {
+			return null;
+		}
+
+		uncompressedBytes.add(content.length);
+		compressedBytes.add(out.size());
+		compressedMessages.increment();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses content.
+	 *
+	 * @param encoding
+	 *            the coding
+	 * @param content
+	 *            the compressed content
+	 * @return the content
+	 * @throws IOException
+	 *             Signals that the coding is not supported or the content is
+	 *             corrupt.
+	 */
+	public byte[] decompress(String encoding, byte[] content) throws IOException {
+		boolean gzip = GZIP.equalsIgnoreCase(encoding.trim());
+
+		if (!gzip && !DEFLATE.equalsIgnoreCase(encoding.trim())) {
+			throw new IOException("Unsupported content encoding: " + encoding);
+		}
+
+		BookStoreObjectPool<Inflater> pool = gzip ? gzipInflaters : inflaters;
+		Inflater inflater = pool.borrow();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length * 4);
+
+		try {
+			int offset = gzip ? skipGzipHeader(content) : 0;
+			byte[] buffer = new byte[BUFFER_SIZE];
+			inflater.setInput(content, offset, content.length - offset);
+
+			while (!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated " + encoding + " content");
+				}
+
+				out.write(buffer, 0, length);
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("Corrupt " + encoding + " content", ex);
+		} finally {
+			inflater.reset();
+			pool.release(inflater);
+		}
+
+		uncompressedBytes.add(out.size());
+		compressedBytes.add(content.length);
+		compressedMessages.increment();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Gets the number of compressed messages, in either direction.
+	 *
+	 * @return the number of compressed messages
+	 */
+	public long getCompressedMessages() {
+		return compressedMessages.sum();
+	}
+
+	/**
+	 * Gets the size of the compressed messages before compression.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.sum();
+	}
+
+	/**
+	 * Gets the size of the compressed messages after compression.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	/**
+	 * Gets the number of bytes saved by compression.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getSavedBytes() {
+		return getUncompressedBytes() - getCompressedBytes();
+	}
+
+	/**
+	 * Checks if an Accept-Encoding header accepts a coding, i.e. lists it
+	 * without a zero quality value.
+	 *
+	 * @param acceptEncoding
+	 *            the value of the Accept-Encoding header
+	 * @param encoding
+	 *            the coding
+	 * @return true, if the coding is accepted
+	 */
+	private static boolean accepts(String acceptEncoding, String encoding) {
+		for (String element : acceptEncoding.split(",")) {
+			String[] parameters = element.split(";");
+
+			if (!parameters[0].trim().equalsIgnoreCase(encoding)) {
+				continue;
+			}
+
+			return BookStoreUtility.getQuality(element) > 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Skips the header of gzip content.
+	 *
+	 * @param content
+	 *            the gzip content
+	 * @return the offset of the compressed data
+	 * @throws IOException
+	 *             Signals that the header is corrupt.
+	 */
+	private static int skipGzipHeader(byte[] content) throws IOException {
+		if (content.length < GZIP_HEADER.length || content[0] != GZIP_HEADER[0] || content[1] != GZIP_HEADER[1]) {
+			throw new IOException("Not in gzip format");
+		}
+
+		int flags = content[3];
+		int offset = GZIP_HEADER.length;
+
+		try {
+			if ((flags & FEXTRA) != 0) {
+				offset += 2 + ((content[offset] & 0xff) | (content[offset + 1] & 0xff) << 8);
+			}
+
+			if ((flags & FNAME) != 0) {
+				while (content[offset++] != 0) {
+					// Skip the file name.
+				}
+			}
+
+			if ((flags & FCOMMENT) != 0) {
+				while (content[offset++] != 0) {
+					// Skip the comment.
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			throw new IOException("Corrupt gzip header", ex);
+		}
+
+		if ((flags & FHCRC) != 0) {
+			offset += 2;
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Writes an integer in little endian byte order.
+	 *
+	 * @param out
+	 *            the output stream
+	 * @param value
+	 *            the value
+	 */
+	private static void writeIntLE(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+}
@@ -7,9 +7,10 @@ package com.acertainbookstore.utils;
 public final class BookStoreConstants {
 
 	/**
-	 * The Constant BINARY_SERIALIZATION decides whether we use Kryo or XStream.
+	 * The Constant SERIALIZATION_FORMAT decides which of the
+	 * {@link BookStoreSerializationFormat} formats we use.
 	 */
-	public static final boolean BINARY_SERIALIZATION = true;
+	public static final BookStoreSerializationFormat SERIALIZATION_FORMAT = BookStoreSerializationFormat.KRYO;
 
 	// Constants used when creating URLs
 
@@ -19,9 +20,37 @@ public final class BookStoreConstants {
 	/** The Constant BOOK_NUM_PARAM. */
 	public static final String BOOK_NUM_PARAM = "number_of_books";
 
+	/** The Constant CURSOR_PARAM. */
+	public static final String CURSOR_PARAM = "cursor";
+
+	/** The Constant LIMIT_PARAM. */
+	public static final String LIMIT_PARAM = "limit";
+
+	/** The Constant FIELDS_PARAM. */
+	public static final String FIELDS_PARAM = "fields";
+
+	/** The Constant VERSION_PARAM. */
+	public static final String VERSION_PARAM = "version";
+
+	/** The Constant TIMEOUT_PARAM. */
+	public static final String TIMEOUT_PARAM = "timeout";
+
 	/** The Constant XMLSTRINGLEN_PARAM. */
 	public static final String XMLSTRINGLEN_PARAM = "len";
 
+	/**
+	 * The Constant IDEMPOTENCY_KEY_HEADER, the request header with the key
+	 * which identifies the copies of a request.
+	 */
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+	/**
+	 * The Constant DEADLINE_HEADER, the request header with the number of
+	 * milliseconds the client waits for the response, counted from when the
+	 * server receives the request so that the clocks need not agree.
+	 */
+	public static final String DEADLINE_HEADER = "Request-Deadline-Millis";
+
 	/**
 	 * The Constant INVALID_PARAMS used as error code when converting numbers to
 	 * integer.
@@ -51,9 +80,27 @@ public final class BookStoreConstants {
 	/** The Constant RATING. */
 	public static final String RATING = "The rating: ";
 
+	/** The Constant PAGE_LIMIT. */
+	public static final String PAGE_LIMIT = "The page limit: ";
+
+	/** The Constant VERSION. */
+	public static final String VERSION = "The version: ";
+
+	/** The Constant TIMEOUT. */
+	public static final String TIMEOUT = "The timeout: ";
+
+	/** The Constant FIELD. */
+	public static final String FIELD = "The field: ";
+
 	/** The Constant NULL_INPUT. */
 	public static final String NULL_INPUT = "null input parameters";
 
+	/** The Constant DEADLINE_EXPIRED. */
+	public static final String DEADLINE_EXPIRED = "request deadline expired";
+
+	/** The Constant IDEMPOTENCY_KEY_REUSED. */
+	public static final String IDEMPOTENCY_KEY_REUSED = "idempotency key reused for a different request";
+
 	/** The Constant PROPERTY_KEY_LOCAL_TEST. */
 	public static final String PROPERTY_KEY_LOCAL_TEST = "localtest";
 	
@@ -63,6 +110,49 @@ public final class BookStoreConstants {
 	/** The Constant PROPERTY_KEY_SERVER_PORT. */
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
 
+	/**
+	 * The Constant RESPONSE_CACHE_SIZE, the number of serialized responses kept
+	 * for revalidation by the server and by every proxy.
+	 */
+	public static final int RESPONSE_CACHE_SIZE = 256;
+
+	/**
+	 * The Constant COMPRESSION_THRESHOLD, the size in bytes from which message
+	 * content is compressed if the recipient accepts it.
+	 */
+	public static final int COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * The Constant MAX_PAGE_SIZE, the largest number of books which can be
+	 * read in one page.
+	 */
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * The Constant STREAM_CHUNK_SIZE, the number of books read and sent
+	 * together when the books are streamed.
+	 */
+	public static final int STREAM_CHUNK_SIZE = 256;
+
+	/**
+	 * The Constant CHANGE_LOG_SIZE, the number of book changes retained for
+	 * the readers of changes; readers further behind must read all the books
+	 * again.
+	 */
+	public static final int CHANGE_LOG_SIZE = 4096;
+
+	/**
+	 * The Constant MAX_LONG_POLL_MILLISECS, the longest time in milliseconds a
+	 * reader of changes may wait for the next change.
+	 */
+	public static final long MAX_LONG_POLL_MILLISECS = 20000;
+
+	/**
+	 * The Constant IDEMPOTENCY_CACHE_SIZE, the number of responses to requests
+	 * with an idempotency key kept by the server to answer their copies.
+	 */
+	public static final int IDEMPOTENCY_CACHE_SIZE = 4096;
+
 	/** The Constant EPSILON used for floating point number comparison */
 	public static final float EPSILON = 0.000001F;
 
@@ -0,0 +1,88 @@
+package com.acertainbookstore.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * {@link BookStoreDeadline} is the deadline of the request served by the
+ * current thread, i.e. the time after which the client no longer waits for
+ * the response. The server sets it from the request before calling the book
+ * store, and the book store acquires its locks through
+ * {@link #lock(Lock)}, so that a request abandoned by its client gives up
+ * instead of waiting for locks on behalf of nobody.
+ * <p>
+ * A thread without a deadline, e.g. a local test, waits for its locks as
+ * long as it takes.
+ */
+public final class BookStoreDeadline {
+
+	/** The deadline of the current thread in nanoseconds, or null. */
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+	/**
+	 * Prevents the instantiation of {@link BookStoreDeadline}.
+	 */
+	private BookStoreDeadline() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * Sets the deadline of the current thread, which must be cleared once
+	 * the request is served.
+	 *
+	 * @param deadlineNanos
+	 *            the deadline, in the time of {@link System#nanoTime()}
+	 */
+	public static void set(long deadlineNanos) {
+		DEADLINE.set(deadlineNanos);
+	}
+
+	/**
+	 * Clears the deadline of the current thread.
+	 */
+	public static void clear() {
+		DEADLINE.remove();
+	}
+
+	/**
+	 * Gets the time left before the deadline of the current thread.
+	 *
+	 * @return the remaining time in nanoseconds, negative if the deadline
+	 *         expired, or {@link Long#MAX_VALUE} if there is no deadline
+	 */
+	public static long getRemainingNanos() {
+		Long deadline = DEADLINE.get();
+		return (deadline != null) ? deadline - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Acquires a lock, waiting no longer than the deadline of the current
+	 * thread. A request whose deadline expired is not served even if the lock
+	 * is free.
+	 *
+	 * @param lock
+	 *            the lock
+	 * @throws BookStoreException
+	 *             if the deadline expired before the lock was acquired
+	 */
+	public static void lock(Lock lock) throws BookStoreException {
+		Long deadline = DEADLINE.get();
+
+		if (deadline == null) {
+			lock.lock();
+			return;
+		}
+
+		long remainingNanos = deadline - System.nanoTime();
+
+		try {
+			if (remainingNanos > 0 && lock.tryLock(remainingNanos, TimeUnit.NANOSECONDS)) {
+				return;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		throw new BookStoreDeadlineExpiredException();
+	}
+}
@@ -0,0 +1,19 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link BookStoreDeadlineExpiredException} signals that the deadline of a
+ * request expired while it waited for the locks of the book store. Nothing
+ * of the request was applied, so it may be executed again.
+ */
+public class BookStoreDeadlineExpiredException extends BookStoreException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Instantiates a new {@link BookStoreDeadlineExpiredException}.
+	 */
+	public BookStoreDeadlineExpiredException() {
+		super(BookStoreConstants.DEADLINE_EXPIRED);
+	}
+}
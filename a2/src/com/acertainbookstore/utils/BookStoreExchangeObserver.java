@@ -0,0 +1,37 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link BookStoreExchangeObserver} is told how long the phases of the HTTP
+ * exchanges of a request take, so that a slow call can be attributed to the
+ * client, the network or the server. It is called on the threads of the
+ * exchange, so it must be cheap and thread safe.
+ *
+ * @see BookStoreRequest#withObserver(BookStoreExchangeObserver)
+ */
+public interface BookStoreExchangeObserver {
+
+	/**
+	 * Records the time taken to serialize the request.
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	void onSerialized(long nanos);
+
+	/**
+	 * Records the time between sending the request and receiving the whole
+	 * response, which covers the network and the server.
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	void onReceived(long nanos);
+
+	/**
+	 * Records the time taken to decompress and deserialize the response.
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	void onDeserialized(long nanos);
+}
@@ -0,0 +1,1296 @@
+package com.acertainbookstore.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookChanges;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+
+/**
+ * {@link BookStoreJsonSerializer} serializes the bookstore messages as JSON
+ * text in UTF-8, for partner systems which require a text format. The JSON
+ * is written and read directly on byte streams, one element at a time, so
+ * that large lists of books never exist as a single string.
+ * <p>
+ * Every message is a JSON object with a single field naming its type, e.g.
+ * <code>{"isbnSet":[1,2]}</code> or
+ * <code>{"response":{"exception":null,"bookList":[...]}}</code>; strings and
+ * null are written as such. The supported types are the same as those of
+ * {@link BookStoreCompactSerializer}. The serializer has no state and is
+ * thread-safe.
+ *
+ * @see BookStoreSerializer
+ */
+public final class BookStoreJsonSerializer implements BookStoreSerializer {
+
+	/** The field of sets of ISBNs. */
+	private static final String ISBN_SET = "isbnSet";
+
+	/** The field of sets of {@link BookCopy}. */
+	private static final String BOOK_COPY_SET = "bookCopySet";
+
+	/** The field of sets of {@link BookEditorPick}. */
+	private static final String EDITOR_PICK_SET = "editorPickSet";
+
+	/** The field of sets of {@link BookRating}. */
+	private static final String RATING_SET = "ratingSet";
+
+	/** The field of sets of {@link StockBook}. */
+	private static final String STOCK_BOOK_SET = "stockBookSet";
+
+	/** The field of lists of {@link Book}. */
+	private static final String BOOK_LIST = "bookList";
+
+	/** The field of lists of {@link StockBook}. */
+	private static final String STOCK_BOOK_LIST = "stockBookList";
+
+	/** The field of lists of {@link BookChanges}. */
+	private static final String BOOK_CHANGES_LIST = "bookChangesList";
+
+	/** The field of lists of sets, e.g. the calls of a batch. */
+	private static final String SET_LIST = "setList";
+
+	/** The field of lists of outcomes of a batch. */
+	private static final String EXCEPTION_LIST = "exceptionList";
+
+	/** The field of {@link BookStoreResponse}. */
+	private static final String RESPONSE = "response";
+
+	/** The field of the exception of a response. */
+	private static final String EXCEPTION = "exception";
+
+	/** The size of the stream buffers. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object)
+	 */
+	@Override
+	public byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serialize(object, out);
+		return out.toByteArray();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(byte[])
+	 */
+	@Override
+	public Object deserialize(byte[] bytes) throws IOException {
+		return deserialize(new ByteArrayInputStream(bytes));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object, java.io.OutputStream)
+	 */
+	@Override
+	public void serialize(Object object, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+		writeValue(writer, object);
+		writer.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(java.io.
+	 * InputStream)
+	 */
+	@Override
+	public Object deserialize(InputStream in) throws IOException {
+		JsonReader reader = new JsonReader(
+				new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE));
+		Object value = readValue(reader);
+		reader.endDocument();
+		return value;
+	}
+
+	/**
+	 * Writes a message.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param value
+	 *            the message
+	 * @throws IOException
+	 *             Signals that the message is not a supported type.
+	 */
+	private static void writeValue(Writer out, Object value) throws IOException {
+		if (value == null) {
+			out.write("null");
+		} else if (value instanceof String) {
+			writeString(out, (String) value);
+		} else if (value instanceof BookStoreResponse) {
+			BookStoreResponse response = (BookStoreResponse) value;
+			out.write("{\"" + RESPONSE + "\":{\"" + EXCEPTION + "\":");
+			writeString(out, response.getException() != null ? response.getException().getMessage() : null);
+
+			if (response.getList() != null) {
+				out.write(',');
+				writeList(out, response.getList());
+			}
+
+			out.write("}}");
+		} else if (value instanceof Set) {
+			out.write('{');
+			writeSet(out, (Set<?>) value);
+			out.write('}');
+		} else if (value instanceof List) {
+			out.write('{');
+			writeList(out, (List<?>) value);
+			out.write('}');
+		} else {
+			throw new IOException("Unsupported type: " + value.getClass().getName());
+		}
+	}
+
+	/**
+	 * Reads a message.
+	 *
+	 * @param in
+	 *            the reader
+	 * @return the message
+	 * @throws IOException
+	 *             Signals that the JSON is malformed or not a message.
+	 */
+	private static Object readValue(JsonReader in) throws IOException {
+		if (in.peek() != '{') {
+			return in.readStringOrNull();
+		}
+
+		in.beginObject();
+		String type = in.nextName();
+
+		if (type == null) {
+			throw new IOException("Message without a type");
+		}
+
+		Object value;
+
+		if (type.equals(RESPONSE)) {
+			value = readResponse(in);
+		} else if (type.equals(BOOK_LIST) || type.equals(STOCK_BOOK_LIST)) {
+			value = readList(in, type);
+		} else if (type.equals(SET_LIST)) {
+			value = readSetList(in);
+		} else if (type.equals(EXCEPTION_LIST)) {
+			value = readExceptionList(in);
+		} else {
+			value = readSet(in, type);
+		}
+
+		if (in.nextName() != null) {
+			throw new IOException("Message with more than one type");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Writes a set field, named after the type of its elements; an empty set
+	 * is written as a set of ISBNs.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param set
+	 *            the set
+	 * @throws IOException
+	 *             Signals that the elements are not a supported type.
+	 */
+	private static void writeSet(Writer out, Set<?> set) throws IOException {
+		Object first = set.isEmpty() ? Integer.valueOf(0) : set.iterator().next();
+		Class<?> type;
+		String name;
+
+		if (first instanceof Integer) {
+			type = Integer.class;
+			name = ISBN_SET;
+		} else if (first instanceof BookCopy) {
+			type = BookCopy.class;
+			name = BOOK_COPY_SET;
+		} else if (first instanceof BookEditorPick) {
+			type = BookEditorPick.class;
+			name = EDITOR_PICK_SET;
+		} else if (first instanceof BookRating) {
+			type = BookRating.class;
+			name = RATING_SET;
+		} else if (first instanceof StockBook) {
+			type = StockBook.class;
+			name = STOCK_BOOK_SET;
+		} else {
+			throw new IOException("Unsupported set element: " + first);
+		}
+
+		out.write('"');
+		out.write(name);
+		out.write("\":[");
+		boolean firstElement = true;
+
+		for (Object element : set) {
+			if (!type.isInstance(element)) {
+				throw new IOException("Mixed set elements: " + element);
+			}
+
+			if (!firstElement) {
+				out.write(',');
+			}
+
+			firstElement = false;
+
+			if (element instanceof Integer) {
+				out.write(element.toString());
+			} else if (element instanceof BookCopy) {
+				BookCopy bookCopy = (BookCopy) element;
+				out.write("{\"isbn\":" + bookCopy.getISBN() + ",\"numCopies\":" + bookCopy.getNumCopies() + "}");
+			} else if (element instanceof BookEditorPick) {
+				BookEditorPick editorPick = (BookEditorPick) element;
+				out.write("{\"isbn\":" + editorPick.getISBN() + ",\"editorPick\":" + editorPick.isEditorPick() + "}");
+			} else if (element instanceof BookRating) {
+				BookRating rating = (BookRating) element;
+				out.write("{\"isbn\":" + rating.getISBN() + ",\"rating\":" + rating.getRating() + "}");
+			} else {
+				writeBook(out, (StockBook) element, true);
+			}
+		}
+
+		out.write(']');
+	}
+
+	/**
+	 * Reads the array of a set field.
+	 *
+	 * @param in
+	 *            the reader
+	 * @param name
+	 *            the name of the field
+	 * @return the set
+	 * @throws IOException
+	 *             Signals that the JSON is malformed or not a set.
+	 */
+	private static Set<?> readSet(JsonReader in, String name) throws IOException {
+		Set<Object> set = new HashSet<>();
+		in.beginArray();
+
+		while (in.hasNextElement()) {
+			switch (name) {
+			case ISBN_SET:
+				set.add((int) in.readLong());
+				break;
+
+			case BOOK_COPY_SET:
+			case EDITOR_PICK_SET:
+			case RATING_SET:
+				set.add(readPair(in, name));
+				break;
+
+			case STOCK_BOOK_SET:
+				set.add(readBook(in, true));
+				break;
+
+			default:
+				throw new IOException("Unknown message type: " + name);
+			}
+		}
+
+		return set;
+	}
+
+	/**
+	 * Reads an element of a set of {@link BookCopy}, {@link BookEditorPick} or
+	 * {@link BookRating}, which all pair an ISBN with a value.
+	 *
+	 * @param in
+	 *            the reader
+	 * @param name
+	 *            the name of the set field
+	 * @return the element
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static Object readPair(JsonReader in, String name) throws IOException {
+		int isbn = 0;
+		long value = 0;
+		boolean flag = false;
+		in.beginObject();
+		String field;
+
+		while ((field = in.nextName()) != null) {
+			switch (field) {
+			case "isbn":
+				isbn = (int) in.readLong();
+				break;
+
+			case "numCopies":
+			case "rating":
+				value = in.readLong();
+				break;
+
+			case "editorPick":
+				flag = in.readBoolean();
+				break;
+
+			default:
+				in.skipValue();
+				break;
+			}
+		}
+
+		switch (name) {
+		case BOOK_COPY_SET:
+			return new BookCopy(isbn, (int) value);
+
+		case EDITOR_PICK_SET:
+			return new BookEditorPick(isbn, flag);
+
+		default:
+			return new BookRating(isbn, (int) value);
+		}
+	}
+
+	/**
+	 * Writes a list field in its order, named after the type of its elements,
+	 * which its first element tells for the lists of other than books; an
+	 * empty list is written as a list of {@link Book}.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not a supported type.
+	 */
+	private static void writeList(Writer out, List<?> list) throws IOException {
+		if (!list.isEmpty() && list.get(0) instanceof BookChanges) {
+			writeBookChangesList(out, list);
+			return;
+		}
+
+		if (!list.isEmpty() && list.get(0) instanceof Set) {
+			writeSetList(out, list);
+			return;
+		}
+
+		if (!list.isEmpty() && (list.get(0) == null || list.get(0) instanceof BookStoreException)) {
+			writeExceptionList(out, list);
+			return;
+		}
+
+		boolean stockBooks = !list.isEmpty();
+
+		for (Object element : list) {
+			if (!(element instanceof Book)) {
+				throw new IOException("Unsupported list element: " + element);
+			}
+
+			stockBooks &= element instanceof StockBook;
+		}
+
+		out.write(stockBooks ? "\"" + STOCK_BOOK_LIST + "\":[" : "\"" + BOOK_LIST + "\":[");
+
+		for (int i = 0; i < list.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+
+			writeBook(out, (Book) list.get(i), stockBooks);
+		}
+
+		out.write(']');
+	}
+
+	/**
+	 * Writes a list field of {@link BookChanges}.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not all {@link BookChanges}.
+	 */
+	private static void writeBookChangesList(Writer out, List<?> list) throws IOException {
+		out.write("\"" + BOOK_CHANGES_LIST + "\":[");
+
+		for (int i = 0; i < list.size(); i++) {
+			if (!(list.get(i) instanceof BookChanges)) {
+				throw new IOException("Unsupported list element: " + list.get(i));
+			}
+
+			BookChanges changes = (BookChanges) list.get(i);
+
+			if (i > 0) {
+				out.write(',');
+			}
+
+			out.write("{\"version\":" + changes.getVersion() + ",\"fullResync\":" + changes.isFullResync()
+					+ ",\"modified\":");
+			writeIsbns(out, changes.getModifiedISBNs());
+			out.write(",\"removed\":");
+			writeIsbns(out, changes.getRemovedISBNs());
+			out.write('}');
+		}
+
+		out.write(']');
+	}
+
+	/**
+	 * Writes a list field of sets, each as a message of its own type.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not all supported sets.
+	 */
+	private static void writeSetList(Writer out, List<?> list) throws IOException {
+		out.write("\"" + SET_LIST + "\":[");
+
+		for (int i = 0; i < list.size(); i++) {
+			if (!(list.get(i) instanceof Set)) {
+				throw new IOException("Unsupported list element: " + list.get(i));
+			}
+
+			if (i > 0) {
+				out.write(',');
+			}
+
+			writeValue(out, list.get(i));
+		}
+
+		out.write(']');
+	}
+
+	/**
+	 * Reads the array of a list field of sets.
+	 *
+	 * @param in
+	 *            the reader
+	 * @return the list
+	 * @throws IOException
+	 *             Signals that the JSON is malformed or an element is not a
+	 *             set.
+	 */
+	private static List<Set<?>> readSetList(JsonReader in) throws IOException {
+		List<Set<?>> list = new ArrayList<>();
+		in.beginArray();
+
+		while (in.hasNextElement()) {
+			Object element = readValue(in);
+
+			if (!(element instanceof Set)) {
+				throw new IOException("List element is not a set: " + element);
+			}
+
+			list.add((Set<?>) element);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Writes a list field of outcomes of a batch, as the messages of the
+	 * exceptions and null for the calls which succeeded.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param list
+	 *            the list
+	 * @throws IOException
+	 *             Signals that the elements are not all outcomes.
+	 */
+	private static void writeExceptionList(Writer out, List<?> list) throws IOException {
+		out.write("\"" + EXCEPTION_LIST + "\":[");
+
+		for (int i = 0; i < list.size(); i++) {
+			Object element = list.get(i);
+
+			if (element != null && !(element instanceof BookStoreException)) {
+				throw new IOException("Unsupported list element: " + element);
+			}
+
+			if (i > 0) {
+				out.write(',');
+			}
+
+			String message = (element != null) ? ((BookStoreException) element).getMessage() : null;
+			writeString(out, (element != null && message == null) ? "" : message);
+		}
+
+		out.write(']');
+	}
+
+	/**
+	 * Reads the array of a list field of outcomes of a batch.
+	 *
+	 * @param in
+	 *            the reader
+	 * @return the list
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static List<BookStoreException> readExceptionList(JsonReader in) throws IOException {
+		List<BookStoreException> list = new ArrayList<>();
+		in.beginArray();
+
+		while (in.hasNextElement()) {
+			String message = in.readStringOrNull();
+			list.add((message != null) ? new BookStoreException(message) : null);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Writes an array of ISBNs.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param isbns
+	 *            the ISBNs
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeIsbns(Writer out, Set<Integer> isbns) throws IOException {
+		out.write('[');
+		boolean first = true;
+
+		for (Integer isbn : isbns) {
+			if (!first) {
+				out.write(',');
+			}
+
+			first = false;
+			out.write(isbn.toString());
+		}
+
+		out.write(']');
+	}
+
+	/**
+	 * Reads the array of a list field of {@link BookChanges}.
+	 *
+	 * @param in
+	 *            the reader
+	 * @return the list
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static List<BookChanges> readBookChangesList(JsonReader in) throws IOException {
+		List<BookChanges> list = new ArrayList<>();
+		in.beginArray();
+
+		while (in.hasNextElement()) {
+			long version = 0;
+			boolean fullResync = false;
+			Set<Integer> modified = new HashSet<>();
+			Set<Integer> removed = new HashSet<>();
+			in.beginObject();
+			String field;
+
+			while ((field = in.nextName()) != null) {
+				switch (field) {
+				case "version":
+					version = in.readLong();
+					break;
+
+				case "fullResync":
+					fullResync = in.readBoolean();
+					break;
+
+				case "modified":
+					readIsbns(in, modified);
+					break;
+
+				case "removed":
+					readIsbns(in, removed);
+					break;
+
+				default:
+					in.skipValue();
+					break;
+				}
+			}
+
+			list.add(new BookChanges(version, fullResync, modified, removed));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Reads an array of ISBNs.
+	 *
+	 * @param in
+	 *            the reader
+	 * @param isbns
+	 *            the set to add the ISBNs to
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static void readIsbns(JsonReader in, Set<Integer> isbns) throws IOException {
+		in.beginArray();
+
+		while (in.hasNextElement()) {
+			isbns.add((int) in.readLong());
+		}
+	}
+
+	/**
+	 * Reads the array of a list field.
+	 *
+	 * @param in
+	 *            the reader
+	 * @param name
+	 *            the name of the field
+	 * @return the list
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static List<?> readList(JsonReader in, String name) throws IOException {
+		List<Book> list = new ArrayList<>();
+		boolean stockBooks = name.equals(STOCK_BOOK_LIST);
+		in.beginArray();
+
+		while (in.hasNextElement()) {
+			list.add(readBook(in, stockBooks));
+		}
+
+		return list;
+	}
+
+	/**
+	 * Reads the object of a response field.
+	 *
+	 * @param in
+	 *            the reader
+	 * @return the response
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static BookStoreResponse readResponse(JsonReader in) throws IOException {
+		BookStoreResponse response = new BookStoreResponse();
+		in.beginObject();
+		String field;
+
+		while ((field = in.nextName()) != null) {
+			switch (field) {
+			case EXCEPTION:
+				String message = in.readStringOrNull();
+
+				if (message != null) {
+					response.setException(new BookStoreException(message));
+				}
+
+				break;
+
+			case BOOK_LIST:
+			case STOCK_BOOK_LIST:
+				response.setList(readList(in, field));
+				break;
+
+			case BOOK_CHANGES_LIST:
+				response.setList(readBookChangesList(in));
+				break;
+
+			case EXCEPTION_LIST:
+				response.setList(readExceptionList(in));
+				break;
+
+			default:
+				in.skipValue();
+				break;
+			}
+		}
+
+		return response;
+	}
+
+	/**
+	 * Writes a book.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param book
+	 *            the book
+	 * @param stockBook
+	 *            whether to write the fields of a stock book
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeBook(Writer out, Book book, boolean stockBook) throws IOException {
+		out.write("{\"isbn\":" + book.getISBN() + ",\"title\":");
+		writeString(out, book.getTitle());
+		out.write(",\"author\":");
+		writeString(out, book.getAuthor());
+		out.write(",\"price\":");
+
+		if (Float.isFinite(book.getPrice())) {
+			out.write(Float.toString(book.getPrice()));
+		} else {
+			writeString(out, Float.toString(book.getPrice()));
+		}
+
+		if (stockBook) {
+			StockBook stock = (StockBook) book;
+			out.write(",\"numCopies\":" + stock.getNumCopies() + ",\"numSaleMisses\":" + stock.getNumSaleMisses()
+					+ ",\"numTimesRated\":" + stock.getNumTimesRated() + ",\"totalRating\":"
+					+ stock.getTotalRating() + ",\"editorPick\":" + stock.isEditorPick());
+		}
+
+		out.write('}');
+	}
+
+	/**
+	 * Reads a book.
+	 *
+	 * @param in
+	 *            the reader
+	 * @param stockBook
+	 *            whether to read a stock book
+	 * @return the book
+	 * @throws IOException
+	 *             Signals that the JSON is malformed.
+	 */
+	private static Book readBook(JsonReader in, boolean stockBook) throws IOException {
+		int isbn = 0;
+		String title = null;
+		String author = null;
+		float price = 0;
+		int numCopies = 0;
+		long numSaleMisses = 0;
+		long numTimesRated = 0;
+		long totalRating = 0;
+		boolean editorPick = false;
+		in.beginObject();
+		String field;
+
+		while ((field = in.nextName()) != null) {
+			switch (field) {
+			case "isbn":
+				isbn = (int) in.readLong();
+				break;
+
+			case "title":
+				title = in.readStringOrNull();
+				break;
+
+			case "author":
+				author = in.readStringOrNull();
+				break;
+
+			case "price":
+				price = in.readFloat();
+				break;
+
+			case "numCopies":
+				numCopies = (int) in.readLong();
+				break;
+
+			case "numSaleMisses":
+				numSaleMisses = in.readLong();
+				break;
+
+			case "numTimesRated":
+				numTimesRated = in.readLong();
+				break;
+
+			case "totalRating":
+				totalRating = in.readLong();
+				break;
+
+			case "editorPick":
+				editorPick = in.readBoolean();
+				break;
+
+			default:
+				in.skipValue();
+				break;
+			}
+		}
+
+		if (stockBook) {
+			return new ImmutableStockBook(isbn, title, author, price, numCopies, numSaleMisses, numTimesRated,
+					totalRating, editorPick);
+		}
+
+		return new ImmutableBook(isbn, title, author, price);
+	}
+
+	/**
+	 * Writes a JSON string, or null.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param value
+	 *            the string, or null
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeString(Writer out, String value) throws IOException {
+		if (value == null) {
+			out.write("null");
+			return;
+		}
+
+		out.write('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+
+			case '\\':
+				out.write("\\\\");
+				break;
+
+			case '\n':
+				out.write("\\n");
+				break;
+
+			case '\r':
+				out.write("\\r");
+				break;
+
+			case '\t':
+				out.write("\\t");
+				break;
+
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+
+				break;
+			}
+		}
+
+		out.write('"');
+	}
+
+	/**
+	 * {@link JsonReader} is a minimal pull parser of JSON, reading one token
+	 * at a time from a character stream.
+	 */
+	private static final class JsonReader {
+
+		/** The character stream. */
+		private final Reader in;
+
+		/** The next character, or -2 if it has not been read yet. */
+		private int next = -2;
+
+		/** The builder of strings and numbers, reused between tokens. */
+		private final StringBuilder token = new StringBuilder();
+
+		/**
+		 * Instantiates a new {@link JsonReader}.
+		 *
+		 * @param in
+		 *            the character stream
+		 */
+		JsonReader(Reader in) {
+			this.in = in;
+		}
+
+		/**
+		 * Peeks at the next character which is not white space.
+		 *
+		 * @return the character, or -1 at the end of the stream
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		int peek() throws IOException {
+			if (next == -2) {
+				next = in.read();
+			}
+
+			while (next == ' ' || next == '\n' || next == '\r' || next == '\t') {
+				next = in.read();
+			}
+
+			return next;
+		}
+
+		/**
+		 * Consumes the next character which is not white space.
+		 *
+		 * @return the character
+		 * @throws IOException
+		 *             Signals that the stream ended.
+		 */
+		char read() throws IOException {
+			int c = peek();
+
+			if (c < 0) {
+				throw new IOException("Unexpected end of JSON");
+			}
+
+			next = -2;
+			return (char) c;
+		}
+
+		/**
+		 * Consumes an expected character.
+		 *
+		 * @param expected
+		 *            the expected character
+		 * @throws IOException
+		 *             Signals that another character was found.
+		 */
+		void expect(char expected) throws IOException {
+			char c = read();
+
+			if (c != expected) {
+				throw new IOException("Expected '" + expected + "' but found '" + c + "'");
+			}
+		}
+
+		/**
+		 * Checks that nothing but white space is left.
+		 *
+		 * @throws IOException
+		 *             Signals that there is trailing content.
+		 */
+		void endDocument() throws IOException {
+			if (peek() >= 0) {
+				throw new IOException("Unexpected trailing JSON");
+			}
+		}
+
+		/**
+		 * Consumes the start of an object.
+		 *
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		void beginObject() throws IOException {
+			expect('{');
+		}
+
+		/**
+		 * Consumes the name of the next field of an object, or the end of the
+		 * object.
+		 *
+		 * @return the name, or null at the end of the object
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		String nextName() throws IOException {
+			if (peek() == '}') {
+				read();
+				return null;
+			}
+
+			if (peek() == ',') {
+				read();
+			}
+
+			String name = readString();
+			expect(':');
+			return name;
+		}
+
+		/**
+		 * Consumes the start of an array.
+		 *
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		void beginArray() throws IOException {
+			expect('[');
+		}
+
+		/**
+		 * Consumes the separator before the next element of an array, or the
+		 * end of the array.
+		 *
+		 * @return true, if there is a next element
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		boolean hasNextElement() throws IOException {
+			if (peek() == ']') {
+				read();
+				return false;
+			}
+
+			if (peek() == ',') {
+				read();
+			}
+
+			return true;
+		}
+
+		/**
+		 * Consumes a string, or null.
+		 *
+		 * @return the string, or null
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		String readStringOrNull() throws IOException {
+			if (peek() == 'n') {
+				readLiteral("null");
+				return null;
+			}
+
+			return readString();
+		}
+
+		/**
+		 * Consumes a string.
+		 *
+		 * @return the string
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		String readString() throws IOException {
+			expect('"');
+			token.setLength(0);
+
+			while (true) {
+				int c = in.read();
+
+				if (c < 0) {
+					throw new IOException("Unterminated JSON string");
+				} else if (c == '"') {
+					return token.toString();
+				} else if (c != '\\') {
+					token.append((char) c);
+					continue;
+				}
+
+				c = in.read();
+
+				switch (c) {
+				case 'b':
+					token.append('\b');
+					break;
+
+				case 'f':
+					token.append('\f');
+					break;
+
+				case 'n':
+					token.append('\n');
+					break;
+
+				case 'r':
+					token.append('\r');
+					break;
+
+				case 't':
+					token.append('\t');
+					break;
+
+				case 'u':
+					char[] hex = new char[4];
+
+					for (int i = 0; i < hex.length; i++) {
+						int h = in.read();
+
+						if (h < 0) {
+							throw new IOException("Unterminated JSON string");
+						}
+
+						hex[i] = (char) h;
+					}
+
+					try {
+						token.append((char) Integer.parseInt(new String(hex), 16));
+					} catch (NumberFormatException ex) {
+						throw new IOException("Malformed JSON escape", ex);
+					}
+
+					break;
+
+				case '"':
+				case '\\':
+				case '/':
+					token.append((char) c);
+					break;
+
+				default:
+					throw new IOException("Malformed JSON escape");
+				}
+			}
+		}
+
+		/**
+		 * Consumes an integer.
+		 *
+		 * @return the integer
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		long readLong() throws IOException {
+			try {
+				return Long.parseLong(readNumber());
+			} catch (NumberFormatException ex) {
+				throw new IOException("Malformed JSON integer", ex);
+			}
+		}
+
+		/**
+		 * Consumes a floating point number, which may also be written as a
+		 * string for the values JSON cannot represent.
+		 *
+		 * @return the number
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		float readFloat() throws IOException {
+			try {
+				return Float.parseFloat(peek() == '"' ? readString() : readNumber());
+			} catch (NumberFormatException ex) {
+				throw new IOException("Malformed JSON number", ex);
+			}
+		}
+
+		/**
+		 * Consumes a boolean.
+		 *
+		 * @return the boolean
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		boolean readBoolean() throws IOException {
+			if (peek() == 't') {
+				readLiteral("true");
+				return true;
+			}
+
+			readLiteral("false");
+			return false;
+		}
+
+		/**
+		 * Consumes a value of any type.
+		 *
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		void skipValue() throws IOException {
+			switch (peek()) {
+			case '{':
+				beginObject();
+
+				while (nextName() != null) {
+					skipValue();
+				}
+
+				break;
+
+			case '[':
+				beginArray();
+
+				while (hasNextElement()) {
+					skipValue();
+				}
+
+				break;
+
+			case '"':
+				readString();
+				break;
+
+			case 't':
+			case 'f':
+				readBoolean();
+				break;
+
+			case 'n':
+				readLiteral("null");
+				break;
+
+			default:
+				readNumber();
+				break;
+			}
+		}
+
+		/**
+		 * Consumes the characters of a number.
+		 *
+		 * @return the characters
+		 * @throws IOException
+		 *             Signals that the JSON is malformed.
+		 */
+		private String readNumber() throws IOException {
+			token.setLength(0);
+			int c = peek();
+
+			while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+				token.append((char) c);
+				c = in.read();
+			}
+
+			next = c;
+
+			if (token.length() == 0) {
+				throw new IOException("Expected a JSON number");
+			}
+
+			return token.toString();
+		}
+
+		/**
+		 * Consumes a literal.
+		 *
+		 * @param literal
+		 *            the literal
+		 * @throws IOException
+		 *             Signals that another literal was found.
+		 */
+		private void readLiteral(String literal) throws IOException {
+			boolean matches = read() == literal.charAt(0);
+
+			for (int i = 1; i < literal.length() && matches; i++) {
+				matches = in.read() == literal.charAt(i);
+			}
+
+			if (!matches) {
+				throw new IOException("Expected " + literal);
+			}
+		}
+	}
+}
@@ -0,0 +1,423 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import com.acertainbookstore.business.BookChanges;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * {@link BookStoreKryoRegistration} registers the types sent over the wire
+ * with a {@link Kryo} instance, with fixed registration IDs and hand-written
+ * serializers. Every type is then written as a small integer instead of its
+ * class name, and without reflection.
+ * <p>
+ * The IDs and the layouts of the serializers are part of the wire format:
+ * changing either of them requires bumping {@link #WIRE_VERSION}.
+ */
+public final class BookStoreKryoRegistration {
+
+	/** The Constant WIRE_VERSION, written in front of every message. */
+	public static final byte WIRE_VERSION = 1;
+
+	/** The registration ID of {@link BookStoreResponse}. */
+	private static final int RESPONSE_ID = 20;
+
+	/** The registration ID of {@link BookStoreException}. */
+	private static final int EXCEPTION_ID = 21;
+
+	/** The registration ID of {@link BookCopy}. */
+	private static final int BOOK_COPY_ID = 22;
+
+	/** The registration ID of {@link BookEditorPick}. */
+	private static final int BOOK_EDITOR_PICK_ID = 23;
+
+	/** The registration ID of {@link BookRating}. */
+	private static final int BOOK_RATING_ID = 24;
+
+	/** The registration ID of {@link ImmutableBook}. */
+	private static final int IMMUTABLE_BOOK_ID = 25;
+
+	/** The registration ID of {@link ImmutableStockBook}. */
+	private static final int IMMUTABLE_STOCK_BOOK_ID = 26;
+
+	/** The registration ID of {@link BookChanges}. */
+	private static final int BOOK_CHANGES_ID = 27;
+
+	/** The registration ID of {@link HashSet}. */
+	private static final int HASH_SET_ID = 30;
+
+	/** The registration ID of {@link LinkedHashSet}. */
+	private static final int LINKED_HASH_SET_ID = 31;
+
+	/** The registration ID of {@link ArrayList}. */
+	private static final int ARRAY_LIST_ID = 32;
+
+	/**
+	 * Prevents the instantiation of {@link BookStoreKryoRegistration}.
+	 */
+	private BookStoreKryoRegistration() {
+		// Prevent instantiation.
+	}
+
+	/**
+	 * Creates a {@link Kryo} instance which only accepts the registered wire
+	 * types and does not track references, since messages contain no shared
+	 * or cyclic objects.
+	 *
+	 * @return the kryo instance
+	 */
+	public static Kryo newKryo() {
+		Kryo kryo = new Kryo();
+		kryo.setRegistrationRequired(true);
+		kryo.setReferences(false);
+
+		kryo.register(BookStoreResponse.class, new ResponseSerializer(), RESPONSE_ID);
+		kryo.register(BookStoreException.class, new ExceptionSerializer(), EXCEPTION_ID);
+		kryo.register(BookCopy.class, new BookCopySerializer(), BOOK_COPY_ID);
+		kryo.register(BookEditorPick.class, new BookEditorPickSerializer(), BOOK_EDITOR_PICK_ID);
+		kryo.register(BookRating.class, new BookRatingSerializer(), BOOK_RATING_ID);
+		kryo.register(ImmutableBook.class, new ImmutableBookSerializer(), IMMUTABLE_BOOK_ID);
+		kryo.register(ImmutableStockBook.class, new ImmutableStockBookSerializer(), IMMUTABLE_STOCK_BOOK_ID);
+		kryo.register(BookChanges.class, new BookChangesSerializer(), BOOK_CHANGES_ID);
+		kryo.register(HashSet.class, new CollectionSerializer(HashSet::new), HASH_SET_ID);
+		kryo.register(LinkedHashSet.class, new CollectionSerializer(LinkedHashSet::new), LINKED_HASH_SET_ID);
+		kryo.register(ArrayList.class, new CollectionSerializer(ArrayList::new), ARRAY_LIST_ID);
+		return kryo;
+	}
+
+	/**
+	 * Writes the elements of a collection. If all the elements have the same
+	 * type, the type is written once rather than in front of every element.
+	 *
+	 * @param kryo
+	 *            the kryo instance
+	 * @param output
+	 *            the output
+	 * @param collection
+	 *            the collection
+	 */
+	static void writeElements(Kryo kryo, Output output, Collection<?> collection) {
+		output.writeVarInt(collection.size(), true);
+
+		if (collection.isEmpty()) {
+			return;
+		}
+
+		Class<?> elementType = null;
+
+		for (Object element : collection) {
+			if (element == null || (elementType != null && element.getClass() != elementType)) {
+				elementType = null;
+				break;
+			}
+
+			elementType = element.getClass();
+		}
+
+		output.writeBoolean(elementType != null);
+
+		if (elementType != null) {
+			Registration registration = kryo.writeClass(output, elementType);
+
+			for (Object element : collection) {
+				kryo.writeObject(output, element, registration.getSerializer());
+			}
+		} else {
+			for (Object element : collection) {
+				kryo.writeClassAndObject(output, element);
+			}
+		}
+	}
+
+	/**
+	 * Reads the elements written by
+	 * {@link #writeElements(Kryo, Output, Collection)}.
+	 *
+	 * @param kryo
+	 *            the kryo instance
+	 * @param input
+	 *            the input
+	 * @param factory
+	 *            the factory of the collection, given its size
+	 * @return the collection
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Collection<Object> readElements(Kryo kryo, Input input, IntFunction<? extends Collection> factory) {
+		int size = input.readVarInt(true);
+		Collection<Object> collection = factory.apply(size);
+
+		if (size == 0) {
+			return collection;
+		}
+
+		if (input.readBoolean()) {
+			Registration registration = kryo.readClass(input);
+
+			for (int i = 0; i < size; i++) {
+				collection.add(kryo.readObject(input, registration.getType(), registration.getSerializer()));
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				collection.add(kryo.readClassAndObject(input));
+			}
+		}
+
+		return collection;
+	}
+
+	/**
+	 * {@link CollectionSerializer} serializes the registered collections.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final class CollectionSerializer extends Serializer<Collection> {
+
+		/** The factory of the collection, given its size. */
+		private final IntFunction<? extends Collection> factory;
+
+		/**
+		 * Instantiates a new {@link CollectionSerializer}.
+		 *
+		 * @param factory
+		 *            the factory of the collection, given its size
+		 */
+		private CollectionSerializer(IntFunction<? extends Collection> factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Collection collection) {
+			writeElements(kryo, output, collection);
+		}
+
+		@Override
+		public Collection read(Kryo kryo, Input input, Class<Collection> type) {
+			return readElements(kryo, input, factory);
+		}
+	}
+
+	/**
+	 * {@link ResponseSerializer} serializes {@link BookStoreResponse}. The
+	 * list is always read back as an {@link ArrayList}.
+	 */
+	private static final class ResponseSerializer extends Serializer<BookStoreResponse> {
+
+		@Override
+		public void write(Kryo kryo, Output output, BookStoreResponse response) {
+			kryo.writeObjectOrNull(output, response.getException(), BookStoreException.class);
+			output.writeBoolean(response.getList() != null);
+
+			if (response.getList() != null) {
+				writeElements(kryo, output, response.getList());
+			}
+		}
+
+		@Override
+		public BookStoreResponse read(Kryo kryo, Input input, Class<BookStoreResponse> type) {
+			BookStoreResponse response = new BookStoreResponse();
+			response.setException(kryo.readObjectOrNull(input, BookStoreException.class));
+
+			if (input.readBoolean()) {
+				response.setList((List<?>) readElements(kryo, input, ArrayList::new));
+			}
+
+			return response;
+		}
+	}
+
+	/**
+	 * {@link ExceptionSerializer} serializes {@link BookStoreException} by its
+	 * message; the stack trace and cause stay on the server.
+	 */
+	private static final class ExceptionSerializer extends Serializer<BookStoreException> {
+
+		@Override
+		public void write(Kryo kryo, Output output, BookStoreException exception) {
+			output.writeString(exception.getMessage());
+		}
+
+		@Override
+		public BookStoreException read(Kryo kryo, Input input, Class<BookStoreException> type) {
+			return new BookStoreException(input.readString());
+		}
+	}
+
+	/**
+	 * {@link BookCopySerializer} serializes {@link BookCopy}.
+	 */
+	private static final class BookCopySerializer extends Serializer<BookCopy> {
+
+		@Override
+		public void write(Kryo kryo, Output output, BookCopy bookCopy) {
+			output.writeVarInt(bookCopy.getISBN(), true);
+			output.writeVarInt(bookCopy.getNumCopies(), false);
+		}
+
+		@Override
+		public BookCopy read(Kryo kryo, Input input, Class<BookCopy> type) {
+			return new BookCopy(input.readVarInt(true), input.readVarInt(false));
+		}
+	}
+
+	/**
+	 * {@link BookChangesSerializer} serializes {@link BookChanges}.
+	 */
+	private static final class BookChangesSerializer extends Serializer<BookChanges> {
+
+		@Override
+		public void write(Kryo kryo, Output output, BookChanges changes) {
+			output.writeVarLong(changes.getVersion(), true);
+			output.writeBoolean(changes.isFullResync());
+			writeIsbns(output, changes.getModifiedISBNs());
+			writeIsbns(output, changes.getRemovedISBNs());
+		}
+
+		@Override
+		public BookChanges read(Kryo kryo, Input input, Class<BookChanges> type) {
+			return new BookChanges(input.readVarLong(true), input.readBoolean(), readIsbns(input), readIsbns(input));
+		}
+
+		/**
+		 * Writes a set of ISBNs.
+		 *
+		 * @param output
+		 *            the output
+		 * @param isbns
+		 *            the ISBNs
+		 */
+		private static void writeIsbns(Output output, Set<Integer> isbns) {
+			output.writeVarInt(isbns.size(), true);
+
+			for (int isbn : isbns) {
+				output.writeVarInt(isbn, true);
+			}
+		}
+
+		/**
+		 * Reads a set of ISBNs.
+		 *
+		 * @param input
+		 *            the input
+		 * @return the ISBNs
+		 */
+		private static Set<Integer> readIsbns(Input input) {
+			int size = input.readVarInt(true);
+			Set<Integer> isbns = new HashSet<>(Math.max(16, size * 2));
+
+			for (int i = 0; i < size; i++) {
+				isbns.add(input.readVarInt(true));
+			}
+
+			return isbns;
+		}
+	}
+
+	/**
+	 * {@link BookEditorPickSerializer} serializes {@link BookEditorPick}.
+	 */
+	private static final class BookEditorPickSerializer extends Serializer<BookEditorPick> {
+
+		@Override
+		public void write(Kryo kryo, Output output, BookEditorPick editorPick) {
+			output.writeVarInt(editorPick.getISBN(), true);
+			output.writeBoolean(editorPick.isEditorPick());
+		}
+
+		@Override
+		public BookEditorPick read(Kryo kryo, Input input, Class<BookEditorPick> type) {
+			return new BookEditorPick(input.readVarInt(true), input.readBoolean());
+		}
+	}
+
+	/**
+	 * {@link BookRatingSerializer} serializes {@link BookRating}.
+	 */
+	private static final class BookRatingSerializer extends Serializer<BookRating> {
+
+		@Override
+		public void write(Kryo kryo, Output output, BookRating rating) {
+			output.writeVarInt(rating.getISBN(), true);
+			output.writeVarInt(rating.getRating(), false);
+		}
+
+		@Override
+		public BookRating read(Kryo kryo, Input input, Class<BookRating> type) {
+			return new BookRating(input.readVarInt(true), input.readVarInt(false));
+		}
+	}
+
+	/**
+	 * {@link ImmutableBookSerializer} serializes {@link ImmutableBook}.
+	 */
+	private static final class ImmutableBookSerializer extends Serializer<ImmutableBook> {
+
+		/**
+		 * Instantiates a new {@link ImmutableBookSerializer}.
+		 */
+		private ImmutableBookSerializer() {
+			super(false, true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, ImmutableBook book) {
+			output.writeVarInt(book.getISBN(), true);
+			output.writeString(book.getTitle());
+			output.writeString(book.getAuthor());
+			output.writeFloat(book.getPrice());
+		}
+
+		@Override
+		public ImmutableBook read(Kryo kryo, Input input, Class<ImmutableBook> type) {
+			return new ImmutableBook(input.readVarInt(true), input.readString(), input.readString(),
+					input.readFloat());
+		}
+	}
+
+	/**
+	 * {@link ImmutableStockBookSerializer} serializes
+	 * {@link ImmutableStockBook}.
+	 */
+	private static final class ImmutableStockBookSerializer extends Serializer<ImmutableStockBook> {
+
+		/**
+		 * Instantiates a new {@link ImmutableStockBookSerializer}.
+		 */
+		private ImmutableStockBookSerializer() {
+			super(false, true);
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, ImmutableStockBook book) {
+			output.writeVarInt(book.getISBN(), true);
+			output.writeString(book.getTitle());
+			output.writeString(book.getAuthor());
+			output.writeFloat(book.getPrice());
+			output.writeVarInt(book.getNumCopies(), false);
+			output.writeVarLong(book.getNumSaleMisses(), false);
+			output.writeVarLong(book.getNumTimesRated(), false);
+			output.writeVarLong(book.getTotalRating(), false);
+			output.writeBoolean(book.isEditorPick());
+		}
+
+		@Override
+		public ImmutableStockBook read(Kryo kryo, Input input, Class<ImmutableStockBook> type) {
+			return new ImmutableStockBook(input.readVarInt(true), input.readString(), input.readString(),
+					input.readFloat(), input.readVarInt(false), input.readVarLong(false), input.readVarLong(false),
+					input.readVarLong(false), input.readBoolean());
+		}
+	}
+}
@@ -1,34 +1,85 @@
 package com.acertainbookstore.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import com.acertainbookstore.business.ImmutableStockBook;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
-import org.objenesis.strategy.StdInstantiatorStrategy;
 
 /**
  * {@link BookStoreKryoSerializer} serializes objects to arrays of bytes
- * representing strings using the Kryo library.
+ * representing strings using the Kryo library. Only the wire types registered
+ * by {@link BookStoreKryoRegistration} can be serialized, and every message
+ * starts with the wire version.
+ * <p>
+ * The serializer is thread-safe: the Kryo instances and buffers are borrowed
+ * from bounded pools for the duration of a call, so their number follows the
+ * number of concurrent calls rather than the number of threads.
  * 
  * @see BookStoreSerializer
+ * @see BookStoreKryoRegistration
  */
 public final class BookStoreKryoSerializer implements BookStoreSerializer {
 
-	/** The binary stream. */
-	private final Kryo binaryStream;
+	/** The maximum number of idle instances of every kind. */
+	private static final int MAX_IDLE_INSTANCES = 64;
+
+	/** The initial size of the output buffers. */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The largest output buffer that is returned to the pool, so that a few
+	 * large messages do not pin their buffers.
+	 */
+	private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+	/** The buffer of idle inputs, so that they do not pin the last message. */
+	private static final byte[] EMPTY_BUFFER = new byte[0];
+
+	/** The binary streams. */
+	private final BookStoreObjectPool<Kryo> binaryStreams = new BookStoreObjectPool<>(MAX_IDLE_INSTANCES,
+			BookStoreKryoRegistration::newKryo);
+
+	/** The output buffers. */
+	private final BookStoreObjectPool<Output> outputs = new BookStoreObjectPool<>(MAX_IDLE_INSTANCES,
+			() -> new Output(BUFFER_SIZE, -1), Output::close);
+
+	/** The inputs. */
+	private final BookStoreObjectPool<Input> inputs = new BookStoreObjectPool<>(MAX_IDLE_INSTANCES, Input::new,
+			Input::close);
+
+	/**
+	 * Gets the pool of Kryo instances.
+	 *
+	 * @return the pool
+	 */
+	public BookStoreObjectPool<Kryo> getKryoPool() {
+		return binaryStreams;
+	}
+
+	/**
+	 * Gets the pool of output buffers.
+	 *
+	 * @return the pool
+	 */
+	public BookStoreObjectPool<Output> getOutputPool() {
+		return outputs;
+	}
 
 	/**
-	 * Instantiates a new {@link BookStoreKryoSerializer}.
+	 * Gets the pool of inputs.
+	 *
+	 * @return the pool
 	 */
-	public BookStoreKryoSerializer() {
-		binaryStream = new Kryo();
-		binaryStream.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
-		binaryStream.register(ImmutableStockBook.class);
+	public BookStoreObjectPool<Input> getInputPool() {
+		return inputs;
 	}
 
 	/*
@@ -40,10 +91,23 @@ public final class BookStoreKryoSerializer implements BookStoreSerializer {
 	 */
 	@Override
 	public byte[] serialize(Object object) throws IOException {
-		try (ByteArrayOutputStream outStream = new ByteArrayOutputStream(); Output out = new Output(outStream)) {
-			binaryStream.writeClassAndObject(out, object);
-			out.flush();
-			return outStream.toByteArray();
+		Kryo binaryStream = binaryStreams.borrow();
+		Output out = outputs.borrow();
+
+		try {
+			out.writeByte(BookStoreKryoRegistration.WIRE_VERSION);
+			binaryStream.writeClassAndObject(out, toWireType(object));
+			return out.toBytes();
+		} catch (KryoException ex) {
+			throw new IOException(ex);
+		} finally {
+			binaryStream.reset();
+			binaryStreams.release(binaryStream);
+
+			if (out.getBuffer().length <= MAX_POOLED_BUFFER_SIZE) {
+				out.clear();
+				outputs.release(out);
+			}
 		}
 	}
 
@@ -54,8 +118,49 @@ public final class BookStoreKryoSerializer implements BookStoreSerializer {
 	 */
 	@Override
 	public Object deserialize(byte[] bytes) throws IOException {
-		try (InputStream inStream = new ByteArrayInputStream(bytes); Input in = new Input(inStream)) {
+		Kryo binaryStream = binaryStreams.borrow();
+		Input in = inputs.borrow();
+
+		try {
+			in.setBuffer(bytes);
+			byte version = in.readByte();
+
+			if (version != BookStoreKryoRegistration.WIRE_VERSION) {
+				throw new IOException("Unsupported wire version " + version);
+			}
+
 			return binaryStream.readClassAndObject(in);
+		} catch (KryoException ex) {
+			throw new IOException(ex);
+		} finally {
+			binaryStream.reset();
+			binaryStreams.release(binaryStream);
+			in.setBuffer(EMPTY_BUFFER);
+			inputs.release(in);
+		}
+	}
+
+	/**
+	 * Copies the collections passed to the API whose class is not a wire type,
+	 * e.g. unmodifiable or singleton collections, into an equivalent wire type.
+	 *
+	 * @param object
+	 *            the object
+	 * @return the object, or its copy
+	 */
+	private static Object toWireType(Object object) {
+		if (object == null || object instanceof HashSet || object instanceof ArrayList) {
+			return object;
+		}
+
+		if (object instanceof Set) {
+			return new LinkedHashSet<>((Set<?>) object);
+		}
+
+		if (object instanceof List) {
+			return new ArrayList<>((List<?>) object);
 		}
+
+		return object;
 	}
 }
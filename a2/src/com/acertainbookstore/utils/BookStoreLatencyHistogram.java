@@ -0,0 +1,274 @@
+package com.acertainbookstore.utils;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link BookStoreLatencyHistogram} counts latencies in buckets whose width
+ * grows with the latency, so that every latency from a nanosecond to minutes
+ * is kept within an eighth of its value in a fixed, small array. Recording
+ * is lock-free and allocates nothing, so it can be done on every call; the
+ * percentiles are computed when a {@link Snapshot} is taken.
+ * <p>
+ * A snapshot taken while latencies are recorded may miss some of them, but
+ * never counts one twice.
+ */
+public final class BookStoreLatencyHistogram {
+
+	/** The number of bits of a latency which select its bucket within its power of two. */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/** The number of buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The number of buckets, enough for any positive long. */
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	/** The number of latencies per bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** The number of latencies. */
+	private final LongAdder count = new LongAdder();
+
+	/** The sum of the latencies in nanoseconds. */
+	private final LongAdder totalNanos = new LongAdder();
+
+	/** The largest latency in nanoseconds. */
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds, counted as zero if negative
+	 */
+	public void record(long latencyNanos) {
+		long latency = Math.max(latencyNanos, 0);
+		counts.incrementAndGet(getBucket(latency));
+		count.increment();
+		totalNanos.add(latency);
+		maxNanos.accumulate(latency);
+	}
+
+	/**
+	 * Gets the number of latencies recorded.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Takes a snapshot of the latencies recorded so far.
+	 *
+	 * @return the snapshot
+	 */
+	public Snapshot getSnapshot() {
+		long[] snapshotCounts = new long[BUCKETS];
+		long snapshotCount = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshotCounts[i] = counts.get(i);
+			snapshotCount += snapshotCounts[i];
+		}
+
+		long max = maxNanos.get();
+		return new Snapshot(snapshotCount, (snapshotCount == 0) ? 0 : totalNanos.sum() / Math.max(count.sum(), 1),
+				getPercentile(snapshotCounts, snapshotCount, 0.5, max),
+				getPercentile(snapshotCounts, snapshotCount, 0.9, max),
+				getPercentile(snapshotCounts, snapshotCount, 0.99, max),
+				getPercentile(snapshotCounts, snapshotCount, 0.999, max), max);
+	}
+
+	/**
+	 * Gets the bucket of a latency.
+	 *
+	 * @param latency
+	 *            the latency in nanoseconds, not negative
+	 * @return the index of the bucket
+	 */
+	private static int getBucket(long latency) {
+		if (latency < SUB_BUCKETS) {
+			return (int) latency;
+		}
+
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(latency);
+		int subBucket = (int) (latency >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Gets the largest latency which falls in a bucket.
+	 *
+	 * @param bucket
+	 *            the index of the bucket
+	 * @return the latency in nanoseconds
+	 */
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	/**
+	 * Gets a percentile of the latencies, as the upper bound of its bucket.
+	 *
+	 * @param counts
+	 *            the number of latencies per bucket
+	 * @param count
+	 *            the number of latencies
+	 * @param quantile
+	 *            the percentile, between 0 and 1
+	 * @param max
+	 *            the largest latency, which bounds the percentile
+	 * @return the percentile in nanoseconds, or 0 if there is no latency
+	 */
+	private static long getPercentile(long[] counts, long count, double quantile, long max) {
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(count * quantile);
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+
+			if (seen >= rank) {
+				return Math.min(getUpperBound(i), max);
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * {@link Snapshot} is a summary of the latencies of a histogram at some
+	 * point in time. Its getters make it an open type, so it can be read
+	 * through JMX.
+	 */
+	public static final class Snapshot {
+
+		/** The number of latencies. */
+		private final long count;
+
+		/** The mean latency in nanoseconds. */
+		private final long meanNanos;
+
+		/** The median latency in nanoseconds. */
+		private final long p50Nanos;
+
+		/** The 90th percentile in nanoseconds. */
+		private final long p90Nanos;
+
+		/** The 99th percentile in nanoseconds. */
+		private final long p99Nanos;
+
+		/** The 99.9th percentile in nanoseconds. */
+		private final long p999Nanos;
+
+		/** The largest latency in nanoseconds. */
+		private final long maxNanos;
+
+		/**
+		 * Instantiates a new {@link Snapshot}.
+		 *
+		 * @param count
+		 *            the number of latencies
+		 * @param meanNanos
+		 *            the mean latency in nanoseconds
+		 * @param p50Nanos
+		 *            the median latency in nanoseconds
+		 * @param p90Nanos
+		 *            the 90th percentile in nanoseconds
+		 * @param p99Nanos
+		 *            the 99th percentile in nanoseconds
+		 * @param p999Nanos
+		 *            the 99.9th percentile in nanoseconds
+		 * @param maxNanos
+		 *            the largest latency in nanoseconds
+		 */
+		@ConstructorProperties({ "count", "meanNanos", "p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos",
+				"maxNanos" })
+		public Snapshot(long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos,
+				long maxNanos) {
+			this.count = count;
+			this.meanNanos = meanNanos;
+			this.p50Nanos = p50Nanos;
+			this.p90Nanos = p90Nanos;
+			this.p99Nanos = p99Nanos;
+			this.p999Nanos = p999Nanos;
+			this.maxNanos = maxNanos;
+		}
+
+		/**
+		 * Gets the number of latencies.
+		 *
+		 * @return the count
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the mean latency.
+		 *
+		 * @return the mean in nanoseconds
+		 */
+		public long getMeanNanos() {
+			return meanNanos;
+		}
+
+		/**
+		 * Gets the median latency.
+		 *
+		 * @return the median in nanoseconds
+		 */
+		public long getP50Nanos() {
+			return p50Nanos;
+		}
+
+		/**
+		 * Gets the 90th percentile of the latencies.
+		 *
+		 * @return the percentile in nanoseconds
+		 */
+		public long getP90Nanos() {
+			return p90Nanos;
+		}
+
+		/**
+		 * Gets the 99th percentile of the latencies.
+		 *
+		 * @return the percentile in nanoseconds
+		 */
+		public long getP99Nanos() {
+			return p99Nanos;
+		}
+
+		/**
+		 * Gets the 99.9th percentile of the latencies.
+		 *
+		 * @return the percentile in nanoseconds
+		 */
+		public long getP999Nanos() {
+			return p999Nanos;
+		}
+
+		/**
+		 * Gets the largest latency.
+		 *
+		 * @return the maximum in nanoseconds
+		 */
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package com.acertainbookstore.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BookStoreLoadBalancer} spreads the requests of a proxy over
+ * identical replicas of the server. Each request goes to the better of two
+ * replicas picked at random, the one whose smoothed latency weighted by its
+ * requests in flight is lower, so the load follows the replicas which answer
+ * faster without all the proxies rushing to the same one.
+ * <p>
+ * A replica which fails several requests in a row, or whose latency becomes
+ * a multiple of the latency of the others, is ejected for a while, longer on
+ * each ejection, and then tried again as if it were new. At most half of the
+ * replicas are ejected at once, so an overloaded cluster is not reduced to a
+ * single replica.
+ * <p>
+ * The proxies build the URLs of their requests on the first replica, and the
+ * requests are routed to the other replicas by replacing that prefix.
+ */
+public final class BookStoreLoadBalancer {
+
+	/** The weight of a new latency in the smoothed latency. */
+	private static final double LATENCY_SMOOTHING = 0.2;
+
+	/**
+	 * The latency a failure counts as, so that a replica which fails fast is
+	 * not mistaken for a fast one.
+	 */
+	private static final long FAILURE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** The number of consecutive failures which eject a replica. */
+	private static final int MAX_CONSECUTIVE_FAILURES = 5;
+
+	/** The number of latencies of a replica before it may be an outlier. */
+	private static final int MIN_OUTLIER_SAMPLES = 10;
+
+	/** The multiple of the median latency from which a replica is an outlier. */
+	private static final double OUTLIER_LATENCY_FACTOR = 3;
+
+	/** The latency below which no replica is an outlier. */
+	private static final long MIN_OUTLIER_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/** The time a replica is ejected for the first time. */
+	private static final long BASE_EJECTION_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/** The largest multiple of the base ejection time. */
+	private static final int MAX_EJECTION_MULTIPLE = 10;
+
+	/**
+	 * {@link Endpoint} is a replica of the server and what is known of its
+	 * health.
+	 */
+	public static final class Endpoint {
+
+		/** The server address of the replica. */
+		private final String serverAddress;
+
+		/** The number of requests in flight. */
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		/** The smoothed latency in nanoseconds, or 0 if unknown. */
+		private volatile double latency = 0;
+
+		/** The number of latencies since the replica was last ejected. */
+		private int samples = 0;
+
+		/** The number of consecutive failures. */
+		private int consecutiveFailures = 0;
+
+		/** The number of ejections. */
+		private int ejections = 0;
+
+		/** The time in nanoseconds at which the ejection ends. */
+		private long ejectedUntil = 0;
+
+		/** Whether the replica is ejected. */
+		private volatile boolean ejected = false;
+
+		/**
+		 * Instantiates a new {@link Endpoint}.
+		 *
+		 * @param serverAddress
+		 *            the server address of the replica
+		 */
+		Endpoint(String serverAddress) {
+			this.serverAddress = serverAddress;
+		}
+
+		/**
+		 * Gets the server address of the replica.
+		 *
+		 * @return the server address
+		 */
+		public String getServerAddress() {
+			return serverAddress;
+		}
+
+		/**
+		 * Gets the number of requests in flight to the replica.
+		 *
+		 * @return the number of requests in flight
+		 */
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		/**
+		 * Gets the smoothed latency of the replica.
+		 *
+		 * @return the latency in nanoseconds, or 0 if unknown
+		 */
+		public double getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Checks if the replica is ejected.
+		 *
+		 * @return true, if the replica is ejected
+		 */
+		public boolean isEjected() {
+			return ejected;
+		}
+
+		/**
+		 * Gets the cost of sending a request to the replica.
+		 *
+		 * @return the cost
+		 */
+		double getCost() {
+			return latency * (inFlight.get() + 1);
+		}
+	}
+
+	/** The replicas. */
+	private final List<Endpoint> endpoints;
+
+	/**
+	 * Instantiates a new {@link BookStoreLoadBalancer}.
+	 *
+	 * @param serverAddresses
+	 *            the server addresses of the replicas, the first of which the
+	 *            URLs of the requests are built on
+	 */
+	public BookStoreLoadBalancer(List<String> serverAddresses) {
+		List<Endpoint> replicas = new ArrayList<>();
+
+		for (String serverAddress : serverAddresses) {
+			replicas.add(new Endpoint(serverAddress));
+		}
+
+		endpoints = Collections.unmodifiableList(replicas);
+	}
+
+	/**
+	 * Gets the replicas.
+	 *
+	 * @return the replicas
+	 */
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Selects the replica of a request.
+	 *
+	 * @param excluded
+	 *            the replica not to select if there is another, or null
+	 * @return the replica
+	 */
+	public Endpoint select(Endpoint excluded) {
+		List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+		long now = System.nanoTime();
+
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint != excluded && isAvailable(endpoint, now)) {
+				candidates.add(endpoint);
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			candidates.addAll(endpoints);
+
+			if (candidates.size() > 1) {
+				candidates.remove(excluded);
+			}
+		}
+
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(candidates.size());
+		int second = random.nextInt(candidates.size() - 1);
+
+		if (second >= first) {
+			second++;
+		}
+
+		Endpoint firstEndpoint = candidates.get(first);
+		Endpoint secondEndpoint = candidates.get(second);
+		return (secondEndpoint.getCost() < firstEndpoint.getCost()) ? secondEndpoint : firstEndpoint;
+	}
+
+	/**
+	 * Routes a request to a replica.
+	 *
+	 * @param bookStoreRequest
+	 *            the book store request, built on the first replica
+	 * @param endpoint
+	 *            the replica
+	 * @return the request to the replica
+	 */
+	public BookStoreRequest route(BookStoreRequest bookStoreRequest, Endpoint endpoint) {
+		return bookStoreRequest.withServerAddress(endpoints.get(0).serverAddress, endpoint.serverAddress);
+	}
+
+	/**
+	 * Records that a request was sent to a replica.
+	 *
+	 * @param endpoint
+	 *            the replica
+	 */
+	public void onStart(Endpoint endpoint) {
+		endpoint.inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Records that a request to a replica completed, and ejects the replica if
+	 * it is an outlier.
+	 *
+	 * @param endpoint
+	 *            the replica
+	 * @param latencyNanos
+	 *            the time the request took in nanoseconds
+	 * @param failed
+	 *            whether the replica failed to answer the request
+	 */
+	public synchronized void onComplete(Endpoint endpoint, long latencyNanos, boolean failed) {
+		endpoint.inFlight.decrementAndGet();
+		long latency = failed ? Math.max(latencyNanos, FAILURE_LATENCY_NANOS) : latencyNanos;
+		endpoint.latency = (endpoint.samples == 0) ? latency
+				: endpoint.latency + LATENCY_SMOOTHING * (latency - endpoint.latency);
+		endpoint.samples++;
+
+		if (!failed) {
+			endpoint.consecutiveFailures = 0;
+		} else if (++endpoint.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+			eject(endpoint);
+			return;
+		}
+
+		if (endpoint.samples >= MIN_OUTLIER_SAMPLES && endpoint.latency > MIN_OUTLIER_LATENCY_NANOS
+				&& endpoint.latency > OUTLIER_LATENCY_FACTOR * getMedianLatency(endpoint)) {
+			eject(endpoint);
+		}
+	}
+
+	/**
+	 * Checks if a replica may be selected, ending its ejection if it is over.
+	 *
+	 * @param endpoint
+	 *            the replica
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return true, if the replica is not ejected
+	 */
+	private synchronized boolean isAvailable(Endpoint endpoint, long now) {
+		if (endpoint.ejected && now - endpoint.ejectedUntil >= 0) {
+			endpoint.ejected = false;
+		}
+
+		return !endpoint.ejected;
+	}
+
+	/**
+	 * Ejects a replica, unless half of the replicas are ejected already. The
+	 * replica is then tried again with no latency, as if it were new.
+	 *
+	 * @param endpoint
+	 *            the replica
+	 */
+	private void eject(Endpoint endpoint) {
+		int ejected = 0;
+
+		for (Endpoint other : endpoints) {
+			if (other.ejected) {
+				ejected++;
+			}
+		}
+
+		if (endpoint.ejected || (ejected + 1) * 2 > endpoints.size()) {
+			return;
+		}
+
+		endpoint.ejections++;
+		endpoint.ejected = true;
+		endpoint.ejectedUntil = System.nanoTime()
+				+ BASE_EJECTION_NANOS * Math.min(endpoint.ejections, MAX_EJECTION_MULTIPLE);
+		endpoint.latency = 0;
+		endpoint.samples = 0;
+		endpoint.consecutiveFailures = 0;
+	}
+
+	/**
+	 * Gets the median latency of the replicas other than one, among those
+	 * whose latency is known.
+	 *
+	 * @param endpoint
+	 *            the replica left out
+	 * @return the median latency in nanoseconds, or infinity if unknown
+	 */
+	private double getMedianLatency(Endpoint endpoint) {
+		double[] latencies = new double[endpoints.size()];
+		int count = 0;
+
+		for (Endpoint other : endpoints) {
+			if (other != endpoint && !other.ejected && other.samples > 0) {
+				latencies[count++] = other.latency;
+			}
+		}
+
+		if (count == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		Arrays.sort(latencies, 0, count);
+		return latencies[count / 2];
+	}
+}
@@ -24,6 +24,12 @@ public enum BookStoreMessageTag {
 	/** The tag for the update editor picks message. */
 	UPDATEEDITORPICKS,
 
+	/** The tag for the batched add copies message. */
+	ADDCOPIESBATCH,
+
+	/** The tag for the batched update editor picks message. */
+	UPDATEEDITORPICKSBATCH,
+
 	/** The tag for the editor picks message. */
 	GETEDITORPICKS,
 
@@ -34,5 +40,17 @@ public enum BookStoreMessageTag {
 	REMOVEBOOKS,
 
 	/** The tag for the get stock books by ISBN message. */
-	GETSTOCKBOOKSBYISBN;
+	GETSTOCKBOOKSBYISBN,
+
+	/** The tag for the stream books message. */
+	STREAMBOOKS,
+
+	/** The tag for the list books by page message. */
+	LISTBOOKSPAGE,
+
+	/** The tag for the get books changed since message. */
+	GETBOOKSCHANGEDSINCE,
+
+	/** The tag for the await books changed message. */
+	AWAITBOOKSCHANGED;
 }
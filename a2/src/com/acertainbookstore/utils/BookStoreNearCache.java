@@ -0,0 +1,358 @@
+package com.acertainbookstore.utils;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.acertainbookstore.business.Book;
+
+/**
+ * {@link BookStoreNearCache} keeps the books a client read recently, so that
+ * the popular books are read without a round trip to the server. It is
+ * bounded, and admits entries the way W-TinyLFU does: new books enter a small
+ * window, and a book pushed out of the window only takes the place of the
+ * least recently used book of the main cache if it was asked for more often,
+ * as estimated by a count-min sketch. A burst of books read once thus does
+ * not push the popular books out.
+ * <p>
+ * The staleness of the entries is bounded by their time to live, and by the
+ * invalidations of the books which changed, which the owner of the cache
+ * applies as the server reports the changes. An entry read before an
+ * invalidation is not admitted after it, since it may predate the change.
+ */
+public final class BookStoreNearCache {
+
+	/** The number of rows of the frequency sketch. */
+	private static final int SKETCH_DEPTH = 4;
+
+	/** The largest frequency a counter of the sketch counts to. */
+	private static final int MAX_FREQUENCY = 15;
+
+	/** The seeds of the hash functions of the rows of the sketch. */
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	/**
+	 * {@link Entry} is a cached book and the time at which it expires.
+	 */
+	private static final class Entry {
+
+		/** The book. */
+		private final Book book;
+
+		/** The time in nanoseconds at which the entry expires. */
+		private final long expiry;
+
+		/**
+		 * Instantiates a new {@link Entry}.
+		 *
+		 * @param book
+		 *            the book
+		 * @param expiry
+		 *            the time in nanoseconds at which the entry expires
+		 */
+		Entry(Book book, long expiry) {
+			this.book = book;
+			this.expiry = expiry;
+		}
+	}
+
+	/** The maximum number of books in the window. */
+	private final int windowCapacity;
+
+	/** The maximum number of books in the main cache. */
+	private final int mainCapacity;
+
+	/** The time to live of the entries in nanoseconds. */
+	private final long timeToLive;
+
+	/** The window, in access order. */
+	private final LinkedHashMap<Integer, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The main cache, in access order. */
+	private final LinkedHashMap<Integer, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The counters of the frequency sketch. */
+	private final byte[][] sketch;
+
+	/** The number of increments after which the counters are halved. */
+	private final int sampleSize;
+
+	/** The number of increments since the counters were last halved. */
+	private int increments = 0;
+
+	/** The epoch, incremented by every invalidation. */
+	private long epoch = 0;
+
+	/** The number of hits. */
+	private long hits = 0;
+
+	/** The number of misses. */
+	private long misses = 0;
+
+	/** The number of entries evicted or not admitted. */
+	private long evictions = 0;
+
+	/** The number of entries invalidated. */
+	private long invalidations = 0;
+
+	/**
+	 * Instantiates a new, empty {@link BookStoreNearCache}.
+	 *
+	 * @param capacity
+	 *            the maximum number of books
+	 * @param timeToLiveMillis
+	 *            the time to live of the entries in milliseconds
+	 */
+	public BookStoreNearCache(int capacity, long timeToLiveMillis) {
+		int totalCapacity = Math.max(capacity, 2);
+		windowCapacity = Math.max(totalCapacity / 100, 1);
+		mainCapacity = totalCapacity - windowCapacity;
+		timeToLive = timeToLiveMillis * 1000000L;
+		sampleSize = 10 * totalCapacity;
+
+		int width = Integer.highestOneBit(Math.max(totalCapacity - 1, 1)) << 1;
+		sketch = new byte[SKETCH_DEPTH][width];
+	}
+
+	/**
+	 * Gets the epoch, to pass to {@link #put(Book, long)} for the books read
+	 * from now on.
+	 *
+	 * @return the epoch
+	 */
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets a book.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @return the book, or null if it is not cached or expired
+	 */
+	public synchronized Book get(int isbn) {
+		Integer key = isbn;
+		increment(isbn);
+
+		Entry entry = window.get(key);
+		Map<Integer, Entry> segment = window;
+
+		if (entry == null) {
+			entry = main.get(key);
+			segment = main;
+		}
+
+		if (entry != null && System.nanoTime() - entry.expiry >= 0) {
+			segment.remove(key);
+			entry = null;
+		}
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.book;
+	}
+
+	/**
+	 * Caches a book read from the server, unless a book was invalidated since
+	 * the read started.
+	 *
+	 * @param book
+	 *            the book
+	 * @param readEpoch
+	 *            the epoch when the read started
+	 */
+	public synchronized void put(Book book, long readEpoch) {
+		if (readEpoch != epoch) {
+			return;
+		}
+
+		Integer key = book.getISBN();
+		Entry entry = new Entry(book, System.nanoTime() + timeToLive);
+
+		if (main.containsKey(key)) {
+			main.put(key, entry);
+			return;
+		}
+
+		window.put(key, entry);
+
+		if (window.size() > windowCapacity) {
+			Iterator<Map.Entry<Integer, Entry>> iterator = window.entrySet().iterator();
+			Map.Entry<Integer, Entry> candidate = iterator.next();
+			iterator.remove();
+			admit(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	/**
+	 * Removes the books which changed.
+	 *
+	 * @param isbns
+	 *            the ISBNs of the books
+	 */
+	public synchronized void invalidate(Collection<Integer> isbns) {
+		epoch++;
+
+		for (Integer isbn : isbns) {
+			if (window.remove(isbn) != null || main.remove(isbn) != null) {
+				invalidations++;
+			}
+		}
+	}
+
+	/**
+	 * Removes all the books.
+	 */
+	public synchronized void clear() {
+		epoch++;
+		invalidations += window.size() + main.size();
+		window.clear();
+		main.clear();
+	}
+
+	/**
+	 * Gets the number of cached books.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return window.size() + main.size();
+	}
+
+	/**
+	 * Gets the number of reads answered by the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of reads not answered by the cache.
+	 *
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the share of the reads answered by the cache.
+	 *
+	 * @return the hit rate, between 0 and 1
+	 */
+	public synchronized double getHitRate() {
+		long reads = hits + misses;
+		return (reads == 0) ? 0 : (double) hits / reads;
+	}
+
+	/**
+	 * Gets the number of books evicted from the cache or not admitted to it.
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of books removed because they changed.
+	 *
+	 * @return the number of invalidations
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Admits a book pushed out of the window to the main cache, if the main
+	 * cache has room or the book is asked for more often than the least
+	 * recently used book of the main cache.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param entry
+	 *            the entry of the book
+	 */
+	private void admit(Integer isbn, Entry entry) {
+		if (main.size() < mainCapacity) {
+			main.put(isbn, entry);
+			return;
+		}
+
+		Iterator<Map.Entry<Integer, Entry>> iterator = main.entrySet().iterator();
+		Map.Entry<Integer, Entry> victim = iterator.next();
+		evictions++;
+
+		if (frequency(isbn) > frequency(victim.getKey())) {
+			iterator.remove();
+			main.put(isbn, entry);
+		}
+	}
+
+	/**
+	 * Counts a read of a book in the sketch, halving all the counters once
+	 * enough reads were counted, so that the old reads count less.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 */
+	private void increment(int isbn) {
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			int index = index(isbn, row);
+
+			if (sketch[row][index] < MAX_FREQUENCY) {
+				sketch[row][index]++;
+			}
+		}
+
+		if (++increments >= sampleSize) {
+			increments = 0;
+
+			for (byte[] counters : sketch) {
+				for (int i = 0; i < counters.length; i++) {
+					counters[i] >>= 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimates the number of reads of a book.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @return the estimated frequency
+	 */
+	private int frequency(int isbn) {
+		int frequency = MAX_FREQUENCY;
+
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			frequency = Math.min(frequency, sketch[row][index(isbn, row)]);
+		}
+
+		return frequency;
+	}
+
+	/**
+	 * Gets the index of the counter of a book in a row of the sketch.
+	 *
+	 * @param isbn
+	 *            the ISBN of the book
+	 * @param row
+	 *            the row
+	 * @return the index
+	 */
+	private int index(int isbn, int row) {
+		int hash = isbn * SEEDS[row];
+		hash ^= hash >>> 16;
+		return hash & (sketch[row].length - 1);
+	}
+}
@@ -0,0 +1,164 @@
+package com.acertainbookstore.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * {@link BookStoreObjectPool} is a bounded, lock-free pool of objects that are
+ * expensive to create, e.g. compression contexts. Borrowing from an empty pool
+ * creates a new object, and objects returned to a full pool are disposed of,
+ * so the pool never blocks. The pool counts how often objects are borrowed,
+ * created, returned and discarded, which shows whether its bound fits the
+ * load.
+ *
+ * @param <T>
+ *            the type of the pooled objects
+ */
+public final class BookStoreObjectPool<T> {
+
+	/** The idle objects. */
+	private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+
+	/** The number of idle objects. */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/** The maximum number of idle objects. */
+	private final int maxIdle;
+
+	/** The factory of new objects. */
+	private final Supplier<T> factory;
+
+	/** The disposer of objects that do not fit in the pool. */
+	private final Consumer<T> disposer;
+
+	/** The number of borrowed objects. */
+	private final LongAdder borrowCount = new LongAdder();
+
+	/** The number of objects created because the pool was empty. */
+	private final LongAdder createCount = new LongAdder();
+
+	/** The number of returned objects. */
+	private final LongAdder returnCount = new LongAdder();
+
+	/** The number of returned objects disposed of because the pool was full. */
+	private final LongAdder discardCount = new LongAdder();
+
+	/**
+	 * Instantiates a new {@link BookStoreObjectPool} of objects which hold no
+	 * resources that must be released.
+	 *
+	 * @param maxIdle
+	 *            the maximum number of idle objects
+	 * @param factory
+	 *            the factory of new objects
+	 */
+	public BookStoreObjectPool(int maxIdle, Supplier<T> factory) {
+		this(maxIdle, factory, object -> {
+			// Left to the garbage collector.
+		});
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreObjectPool}.
+	 *
+	 * @param maxIdle
+	 *            the maximum number of idle objects
+	 * @param factory
+	 *            the factory of new objects
+	 * @param disposer
+	 *            the disposer of objects that do not fit in the pool
+	 */
+	public BookStoreObjectPool(int maxIdle, Supplier<T> factory, Consumer<T> disposer) {
+		this.maxIdle = maxIdle;
+		this.factory = factory;
+		this.disposer = disposer;
+	}
+
+	/**
+	 * Borrows an object from the pool, creating it if the pool is empty.
+	 *
+	 * @return the object
+	 */
+	public T borrow() {
+		borrowCount.increment();
+		T object = idle.poll();
+
+		if (object == null) {
+			createCount.increment();
+			return factory.get();
+		}
+
+		idleCount.decrementAndGet();
+		return object;
+	}
+
+	/**
+	 * Returns a borrowed object to the pool, disposing of it if the pool is
+	 * full. The object must be reset by the caller.
+	 *
+	 * @param object
+	 *            the object
+	 */
+	public void release(T object) {
+		returnCount.increment();
+
+		if (idleCount.incrementAndGet() > maxIdle) {
+			idleCount.decrementAndGet();
+			discardCount.increment();
+			disposer.accept(object);
+			return;
+		}
+
+		idle.offer(object);
+	}
+
+	/**
+	 * Gets the number of idle objects.
+	 *
+	 * @return the number of idle objects
+	 */
+	public int getIdleCount() {
+		return Math.max(0, idleCount.get());
+	}
+
+	/**
+	 * Gets the number of borrowed objects.
+	 *
+	 * @return the borrow count
+	 */
+	public long getBorrowCount() {
+		return borrowCount.sum();
+	}
+
+	/**
+	 * Gets the number of objects created because the pool was empty.
+	 *
+	 * @return the create count
+	 */
+	public long getCreateCount() {
+		return createCount.sum();
+	}
+
+	/**
+	 * Gets the number of returned objects.
+	 *
+	 * @return the return count
+	 */
+	public long getReturnCount() {
+		return returnCount.sum();
+	}
+
+	/**
+	 * Gets the number of returned objects disposed of because the pool was
+	 * full.
+	 *
+	 * @return the discard count
+	 */
+	public long getDiscardCount() {
+		return discardCount.sum();
+	}
+}
@@ -0,0 +1,37 @@
+package com.acertainbookstore.utils;
+
+/**
+ * {@link BookStoreOverloadedException} signals that the server shed a request
+ * because it is overloaded. The request was not executed and may be retried
+ * after the hinted delay.
+ */
+public class BookStoreOverloadedException extends BookStoreException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The number of seconds after which the request may be retried. */
+	private final int retryAfterSeconds;
+
+	/**
+	 * Instantiates a new {@link BookStoreOverloadedException}.
+	 *
+	 * @param message
+	 *            the message
+	 * @param retryAfterSeconds
+	 *            the number of seconds after which the request may be retried
+	 */
+	public BookStoreOverloadedException(String message, int retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * Gets the number of seconds after which the request may be retried.
+	 *
+	 * @return the number of seconds
+	 */
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -1,5 +1,7 @@
 package com.acertainbookstore.utils;
 
+import java.util.UUID;
+
 import org.eclipse.jetty.http.HttpMethod;
 
 /**
@@ -17,6 +19,15 @@ public final class BookStoreRequest {
 	/** The input value. */
 	private final Object inputValue;
 
+	/** Whether the request may be sent more than once. */
+	private final boolean retryable;
+
+	/** The key which identifies the request to the server, or null. */
+	private final String idempotencyKey;
+
+	/** The observer of the phases of the exchanges, or null. */
+	private final BookStoreExchangeObserver observer;
+
 	/**
 	 * Instantiates a new {@link BookStoreRequest}.
 	 *
@@ -26,11 +37,21 @@ public final class BookStoreRequest {
 	 *            the URL string
 	 * @param inputValue
 	 *            the input value
+	 * @param retryable
+	 *            whether the request may be sent more than once
+	 * @param idempotencyKey
+	 *            the key which identifies the request to the server, or null
+	 * @param observer
+	 *            the observer of the phases of the exchanges, or null
 	 */
-	private BookStoreRequest(HttpMethod method, String urlString, Object inputValue) {
+	private BookStoreRequest(HttpMethod method, String urlString, Object inputValue, boolean retryable,
+			String idempotencyKey, BookStoreExchangeObserver observer) {
 		this.method = method;
 		this.urlString = urlString;
 		this.inputValue = inputValue;
+		this.retryable = retryable;
+		this.idempotencyKey = idempotencyKey;
+		this.observer = observer;
 	}
 
 	/**
@@ -60,6 +81,67 @@ public final class BookStoreRequest {
 		return inputValue;
 	}
 
+	/**
+	 * Checks if the request may be sent more than once, because it only reads
+	 * or the server recognizes its copies by its idempotency key.
+	 *
+	 * @return true, if the request may be retried or hedged
+	 */
+	public boolean isRetryable() {
+		return retryable;
+	}
+
+	/**
+	 * Gets the key which identifies the request to the server, so that the
+	 * server applies it once however many times it is sent.
+	 *
+	 * @return the idempotency key, or null
+	 */
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	/**
+	 * Gets the observer of the phases of the exchanges of the request.
+	 *
+	 * @return the observer, or null
+	 */
+	public BookStoreExchangeObserver getObserver() {
+		return observer;
+	}
+
+	/**
+	 * Gets a copy of the request whose exchanges report their phases to an
+	 * observer.
+	 *
+	 * @param exchangeObserver
+	 *            the observer, or null
+	 * @return the copy
+	 */
+	public BookStoreRequest withObserver(BookStoreExchangeObserver exchangeObserver) {
+		return new BookStoreRequest(method, urlString, inputValue, retryable, idempotencyKey, exchangeObserver);
+	}
+
+	/**
+	 * Gets a copy of the request to another server, keeping its idempotency
+	 * key.
+	 *
+	 * @param fromServerAddress
+	 *            the server address the URL of the request is built on
+	 * @param toServerAddress
+	 *            the server address of the copy
+	 * @return the copy, or the request itself if its URL is not built on the
+	 *         first server address
+	 */
+	public BookStoreRequest withServerAddress(String fromServerAddress, String toServerAddress) {
+		if (fromServerAddress.equals(toServerAddress) || !urlString.startsWith(fromServerAddress)) {
+			return this;
+		}
+
+		return new BookStoreRequest(method, toServerAddress + urlString.substring(fromServerAddress.length()),
+				inputValue, retryable, idempotencyKey, observer);
+	}
+
 	/**
 	 * Gets a new GET request.
 	 *
@@ -68,7 +150,7 @@ public final class BookStoreRequest {
 	 * @return the book store request
 	 */
 	public static BookStoreRequest newGetRequest(String urlString) {
-		return new BookStoreRequest(HttpMethod.GET, urlString, null);
+		return new BookStoreRequest(HttpMethod.GET, urlString, null, true, null, null);
 	}
 
 	/**
@@ -81,6 +163,36 @@ public final class BookStoreRequest {
 	 * @return the book store request
 	 */
 	public static BookStoreRequest newPostRequest(String urlString, Object inputValue) {
-		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue);
+		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue, false, null, null);
+	}
+
+	/**
+	 * Gets a new POST request which only reads, and so may be sent more than
+	 * once.
+	 *
+	 * @param urlString
+	 *            the URL string
+	 * @param inputValue
+	 *            the input value
+	 * @return the book store request
+	 */
+	public static BookStoreRequest newQueryRequest(String urlString, Object inputValue) {
+		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue, true, null, null);
+	}
+
+	/**
+	 * Gets a new POST request with a fresh idempotency key. The server applies
+	 * the request once and answers its copies with the same response, so it
+	 * may be sent more than once.
+	 *
+	 * @param urlString
+	 *            the URL string
+	 * @param inputValue
+	 *            the input value
+	 * @return the book store request
+	 */
+	public static BookStoreRequest newIdempotentPostRequest(String urlString, Object inputValue) {
+		return new BookStoreRequest(HttpMethod.POST, urlString, inputValue, true, UUID.randomUUID().toString(),
+				null);
 	}
 }
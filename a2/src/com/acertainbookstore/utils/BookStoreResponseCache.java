@@ -0,0 +1,201 @@
+package com.acertainbookstore.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link BookStoreResponseCache} is a bounded, least recently used cache of
+ * serialized responses tagged with an entity tag (ETag). The server uses it to
+ * avoid recomputing responses for unchanged catalog versions, and the clients
+ * use it to keep the last response body so that they can revalidate it with
+ * the server instead of downloading it again.
+ */
+public final class BookStoreResponseCache {
+
+	/** The maximum number of entries. */
+	private final int maxEntries;
+
+	/** The entries, in access order. */
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * Instantiates a new {@link BookStoreResponseCache}.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of entries
+	 */
+	public BookStoreResponseCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, BookStoreResponseCache.Entry> eldest) {
+				return size() > BookStoreResponseCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the cached entry for a request.
+	 *
+	 * @param name
+	 *            the name of the requested resource, e.g. the message tag
+	 * @param requestContent
+	 *            the serialized request content
+	 * @return the entry, or null if there is none
+	 */
+	public Entry get(String name, byte[] requestContent) {
+		Key key = new Key(name, requestContent);
+
+		synchronized (entries) {
+			return entries.get(key);
+		}
+	}
+
+	/**
+	 * Caches the response to a request.
+	 *
+	 * @param name
+	 *            the name of the requested resource, e.g. the message tag
+	 * @param requestContent
+	 *            the serialized request content
+	 * @param etag
+	 *            the entity tag of the response
+	 * @param mediaType
+	 *            the media type of the response, or null if it is unknown
+	 * @param responseContent
+	 *            the serialized response content
+	 */
+	public void put(String name, byte[] requestContent, String etag, String mediaType, byte[] responseContent) {
+		Key key = new Key(name, requestContent);
+
+		synchronized (entries) {
+			entries.put(key, new Entry(etag, mediaType, responseContent));
+		}
+	}
+
+	/**
+	 * Removes all the entries.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * {@link Entry} is a cached response.
+	 */
+	public static final class Entry {
+
+		/** The entity tag. */
+		private final String etag;
+
+		/** The media type of the response, or null if it is unknown. */
+		private final String mediaType;
+
+		/** The serialized response content. */
+		private final byte[] content;
+
+		/**
+		 * Instantiates a new {@link Entry}.
+		 *
+		 * @param etag
+		 *            the entity tag
+		 * @param mediaType
+		 *            the media type, or null if it is unknown
+		 * @param content
+		 *            the serialized response content
+		 */
+		private Entry(String etag, String mediaType, byte[] content) {
+			this.etag = etag;
+			this.mediaType = mediaType;
+			this.content = content;
+		}
+
+		/**
+		 * Gets the entity tag.
+		 *
+		 * @return the entity tag
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * Gets the media type of the response.
+		 *
+		 * @return the media type, or null if it is unknown
+		 */
+		public String getMediaType() {
+			return mediaType;
+		}
+
+		/**
+		 * Gets the serialized response content.
+		 *
+		 * @return the content
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+	}
+
+	/**
+	 * {@link Key} identifies a request by the requested resource and the
+	 * serialized request content.
+	 */
+	private static final class Key {
+
+		/** The name of the requested resource. */
+		private final String name;
+
+		/** The serialized request content. */
+		private final byte[] requestContent;
+
+		/** The hash code. */
+		private final int hash;
+
+		/**
+		 * Instantiates a new {@link Key}.
+		 *
+		 * @param name
+		 *            the name of the requested resource
+		 * @param requestContent
+		 *            the serialized request content
+		 */
+		private Key(String name, byte[] requestContent) {
+			this.name = name;
+			this.requestContent = requestContent;
+			this.hash = 31 * name.hashCode() + Arrays.hashCode(requestContent);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key key = (Key) obj;
+			return hash == key.hash && name.equals(key.name) && Arrays.equals(requestContent, key.requestContent);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.acertainbookstore.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainbookstore.client.BookStoreClientConstants;
+
+/**
+ * {@link BookStoreRetryPolicy} decides how a proxy recovers from slow and
+ * failed exchanges with the server. Every attempt is bounded by a timeout,
+ * and a retryable request which fails for a transient reason is sent again
+ * after a jittered exponential backoff, up to a number of attempts. A request
+ * shed by an overloaded server was not executed, so it is always retried, no
+ * sooner than the server asks.
+ * <p>
+ * With hedging, a retryable request which is not answered within the 95th
+ * percentile of the recent latencies is sent a second time, and the first
+ * response wins. The hedges are limited to a tenth of the requests, so that a
+ * slow server is not sent twice the load.
+ */
+public final class BookStoreRetryPolicy {
+
+	/** The number of latencies the hedging delay is computed from. */
+	private static final int LATENCY_SAMPLES = 256;
+
+	/** The number of latencies recorded before requests are hedged. */
+	private static final int MIN_LATENCY_SAMPLES = 20;
+
+	/** The number of latencies recorded between two updates of the delay. */
+	private static final int DELAY_UPDATE_INTERVAL = 32;
+
+	/** The largest share of the requests which may be hedged. */
+	private static final double MAX_HEDGE_RATIO = 0.1;
+
+	/** The maximum number of attempts of a request. */
+	private final int maxAttempts;
+
+	/** The backoff before the first retry in milliseconds. */
+	private final long baseBackoffMillis;
+
+	/** The maximum backoff in milliseconds. */
+	private final long maxBackoffMillis;
+
+	/** The timeout of an attempt in milliseconds. */
+	private final long attemptTimeoutMillis;
+
+	/** Whether slow requests are hedged. */
+	private final boolean hedging;
+
+	/** The recent latencies in nanoseconds, as a ring. */
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+
+	/** The number of latencies recorded. */
+	private long recordedLatencies = 0;
+
+	/** The delay before a request is hedged in nanoseconds, or -1. */
+	private volatile long hedgeDelayNanos = -1;
+
+	/** The number of requests. */
+	private final AtomicLong requests = new AtomicLong();
+
+	/** The number of retries. */
+	private final AtomicLong retries = new AtomicLong();
+
+	/** The number of hedges sent. */
+	private final AtomicLong hedges = new AtomicLong();
+
+	/** The number of hedges answered before the request they hedged. */
+	private final AtomicLong hedgesWon = new AtomicLong();
+
+	/**
+	 * Instantiates a new {@link BookStoreRetryPolicy} with the default
+	 * attempts, backoff and timeout.
+	 *
+	 * @param hedging
+	 *            whether slow requests are hedged
+	 */
+	public BookStoreRetryPolicy(boolean hedging) {
+		this(BookStoreClientConstants.CLIENT_MAX_ATTEMPTS, BookStoreClientConstants.CLIENT_RETRY_BACKOFF_MILLISECS,
+				BookStoreClientConstants.CLIENT_MAX_RETRY_BACKOFF_MILLISECS,
+				BookStoreClientConstants.CLIENT_ATTEMPT_TIMEOUT_MILLISECS, hedging);
+	}
+
+	/**
+	 * Instantiates a new {@link BookStoreRetryPolicy}.
+	 *
+	 * @param maxAttempts
+	 *            the maximum number of attempts of a request
+	 * @param baseBackoffMillis
+	 *            the backoff before the first retry in milliseconds
+	 * @param maxBackoffMillis
+	 *            the maximum backoff in milliseconds
+	 * @param attemptTimeoutMillis
+	 *            the timeout of an attempt in milliseconds
+	 * @param hedging
+	 *            whether slow requests are hedged
+	 */
+	public BookStoreRetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+			long attemptTimeoutMillis, boolean hedging) {
+		this.maxAttempts = Math.max(maxAttempts, 1);
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.attemptTimeoutMillis = attemptTimeoutMillis;
+		this.hedging = hedging;
+	}
+
+	/**
+	 * Gets the maximum number of attempts of a request.
+	 *
+	 * @return the maximum number of attempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Gets the timeout of an attempt.
+	 *
+	 * @return the timeout in milliseconds
+	 */
+	public long getAttemptTimeoutMillis() {
+		return attemptTimeoutMillis;
+	}
+
+	/**
+	 * Checks if a failed attempt may be retried.
+	 *
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param ex
+	 *            the exception of the attempt
+	 * @param attempt
+	 *            the number of the attempt, from 1
+	 * @return true, if the request should be sent again
+	 */
+	public boolean shouldRetry(BookStoreRequest bookStoreRequest, BookStoreException ex, int attempt) {
+		if (attempt >= maxAttempts) {
+			return false;
+		}
+
+		if (ex instanceof BookStoreOverloadedException) {
+			return true;
+		}
+
+		// The other failures may have happened after the server executed
+		// the request.
+		return bookStoreRequest.isRetryable()
+				&& (BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT.equals(ex.getMessage())
+						|| BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION.equals(ex.getMessage()));
+	}
+
+	/**
+	 * Gets the time to wait before retrying a failed attempt: a random time
+	 * up to an exponentially growing bound, and at least the time an
+	 * overloaded server asks for.
+	 *
+	 * @param ex
+	 *            the exception of the attempt
+	 * @param attempt
+	 *            the number of the attempt, from 1
+	 * @return the backoff in milliseconds
+	 */
+	public long getBackoffMillis(BookStoreException ex, int attempt) {
+		long bound = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+		long backoff = ThreadLocalRandom.current().nextLong(bound + 1);
+
+		if (ex instanceof BookStoreOverloadedException) {
+			backoff = Math.max(backoff,
+					TimeUnit.SECONDS.toMillis(((BookStoreOverloadedException) ex).getRetryAfterSeconds()));
+		}
+
+		return backoff;
+	}
+
+	/**
+	 * Gets the delay after which a request is hedged, and counts the request.
+	 *
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @return the delay in nanoseconds, or -1 if the request is not hedged
+	 */
+	public long getHedgeDelayNanos(BookStoreRequest bookStoreRequest) {
+		requests.incrementAndGet();
+		return (hedging && bookStoreRequest.isRetryable()) ? hedgeDelayNanos : -1;
+	}
+
+	/**
+	 * Records that a request is about to be hedged, unless too many requests
+	 * were hedged already.
+	 *
+	 * @return true, if the hedge may be sent
+	 */
+	public boolean tryHedge() {
+		if (hedges.get() + 1 > requests.get() * MAX_HEDGE_RATIO) {
+			return false;
+		}
+
+		hedges.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Records that a hedge was answered before the request it hedged.
+	 */
+	public void recordHedgeWon() {
+		hedgesWon.incrementAndGet();
+	}
+
+	/**
+	 * Records a retry.
+	 */
+	public void recordRetry() {
+		retries.incrementAndGet();
+	}
+
+	/**
+	 * Records the latency of a successful exchange, updating the hedging
+	 * delay from time to time.
+	 *
+	 * @param latencyNanos
+	 *            the latency in nanoseconds
+	 */
+	public synchronized void recordLatency(long latencyNanos) {
+		latencies[(int) (recordedLatencies % LATENCY_SAMPLES)] = latencyNanos;
+		recordedLatencies++;
+
+		if (recordedLatencies >= MIN_LATENCY_SAMPLES && recordedLatencies % DELAY_UPDATE_INTERVAL == 0
+				|| recordedLatencies == MIN_LATENCY_SAMPLES) {
+			int samples = (int) Math.min(recordedLatencies, LATENCY_SAMPLES);
+			long[] sorted = Arrays.copyOf(latencies, samples);
+			Arrays.sort(sorted);
+			hedgeDelayNanos = sorted[(int) Math.ceil(samples * 0.95) - 1];
+		}
+	}
+
+	/**
+	 * Gets the number of retries.
+	 *
+	 * @return the number of retries
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Gets the number of hedges sent.
+	 *
+	 * @return the number of hedges
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * Gets the number of hedges answered before the request they hedged.
+	 *
+	 * @return the number of hedges won
+	 */
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+}
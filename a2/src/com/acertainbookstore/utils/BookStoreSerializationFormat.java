@@ -0,0 +1,182 @@
+package com.acertainbookstore.utils;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import com.acertainbookstore.interfaces.BookStoreSerializer;
+
+/**
+ * {@link BookStoreSerializationFormat} enumerates the formats in which the
+ * bookstore messages can be serialized, and the media types which identify
+ * them in the Content-Type and Accept headers.
+ */
+public enum BookStoreSerializationFormat {
+
+	/** Binary format of the Kryo library. */
+	KRYO("application/x-bookstore-kryo", BookStoreKryoSerializer::new),
+
+	/** XML format of the XStream library. */
+	XSTREAM("application/xml", BookStoreXStreamSerializer::new),
+
+	/** Compact binary format specific to the bookstore messages. */
+	COMPACT("application/x-bookstore-compact", BookStoreCompactSerializer::new),
+
+	/** JSON format specific to the bookstore messages. */
+	JSON("application/json", BookStoreJsonSerializer::new);
+
+	/** The quality given in the Accept header to the formats not preferred. */
+	private static final String ALTERNATIVE_QUALITY = ";q=0.5";
+
+	/** The media type. */
+	private final String mediaType;
+
+	/** The factory of the serializers. */
+	private final Supplier<BookStoreSerializer> factory;
+
+	/** The serializer shared by all the users of the format, created lazily. */
+	private volatile BookStoreSerializer serializer;
+
+	/**
+	 * Instantiates a new {@link BookStoreSerializationFormat}.
+	 *
+	 * @param mediaType
+	 *            the media type
+	 * @param factory
+	 *            the factory of the serializers
+	 */
+	private BookStoreSerializationFormat(String mediaType, Supplier<BookStoreSerializer> factory) {
+		this.mediaType = mediaType;
+		this.factory = factory;
+	}
+
+	/**
+	 * Gets the media type which identifies the format in HTTP headers.
+	 *
+	 * @return the media type
+	 */
+	public String getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * Creates a serializer of the format. The serializers are thread-safe, so
+	 * one is enough per server or client.
+	 *
+	 * @return the serializer
+	 */
+	public BookStoreSerializer newSerializer() {
+		return factory.get();
+	}
+
+	/**
+	 * Gets the serializer of the format shared by the whole process, creating
+	 * it on first use so that unused formats cost nothing.
+	 *
+	 * @return the serializer
+	 */
+	public BookStoreSerializer getSerializer() {
+		BookStoreSerializer result = serializer;
+
+		if (result == null) {
+			synchronized (this) {
+				result = serializer;
+
+				if (result == null) {
+					result = factory.get();
+					serializer = result;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets the value of an Accept header which prefers this format but also
+	 * accepts all the others.
+	 *
+	 * @return the Accept header value
+	 */
+	public String getAcceptHeader() {
+		StringBuilder accept = new StringBuilder(mediaType);
+
+		for (BookStoreSerializationFormat format : values()) {
+			if (format != this) {
+				accept.append(", ").append(format.mediaType).append(ALTERNATIVE_QUALITY);
+			}
+		}
+
+		return accept.toString();
+	}
+
+	/**
+	 * Gets the format identified by a media type, e.g. the value of a
+	 * Content-Type header. The parameters of the media type are ignored.
+	 *
+	 * @param mediaType
+	 *            the media type, or null
+	 * @return the format, or null if the media type is null or not supported
+	 */
+	public static BookStoreSerializationFormat fromMediaType(String mediaType) {
+		if (mediaType == null) {
+			return null;
+		}
+
+		int end = mediaType.indexOf(';');
+		String type = ((end < 0) ? mediaType : mediaType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+
+		for (BookStoreSerializationFormat format : values()) {
+			if (format.mediaType.equals(type)) {
+				return format;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Chooses the format of a response from the Accept header of the request:
+	 * the supported media type with the highest quality, the first one listed
+	 * if several have the same quality. Wildcards and a missing or unsupported
+	 * header select the default format.
+	 *
+	 * @param accept
+	 *            the value of the Accept header, or null
+	 * @param defaultFormat
+	 *            the default format
+	 * @return the format
+	 */
+	public static BookStoreSerializationFormat negotiate(String accept, BookStoreSerializationFormat defaultFormat) {
+		if (accept == null) {
+			return defaultFormat;
+		}
+
+		BookStoreSerializationFormat best = null;
+		float bestQuality = 0f;
+
+		for (String range : accept.split(",")) {
+			float quality = BookStoreUtility.getQuality(range);
+
+			if (quality <= bestQuality) {
+				continue;
+			}
+
+			BookStoreSerializationFormat format = fromMediaType(range);
+
+			if (format == null) {
+				String type = range.trim();
+
+				if (type.startsWith("*/*") || type.startsWith("application/*")) {
+					format = defaultFormat;
+				}
+			}
+
+			if (format != null) {
+				best = format;
+				bestQuality = quality;
+			}
+		}
+
+		return (best != null) ? best : defaultFormat;
+	}
+}
@@ -0,0 +1,170 @@
+package com.acertainbookstore.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import com.acertainbookstore.client.BookStoreClientConstants;
+
+/**
+ * {@link BookStoreSingleFlight} coalesces identical calls which are in flight
+ * at the same time: the first caller of a key makes the call, and the callers
+ * which arrive before it returns wait for its result instead of making their
+ * own. A call which starts after the previous one returned is always made
+ * again, so no result is kept beyond the calls which shared it.
+ * <p>
+ * The owner of a single flight calls {@link #invalidate()} when it changes
+ * what the calls read, so that callers which arrive after the change do not
+ * join a call which started before it.
+ */
+public final class BookStoreSingleFlight {
+
+	/**
+	 * {@link Call} makes the call of a key.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	public interface Call<T> {
+
+		/**
+		 * Makes the call.
+		 *
+		 * @return the result
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		public T call() throws BookStoreException;
+	}
+
+	/**
+	 * {@link Flight} is a call in flight.
+	 */
+	private static final class Flight {
+
+		/** The generation the call started in. */
+		private final long generation;
+
+		/** The future of the result. */
+		private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		/**
+		 * Instantiates a new {@link Flight}.
+		 *
+		 * @param generation
+		 *            the generation the call started in
+		 */
+		Flight(long generation) {
+			this.generation = generation;
+		}
+	}
+
+	/** The calls in flight, by key. */
+	private final ConcurrentHashMap<Object, Flight> flights = new ConcurrentHashMap<>();
+
+	/** The generation, incremented by every invalidation. */
+	private final AtomicLong generation = new AtomicLong();
+
+	/** The number of calls which joined another one. */
+	private final AtomicLong sharedCalls = new AtomicLong();
+
+	/**
+	 * Makes a call, or joins the identical call in flight.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 * @param key
+	 *            the key of the call, equal for calls with the same result
+	 * @param call
+	 *            the call
+	 * @param share
+	 *            the function which gives each caller its own copy of the
+	 *            result, if the result is mutable
+	 * @return the result
+	 * @throws BookStoreException
+	 *             the exception of the call
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(Object key, Call<T> call, UnaryOperator<T> share) throws BookStoreException {
+		long currentGeneration = generation.get();
+		Flight flight = new Flight(currentGeneration);
+		Flight existing = flights.putIfAbsent(key, flight);
+
+		while (existing != null) {
+			if (existing.generation >= currentGeneration) {
+				sharedCalls.incrementAndGet();
+				return share.apply((T) await(existing));
+			}
+
+			// The call in flight may not see a change made before this call,
+			// so it is replaced rather than joined.
+			if (flights.replace(key, existing, flight)) {
+				break;
+			}
+
+			existing = flights.putIfAbsent(key, flight);
+		}
+
+		try {
+			T result = call.call();
+			flight.result.complete(result);
+
+			// The result itself stays untouched for the callers still to copy
+			// it.
+			return share.apply(result);
+		} catch (Throwable ex) {
+			flight.result.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			flights.remove(key, flight);
+		}
+	}
+
+	/**
+	 * Stops the callers which arrive from now on from joining the calls in
+	 * flight.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of calls which joined another one instead of being made.
+	 *
+	 * @return the number of shared calls
+	 */
+	public long getSharedCalls() {
+		return sharedCalls.get();
+	}
+
+	/**
+	 * Waits for the result of a call in flight.
+	 *
+	 * @param flight
+	 *            the call
+	 * @return the result
+	 * @throws BookStoreException
+	 *             the exception of the call
+	 */
+	private static Object await(Flight flight) throws BookStoreException {
+		try {
+			return flight.result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+
+			if (cause instanceof BookStoreException) {
+				throw (BookStoreException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+
+			throw (RuntimeException) cause;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.acertainbookstore.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link BookStoreStringDictionary} stores each distinct string once and
+ * identifies it by a compact integer ID. The strings are kept encoded in a
+ * single byte arena, in Latin-1 if all their characters fit in it and in
+ * UTF-8 otherwise, so a stored string costs its length in bytes plus a few
+ * bytes of index instead of a {@link String} object with its own array.
+ * <p>
+ * Storing a string is synchronized, but reading one is not: an ID is only
+ * read by whoever got it from {@link #intern(String)}, or through an object
+ * published after it, so the arrays it reads already contain the string.
+ */
+public final class BookStoreStringDictionary {
+
+	/** The ID of null. */
+	public static final int NULL_ID = -1;
+
+	/** The initial number of strings which fit in the index. */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** The bit of the lengths which marks strings encoded in UTF-8. */
+	private static final int UTF_8_FLAG = 1 << 31;
+
+	/** The encoded strings. */
+	private volatile byte[] arena;
+
+	/** The offsets of the strings in the arena, by ID. */
+	private volatile int[] offsets;
+
+	/** The lengths of the strings in the arena, with the UTF-8 flag. */
+	private volatile int[] lengths;
+
+	/** The number of bytes used in the arena. */
+	private int arenaSize;
+
+	/** The number of strings. */
+	private int size;
+
+	/**
+	 * The hash table of the IDs, with open addressing. A slot holds the ID
+	 * plus one, or zero if it is empty.
+	 */
+	private int[] table;
+
+	/**
+	 * Instantiates a new, empty {@link BookStoreStringDictionary}.
+	 */
+	public BookStoreStringDictionary() {
+		clear();
+	}
+
+	/**
+	 * Gets the ID of a string, storing it if the dictionary does not contain
+	 * it yet.
+	 *
+	 * @param value
+	 *            the string, or null
+	 * @return the ID, or {@link #NULL_ID} if the string is null
+	 */
+	public synchronized int intern(String value) {
+		if (value == null) {
+			return NULL_ID;
+		}
+
+		boolean latin1 = isLatin1(value);
+		byte[] bytes = value.getBytes(latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+		int length = latin1 ? bytes.length : (bytes.length | UTF_8_FLAG);
+		int mask = table.length - 1;
+		int slot = Arrays.hashCode(bytes) & mask;
+
+		for (int id = table[slot] - 1; id >= 0; id = table[slot] - 1) {
+			if (lengths[id] == length && Arrays.equals(arena, offsets[id], offsets[id] + bytes.length, bytes, 0,
+					bytes.length)) {
+				return id;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return add(bytes, length, slot);
+	}
+
+	/**
+	 * Gets a string by its ID.
+	 *
+	 * @param id
+	 *            the ID returned by {@link #intern(String)}
+	 * @return the string, or null if the ID is {@link #NULL_ID}
+	 */
+	public String get(int id) {
+		if (id == NULL_ID) {
+			return null;
+		}
+
+		int length = lengths[id];
+		int offset = offsets[id];
+		byte[] bytes = arena;
+
+		if ((length & UTF_8_FLAG) != 0) {
+			return new String(bytes, offset, length & ~UTF_8_FLAG, StandardCharsets.UTF_8);
+		}
+
+		return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Removes all the strings. The IDs given before must not be used anymore.
+	 */
+	public synchronized void clear() {
+		arena = new byte[INITIAL_CAPACITY * 16];
+		offsets = new int[INITIAL_CAPACITY];
+		lengths = new int[INITIAL_CAPACITY];
+		table = new int[INITIAL_CAPACITY * 2];
+		arenaSize = 0;
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of distinct strings.
+	 *
+	 * @return the number of strings
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes used by the encoded strings.
+	 *
+	 * @return the number of bytes
+	 */
+	public synchronized int getArenaSize() {
+		return arenaSize;
+	}
+
+	/**
+	 * Stores a new string.
+	 *
+	 * @param bytes
+	 *            the encoded string
+	 * @param length
+	 *            the length of the string, with the UTF-8 flag
+	 * @param slot
+	 *            the empty slot of the hash table for the string
+	 * @return the ID
+	 */
+	private int add(byte[] bytes, int length, int slot) {
+		if (arenaSize + bytes.length > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(2 * arena.length, arenaSize + bytes.length));
+		}
+
+		if (size == offsets.length) {
+			offsets = Arrays.copyOf(offsets, 2 * size);
+			lengths = Arrays.copyOf(lengths, 2 * size);
+		}
+
+		int id = size++;
+		System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+		offsets[id] = arenaSize;
+		lengths[id] = length;
+		arenaSize += bytes.length;
+		table[slot] = id + 1;
+
+		// Keep the hash table at most half full.
+		if (2 * size > table.length) {
+			rehash();
+		}
+
+		return id;
+	}
+
+	/**
+	 * Doubles the size of the hash table.
+	 */
+	private void rehash() {
+		int[] newTable = new int[2 * table.length];
+		int mask = newTable.length - 1;
+
+		for (int id = 0; id < size; id++) {
+			int offset = offsets[id];
+			int length = lengths[id] & ~UTF_8_FLAG;
+			int hash = 1;
+
+			// Same hash as Arrays.hashCode(byte[]) on the encoded string.
+			for (int i = offset; i < offset + length; i++) {
+				hash = 31 * hash + arena[i];
+			}
+
+			int slot = hash & mask;
+
+			while (newTable[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+
+			newTable[slot] = id + 1;
+		}
+
+		table = newTable;
+	}
+
+	/**
+	 * Checks if all the characters of a string fit in Latin-1.
+	 *
+	 * @param value
+	 *            the string
+	 * @return true, if the string can be encoded in Latin-1
+	 */
+	private static boolean isLatin1(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > 0xff) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -1,15 +1,42 @@
 package com.acertainbookstore.utils;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
+import org.eclipse.jetty.client.ContentDecoder;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
 import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.client.BookStoreClientConstants;
 import com.acertainbookstore.interfaces.BookStoreSerializer;
@@ -32,6 +59,12 @@ public final class BookStoreUtility {
 		}
 	};
 
+	/** The content of requests without a body. */
+	private static final byte[] EMPTY_CONTENT = new byte[0];
+
+	/** The decompressor of the responses received by the clients. */
+	private static final BookStoreCompressor CLIENT_COMPRESSOR = new BookStoreCompressor();
+
 	/**
 	 * Prevents the instantiation of a new {@link BookStoreUtility}.
 	 */
@@ -72,6 +105,17 @@ public final class BookStoreUtility {
 		return copies < 1;
 	}
 
+	/**
+	 * Checks if is invalid page limit.
+	 *
+	 * @param limit
+	 *            the maximum number of books in a page
+	 * @return true, if is invalid page limit
+	 */
+	public static boolean isInvalidPageLimit(int limit) {
+		return limit < 1 || limit > BookStoreConstants.MAX_PAGE_SIZE;
+	}
+
 	/**
 	 * Checks if a string is empty or null.
 	 *
@@ -129,23 +173,106 @@ public final class BookStoreUtility {
 	}
 
 	/**
-	 * Convert a request URI to the message tags supported in CertainBookStore.
+	 * Converts a string to a long.
 	 *
-	 * @param requestURI
-	 *            the request URI
-	 * @return the book store message tag
+	 * @param str
+	 *            the string
+	 * @return the long
+	 * @throws BookStoreException
+	 *             the book store exception
 	 */
-	public static BookStoreMessageTag convertURItoMessageTag(String requestURI) {
+	public static long convertStringToLong(String str) throws BookStoreException {
+		try {
+			return Long.parseLong(str);
+		} catch (Exception ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
+	/**
+	 * Gets the delay a server asks for in the Retry-After header of a shed
+	 * request, given either in seconds or as an HTTP date.
+	 *
+	 * @param retryAfter
+	 *            the value of the header, or null
+	 * @return the delay in seconds: 1 if there is no header, and 0 if it is
+	 *         malformed, which leaves the backoff of the retry policy
+	 */
+	private static int getRetryAfterSeconds(String retryAfter) {
+		if (retryAfter == null) {
+			return 1;
+		}
+
+		String value = retryAfter.trim();
 
 		try {
-			return BookStoreMessageTag.valueOf(requestURI.substring(1).toUpperCase());
-		} catch (IllegalArgumentException | NullPointerException ex) {
-			// Enumeration type matching failed so non supported message or the
-			// request URI was empty.
-			System.err.println(ex.getStackTrace());
+			return (int) Math.min(Math.max(Long.parseLong(value), 0), Integer.MAX_VALUE);
+		} catch (NumberFormatException ex) {
+			// Not delta-seconds, so maybe an HTTP date.
 		}
 
-		return null;
+		try {
+			long seconds = Duration.between(Instant.now(),
+					ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()).getSeconds();
+			return (int) Math.min(Math.max(seconds, 0), Integer.MAX_VALUE);
+		} catch (DateTimeParseException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Gets the quality value of an element of an Accept or Accept-Encoding
+	 * header, e.g. 0.5 for "gzip;q=0.5".
+	 *
+	 * @param element
+	 *            the header element
+	 * @return the quality, 1 if the element has none and 0 if it is invalid
+	 */
+	public static float getQuality(String element) {
+		String[] parameters = element.split(";");
+
+		for (int i = 1; i < parameters.length; i++) {
+			String parameter = parameters[i].trim();
+
+			if (parameter.startsWith("q=")) {
+				try {
+					return Float.parseFloat(parameter.substring(2));
+				} catch (NumberFormatException ex) {
+					return 0f;
+				}
+			}
+		}
+
+		return 1f;
+	}
+
+	/**
+	 * Builds the entity tag of a versioned response. The tag includes a hash of
+	 * the request content because the same version is shared by the responses
+	 * to different requests, and the format because the same request can be
+	 * answered in several formats.
+	 *
+	 * @param version
+	 *            the version of the data in the response
+	 * @param format
+	 *            the format of the response
+	 * @param requestContent
+	 *            the serialized request content
+	 * @return the entity tag
+	 */
+	public static String toETag(long version, BookStoreSerializationFormat format, byte[] requestContent) {
+		return "\"" + version + "-" + Integer.toHexString(Arrays.hashCode(requestContent)) + "-"
+				+ format.ordinal() + "\"";
+	}
+
+	/**
+	 * Gets the compressor shared by the clients, which keeps the metrics of the
+	 * compressed responses they received.
+	 *
+	 * @return the client compressor
+	 */
+	public static BookStoreCompressor getClientCompressor() {
+		return CLIENT_COMPRESSOR;
 	}
 
 	/**
@@ -155,40 +282,765 @@ public final class BookStoreUtility {
 	 *            the client
 	 * @param bookStoreRequest
 	 *            the book store request
-	 * @param serializer
-	 *            the serializer
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializationFormat format) throws BookStoreException {
+		return performHttpExchange(client, bookStoreRequest, format, null);
+	}
+
+	/**
+	 * Perform HTTP exchange, revalidating the last response to the same request
+	 * kept in the cache. If the server answers that the response has not
+	 * changed, the cached response content is used instead.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @param cache
+	 *            the response cache, or null to not revalidate
 	 * @return the book store response
 	 * @throws BookStoreException
 	 *             the book store exception
 	 */
 	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
-			BookStoreSerializer serializer) throws BookStoreException {
-		Request request;
+			BookStoreSerializationFormat format, BookStoreResponseCache cache) throws BookStoreException {
+		Exchange exchange = new Exchange(client, bookStoreRequest, format, cache);
+		ContentResponse response;
+		long sentAt = System.nanoTime();
+
+		try {
+			response = exchange.request.send();
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (TimeoutException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT, ex);
+		} catch (ExecutionException ex) {
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
+		}
+
+		exchange.received(sentAt);
+		return exchange.decode(response.getStatus(), response.getHeaders(), response.getMediaType(),
+				response.getContent());
+	}
+
+	/**
+	 * Perform HTTP exchange without blocking, like
+	 * {@link #performHttpExchange(HttpClient, BookStoreRequest, BookStoreSerializationFormat, BookStoreResponseCache)}.
+	 * The response is buffered by the client threads and decoded by the given
+	 * executor, so that the threads which read the network are not held by
+	 * the deserialization.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @param cache
+	 *            the response cache, or null to not revalidate
+	 * @param executor
+	 *            the executor which decodes the response
+	 * @return the future of the book store response, completed exceptionally
+	 *         with a {@link BookStoreException} if the exchange fails
+	 */
+	public static CompletableFuture<BookStoreResponse> performHttpExchangeAsync(HttpClient client,
+			BookStoreRequest bookStoreRequest, BookStoreSerializationFormat format, BookStoreResponseCache cache,
+			Executor executor) {
+		try {
+			return send(new Exchange(client, bookStoreRequest, format, cache), executor);
+		} catch (BookStoreException ex) {
+			CompletableFuture<BookStoreResponse> future = new CompletableFuture<>();
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
+
+	/**
+	 * Perform HTTP exchange following a retry policy, like
+	 * {@link #performHttpExchange(HttpClient, BookStoreRequest, BookStoreSerializationFormat, BookStoreResponseCache, BookStoreRetryPolicy, BookStoreLoadBalancer)}
+	 * with a single server.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @param cache
+	 *            the response cache, or null to not revalidate
+	 * @param policy
+	 *            the retry policy, or null to send the request once
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception of the last attempt
+	 */
+	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializationFormat format, BookStoreResponseCache cache, BookStoreRetryPolicy policy)
+			throws BookStoreException {
+		return performHttpExchange(client, bookStoreRequest, format, cache, policy, null);
+	}
 
-		switch (bookStoreRequest.getMethod()) {
-		case GET:
-			request = client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET);
-			break;
+	/**
+	 * Perform HTTP exchange following a retry policy: each attempt of a
+	 * retryable request is bounded by the timeout of the policy and may be
+	 * hedged, and the failed attempts are retried as the policy allows. The
+	 * retries and hedges are copies of the same request, which carry its
+	 * idempotency key if any. With a load balancer, every attempt and hedge
+	 * goes to the replica the balancer selects, a hedge to another replica
+	 * than the attempt it hedges.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request, built on the first replica
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @param cache
+	 *            the response cache, or null to not revalidate
+	 * @param policy
+	 *            the retry policy, or null to send the request once
+	 * @param balancer
+	 *            the load balancer, or null to send the request as built
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception of the last attempt
+	 */
+	public static BookStoreResponse performHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializationFormat format, BookStoreResponseCache cache, BookStoreRetryPolicy policy,
+			BookStoreLoadBalancer balancer) throws BookStoreException {
+		if (policy == null) {
+			return performBalancedExchange(client, bookStoreRequest, format, cache, balancer);
+		}
+
+		// The replica which receives a request with an idempotency key first is
+		// the only one which can recognize its copies, so they all go there.
+		AtomicReference<BookStoreLoadBalancer.Endpoint> pinned = (bookStoreRequest.getIdempotencyKey() != null)
+				? new AtomicReference<>()
+				: null;
 
-		case POST:
+		for (int attempt = 1;; attempt++) {
 			try {
-				byte[] serializedValue = serializer.serialize(bookStoreRequest.getInputValue());
-				ContentProvider contentProvider = new BytesContentProvider(serializedValue);
+				return performAttempt(client, bookStoreRequest, format, cache, policy, balancer, pinned);
+			} catch (BookStoreException ex) {
+				if (!policy.shouldRetry(bookStoreRequest, ex, attempt)) {
+					throw ex;
+				}
+
+				policy.recordRetry();
+
+				try {
+					Thread.sleep(policy.getBackoffMillis(ex, attempt));
+				} catch (InterruptedException interruptedEx) {
+					Thread.currentThread().interrupt();
+					throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Performs a single exchange with the replica the balancer selects.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request, built on the first replica
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @param cache
+	 *            the response cache, or null to not revalidate
+	 * @param balancer
+	 *            the load balancer, or null to send the request as built
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static BookStoreResponse performBalancedExchange(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializationFormat format, BookStoreResponseCache cache, BookStoreLoadBalancer balancer)
+			throws BookStoreException {
+		if (balancer == null) {
+			return performHttpExchange(client, bookStoreRequest, format, cache);
+		}
+
+		BookStoreLoadBalancer.Endpoint endpoint = balancer.select(null);
+		balancer.onStart(endpoint);
+		long startTime = System.nanoTime();
+		boolean failed = false;
+
+		try {
+			return performHttpExchange(client, balancer.route(bookStoreRequest, endpoint), format, cache);
+		} catch (BookStoreException ex) {
+			failed = isUnavailable(ex);
+			throw ex;
+		} finally {
+			balancer.onComplete(endpoint, System.nanoTime() - startTime, failed);
+		}
+	}
+
+	/**
+	 * Performs an attempt of an exchange, hedged if the policy says so.
+	 *
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request, built on the first replica
+	 * @param format
+	 *            the format of the request and the preferred format of the
+	 *            response
+	 * @param cache
+	 *            the response cache, or null to not revalidate
+	 * @param policy
+	 *            the retry policy
+	 * @param balancer
+	 *            the load balancer, or null to send the request as built
+	 * @param pinned
+	 *            the replica all the copies of the request go to, set by the
+	 *            first attempt, or null if the request may go to any replica
+	 * @return the book store response
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	private static BookStoreResponse performAttempt(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializationFormat format, BookStoreResponseCache cache, BookStoreRetryPolicy policy,
+			BookStoreLoadBalancer balancer, AtomicReference<BookStoreLoadBalancer.Endpoint> pinned)
+			throws BookStoreException {
+		if (!bookStoreRequest.isRetryable()) {
+			// A shorter timeout would leave the caller unsure whether the
+			// request was executed, so only the timeout of the exchange holds.
+			return performBalancedExchange(client, bookStoreRequest, format, cache, balancer);
+		}
+
+		long startTime = System.nanoTime();
+		long hedgeDelay = policy.getHedgeDelayNanos(bookStoreRequest);
+		Attempt attempt = new Attempt(client, bookStoreRequest, format, cache, policy, balancer,
+				(pinned != null) ? pinned.get() : null, null);
+		CompletableFuture<BookStoreResponse> future = attempt.future;
+
+		if (pinned != null) {
+			pinned.compareAndSet(null, attempt.endpoint);
+		}
+
+		Attempt hedge = null;
+
+		try {
+			if (hedgeDelay >= 0) {
+				try {
+					return succeeded(future.get(hedgeDelay, TimeUnit.NANOSECONDS), startTime, policy);
+				} catch (TimeoutException ex) {
+					if (policy.tryHedge()) {
+						hedge = new Attempt(client, bookStoreRequest, format, cache, policy, balancer,
+								(pinned != null) ? attempt.endpoint : null, attempt.endpoint);
+						future = firstSuccessful(future, hedge.future, policy);
+					}
+				}
+			}
+
+			return succeeded(future.get(), startTime, policy);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof BookStoreException) {
+				throw (BookStoreException) ex.getCause();
+			}
+
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_UNKNOWN, ex.getCause());
+		} finally {
+			// The losing copy is no longer of use.
+			CancellationException cancellation = new CancellationException();
+			attempt.exchange.request.abort(cancellation);
+
+			if (hedge != null) {
+				hedge.exchange.request.abort(cancellation);
+			}
+		}
+	}
+
+	/**
+	 * {@link Attempt} is an exchange sent without blocking, bounded by the
+	 * timeout of a retry policy, to the replica a load balancer selects.
+	 */
+	private static final class Attempt {
+
+		/** The exchange. */
+		private final Exchange exchange;
+
+		/** The replica, or null if the request is sent as built. */
+		private final BookStoreLoadBalancer.Endpoint endpoint;
+
+		/** The future of the response. */
+		private final CompletableFuture<BookStoreResponse> future;
+
+		/**
+		 * Sends an attempt.
+		 *
+		 * @param client
+		 *            the client
+		 * @param bookStoreRequest
+		 *            the book store request, built on the first replica
+		 * @param format
+		 *            the format of the request and the preferred format of
+		 *            the response
+		 * @param cache
+		 *            the response cache, or null to not revalidate
+		 * @param policy
+		 *            the retry policy
+		 * @param balancer
+		 *            the load balancer, or null to send the request as built
+		 * @param pinned
+		 *            the replica to send the attempt to, or null to let the
+		 *            balancer select it
+		 * @param excluded
+		 *            the replica the balancer does not select, or null
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		Attempt(HttpClient client, BookStoreRequest bookStoreRequest, BookStoreSerializationFormat format,
+				BookStoreResponseCache cache, BookStoreRetryPolicy policy, BookStoreLoadBalancer balancer,
+				BookStoreLoadBalancer.Endpoint pinned, BookStoreLoadBalancer.Endpoint excluded)
+				throws BookStoreException {
+			if (balancer == null) {
+				endpoint = null;
+			} else {
+				endpoint = (pinned != null) ? pinned : balancer.select(excluded);
+			}
+
+			exchange = new Exchange(client,
+					(endpoint != null) ? balancer.route(bookStoreRequest, endpoint) : bookStoreRequest, format,
+					cache);
+			exchange.setTimeout(policy.getAttemptTimeoutMillis());
+
+			if (endpoint == null) {
+				// The responses are small, so they are decoded on the client
+				// threads.
+				future = send(exchange, Runnable::run);
+				return;
+			}
+
+			balancer.onStart(endpoint);
+			long startTime = System.nanoTime();
+			future = send(exchange, Runnable::run);
+			future.whenComplete((bookStoreResponse, failure) -> balancer.onComplete(endpoint,
+					System.nanoTime() - startTime, failure != null && isUnavailable(failure)));
+		}
+	}
+
+	/**
+	 * Checks if an exchange failed because the server did not answer it, as
+	 * opposed to answering it with an exception or being aborted by the
+	 * client.
+	 *
+	 * @param failure
+	 *            the failure of the exchange
+	 * @return true, if the server is unavailable
+	 */
+	private static boolean isUnavailable(Throwable failure) {
+		if (failure instanceof BookStoreOverloadedException) {
+			return true;
+		}
+
+		return (BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT.equals(failure.getMessage())
+				|| BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION.equals(failure.getMessage()))
+				&& !(failure.getCause() instanceof CancellationException);
+	}
+
+	/**
+	 * Records the latency of a successful attempt.
+	 *
+	 * @param bookStoreResponse
+	 *            the book store response
+	 * @param startTime
+	 *            the time in nanoseconds the attempt started at
+	 * @param policy
+	 *            the retry policy
+	 * @return the book store response
+	 */
+	private static BookStoreResponse succeeded(BookStoreResponse bookStoreResponse, long startTime,
+			BookStoreRetryPolicy policy) {
+		policy.recordLatency(System.nanoTime() - startTime);
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Gets the first successful response of a request and of its hedge, or the
+	 * last failure if both fail.
+	 *
+	 * @param request
+	 *            the future of the response to the request
+	 * @param hedge
+	 *            the future of the response to the hedge
+	 * @param policy
+	 *            the retry policy, which counts the hedges answered first
+	 * @return the future of the first successful response
+	 */
+	private static CompletableFuture<BookStoreResponse> firstSuccessful(CompletableFuture<BookStoreResponse> request,
+			CompletableFuture<BookStoreResponse> hedge, BookStoreRetryPolicy policy) {
+		CompletableFuture<BookStoreResponse> first = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+
+		request.whenComplete((bookStoreResponse, failure) -> {
+			if (failure == null) {
+				first.complete(bookStoreResponse);
+			} else if (failures.incrementAndGet() == 2) {
+				first.completeExceptionally(failure);
+			}
+		});
+		hedge.whenComplete((bookStoreResponse, failure) -> {
+			if (failure == null) {
+				if (first.complete(bookStoreResponse)) {
+					policy.recordHedgeWon();
+				}
+			} else if (failures.incrementAndGet() == 2) {
+				first.completeExceptionally(failure);
+			}
+		});
+
+		return first;
+	}
+
+	/**
+	 * Sends the request of an exchange without blocking.
+	 *
+	 * @param exchange
+	 *            the exchange
+	 * @param executor
+	 *            the executor which decodes the response
+	 * @return the future of the book store response, completed exceptionally
+	 *         with a {@link BookStoreException} if the exchange fails
+	 */
+	private static CompletableFuture<BookStoreResponse> send(Exchange exchange, Executor executor) {
+		CompletableFuture<BookStoreResponse> future = new CompletableFuture<>();
+		long sentAt = System.nanoTime();
+
+		exchange.request.send(new BufferingResponseListener() {
+
+			@Override
+			public void onComplete(Result result) {
+				if (result.isFailed()) {
+					Throwable failure = result.getFailure();
+					future.completeExceptionally(new BookStoreException((failure instanceof TimeoutException)
+							? BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT
+							: BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, failure));
+					return;
+				}
+
+				exchange.received(sentAt);
+				Response response = result.getResponse();
+				String mediaType = getMediaType();
+				byte[] content = getContent();
+
+				try {
+					executor.execute(() -> {
+						try {
+							future.complete(
+									exchange.decode(response.getStatus(), response.getHeaders(), mediaType, content));
+						} catch (BookStoreException ex) {
+							future.completeExceptionally(ex);
+						} catch (RuntimeException ex) {
+							future.completeExceptionally(
+									new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_UNKNOWN, ex));
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					future.completeExceptionally(
+							new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_UNKNOWN, ex));
+				}
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Configures and starts an HTTP client for the proxies, unless it is
+	 * already running. The responses are decompressed together with the
+	 * cached ones, so a client started here must not decode them on its own;
+	 * it installs its decoders on start and they are removed here. A client
+	 * already running belongs to its caller and keeps its decoders.
+	 *
+	 * @param client
+	 *            the HTTP client
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void startClient(HttpClient client) throws Exception {
+		if (!client.isStarted()) {
+			// Max concurrent connections to every address.
+			client.setMaxConnectionsPerDestination(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS);
+
+			// Max number of threads.
+			if (client.getExecutor() == null) {
+				client.setExecutor(new QueuedThreadPool(BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS));
+			}
+
+			// Seconds timeout; if no server reply, the request expires.
+			client.setConnectTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+
+			client.start();
+			client.getContentDecoderFactories().clear();
+		}
+	}
+
+	/**
+	 * {@link Exchange} is an HTTP request built from a book store request,
+	 * and decodes its response, revalidating the cached response if any.
+	 */
+	private static final class Exchange {
+
+		/** The client. */
+		private final HttpClient client;
+
+		/** The book store request. */
+		private final BookStoreRequest bookStoreRequest;
+
+		/** The format of the request and the preferred format of the response. */
+		private final BookStoreSerializationFormat format;
+
+		/** The response cache, or null. */
+		private final BookStoreResponseCache cache;
+
+		/** The HTTP request. */
+		private final Request request;
+
+		/** The serialized request content. */
+		private final byte[] serializedValue;
+
+		/** The cached response revalidated by the request, or null. */
+		private final BookStoreResponseCache.Entry cachedEntry;
+
+		/** The observer of the phases of the exchange, or null. */
+		private final BookStoreExchangeObserver observer;
+
+		/**
+		 * Builds the HTTP request of a book store request.
+		 *
+		 * @param client
+		 *            the client
+		 * @param bookStoreRequest
+		 *            the book store request
+		 * @param format
+		 *            the format of the request and the preferred format of the
+		 *            response
+		 * @param cache
+		 *            the response cache, or null to not revalidate
+		 * @throws BookStoreException
+		 *             the book store exception
+		 */
+		Exchange(HttpClient client, BookStoreRequest bookStoreRequest, BookStoreSerializationFormat format,
+				BookStoreResponseCache cache) throws BookStoreException {
+			this.client = client;
+			this.bookStoreRequest = bookStoreRequest;
+			this.format = format;
+			this.cache = cache;
+			observer = bookStoreRequest.getObserver();
+
+			switch (bookStoreRequest.getMethod()) {
+			case GET:
+				request = client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET);
+				serializedValue = EMPTY_CONTENT;
+				break;
+
+			case POST:
+				long startTime = System.nanoTime();
+
+				try {
+					serializedValue = format.getSerializer().serialize(bookStoreRequest.getInputValue());
+				} catch (IOException ex) {
+					throw new BookStoreException("Serialization error", ex);
+				}
+
+				if (observer != null) {
+					observer.onSerialized(System.nanoTime() - startTime);
+				}
+
+				ContentProvider contentProvider = new BytesContentProvider(format.getMediaType(), serializedValue);
 				request = client.POST(bookStoreRequest.getURLString()).content(contentProvider);
+				break;
+
+			default:
+				throw new IllegalArgumentException("HTTP Method not supported.");
+			}
+
+			if (bookStoreRequest.getIdempotencyKey() != null) {
+				request.header(BookStoreConstants.IDEMPOTENCY_KEY_HEADER, bookStoreRequest.getIdempotencyKey());
+			}
+
+			request.header(HttpHeader.ACCEPT, format.getAcceptHeader());
+			request.header(HttpHeader.ACCEPT_ENCODING, BookStoreCompressor.ACCEPTED_ENCODINGS);
+			cachedEntry = (cache != null) ? cache.get(bookStoreRequest.getURLString(), serializedValue) : null;
+
+			if (cachedEntry != null) {
+				request.header(HttpHeader.IF_NONE_MATCH, cachedEntry.getETag());
+			}
+
+			setTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		}
+
+		/**
+		 * Bounds the time the client waits for the response, and sends it to
+		 * the server as the deadline of the request, so that the server does
+		 * not keep working on the request once the client gave up.
+		 *
+		 * @param timeoutMillis
+		 *            the timeout in milliseconds
+		 */
+		void setTimeout(long timeoutMillis) {
+			request.timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+			request.header(BookStoreConstants.DEADLINE_HEADER, null);
+			request.header(BookStoreConstants.DEADLINE_HEADER, Long.toString(timeoutMillis));
+		}
+
+		/**
+		 * Records that the whole response was received.
+		 *
+		 * @param sentAt
+		 *            the time in nanoseconds the request was sent at
+		 */
+		void received(long sentAt) {
+			if (observer != null) {
+				observer.onReceived(System.nanoTime() - sentAt);
+			}
+		}
+
+		/**
+		 * Decodes the response.
+		 *
+		 * @param status
+		 *            the status of the response
+		 * @param headers
+		 *            the headers of the response
+		 * @param mediaType
+		 *            the media type of the response
+		 * @param responseContent
+		 *            the content of the response
+		 * @return the book store response
+		 * @throws BookStoreException
+		 *             the exception of the response, or the book store
+		 *             exception raised while decoding it
+		 */
+		BookStoreResponse decode(int status, HttpFields headers, String mediaType, byte[] responseContent)
+				throws BookStoreException {
+			if (status == HttpStatus.SERVICE_UNAVAILABLE_503) {
+				throw new BookStoreOverloadedException(BookStoreClientConstants.STR_ERR_CLIENT_SERVER_OVERLOADED,
+						getRetryAfterSeconds(headers.get(HttpHeader.RETRY_AFTER)));
+			}
+
+			if (status == HttpStatus.GATEWAY_TIMEOUT_504) {
+				// The request reached the server after its deadline.
+				throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_TIMEOUT);
+			}
+
+			long startTime = System.nanoTime();
+			String contentEncoding = headers.get(HttpHeader.CONTENT_ENCODING);
+
+			if (contentEncoding != null && !isDecodedByClient(contentEncoding)) {
+				try {
+					responseContent = CLIENT_COMPRESSOR.decompress(contentEncoding, responseContent);
+				} catch (IOException ex) {
+					throw new BookStoreException("Decompression error", ex);
+				}
+			}
+
+			if (cache != null) {
+				String etag = headers.get(HttpHeader.ETAG);
+
+				if (status == HttpStatus.NOT_MODIFIED_304 && cachedEntry != null) {
+					responseContent = cachedEntry.getContent();
+					mediaType = cachedEntry.getMediaType();
+				} else if (etag != null) {
+					cache.put(bookStoreRequest.getURLString(), serializedValue, etag, mediaType, responseContent);
+				}
+			}
+
+			// Servers which do not negotiate answer in the format of the request.
+			BookStoreSerializationFormat responseFormat = BookStoreSerializationFormat.fromMediaType(mediaType);
+
+			if (responseFormat == null) {
+				responseFormat = format;
+			}
+
+			BookStoreResponse bookStoreResponse;
+
+			try {
+				bookStoreResponse = (BookStoreResponse) responseFormat.getSerializer().deserialize(responseContent);
 			} catch (IOException ex) {
-				throw new BookStoreException("Serialization error", ex);
+				throw new BookStoreException("Deserialization error", ex);
 			}
 
-			break;
+			if (observer != null) {
+				observer.onDeserialized(System.nanoTime() - startTime);
+			}
 
-		default:
-			throw new IllegalArgumentException("HTTP Method not supported.");
+			BookStoreException exception = bookStoreResponse.getException();
+
+			if (exception != null) {
+				throw exception;
+			}
+
+			return bookStoreResponse;
 		}
 
-		ContentResponse response;
+		/**
+		 * Checks whether the client decoded the content of the response
+		 * already, which a client of the caller does with its own decoders.
+		 *
+		 * @param contentEncoding
+		 *            the content encoding of the response
+		 * @return true, if the content is decoded
+		 */
+		private boolean isDecodedByClient(String contentEncoding) {
+			for (ContentDecoder.Factory factory : client.getContentDecoderFactories()) {
+				if (factory.getEncoding().equalsIgnoreCase(contentEncoding)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Perform an HTTP exchange whose response is streamed in frames, each
+	 * with a chunk of the elements, and return the elements as a stream which
+	 * reads the frames as it is consumed. The stream must be closed if it is
+	 * not read to the end, which aborts the response.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param client
+	 *            the client
+	 * @param bookStoreRequest
+	 *            the book store request, which must be a GET request
+	 * @param format
+	 *            the preferred format of the response
+	 * @return the stream of the elements
+	 * @throws BookStoreException
+	 *             the book store exception
+	 */
+	public static <T> Stream<T> performStreamingHttpExchange(HttpClient client, BookStoreRequest bookStoreRequest,
+			BookStoreSerializationFormat format) throws BookStoreException {
+		InputStreamResponseListener listener = new InputStreamResponseListener();
+		client.newRequest(bookStoreRequest.getURLString()).method(HttpMethod.GET)
+				.header(HttpHeader.ACCEPT, format.getAcceptHeader()).send(listener);
+
+		Response response;
 
 		try {
-			response = request.send();
+			response = listener.get(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException ex) {
 			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_SENDING, ex);
 		} catch (TimeoutException ex) {
@@ -197,20 +1049,86 @@ public final class BookStoreUtility {
 			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_REQUEST_EXCEPTION, ex);
 		}
 
+		InputStream content = listener.getInputStream();
+
+		if (response.getStatus() != HttpStatus.OK_200) {
+			closeQuietly(content);
+
+			if (response.getStatus() == HttpStatus.SERVICE_UNAVAILABLE_503) {
+				throw new BookStoreOverloadedException(BookStoreClientConstants.STR_ERR_CLIENT_SERVER_OVERLOADED,
+						getRetryAfterSeconds(response.getHeaders().get(HttpHeader.RETRY_AFTER)));
+			}
+
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_UNKNOWN + ": HTTP "
+					+ response.getStatus());
+		}
+
+		BookStoreSerializationFormat responseFormat = BookStoreSerializationFormat
+				.fromMediaType(response.getHeaders().get(HttpHeader.CONTENT_TYPE));
+		BookStoreSerializer serializer = ((responseFormat != null) ? responseFormat : format).getSerializer();
+		DataInputStream in = new DataInputStream(content);
+
+		return BookStoreChunkedStream.of(() -> readFrame(in, serializer), () -> closeQuietly(in));
+	}
+
+	/**
+	 * Reads a frame of a streamed response.
+	 *
+	 * @param <T>
+	 *            the type of the elements
+	 * @param in
+	 *            the response content
+	 * @param serializer
+	 *            the serializer of the response
+	 * @return the elements of the frame, or null after the last frame
+	 * @throws BookStoreException
+	 *             the exception which ended the stream, or the error reading
+	 *             the frame
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> readFrame(DataInputStream in, BookStoreSerializer serializer)
+			throws BookStoreException {
 		BookStoreResponse bookStoreResponse;
 
 		try {
-			bookStoreResponse = (BookStoreResponse) serializer.deserialize(response.getContent());
+			int length = in.readInt();
+
+			if (length == 0) {
+				in.close();
+				return null;
+			}
+
+			if (length < 0) {
+				throw new IOException("Invalid frame length " + length);
+			}
+
+			byte[] frame = new byte[length];
+			in.readFully(frame);
+			bookStoreResponse = (BookStoreResponse) serializer.deserialize(frame);
 		} catch (IOException ex) {
-			throw new BookStoreException("Deserialization error", ex);
+			closeQuietly(in);
+			throw new BookStoreException(BookStoreClientConstants.STR_ERR_CLIENT_RESPONSE_DECODING, ex);
 		}
 
-		BookStoreException exception = bookStoreResponse.getException();
-
-		if (exception != null) {
-			throw exception;
+		if (bookStoreResponse.getException() != null) {
+			closeQuietly(in);
+			throw bookStoreResponse.getException();
 		}
 
-		return bookStoreResponse;
+		return (List<T>) bookStoreResponse.getList();
+	}
+
+	/**
+	 * Closes a stream, ignoring the errors.
+	 *
+	 * @param stream
+	 *            the stream
+	 */
+	private static void closeQuietly(Closeable stream) {
+		try {
+			stream.close();
+		} catch (IOException ex) {
+			// Nothing more to read from it anyway.
+		}
 	}
 }
@@ -1,12 +1,23 @@
 package com.acertainbookstore.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
 import com.acertainbookstore.interfaces.BookStoreSerializer;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 /**
  * {@link BookStoreXStreamSerializer} serializes objects to arrays of bytes
- * representing XML trees using the XStream library.
+ * representing XML trees using the XStream library. The XML is written and
+ * read directly on byte streams in UTF-8, without building it as a string.
  * 
  * @see BookStoreSerializer
  */
@@ -23,9 +34,10 @@ public final class BookStoreXStreamSerializer implements BookStoreSerializer {
 	 * Object)
 	 */
 	@Override
-	public byte[] serialize(Object object) {
-		String xml = xmlStream.toXML(object);
-		return xml.getBytes();
+	public byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serialize(object, out);
+		return out.toByteArray();
 	}
 
 	/*
@@ -36,7 +48,32 @@ public final class BookStoreXStreamSerializer implements BookStoreSerializer {
 	 */
 	@Override
 	public Object deserialize(byte[] bytes) {
-		String xml = new String(bytes);
-		return xmlStream.fromXML(xml);
+		return deserialize(new ByteArrayInputStream(bytes));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#serialize(java.lang.
+	 * Object, java.io.OutputStream)
+	 */
+	@Override
+	public void serialize(Object object, OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		xmlStream.toXML(object, writer);
+		writer.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.acertainbookstore.interfaces.BookStoreSerializer#deserialize(java.io.
+	 * InputStream)
+	 */
+	@Override
+	public Object deserialize(InputStream in) {
+		return xmlStream.fromXML(new InputStreamReader(in, StandardCharsets.UTF_8));
 	}
 }